@@ -1,6 +1,10 @@
 package com.spichka.lineblock;
 
+import com.spichka.lineblock.lang.program.ProgramCache;
+import com.spichka.lineblock.lang.program.ProgramIndex;
+
 import net.fabricmc.api.ModInitializer;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,6 +16,10 @@ public class LineBlock implements ModInitializer {
 	@Override
 	public void onInitialize() {
 		RunCommand.register();
+		ProgramRun.register();
+		LineBlockCommand.register();
+		ProgramIndex.register();
 		LineBlockItemGroups.initialize();
+		ServerLifecycleEvents.SERVER_STOPPED.register(server -> ProgramCache.clear());
 	}
 }
\ No newline at end of file
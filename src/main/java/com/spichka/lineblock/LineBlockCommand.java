@@ -0,0 +1,168 @@
+package com.spichka.lineblock;
+
+import java.util.List;
+import java.util.Locale;
+
+import com.mojang.brigadier.Command;
+import com.mojang.brigadier.arguments.IntegerArgumentType;
+import com.mojang.brigadier.context.CommandContext;
+import com.spichka.lineblock.lang.exceptions.LineBlockException;
+import com.spichka.lineblock.lang.interpreter.Backend;
+import com.spichka.lineblock.lang.interpreter.JitCompiler;
+import com.spichka.lineblock.lang.program.ChunksNotLoadedException;
+import com.spichka.lineblock.lang.program.ProgramCache;
+import com.spichka.lineblock.lang.program.ProgramIndex;
+
+import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
+import net.minecraft.command.argument.BlockPosArgumentType;
+import net.minecraft.server.command.CommandManager;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.text.Text;
+import net.minecraft.util.math.BlockBox;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+
+// /lineblock scan|list|run|compile: all programs of a world, found through ProgramIndex;
+// /lineblock backend|jit: how programs run
+public class LineBlockCommand {
+    private static final int LIST_LIMIT = 20;
+
+    public static void register() {
+        CommandRegistrationCallback.EVENT.register((dispatcher, registryAccess, environment) -> {
+            dispatcher.register(
+                CommandManager.literal("lineblock")
+                    .requires(source -> source.hasPermissionLevel(2))
+                    .then(CommandManager.literal("scan")
+                        .executes(ctx -> scan(ctx, null))
+                        .then(CommandManager.argument("from", BlockPosArgumentType.blockPos())
+                            .then(CommandManager.argument("to", BlockPosArgumentType.blockPos())
+                                .executes(ctx -> scan(ctx, box(ctx))))))
+                    .then(CommandManager.literal("list")
+                        .executes(ctx -> list(ctx)))
+                    .then(CommandManager.literal("run")
+                        .executes(ctx -> runAll(ctx)))
+                    .then(CommandManager.literal("compile")
+                        .executes(ctx -> compileAll(ctx)))
+                    .then(CommandManager.literal("backend")
+                        .executes(ctx -> backend(ctx, null))
+                        .then(CommandManager.literal("bytecode")
+                            .executes(ctx -> backend(ctx, Backend.BYTECODE)))
+                        .then(CommandManager.literal("tree")
+                            .executes(ctx -> backend(ctx, Backend.TREE)))
+                        .then(CommandManager.literal("closures")
+                            .executes(ctx -> backend(ctx, Backend.CLOSURES))))
+                    .then(CommandManager.literal("jit")
+                        .executes(ctx -> jit(ctx, -1))
+                        .then(CommandManager.argument("runs", IntegerArgumentType.integer(0))
+                            .executes(ctx -> jit(ctx, IntegerArgumentType.getInteger(ctx, "runs")))))
+            );
+        });
+    }
+
+    private static BlockBox box(CommandContext<ServerCommandSource> context) {
+        BlockPos from = BlockPosArgumentType.getBlockPos(context, "from");
+        BlockPos to = BlockPosArgumentType.getBlockPos(context, "to");
+
+        return new BlockBox(
+            Math.min(from.getX(), to.getX()), Math.min(from.getY(), to.getY()), Math.min(from.getZ(), to.getZ()),
+            Math.max(from.getX(), to.getX()), Math.max(from.getY(), to.getY()), Math.max(from.getZ(), to.getZ())
+        );
+    }
+
+    private static int scan(CommandContext<ServerCommandSource> context, BlockBox box) {
+        ServerCommandSource source = context.getSource();
+        World world = source.getWorld();
+
+        ProgramIndex index = ProgramIndex.of(world);
+        index.scan(world, box);
+        List<BlockPos> starts = index.findStarts(world, box);
+
+        source.sendFeedback(() -> Text.literal("[LineBlock] Found " + starts.size() + " programs in "
+            + (box == null ? index.chunkCount() + " loaded chunks" : "the region")), false);
+        sendStarts(source, starts);
+        return starts.size();
+    }
+
+    private static int list(CommandContext<ServerCommandSource> context) {
+        ServerCommandSource source = context.getSource();
+        List<BlockPos> starts = ProgramIndex.of(source.getWorld()).findStarts(source.getWorld(), null);
+
+        source.sendFeedback(() -> Text.literal("[LineBlock] " + starts.size() + " programs"), false);
+        sendStarts(source, starts);
+        return starts.size();
+    }
+
+    private static int runAll(CommandContext<ServerCommandSource> context) {
+        ServerCommandSource source = context.getSource();
+        List<BlockPos> starts = ProgramIndex.of(source.getWorld()).findStarts(source.getWorld(), null);
+
+        int started = 0;
+        for (BlockPos start : starts) {
+            if (ProgramRun.start(source, start))
+                started++;
+        }
+
+        int count = started;
+        source.sendFeedback(() -> Text.literal("[LineBlock] Started " + count + " of " + starts.size() + " programs"), false);
+        return count;
+    }
+
+    // lexes and parses every program into ProgramCache, so the next /run starts right away
+    private static int compileAll(CommandContext<ServerCommandSource> context) {
+        ServerCommandSource source = context.getSource();
+        World world = source.getWorld();
+        List<BlockPos> starts = ProgramIndex.of(world).findStarts(world, null);
+
+        int compiled = 0;
+        for (BlockPos start : starts) {
+            try {
+                ProgramCache.get(world, start).getRoot();
+                compiled++;
+            } catch (ChunksNotLoadedException e) {
+                source.sendFeedback(() -> Text.literal("[LineBlock] " + start.toShortString() + ": reaches into unloaded chunks"), false);
+            } catch (RuntimeException | LinkageError e) { // as in ProgramRun, one broken program must not stop the others
+                LineBlockException error = LineBlockException.of(e);
+                if (!(e instanceof LineBlockException))
+                    LineBlock.LOGGER.error("Error: ", e);
+                source.sendFeedback(() -> Text.literal("[LineBlock] " + start.toShortString() + ": " + error.getMessage()), false);
+            }
+        }
+
+        int count = compiled;
+        source.sendFeedback(() -> Text.literal("[LineBlock] Compiled " + count + " of " + starts.size() + " programs"), false);
+        return count == starts.size() ? Command.SINGLE_SUCCESS : 0;
+    }
+
+    // shows the backend, or selects it for all runs that start from now on
+    private static int backend(CommandContext<ServerCommandSource> context, Backend backend) {
+        ServerCommandSource source = context.getSource();
+        if (backend != null)
+            Backend.select(backend);
+
+        String name = Backend.selected().name().toLowerCase(Locale.ROOT);
+        source.sendFeedback(() -> Text.literal("[LineBlock] Backend: " + name), backend != null);
+        return Command.SINGLE_SUCCESS;
+    }
+
+    // shows after how many runs programs are compiled to JVM bytecode, or sets it (0 = never)
+    private static int jit(CommandContext<ServerCommandSource> context, int runs) {
+        ServerCommandSource source = context.getSource();
+        if (runs >= 0)
+            JitCompiler.setThreshold(runs);
+
+        int threshold = JitCompiler.threshold();
+        String text = threshold == 0 ? "off" : "after " + threshold + " runs";
+        source.sendFeedback(() -> Text.literal("[LineBlock] JIT: " + text), runs >= 0);
+        return Command.SINGLE_SUCCESS;
+    }
+
+    private static void sendStarts(ServerCommandSource source, List<BlockPos> starts) {
+        for (int i = 0; i < Math.min(starts.size(), LIST_LIMIT); i++) {
+            BlockPos start = starts.get(i);
+            source.sendFeedback(() -> Text.literal("  /run " + start.getX() + " " + start.getY() + " " + start.getZ()), false);
+        }
+
+        if (starts.size() > LIST_LIMIT)
+            source.sendFeedback(() -> Text.literal("  ... and " + (starts.size() - LIST_LIMIT) + " more"), false);
+    }
+}
@@ -0,0 +1,150 @@
+package com.spichka.lineblock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.spichka.lineblock.lang.exceptions.ExceptionUtils;
+import com.spichka.lineblock.lang.exceptions.LineBlockException;
+import com.spichka.lineblock.lang.interpreter.Backend;
+import com.spichka.lineblock.lang.interpreter.Executor;
+import com.spichka.lineblock.lang.interpreter.JitCode;
+import com.spichka.lineblock.lang.parser.ast.BlockNode;
+import com.spichka.lineblock.lang.program.AstInterner;
+import com.spichka.lineblock.lang.program.ChunkPreloader;
+import com.spichka.lineblock.lang.program.ChunksNotLoadedException;
+import com.spichka.lineblock.lang.program.Program;
+import com.spichka.lineblock.lang.program.ProgramCache;
+
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+
+// One /run. Lexing and every top-level statement only start once the chunks they
+// need are loaded; until then the run waits and is checked again every tick.
+public class ProgramRun {
+    private static final int TIMEOUT_TICKS = 20 * 20;
+    private static final List<ProgramRun> RUNS = new ArrayList<>();
+
+    private final ServerCommandSource source;
+    private final ServerWorld world;
+    private final BlockPos pos;
+    private final ChunkPreloader chunks;
+
+    private LongSet waitingFor; // chunks the next step needs
+    private int waitedTicks;
+
+    private BlockNode root;
+    private List<LongSet> statementChunks;
+    private Executor executor;
+    private int next; // next top-level statement
+
+    private ProgramRun(ServerCommandSource source, BlockPos pos) {
+        this.source = source;
+        this.world = source.getWorld();
+        this.pos = pos;
+        this.chunks = new ChunkPreloader(world);
+    }
+
+    public static void register() {
+        ServerTickEvents.END_SERVER_TICK.register(server -> tickAll());
+        ServerLifecycleEvents.SERVER_STOPPED.register(server -> RUNS.clear());
+    }
+
+    // runs right away if all chunks are loaded, false if it failed already
+    public static boolean start(ServerCommandSource source, BlockPos pos) {
+        ProgramRun run = new ProgramRun(source, pos);
+        try {
+            if (!run.step())
+                RUNS.add(run);
+        } catch (RuntimeException | LinkageError e) {
+            run.fail(e);
+            return false;
+        }
+        return true;
+    }
+
+    private static void tickAll() {
+        if (RUNS.isEmpty())
+            return;
+
+        // a running program can start another /run through a command block
+        for (ProgramRun run : List.copyOf(RUNS)) {
+            try {
+                if (run.step())
+                    RUNS.remove(run);
+            } catch (RuntimeException | LinkageError e) {
+                run.fail(e); // nothing may escape into the server tick
+                RUNS.remove(run);
+            }
+        }
+    }
+
+    // true when the run is over
+    private boolean step() {
+        if (waitingFor != null) {
+            ChunkPos missing = chunks.firstMissing(waitingFor);
+            if (missing != null) {
+                if (++waitedTicks > TIMEOUT_TICKS)
+                    throw new LineBlockException("Chunk " + missing.x + ", " + missing.z + " did not load within " + TIMEOUT_TICKS / 20 + " seconds");
+                return false;
+            }
+            waitingFor = null;
+            waitedTicks = 0;
+        }
+
+        if (root == null) {
+            Program program;
+            try {
+                LineBlock.LOGGER.info("1. Lexer, 2. Parser");
+                program = ProgramCache.get(world, pos);
+                root = program.getRoot(); // only re-lexes what changed since the last run
+                LineBlock.LOGGER.info(program.getTokens().size() + " tokens, " + AstInterner.size() + " shared nodes");
+                LineBlock.LOGGER.info(root.toString());
+            } catch (ChunksNotLoadedException e) {
+                return await(e.getChunks());
+            }
+
+            // all constant PLACEBLOCK targets start loading at once
+            statementChunks = new ArrayList<>(root.statements.size());
+            for (int i = 0; i < root.statements.size(); i++) {
+                LongSet targets = ChunkPreloader.placeTargets(root.statements.get(i));
+                chunks.request(targets);
+                statementChunks.add(targets);
+            }
+
+            Backend backend = Backend.selected();
+            JitCode jitCode = backend == Backend.BYTECODE ? program.hotCode() : null;
+            LineBlock.LOGGER.info("3. " + backend + (jitCode != null ? ", " + jitCode : ""));
+            executor = backend.create(world, jitCode, program.code());
+        }
+
+        while (next < root.statements.size()) {
+            if (chunks.firstMissing(statementChunks.get(next)) != null)
+                return await(statementChunks.get(next));
+
+            if (!executor.execute(root.statements.get(next++)))
+                break;
+        }
+
+        chunks.release();
+        return true;
+    }
+
+    private boolean await(LongSet needed) {
+        chunks.request(needed);
+        waitingFor = needed;
+        return false;
+    }
+
+    private void fail(Throwable e) {
+        LineBlockException error = LineBlockException.of(e);
+        error.locate(pos); // the statements are shared, see AstInterner
+        chunks.release();
+        LineBlock.LOGGER.error("Error: ", e);
+        ExceptionUtils.showError(source, error);
+    }
+}
@@ -1,16 +1,18 @@
 package com.spichka.lineblock;
 
-import java.util.List;
-
 import com.mojang.brigadier.Command;
 import com.mojang.brigadier.context.CommandContext;
 import com.spichka.lineblock.lang.exceptions.ExceptionUtils;
 import com.spichka.lineblock.lang.exceptions.LineBlockException;
-import com.spichka.lineblock.lang.interpreter.Interpreter;
+import com.spichka.lineblock.lang.interpreter.Backend;
+import com.spichka.lineblock.lang.interpreter.Executor;
+import com.spichka.lineblock.lang.interpreter.Resolver;
+import com.spichka.lineblock.lang.interpreter.TypeChecker;
 import com.spichka.lineblock.lang.lexer.Lexer;
-import com.spichka.lineblock.lang.lexer.Token;
+import com.spichka.lineblock.lang.lexer.TokenStream;
+import com.spichka.lineblock.lang.optimizer.Optimizer;
 import com.spichka.lineblock.lang.parser.Parser;
-import com.spichka.lineblock.lang.parser.ast.BlockNode;
+import com.spichka.lineblock.lang.parser.ast.AstNode;
 
 import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
 import net.minecraft.server.command.CommandManager;
@@ -25,7 +27,9 @@ public class RunCommand {
             dispatcher.register(
                 CommandManager.literal("run")
                     .then(CommandManager.argument("x", net.minecraft.command.argument.BlockPosArgumentType.blockPos())
-                        .executes(ctx -> execute(ctx)))
+                        .executes(ctx -> execute(ctx))
+                        .then(CommandManager.literal("stream")
+                            .executes(ctx -> stream(ctx))))
             );
         });
     }
@@ -33,27 +37,37 @@ public class RunCommand {
     private static int execute(CommandContext<ServerCommandSource> context) {
         ServerCommandSource source = context.getSource();
 
+        BlockPos pos = net.minecraft.command.argument.BlockPosArgumentType.getBlockPos(context, "x");
+
+        // may wait for chunks and finish in a later tick
+        return ProgramRun.start(source, pos) ? Command.SINGLE_SUCCESS : 0;
+    }
+
+    // lexes, parses and runs one top-level statement at a time, so blocks are placed
+    // right away and memory does not grow with the program; a CALL only finds
+    // the DEFINEs read before it
+    private static int stream(CommandContext<ServerCommandSource> context) {
+        ServerCommandSource source = context.getSource();
+
         BlockPos pos = net.minecraft.command.argument.BlockPosArgumentType.getBlockPos(context, "x");
         World world = source.getWorld();
 
         try {
-            LineBlock.LOGGER.info("1. Lexer");
-            Lexer lexer = new Lexer(world, pos, Direction.EAST);
-            List<Token> tokens = lexer.tokenize();
-            for (Token t : tokens)
-                LineBlock.LOGGER.info(t.toString());
-
-            LineBlock.LOGGER.info("2. Parser");
-            Parser parser = new Parser(world, tokens);
-            BlockNode root = parser.parse();
-            LineBlock.LOGGER.info(root.toString());
-
-            LineBlock.LOGGER.info("3. Interpreter");
-            Interpreter interpreter = new Interpreter(root, world);
-            interpreter.interpret();
-        } catch (LineBlockException e) {
+            Parser parser = new Parser(world, new TokenStream(new Lexer(world, pos, Direction.EAST)));
+            Executor executor = Backend.selected().create(world);
+            Resolver resolver = new Resolver();
+            TypeChecker types = new TypeChecker();
+
+            AstNode statement;
+            while ((statement = parser.parseNext()) != null) {
+                statement = resolver.resolve(Optimizer.optimize(statement));
+                types.declare(statement); // later statements cannot change what already ran
+                if (!executor.execute(types.check(statement)))
+                    break;
+            }
+        } catch (RuntimeException | LinkageError e) { // nothing may escape into the command
             LineBlock.LOGGER.error("Error: ", e);
-            ExceptionUtils.showError(source, e);
+            ExceptionUtils.showError(source, LineBlockException.of(e));
             return 0;
         }
 
@@ -1,13 +1,45 @@
 package com.spichka.lineblock.lang.exceptions;
 
+import com.spichka.lineblock.lang.lexer.SharedToken;
 import com.spichka.lineblock.lang.lexer.Token;
 
+import net.minecraft.util.math.BlockPos;
+
 public class LineBlockException extends RuntimeException {
+    private final String detail;
+    private final Token token;
+    private BlockPos origin; // start of the program a SharedToken is relative to
+
     public LineBlockException(String msg, Token token) {
-        super("Error at " + token.pos + ": " + msg);
+        super(msg);
+        this.detail = msg;
+        this.token = token;
     }
 
     public LineBlockException(String msg) {
-        super("Error: " + msg);
+        this(msg, null);
+    }
+
+    // e itself, or a failure of LineBlock that is reported the same way
+    public static LineBlockException of(Throwable e) {
+        return e instanceof LineBlockException lineBlock ? lineBlock : new LineBlockException("Internal error: " + e);
+    }
+
+    // the program it was thrown in started at start, for errors at a SharedToken
+    public LineBlockException locate(BlockPos start) {
+        if (origin == null)
+            origin = start;
+        return this;
+    }
+
+    @Override
+    public String getMessage() {
+        if (token == null)
+            return "Error: " + detail;
+
+        BlockPos pos = token.getBlockPos();
+        if (token instanceof SharedToken && origin != null)
+            pos = pos.add(origin.getX(), origin.getY(), origin.getZ());
+        return "Error at " + pos + ": " + detail;
     }
 }
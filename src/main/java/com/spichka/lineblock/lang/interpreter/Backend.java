@@ -0,0 +1,36 @@
+package com.spichka.lineblock.lang.interpreter;
+
+import net.minecraft.world.World;
+
+// How programs run, picked with /lineblock backend: the bytecode VirtualMachine, the
+// Interpreter that walks the tree, or the ClosureInterpreter that runs the tree compiled
+// to closures. All of them give the same results.
+public enum Backend {
+    BYTECODE,
+    TREE,
+    CLOSURES;
+
+    private static Backend selected = BYTECODE; // until the server restarts
+
+    public static Backend selected() {
+        return selected;
+    }
+
+    public static void select(Backend backend) {
+        selected = backend;
+    }
+
+    // for statements that run once
+    public Executor create(World world) {
+        return create(world, null, new ProgramCode());
+    }
+
+    // jitCode is only used by the VirtualMachine
+    public Executor create(World world, JitCode jitCode, ProgramCode code) {
+        return switch (this) {
+            case BYTECODE -> new VirtualMachine(world, jitCode, code);
+            case TREE -> new Interpreter(world);
+            case CLOSURES -> new ClosureInterpreter(world, code);
+        };
+    }
+}
@@ -0,0 +1,66 @@
+package com.spichka.lineblock.lang.interpreter;
+
+// A top-level statement (or a procedure's body or result) compiled by the
+// BytecodeCompiler for the VirtualMachine.
+// Every instruction is an opcode followed by its operands. Registers hold the values
+// of expressions: the temporaries first, then the constants of the statement, which
+// are in place before it starts. Variables stay in the Frame, because a scope exit
+// has to drop them.
+final class Bytecode {
+    // opcodes and their operands; r = register, k = pool index, pc = jump target
+    static final int LOAD = 0;          // r, slot, variable index: fails if the variable does not exist
+    static final int STORE = 1;         // slot, r, depth, Value.Type ordinal, k token: an assign
+    static final int BINARY = 2;        // r, r left, r right, k node: see Specialization
+    static final int APPLY_BINARY = 3;  // r, r left, r right, Operation ordinal, k operator
+    static final int UNARY = 4;         // r, r operand, k node
+    static final int APPLY_UNARY = 5;   // r, r operand, Operation ordinal
+    static final int PRINT = 6;         // r (set to null), r value
+    static final int PLACE = 7;         // r x, r y, r z, k block
+    static final int COMMAND = 8;       // k token: runs the command block
+    static final int TEST = 9;          // r, k message, pc: jumps if false, fails if not BOOL
+    static final int JUMP = 10;         // pc
+    static final int EXIT = 11;         // depth: drops the variables above it
+    static final int CACHE_CLEAR = 12;  // k slots, size
+    static final int CACHE_GET = 13;    // r, slot, pc: jumps if the slot has a value
+    static final int CACHE_PUT = 14;    // slot, r
+    static final int MOVE = 15;         // r, r
+    static final int FAIL = 16;         // k exception
+    static final int RETURN = 17;       // flag
+    static final int FILL = 18;         // k FillNode, depth: see Filler
+    static final int ARRAY_NEW = 19;    // slot, r length, depth, Value.Type ordinal, k token
+    static final int ARRAY_GET = 20;    // r, r array, r index, k token
+    static final int ARRAY_SET = 21;    // r array, r index, r value, k token
+    static final int ARRAY_LENGTH = 22; // r, r array, k token
+    static final int CALL = 23;         // r, k CallNode, argument count, r per argument
+    static final int RESULT = 24;       // r: ends a procedure's result, see BytecodeCompiler.compileResult
+
+    // the flag a statement leaves set, the Interpreter's continueLoop/breakLoop/stopRunning
+    static final int NO_FLAG = 0;
+    static final int CONTINUE = 1;
+    static final int BREAK = 2;
+    static final int STOP = 3;
+
+    final int[] code;
+    final Object[] pool; // tokens, operator and fill nodes, blocks, messages, exceptions and cache slot lists
+    private final Value[] constants;
+    private final int temporaries;
+
+    Bytecode(int[] code, Object[] pool, Value[] constants, int temporaries) {
+        this.code = code;
+        this.pool = pool;
+        this.constants = constants;
+        this.temporaries = temporaries;
+    }
+
+    // a fresh register file
+    Value[] registers() {
+        Value[] registers = new Value[temporaries + constants.length];
+        System.arraycopy(constants, 0, registers, temporaries, constants.length);
+        return registers;
+    }
+
+    @Override
+    public String toString() {
+        return "Bytecode{code=" + code.length + ", registers=" + (temporaries + constants.length) + '}';
+    }
+}
@@ -0,0 +1,562 @@
+package com.spichka.lineblock.lang.interpreter;
+
+import static com.spichka.lineblock.lang.interpreter.Bytecode.*;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.spichka.lineblock.lang.exceptions.LineBlockException;
+import com.spichka.lineblock.lang.lexer.TokenType;
+import com.spichka.lineblock.lang.parser.ast.ArrayNode;
+import com.spichka.lineblock.lang.parser.ast.AstNode;
+import com.spichka.lineblock.lang.parser.ast.BinaryOpNode;
+import com.spichka.lineblock.lang.parser.ast.BlockNode;
+import com.spichka.lineblock.lang.parser.ast.CacheNode;
+import com.spichka.lineblock.lang.parser.ast.CacheScopeNode;
+import com.spichka.lineblock.lang.parser.ast.CallNode;
+import com.spichka.lineblock.lang.parser.ast.CommandNode;
+import com.spichka.lineblock.lang.parser.ast.ConstantNode;
+import com.spichka.lineblock.lang.parser.ast.FillNode;
+import com.spichka.lineblock.lang.parser.ast.ForNode;
+import com.spichka.lineblock.lang.parser.ast.IfNode;
+import com.spichka.lineblock.lang.parser.ast.LiteralNode;
+import com.spichka.lineblock.lang.parser.ast.PlaceBlockNode;
+import com.spichka.lineblock.lang.parser.ast.ProcedureNode;
+import com.spichka.lineblock.lang.parser.ast.UnaryOpNode;
+import com.spichka.lineblock.lang.parser.ast.VariableNode;
+import com.spichka.lineblock.lang.parser.ast.WhileNode;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+// Compiles a typed top-level statement into Bytecode that does what the Interpreter
+// does with it, in the same order and with the same errors.
+//
+// The Interpreter's flags become jumps: every statement is compiled with one exit per
+// flag it can leave set (see Bytecode.NO_FLAG), and the code after it for each flag
+// is what the Interpreter would run with that flag set. A block is left at its next
+// statement, a CONTINUE resets there; a loop evaluates its condition (and a FOR its
+// increment) once more before a BREAK or STOP leaves it; a CONTINUE that is the last
+// statement of a block is still set in the enclosing one and skips the next loop body.
+// Depths are known here, so scope exits are instructions with a constant depth.
+final class BytecodeCompiler {
+    private static final int TOP_DEPTH = 1; // top-level statements are inside the root block
+
+    private final IntArrayList code = new IntArrayList();
+    private final List<Object> pool = new ArrayList<>();
+    private final Map<Object, Integer> pooled = new IdentityHashMap<>();
+
+    private final List<Value> constants = new ArrayList<>();
+    private final Map<Value, Integer> constantRegisters = new IdentityHashMap<>();
+    private final IntArrayList constantOperands = new IntArrayList(); // where code refers to a constant
+
+    private int temporaries; // in use
+    private int maxTemporaries;
+    private int lastJump = -1; // position of the last JUMP, dropped if it jumps to the next instruction
+
+    // where code continues, bound once its position is known
+    private static final class Label {
+        private int pc = -1;
+        private final IntArrayList patches = new IntArrayList(2);
+    }
+
+    private BytecodeCompiler() {}
+
+    static Bytecode compile(AstNode statement) {
+        BytecodeCompiler compiler = new BytecodeCompiler();
+
+        Label[] exits = labels();
+        compiler.statement(statement, TOP_DEPTH, exits);
+        for (int flag = NO_FLAG; flag <= STOP; flag++) {
+            if (pending(exits[flag])) {
+                compiler.bind(exits[flag]);
+                compiler.op(RETURN);
+                compiler.arg(flag);
+            }
+        }
+
+        return compiler.finish();
+    }
+
+    // a procedure's result, its value is left in the VirtualMachine by RESULT
+    static Bytecode compileResult(AstNode result) {
+        BytecodeCompiler compiler = new BytecodeCompiler();
+        int value = compiler.expression(result);
+        compiler.op(RESULT);
+        compiler.reg(value);
+        return compiler.finish();
+    }
+
+    // node starts with no flag set and runs at depth, it continues at exits[flag]
+    private void statement(AstNode node, int depth, Label[] exits) {
+        if (node instanceof BlockNode n) {
+            block(n, depth, exits);
+        } else if (node instanceof IfNode n) {
+            Label otherwise = new Label();
+            test(n.conditionNode, "If expects BOOL expression as condition", otherwise);
+            statement(n.thenBranchNode, depth, exits);
+
+            bind(otherwise);
+            if (n.elseBranchNode != null)
+                statement(n.elseBranchNode, depth, exits);
+            else
+                jump(exits[NO_FLAG]);
+        } else if (node instanceof WhileNode n) {
+            whileLoop(n, depth, exits);
+        } else if (node instanceof ForNode n) {
+            forLoop(n, depth, exits);
+        } else if (node instanceof FillNode n) {
+            op(FILL);
+            arg(pool(n));
+            arg(depth);
+            jump(exits[NO_FLAG]);
+        } else if (node instanceof CommandNode n) {
+            switch (n.token.type) {
+                case STOP -> jump(exits[STOP]);
+                case BREAK -> jump(exits[BREAK]);
+                case CONTINUE -> jump(exits[CONTINUE]);
+                case COMMAND -> {
+                    op(COMMAND);
+                    arg(pool(n.token));
+                    jump(exits[NO_FLAG]);
+                }
+                default -> jump(exits[NO_FLAG]);
+            }
+        } else if (node instanceof PlaceBlockNode n) {
+            int x = expression(n.x);
+            int y = expression(n.y);
+            int z = expression(n.z);
+            temporaries = 0;
+
+            op(PLACE);
+            reg(x);
+            reg(y);
+            reg(z);
+            arg(pool(n.block));
+            jump(exits[NO_FLAG]);
+        } else if (node instanceof BinaryOpNode n && isAssign(n.operator.type)) {
+            if (!(n.left instanceof VariableNode variable)) {
+                fail(new LineBlockException("Left side of assignment must be a variable", n.operator));
+                return;
+            }
+
+            int value = expression(n.right);
+            temporaries = 0;
+
+            op(STORE);
+            arg(variable.slot);
+            reg(value);
+            arg(depth);
+            arg(assignType(n.operator.type).ordinal());
+            arg(pool(n.operator));
+            jump(exits[NO_FLAG]);
+        } else if (node instanceof ArrayNode n && n.operator.type == TokenType.ARRAY_NEW) {
+            int length = expression(n.index);
+            temporaries = 0;
+
+            op(ARRAY_NEW);
+            arg(n.array.slot);
+            reg(length);
+            arg(depth);
+            arg(n.element.ordinal());
+            arg(pool(n.operator));
+            jump(exits[NO_FLAG]);
+        } else if (node instanceof ArrayNode n && n.operator.type == TokenType.ARRAY_SET) {
+            int array = expression(n.array);
+            int index = expression(n.index);
+            int value = expression(n.value);
+            temporaries = 0;
+
+            op(ARRAY_SET);
+            reg(array);
+            reg(index);
+            reg(value);
+            arg(pool(n.operator));
+            jump(exits[NO_FLAG]);
+        } else if (node instanceof CacheScopeNode n) {
+            clearCache(n);
+            statement(n.node, depth, exits);
+        } else if (node instanceof ProcedureNode) {
+            jump(exits[NO_FLAG]); // its calls run it
+        } else {
+            expression(node); // PRINT; fails for null
+            temporaries = 0;
+            jump(exits[NO_FLAG]);
+        }
+    }
+
+    private void block(BlockNode n, int depth, Label[] exits) {
+        // the exits of the block, each one a scope exit before the enclosing exit
+        Label[] left = labels();
+        int last = n.statements.size() - 1;
+
+        for (int i = 0; i <= last; i++) {
+            // a CONTINUE is reset before the next statement, the last one leaves it set
+            Label next = i < last ? new Label() : left[NO_FLAG];
+            Label[] statementExits = { next, i < last ? left[NO_FLAG] : left[CONTINUE], left[BREAK], left[STOP] };
+            statement(n.statements.get(i), depth + 1, statementExits);
+
+            if (i < last)
+                bind(next);
+        }
+
+        if (last < 0)
+            jump(left[NO_FLAG]);
+
+        for (int flag = NO_FLAG; flag <= STOP; flag++) {
+            if (pending(left[flag])) {
+                bind(left[flag]);
+                exitScope(depth);
+                jump(exits[flag]);
+            }
+        }
+    }
+
+    // a loop body that starts with a CONTINUE still set
+    private void continuedBody(AstNode body, int depth, Label[] exits) {
+        if (body instanceof BlockNode n) {
+            // the block resets it before its first statement; an empty one has none
+            exitScope(depth);
+            jump(exits[n.statements.isEmpty() ? CONTINUE : NO_FLAG]);
+        } else {
+            statement(body, depth, keeping(exits, CONTINUE));
+        }
+    }
+
+    private void whileLoop(WhileNode n, int depth, Label[] exits) {
+        String message = "WHILE expects BOOL expression as condition";
+        Label[] condition = labels(); // the condition with a flag set
+
+        bind(condition[NO_FLAG]);
+        test(n.conditionNode, message, exits[NO_FLAG]);
+        statement(n.bodyNode, depth, condition);
+
+        if (pending(condition[CONTINUE])) {
+            bind(condition[CONTINUE]);
+            test(n.conditionNode, message, exits[CONTINUE]);
+            continuedBody(n.bodyNode, depth, condition);
+        }
+        for (int flag = BREAK; flag <= STOP; flag++) {
+            if (pending(condition[flag])) {
+                int leave = flag == BREAK ? NO_FLAG : STOP; // the loop resets a BREAK
+                bind(condition[flag]);
+                test(n.conditionNode, message, exits[leave]);
+                jump(exits[leave]);
+            }
+        }
+    }
+
+    private void forLoop(ForNode n, int depth, Label[] exits) {
+        String message = "FOR expects BOOL expression as condition";
+        int loopDepth = depth + 1;
+        Label[] condition = labels(); // the condition with a flag set
+        Label[] increment = labels();
+        Label[] end = labels();
+
+        statement(n.initializerNode, loopDepth, condition);
+        bind(condition[NO_FLAG]);
+        test(n.conditionNode, message, end[NO_FLAG]);
+        statement(n.bodyNode, loopDepth, increment);
+        bind(increment[NO_FLAG]);
+        statement(n.incrementNode, loopDepth, condition);
+
+        // a CONTINUE can go around the loop, so its steps refer to each other
+        for (boolean more = true; more; ) {
+            more = false;
+            for (int flag = CONTINUE; flag <= STOP; flag++) {
+                if (pending(increment[flag])) {
+                    bind(increment[flag]);
+                    statement(n.incrementNode, loopDepth, keeping(condition, flag));
+                    more = true;
+                }
+                if (pending(condition[flag])) {
+                    bind(condition[flag]);
+                    if (flag == CONTINUE) {
+                        test(n.conditionNode, message, end[CONTINUE]);
+                        continuedBody(n.bodyNode, loopDepth, increment);
+                    } else {
+                        int leave = flag == BREAK ? NO_FLAG : STOP; // the loop resets a BREAK
+                        test(n.conditionNode, message, end[leave]);
+                        jump(end[leave]);
+                    }
+                    more = true;
+                }
+            }
+        }
+
+        for (int flag = NO_FLAG; flag <= STOP; flag++) {
+            if (pending(end[flag])) {
+                bind(end[flag]);
+                exitScope(depth - 1); // also the variables of the enclosing block
+                jump(exits[flag]);
+            }
+        }
+    }
+
+    // evaluates a condition, jumps to otherwise if it is false
+    private void test(AstNode condition, String message, Label otherwise) {
+        int value = expression(condition);
+        temporaries = 0;
+
+        op(TEST);
+        reg(value);
+        arg(pool(message));
+        target(otherwise);
+    }
+
+    // compiles node into the register that holds its value afterwards
+    private int expression(AstNode node) {
+        if (node instanceof LiteralNode n) {
+            return n.error != null ? fail(n.error) : constant(n.value);
+        } else if (node instanceof ConstantNode n) {
+            try {
+                return constant(Operations.constant(n.constant));
+            } catch (LineBlockException e) {
+                return fail(e);
+            }
+        } else if (node instanceof VariableNode n) {
+            int target = temporary();
+            op(LOAD);
+            reg(target);
+            arg(n.slot);
+            arg(n.index);
+            return target;
+        } else if (node instanceof UnaryOpNode n) {
+            int mark = temporaries;
+            int operand = expression(n.operand);
+            temporaries = mark;
+            int target = temporary();
+
+            if (n.operation != null) {
+                op(APPLY_UNARY);
+                reg(target);
+                reg(operand);
+                arg(n.operation.ordinal());
+            } else if (n.operator.type == TokenType.PRINT) {
+                op(PRINT);
+                reg(target);
+                reg(operand);
+            } else {
+                op(UNARY);
+                reg(target);
+                reg(operand);
+                arg(pool(n));
+            }
+            return target;
+        } else if (node instanceof BinaryOpNode n && !isAssign(n.operator.type)) {
+            int mark = temporaries;
+            int left = expression(n.left);
+            int right = expression(n.right);
+            temporaries = mark;
+            int target = temporary();
+
+            if (n.operation != null) {
+                op(APPLY_BINARY);
+                reg(target);
+                reg(left);
+                reg(right);
+                arg(n.operation.ordinal());
+                arg(pool(n.operator));
+            } else {
+                op(BINARY);
+                reg(target);
+                reg(left);
+                reg(right);
+                arg(pool(n));
+            }
+            return target;
+        } else if (node instanceof ArrayNode n && n.operator.type == TokenType.ARRAY_GET) {
+            int mark = temporaries;
+            int array = expression(n.array);
+            int index = expression(n.index);
+            temporaries = mark;
+            int target = temporary();
+
+            op(ARRAY_GET);
+            reg(target);
+            reg(array);
+            reg(index);
+            arg(pool(n.operator));
+            return target;
+        } else if (node instanceof ArrayNode n && n.operator.type == TokenType.ARRAY_LENGTH) {
+            int mark = temporaries;
+            int array = expression(n.array);
+            temporaries = mark;
+            int target = temporary();
+
+            op(ARRAY_LENGTH);
+            reg(target);
+            reg(array);
+            arg(pool(n.operator));
+            return target;
+        } else if (node instanceof CacheNode n) {
+            int target = temporary();
+            Label cached = new Label();
+            op(CACHE_GET);
+            reg(target);
+            arg(n.slot);
+            target(cached);
+
+            int value = expression(n.expression);
+            temporaries = target + 1;
+            if (value != target) {
+                op(MOVE);
+                reg(target);
+                reg(value);
+            }
+            op(CACHE_PUT);
+            arg(n.slot);
+            reg(target);
+
+            bind(cached);
+            return target;
+        } else if (node instanceof CacheScopeNode n) {
+            clearCache(n);
+            return expression(n.node);
+        } else if (node instanceof CallNode n) {
+            int mark = temporaries;
+            int[] arguments = new int[n.arguments.size()];
+            for (int i = 0; i < arguments.length; i++)
+                arguments[i] = expression(n.arguments.get(i));
+            temporaries = mark;
+            int target = temporary();
+
+            op(CALL);
+            reg(target);
+            arg(pool(n));
+            arg(arguments.length);
+            for (int argument : arguments)
+                reg(argument);
+            return target;
+        } else if (node == null) {
+            return fail(new NullPointerException("Missing AST node"));
+        }
+
+        return fail(new LineBlockException("Unknown AST node: " + node.getClass().getSimpleName()));
+    }
+
+    private void clearCache(CacheScopeNode n) {
+        op(CACHE_CLEAR);
+        arg(pool(n.slots));
+        arg(n.size);
+    }
+
+    private void exitScope(int depth) {
+        op(EXIT);
+        arg(depth);
+    }
+
+    // throws exception when it runs; returns a register for the value it never has
+    private int fail(RuntimeException exception) {
+        op(FAIL);
+        arg(pool(exception));
+        return temporary();
+    }
+
+    private int temporary() {
+        int register = temporaries++;
+        maxTemporaries = Math.max(maxTemporaries, temporaries);
+        return register;
+    }
+
+    // constants are numbered from -1 down until their registers are known
+    private int constant(Value value) {
+        Integer index = constantRegisters.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantRegisters.put(value, index);
+        }
+        return -index - 1;
+    }
+
+    private int pool(Object object) {
+        Integer index = pooled.get(object);
+        if (index == null) {
+            index = pool.size();
+            pool.add(object);
+            pooled.put(object, index);
+        }
+        return index;
+    }
+
+    private void op(int opcode) {
+        code.add(opcode);
+    }
+
+    private void arg(int operand) {
+        code.add(operand);
+    }
+
+    private void reg(int register) {
+        if (register < 0)
+            constantOperands.add(code.size());
+        code.add(register);
+    }
+
+    private void jump(Label label) {
+        lastJump = code.size();
+        op(JUMP);
+        target(label);
+    }
+
+    private void target(Label label) {
+        if (label.pc < 0)
+            label.patches.add(code.size());
+        code.add(label.pc);
+    }
+
+    private void bind(Label label) {
+        if (lastJump >= 0 && lastJump == code.size() - 2) {
+            int patch = label.patches.indexOf(lastJump + 1);
+            if (patch >= 0) {
+                label.patches.removeInt(patch);
+                code.size(lastJump);
+            }
+        }
+        lastJump = -1;
+
+        label.pc = code.size();
+        for (int i = 0; i < label.patches.size(); i++)
+            code.set(label.patches.getInt(i), label.pc);
+        label.patches.clear();
+    }
+
+    private Bytecode finish() {
+        int[] instructions = code.toIntArray();
+        for (int i = 0; i < constantOperands.size(); i++) {
+            int at = constantOperands.getInt(i);
+            instructions[at] = maxTemporaries - instructions[at] - 1;
+        }
+
+        return new Bytecode(instructions, pool.toArray(), constants.toArray(new Value[0]), maxTemporaries);
+    }
+
+    // jumped to, but not placed yet
+    private static boolean pending(Label label) {
+        return label.pc < 0 && !label.patches.isEmpty();
+    }
+
+    private static Label[] labels() {
+        return new Label[] { new Label(), new Label(), new Label(), new Label() };
+    }
+
+    // the exits of a statement that runs with flag set: it stays set when the statement ends
+    private static Label[] keeping(Label[] exits, int flag) {
+        return new Label[] { exits[flag], exits[CONTINUE], exits[BREAK], exits[STOP] };
+    }
+
+    private static boolean isAssign(TokenType op) {
+        return op == TokenType.INT || op == TokenType.FLOAT || op == TokenType.BOOL || op == TokenType.STRING;
+    }
+
+    private static Value.Type assignType(TokenType op) {
+        return switch (op) {
+            case INT -> Value.Type.INT;
+            case FLOAT -> Value.Type.FLOAT;
+            case BOOL -> Value.Type.BOOL;
+            default -> Value.Type.STRING;
+        };
+    }
+}
@@ -0,0 +1,41 @@
+package com.spichka.lineblock.lang.interpreter;
+
+import java.util.Arrays;
+
+import com.spichka.lineblock.lang.exceptions.LineBlockException;
+import com.spichka.lineblock.lang.lexer.Token;
+
+// The frames of the procedure calls of one executor, kept for the next calls at the
+// same depth instead of being made again; a frame is empty once its call returns.
+final class CallStack {
+    static final int MAX_DEPTH = 256;
+
+    // thrown out of a call whose procedure ran STOP, the executor stops the run there
+    static final class Stopped extends RuntimeException {
+        private Stopped() {
+            super(null, null, false, false);
+        }
+    }
+
+    static final Stopped STOPPED = new Stopped();
+
+    private Frame[] frames = new Frame[8];
+    private int depth;
+
+    Frame push(Token call) {
+        if (depth == MAX_DEPTH)
+            throw new LineBlockException("Calls nested deeper than " + MAX_DEPTH, call);
+        if (depth == frames.length)
+            frames = Arrays.copyOf(frames, depth * 2);
+
+        Frame frame = frames[depth];
+        if (frame == null)
+            frame = frames[depth] = new Frame();
+        depth++;
+        return frame;
+    }
+
+    void pop() {
+        frames[--depth].exit(0);
+    }
+}
@@ -0,0 +1,551 @@
+package com.spichka.lineblock.lang.interpreter;
+
+import java.util.Arrays;
+
+import com.spichka.lineblock.lang.exceptions.LineBlockException;
+import com.spichka.lineblock.lang.lexer.Token;
+import com.spichka.lineblock.lang.lexer.TokenType;
+import com.spichka.lineblock.lang.parser.ast.ArrayNode;
+import com.spichka.lineblock.lang.parser.ast.AstNode;
+import com.spichka.lineblock.lang.parser.ast.BinaryOpNode;
+import com.spichka.lineblock.lang.parser.ast.BlockNode;
+import com.spichka.lineblock.lang.parser.ast.CacheNode;
+import com.spichka.lineblock.lang.parser.ast.CacheScopeNode;
+import com.spichka.lineblock.lang.parser.ast.CallNode;
+import com.spichka.lineblock.lang.parser.ast.CommandNode;
+import com.spichka.lineblock.lang.parser.ast.ConstantNode;
+import com.spichka.lineblock.lang.parser.ast.FillNode;
+import com.spichka.lineblock.lang.parser.ast.ForNode;
+import com.spichka.lineblock.lang.parser.ast.IfNode;
+import com.spichka.lineblock.lang.parser.ast.LiteralNode;
+import com.spichka.lineblock.lang.parser.ast.PlaceBlockNode;
+import com.spichka.lineblock.lang.parser.ast.ProcedureNode;
+import com.spichka.lineblock.lang.parser.ast.UnaryOpNode;
+import com.spichka.lineblock.lang.parser.ast.VariableNode;
+import com.spichka.lineblock.lang.parser.ast.WhileNode;
+
+import net.minecraft.block.Block;
+
+// Compiles a typed top-level statement into a tree of closures that does what the
+// Interpreter does with it, in the same order and with the same errors. What the
+// Interpreter decides on every visit is decided here once: the kind of node, the
+// operator, the decoded literal, and the depths variables are created at and scopes
+// exit to, which follow from the nesting as in the BytecodeCompiler. Typed operators
+// become closures on ints, floats and booleans, as in Interpreter.typed().
+final class ClosureCompiler {
+    private static final int TOP_DEPTH = 1; // top-level statements are inside the root block
+
+    // the value of a node, null for statements
+    interface Code {
+        Value run(ClosureInterpreter in);
+    }
+
+    interface IntCode {
+        int run(ClosureInterpreter in);
+    }
+
+    interface FloatCode {
+        float run(ClosureInterpreter in);
+    }
+
+    interface BoolCode {
+        boolean run(ClosureInterpreter in);
+    }
+
+    private ClosureCompiler() {}
+
+    static Code compile(AstNode statement) {
+        return node(statement, TOP_DEPTH);
+    }
+
+    // node runs at depth
+    private static Code node(AstNode node, int depth) {
+        if (node instanceof VariableNode n) return variable(n);
+        else if (node instanceof LiteralNode n) return literal(n);
+        else if (node instanceof BlockNode n) return block(n, depth);
+        else if (node instanceof CommandNode n) return command(n);
+        else if (node instanceof UnaryOpNode n) return unary(n, depth);
+        else if (node instanceof BinaryOpNode n) return binary(n, depth);
+        else if (node instanceof ConstantNode n) return constant(n);
+        else if (node instanceof PlaceBlockNode n) return placeBlock(n, depth);
+        else if (node instanceof IfNode n) return ifStatement(n, depth);
+        else if (node instanceof WhileNode n) return whileLoop(n, depth);
+        else if (node instanceof ForNode n) return forLoop(n, depth);
+        else if (node instanceof FillNode n) return fill(n, depth);
+        else if (node instanceof ArrayNode n) return array(n, depth);
+        else if (node instanceof CacheNode n) return cache(n, depth);
+        else if (node instanceof CacheScopeNode n) return cacheScope(n, depth);
+        else if (node instanceof CallNode n) return call(n, depth);
+        else if (node instanceof ProcedureNode) return in -> null; // its calls run it
+        else if (node == null) return fail(new NullPointerException("Missing AST node"));
+
+        return fail(new LineBlockException("Unknown AST node: " + node.getClass().getSimpleName()));
+    }
+
+    // throws exception when it runs
+    private static Code fail(RuntimeException exception) {
+        return in -> {
+            throw exception;
+        };
+    }
+
+    // --- Statements ---
+
+    // the procedure runs in ClosureInterpreter.call()
+    private static Code call(CallNode n, int depth) {
+        Code[] arguments = new Code[n.arguments.size()];
+        for (int i = 0; i < arguments.length; i++)
+            arguments[i] = node(n.arguments.get(i), depth);
+
+        return in -> {
+            Value[] values = new Value[arguments.length];
+            for (int i = 0; i < values.length; i++)
+                values[i] = arguments[i].run(in);
+            return in.call(n, values);
+        };
+    }
+
+    private static Code block(BlockNode n, int depth) {
+        Code[] statements = new Code[n.statements.size()];
+        for (int i = 0; i < statements.length; i++)
+            statements[i] = node(n.statements.get(i), depth + 1);
+
+        return in -> {
+            for (Code statement : statements) {
+                if (in.continueLoop || in.breakLoop || in.stopRunning) {
+                    in.continueLoop = false;
+                    break;
+                }
+
+                statement.run(in);
+            }
+
+            in.frame.exit(depth);
+            return null;
+        };
+    }
+
+    private static Code ifStatement(IfNode n, int depth) {
+        BoolCode condition = condition(n.conditionNode, depth, "If expects BOOL expression as condition");
+        Code thenBranch = node(n.thenBranchNode, depth);
+        if (n.elseBranchNode == null) {
+            return in -> {
+                if (condition.run(in))
+                    thenBranch.run(in);
+                return null;
+            };
+        }
+
+        Code elseBranch = node(n.elseBranchNode, depth);
+        return in -> {
+            if (condition.run(in))
+                thenBranch.run(in);
+            else
+                elseBranch.run(in);
+            return null;
+        };
+    }
+
+    private static Code whileLoop(WhileNode n, int depth) {
+        BoolCode condition = condition(n.conditionNode, depth, "WHILE expects BOOL expression as condition");
+        Code body = node(n.bodyNode, depth);
+
+        return in -> {
+            while (true) {
+                if (!condition.run(in) || in.breakLoop || in.stopRunning) {
+                    in.breakLoop = false;
+                    break;
+                }
+
+                body.run(in);
+            }
+            return null;
+        };
+    }
+
+    private static Code forLoop(ForNode n, int depth) {
+        Code initializer = node(n.initializerNode, depth + 1);
+        BoolCode condition = condition(n.conditionNode, depth + 1, "FOR expects BOOL expression as condition");
+        Code body = node(n.bodyNode, depth + 1);
+        Code increment = node(n.incrementNode, depth + 1);
+
+        return in -> {
+            initializer.run(in);
+            while (true) {
+                if (!condition.run(in) || in.breakLoop || in.stopRunning) {
+                    in.breakLoop = false;
+                    break;
+                }
+
+                body.run(in);
+                increment.run(in);
+            }
+
+            in.frame.exit(depth - 1); // also the variables of the enclosing block
+            return null;
+        };
+    }
+
+    // a typed condition is never boxed, any other one is checked when it runs
+    private static BoolCode condition(AstNode node, int depth, String message) {
+        if (typedResult(node) == Value.Type.BOOL)
+            return bool(node, depth);
+
+        Code condition = node(node, depth);
+        return in -> JitRuntime.test(condition.run(in), message);
+    }
+
+    private static Code fill(FillNode n, int depth) {
+        return in -> {
+            Filler.run(n, in.frame, in.world, depth);
+            return null;
+        };
+    }
+
+    private static Code command(CommandNode n) {
+        Token token = n.token;
+        return switch (token.type) {
+            case COMMAND -> in -> {
+                Interpreter.runCommandBlock(in.world, token);
+                return null;
+            };
+            case STOP -> in -> {
+                in.stopRunning = true;
+                return null;
+            };
+            case BREAK -> in -> {
+                in.breakLoop = true;
+                return null;
+            };
+            case CONTINUE -> in -> {
+                in.continueLoop = true;
+                return null;
+            };
+            default -> in -> null;
+        };
+    }
+
+    private static Code placeBlock(PlaceBlockNode n, int depth) {
+        Block block = n.block;
+        if (typedResult(n.x) == Value.Type.INT && typedResult(n.y) == Value.Type.INT && typedResult(n.z) == Value.Type.INT) {
+            IntCode x = integer(n.x, depth);
+            IntCode y = integer(n.y, depth);
+            IntCode z = integer(n.z, depth);
+            return in -> {
+                Interpreter.placeBlock(in.world, x.run(in), y.run(in), z.run(in), block);
+                return null;
+            };
+        }
+
+        Code x = node(n.x, depth);
+        Code y = node(n.y, depth);
+        Code z = node(n.z, depth);
+        return in -> {
+            Interpreter.placeBlock(in.world, x.run(in), y.run(in), z.run(in), block);
+            return null;
+        };
+    }
+
+    private static Code array(ArrayNode n, int depth) {
+        Token token = n.operator;
+        switch (token.type) {
+            case ARRAY_NEW -> {
+                Value.Type element = n.element;
+                int slot = n.array.slot;
+                Code length = node(n.index, depth);
+                return in -> {
+                    Value array = Operations.newArray(element, length.run(in), token);
+                    in.frame.assign(slot, array, depth);
+                    return array;
+                };
+            }
+            case ARRAY_GET -> {
+                Code array = node(n.array, depth);
+                Code index = node(n.index, depth);
+                return in -> Operations.arrayGet(array.run(in), index.run(in), token);
+            }
+            case ARRAY_SET -> {
+                Code array = node(n.array, depth);
+                Code index = node(n.index, depth);
+                Code value = node(n.value, depth);
+                return in -> {
+                    Operations.arraySet(array.run(in), index.run(in), value.run(in), token);
+                    return null;
+                };
+            }
+            default -> {
+                Code array = node(n.array, depth);
+                return in -> Value.ofInt(Operations.arrayLength(array.run(in), token));
+            }
+        }
+    }
+
+    private static Code cache(CacheNode n, int depth) {
+        int slot = n.slot;
+        Code expression = node(n.expression, depth);
+
+        return in -> {
+            Value value = in.cache[slot];
+            if (value == null) {
+                value = expression.run(in);
+                in.cache[slot] = value;
+            }
+            return value;
+        };
+    }
+
+    private static Code cacheScope(CacheScopeNode n, int depth) {
+        int size = n.size;
+        int[] slots = n.slots;
+        Code node = node(n.node, depth);
+
+        return in -> {
+            if (size > in.cache.length)
+                in.cache = Arrays.copyOf(in.cache, Math.max(size, in.cache.length * 2));
+
+            for (int slot : slots)
+                in.cache[slot] = null;
+            return node.run(in);
+        };
+    }
+
+    // --- Values ---
+
+    private static Code variable(VariableNode n) {
+        int slot = n.slot;
+        int index = n.index;
+
+        return in -> {
+            Value value = in.frame.get(slot);
+            if (value == null)
+                throw JitRuntime.notFound(index);
+            return value;
+        };
+    }
+
+    private static Code literal(LiteralNode n) {
+        if (n.error != null)
+            return fail(n.error);
+
+        Value value = n.value;
+        return in -> value;
+    }
+
+    private static Code constant(ConstantNode n) {
+        try {
+            Value value = Operations.constant(n.constant);
+            return in -> value;
+        } catch (LineBlockException e) {
+            return fail(e);
+        }
+    }
+
+    private static Code binary(BinaryOpNode n, int depth) {
+        Token token = n.operator;
+        if (isAssign(token.type)) {
+            if (!(n.left instanceof VariableNode variable))
+                return fail(new LineBlockException("Left side of assignment must be a variable", token));
+
+            int slot = variable.slot;
+            Value.Type type = assignType(token.type);
+            Code right = node(n.right, depth);
+            return in -> {
+                Value value = Operations.cast(right.run(in), type, token);
+                in.frame.assign(slot, value, depth);
+                return value;
+            };
+        }
+
+        Value.Type typed = typedResult(n);
+        if (typed != null)
+            return boxed(n, typed, depth);
+
+        Code left = node(n.left, depth);
+        Code right = node(n.right, depth);
+        if (n.operation == null)
+            return in -> Specialization.binary(n, left.run(in), right.run(in));
+
+        Operation operation = n.operation;
+        return switch (operation) {
+            case CONCAT -> in -> Value.concat(left.run(in), right.run(in));
+            default -> in -> Operations.apply(operation, left.run(in), right.run(in), token);
+        };
+    }
+
+    private static Code unary(UnaryOpNode n, int depth) {
+        Value.Type typed = typedResult(n);
+        if (typed != null)
+            return boxed(n, typed, depth);
+
+        Code operand = node(n.operand, depth);
+        if (n.operation != null)
+            return operand; // IDENTITY
+
+        if (n.operator.type == TokenType.PRINT) {
+            return in -> {
+                Interpreter.print(in.world, operand.run(in));
+                return null;
+            };
+        }
+
+        return in -> Specialization.unary(n, operand.run(in));
+    }
+
+    // a typed operator, only its own value becomes a Value
+    private static Code boxed(AstNode n, Value.Type type, int depth) {
+        return switch (type) {
+            case INT -> {
+                IntCode code = integer(n, depth);
+                yield in -> Value.ofInt(code.run(in));
+            }
+            case FLOAT -> {
+                FloatCode code = real(n, depth);
+                yield in -> Value.ofFloat(code.run(in));
+            }
+            default -> {
+                BoolCode code = bool(n, depth);
+                yield in -> Value.ofBool(code.run(in));
+            }
+        };
+    }
+
+    // --- Typed operators, as Interpreter.intOf(), floatOf() and boolOf() ---
+
+    // node's value, node has type INT
+    private static IntCode integer(AstNode node, int depth) {
+        if (node instanceof BinaryOpNode n && n.operation != null && n.operation.result == Value.Type.INT) {
+            IntCode left = integer(n.left, depth);
+            IntCode right = integer(n.right, depth);
+            Operation operation = n.operation;
+            return switch (operation) {
+                case INT_PLUS -> in -> left.run(in) + right.run(in);
+                case INT_MINUS -> in -> left.run(in) - right.run(in);
+                case INT_MUL -> in -> left.run(in) * right.run(in);
+                case INT_MOD -> in -> left.run(in) % right.run(in);
+                case BIT_AND -> in -> left.run(in) & right.run(in);
+                case BIT_OR -> in -> left.run(in) | right.run(in);
+                case BIT_XOR -> in -> left.run(in) ^ right.run(in);
+                case SHL -> in -> left.run(in) << right.run(in);
+                case SHR -> in -> left.run(in) >> right.run(in);
+                default -> in -> Operations.applyInt(operation, left.run(in), right.run(in));
+            };
+        } else if (node instanceof UnaryOpNode n && n.operation != null) {
+            IntCode operand = integer(n.operand, depth);
+            Operation operation = n.operation;
+            return switch (operation) {
+                case IDENTITY -> operand;
+                case INT_NEGATE -> in -> -operand.run(in);
+                default -> in -> Operations.applyInt(operation, operand.run(in));
+            };
+        } else if (node instanceof LiteralNode n && n.error == null && n.value.getType() == Value.Type.INT) {
+            int value = n.value.asInt();
+            return in -> value;
+        }
+
+        Code code = node(node, depth);
+        return in -> code.run(in).asInt();
+    }
+
+    // node's value as a float, node has type INT or FLOAT
+    private static FloatCode real(AstNode node, int depth) {
+        if (node instanceof BinaryOpNode n && n.operation != null) {
+            if (n.operation.result == Value.Type.INT) {
+                IntCode code = integer(n, depth);
+                return in -> code.run(in);
+            }
+
+            FloatCode left = real(n.left, depth);
+            FloatCode right = real(n.right, depth);
+            Operation operation = n.operation;
+            Token token = n.operator;
+            return switch (operation) {
+                case FLOAT_PLUS -> in -> left.run(in) + right.run(in);
+                case FLOAT_MINUS -> in -> left.run(in) - right.run(in);
+                case FLOAT_MUL -> in -> left.run(in) * right.run(in);
+                case DIV -> in -> JitRuntime.divide(left.run(in), right.run(in), token);
+                default -> in -> Operations.applyFloat(operation, left.run(in), right.run(in), token);
+            };
+        } else if (node instanceof UnaryOpNode n && n.operation != null) {
+            if (n.operation == Operation.IDENTITY)
+                return real(n.operand, depth);
+            if (n.operation.result == Value.Type.INT) {
+                IntCode code = integer(n, depth);
+                return in -> code.run(in);
+            }
+
+            FloatCode operand = real(n.operand, depth);
+            Operation operation = n.operation;
+            return switch (operation) {
+                case FLOAT_NEGATE -> in -> -operand.run(in);
+                default -> in -> Operations.applyFloat(operation, operand.run(in));
+            };
+        } else if (node instanceof LiteralNode n && n.error == null && isNumber(n.value.getType())) {
+            float value = n.value.toFloat();
+            return in -> value;
+        }
+
+        Code code = node(node, depth);
+        return in -> code.run(in).toFloat();
+    }
+
+    // node's value, node has type BOOL
+    private static BoolCode bool(AstNode node, int depth) {
+        if (node instanceof BinaryOpNode n && n.operation != null) {
+            Operation operation = n.operation;
+            if (operation == Operation.AND || operation == Operation.OR || operation == Operation.XOR) {
+                // both sides are evaluated, as by the Interpreter
+                BoolCode left = bool(n.left, depth);
+                BoolCode right = bool(n.right, depth);
+                return switch (operation) {
+                    case AND -> in -> left.run(in) & right.run(in);
+                    case OR -> in -> left.run(in) | right.run(in);
+                    default -> in -> left.run(in) ^ right.run(in);
+                };
+            }
+
+            FloatCode left = real(n.left, depth);
+            FloatCode right = real(n.right, depth);
+            return switch (operation) {
+                case LT -> in -> left.run(in) < right.run(in);
+                case GT -> in -> left.run(in) > right.run(in);
+                case LE -> in -> left.run(in) <= right.run(in);
+                default -> in -> left.run(in) >= right.run(in);
+            };
+        } else if (node instanceof UnaryOpNode n && n.operation != null) {
+            BoolCode operand = bool(n.operand, depth);
+            return in -> !operand.run(in); // NOT
+        } else if (node instanceof LiteralNode n && n.error == null && n.value.getType() == Value.Type.BOOL) {
+            boolean value = n.value.asBool();
+            return in -> value;
+        }
+
+        Code code = node(node, depth);
+        return in -> code.run(in).asBool();
+    }
+
+    // the type of a typed operator the Interpreter runs unboxed, null for any other node
+    private static Value.Type typedResult(AstNode node) {
+        if (node instanceof BinaryOpNode n && !isAssign(n.operator.type) && n.operation != null && n.operation.result != Value.Type.STRING)
+            return n.operation.result;
+        if (node instanceof UnaryOpNode n && n.operation != null && n.operation != Operation.IDENTITY)
+            return n.operation.result;
+        return null;
+    }
+
+    private static boolean isAssign(TokenType type) {
+        return type == TokenType.INT || type == TokenType.FLOAT || type == TokenType.BOOL || type == TokenType.STRING;
+    }
+
+    private static Value.Type assignType(TokenType type) {
+        return switch (type) {
+            case INT -> Value.Type.INT;
+            case FLOAT -> Value.Type.FLOAT;
+            case BOOL -> Value.Type.BOOL;
+            default -> Value.Type.STRING;
+        };
+    }
+
+    private static boolean isNumber(Value.Type type) {
+        return type == Value.Type.INT || type == Value.Type.FLOAT;
+    }
+}
@@ -0,0 +1,90 @@
+package com.spichka.lineblock.lang.interpreter;
+
+import com.spichka.lineblock.lang.parser.ast.AstNode;
+import com.spichka.lineblock.lang.parser.ast.CallNode;
+
+import net.minecraft.world.World;
+
+// Runs top-level statements the ClosureCompiler turned into closures, with the same
+// results as the Interpreter. The closures keep nothing between runs, the state they
+// work on is here: the variables, the cache of the Hoister and the Interpreter's flags.
+public final class ClosureInterpreter implements Executor {
+    final World world;
+    private final ProgramCode code;
+    Frame frame = new Frame(); // the one of the running call while there is one
+    Value[] cache = new Value[0]; // values of CacheNodes, see Hoister
+    private final CallStack calls = new CallStack();
+
+    boolean stopRunning;
+    boolean breakLoop;
+    boolean continueLoop;
+
+    public ClosureInterpreter(World world) {
+        this(world, new ProgramCode());
+    }
+
+    // code holds the closures of the program the statements come from
+    public ClosureInterpreter(World world, ProgramCode code) {
+        this.world = world;
+        this.code = code;
+    }
+
+    @Override
+    public boolean execute(AstNode statement) {
+        if (continueLoop || breakLoop || stopRunning) {
+            continueLoop = false;
+            return false;
+        }
+
+        try {
+            code.closure(statement).run(this);
+        } catch (CallStack.Stopped e) {
+            stopRunning = true;
+        }
+        return true;
+    }
+
+    // as the Interpreter calls, with the lines and result compiled once per procedure
+    Value call(CallNode n, Value[] arguments) {
+        Procedure procedure = Procedure.of(n);
+        procedure.arguments(arguments);
+
+        Value result = procedure.remembered(arguments);
+        if (result != null)
+            return result;
+
+        if (procedure.closures == null) {
+            procedure.closures = new ClosureCompiler.Code[procedure.body.size()];
+            for (int i = 0; i < procedure.closures.length; i++)
+                procedure.closures[i] = ClosureCompiler.compile(procedure.body.get(i));
+            if (procedure.result != null)
+                procedure.resultClosure = ClosureCompiler.compile(procedure.result);
+        }
+
+        Frame caller = frame;
+        boolean stop = stopRunning, breaks = breakLoop, continues = continueLoop;
+        frame = calls.push(n.call);
+        stopRunning = breakLoop = continueLoop = false;
+        try {
+            procedure.enter(frame, arguments, 1);
+            for (ClosureCompiler.Code line : procedure.closures) {
+                if (continueLoop || breakLoop || stopRunning)
+                    break;
+                line.run(this);
+            }
+            if (stopRunning)
+                throw CallStack.STOPPED;
+            if (procedure.resultClosure != null)
+                result = procedure.resultClosure.run(this);
+        } finally {
+            calls.pop();
+            frame = caller;
+            stopRunning = stop;
+            breakLoop = breaks;
+            continueLoop = continues;
+        }
+
+        procedure.remember(arguments, result);
+        return result;
+    }
+}
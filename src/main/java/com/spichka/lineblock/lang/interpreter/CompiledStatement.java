@@ -0,0 +1,7 @@
+package com.spichka.lineblock.lang.interpreter;
+
+// A top-level statement compiled to a JVM class by the JitCompiler
+interface CompiledStatement {
+    // runs it, returns the flag it leaves set (see Bytecode.NO_FLAG)
+    int run(JitRuntime runtime);
+}
@@ -0,0 +1,68 @@
+package com.spichka.lineblock.lang.interpreter;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+// The elements of an ARRAY value. INT, FLOAT and BOOL elements are kept in an int[],
+// a float[] and a BitSet, STRING elements as their Values. Indexes are checked by
+// Operations, which has the token for the error.
+final class Elements {
+    private static final Value EMPTY = Value.ofString("");
+
+    final Value.Type type;
+    final int length;
+    private final int[] ints;
+    private final float[] floats;
+    private final BitSet bools;
+    private final Value[] strings;
+
+    // length elements of type, all 0, 0.0, false or ""
+    Elements(Value.Type type, int length) {
+        this.type = type;
+        this.length = length;
+        this.ints = type == Value.Type.INT ? new int[length] : null;
+        this.floats = type == Value.Type.FLOAT ? new float[length] : null;
+        this.bools = type == Value.Type.BOOL ? new BitSet(length) : null;
+        this.strings = type == Value.Type.STRING ? new Value[length] : null;
+        if (strings != null)
+            Arrays.fill(strings, EMPTY);
+    }
+
+    int getInt(int index) { return ints[index]; }
+    float getFloat(int index) { return floats[index]; }
+    boolean getBool(int index) { return bools.get(index); }
+
+    Value get(int index) {
+        return switch (type) {
+            case INT -> Value.ofInt(ints[index]);
+            case FLOAT -> Value.ofFloat(floats[index]);
+            case BOOL -> Value.ofBool(bools.get(index));
+            default -> strings[index];
+        };
+    }
+
+    void setInt(int index, int value) { ints[index] = value; }
+    void setFloat(int index, float value) { floats[index] = value; }
+    void setBool(int index, boolean value) { bools.set(index, value); }
+
+    // value has the type of the elements
+    void set(int index, Value value) {
+        switch (type) {
+            case INT -> ints[index] = value.asInt();
+            case FLOAT -> floats[index] = value.asFloat();
+            case BOOL -> bools.set(index, value.asBool());
+            default -> strings[index] = value;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("[");
+        for (int i = 0; i < length; i++) {
+            if (i > 0)
+                text.append(", ");
+            text.append(get(i));
+        }
+        return text.append(']').toString();
+    }
+}
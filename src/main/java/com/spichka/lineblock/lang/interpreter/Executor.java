@@ -0,0 +1,11 @@
+package com.spichka.lineblock.lang.interpreter;
+
+import com.spichka.lineblock.lang.parser.ast.AstNode;
+
+// Runs the top-level statements of one program, see Backend
+public interface Executor {
+    // runs one top-level statement the way the root block would, false once
+    // STOP (or a BREAK/CONTINUE outside of a loop) ended the program;
+    // all statements of a run have to be resolved by the same Resolver
+    boolean execute(AstNode statement);
+}
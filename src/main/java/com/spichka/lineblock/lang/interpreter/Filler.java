@@ -0,0 +1,71 @@
+package com.spichka.lineblock.lang.interpreter;
+
+import com.spichka.lineblock.lang.lexer.TokenType;
+import com.spichka.lineblock.lang.parser.ast.FillNode;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+
+// Runs a FillNode for the Interpreter and the VirtualMachine: the loops count in plain
+// ints, the Frame only sees each variable's first and last value, and every block is
+// set through one BlockPos.Mutable with the same flags as a PLACEBLOCK. The variables
+// are created and dropped at the depths the FOR loops would use. Only the loops get
+// cheaper: the world still sets, lights and notifies every block on its own.
+public final class Filler {
+    private final FillNode fill;
+    private final Frame frame;
+    private final World world;
+    private final BlockState state;
+    private final BlockPos.Mutable pos = new BlockPos.Mutable();
+
+    private Filler(FillNode fill, Frame frame, World world) {
+        this.fill = fill;
+        this.frame = frame;
+        this.world = world;
+        this.state = fill.block.getDefaultState();
+    }
+
+    // runs the nest as a FOR statement at depth
+    static void run(FillNode fill, Frame frame, World world, int depth) {
+        new Filler(fill, frame, world).level(0, depth, fill.x[0], fill.y[0], fill.z[0]);
+    }
+
+    // whether a fill condition holds for value, the comparison of two FLOATs
+    public static boolean holds(TokenType comparison, int value, float bound) {
+        float v = value;
+        return switch (comparison) {
+            case LT -> v < bound;
+            case GT -> v > bound;
+            case LE -> v <= bound;
+            default -> v >= bound;
+        };
+    }
+
+    // x, y and z so far, from the outer levels
+    private void level(int i, int depth, int x, int y, int z) {
+        int slot = fill.variables[i].slot;
+        int value = fill.starts[i];
+        int step = fill.steps[i];
+        TokenType comparison = fill.comparisons[i];
+        float bound = fill.bounds[i];
+        int dx = fill.x[i + 1];
+        int dy = fill.y[i + 1];
+        int dz = fill.z[i + 1];
+        boolean innermost = i == fill.variables.length - 1;
+
+        frame.assign(slot, Value.ofInt(value), depth + 1);
+        for (; holds(comparison, value, bound); value += step) {
+            int px = x + dx * value;
+            int py = y + dy * value;
+            int pz = z + dz * value;
+            if (innermost)
+                world.setBlockState(pos.set(px, py, pz), state, 3);
+            else
+                level(i + 1, depth + 2, px, py, pz); // in the block that is the body
+        }
+        frame.assign(slot, Value.ofInt(value), depth + 1);
+
+        frame.exit(depth - 1); // also the variables of the enclosing block
+    }
+}
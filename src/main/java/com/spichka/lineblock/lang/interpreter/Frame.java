@@ -0,0 +1,48 @@
+package com.spichka.lineblock.lang.interpreter;
+
+import java.util.Arrays;
+
+// Variables of a run by slot (see Resolver) instead of a list searched by index.
+// A variable belongs to the depth it was first assigned at and is dropped when the
+// run leaves that depth; variables are created at the current depth and a scope exit
+// drops every deeper one, so the creation stack is ordered by depth and a scope exit
+// only pops its top.
+final class Frame {
+    private Value[] values = new Value[8]; // null = no such variable
+    private int[] depths = new int[8];
+
+    private int[] created = new int[8]; // slots in creation order
+    private int createdCount;
+
+    Value get(int slot) {
+        return slot < values.length ? values[slot] : null;
+    }
+
+    // updates the variable, or creates it at depth
+    void assign(int slot, Value value, int depth) {
+        if (slot >= values.length) {
+            int capacity = Math.max(slot + 1, values.length * 2);
+            values = Arrays.copyOf(values, capacity);
+            depths = Arrays.copyOf(depths, capacity);
+        }
+
+        if (values[slot] == null) {
+            depths[slot] = depth;
+            if (createdCount == created.length)
+                created = Arrays.copyOf(created, createdCount * 2);
+            created[createdCount++] = slot;
+        }
+        values[slot] = value;
+    }
+
+    // drops the variables of every depth above depth
+    void exit(int depth) {
+        while (createdCount > 0 && depths[created[createdCount - 1]] > depth)
+            values[created[--createdCount]] = null;
+    }
+
+    @Override
+    public String toString() {
+        return "Frame{variables=" + createdCount + '}';
+    }
+}
@@ -1,24 +1,30 @@
 package com.spichka.lineblock.lang.interpreter;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 import com.spichka.lineblock.lang.exceptions.LineBlockException;
 import com.spichka.lineblock.lang.lexer.Token;
 import com.spichka.lineblock.lang.lexer.TokenType;
+import com.spichka.lineblock.lang.parser.ast.ArrayNode;
 import com.spichka.lineblock.lang.parser.ast.AstNode;
 import com.spichka.lineblock.lang.parser.ast.BinaryOpNode;
 import com.spichka.lineblock.lang.parser.ast.BlockNode;
+import com.spichka.lineblock.lang.parser.ast.CacheNode;
+import com.spichka.lineblock.lang.parser.ast.CacheScopeNode;
+import com.spichka.lineblock.lang.parser.ast.CallNode;
 import com.spichka.lineblock.lang.parser.ast.CommandNode;
 import com.spichka.lineblock.lang.parser.ast.ConstantNode;
+import com.spichka.lineblock.lang.parser.ast.FillNode;
 import com.spichka.lineblock.lang.parser.ast.ForNode;
 import com.spichka.lineblock.lang.parser.ast.IfNode;
 import com.spichka.lineblock.lang.parser.ast.LiteralNode;
 import com.spichka.lineblock.lang.parser.ast.PlaceBlockNode;
+import com.spichka.lineblock.lang.parser.ast.ProcedureNode;
 import com.spichka.lineblock.lang.parser.ast.UnaryOpNode;
 import com.spichka.lineblock.lang.parser.ast.VariableNode;
 import com.spichka.lineblock.lang.parser.ast.WhileNode;
 
+import net.minecraft.block.Block;
 import net.minecraft.block.entity.BlockEntity;
 import net.minecraft.block.entity.CommandBlockBlockEntity;
 import net.minecraft.text.Text;
@@ -26,12 +32,14 @@ import net.minecraft.util.math.BlockPos;
 import net.minecraft.world.CommandBlockExecutor;
 import net.minecraft.world.World;
 
-public class Interpreter {
+public class Interpreter implements Executor {
     private final AstNode root;
     private final World world;
 
     private int deepness;
-    private List<Variable> variables;
+    private Frame frame; // the one of the running call while there is one
+    private final CallStack calls = new CallStack();
+    private Value[] cache = new Value[0]; // values of CacheNodes, see Hoister
 
     private boolean stopRunning;
     private boolean breakLoop;
@@ -42,14 +50,37 @@ public class Interpreter {
         this.world = world;
 
         this.deepness = 0;
-        this.variables = new ArrayList<Variable>();
+        this.frame = new Frame();
         this.stopRunning = false;
         this.breakLoop = false;
         this.continueLoop = false;
     }
 
+    // statement-at-a-time mode, see execute()
+    public Interpreter(World world) {
+        this(null, world);
+    }
+
     public void interpret() {
-        visit(root);
+        visit(new Resolver().resolve(root));
+    }
+
+    @Override
+    public boolean execute(AstNode statement) {
+        if (deepness == 0)
+            deepness = 1; // inside the root block
+
+        if (continueLoop || breakLoop || stopRunning) {
+            continueLoop = false;
+            return false;
+        }
+
+        try {
+            visit(statement);
+        } catch (CallStack.Stopped e) {
+            stopRunning = true;
+        }
+        return true;
     }
 
     private Value visit(AstNode node) {
@@ -64,17 +95,18 @@ public class Interpreter {
         else if (node instanceof IfNode n) return visitIf(n);
         else if (node instanceof WhileNode n) return visitWhile(n);
         else if (node instanceof ForNode n) return visitFor(n);
+        else if (node instanceof FillNode n) return visitFill(n);
+        else if (node instanceof ArrayNode n) return visitArray(n);
+        else if (node instanceof CacheNode n) return visitCache(n);
+        else if (node instanceof CacheScopeNode n) return visitCacheScope(n);
+        else if (node instanceof CallNode n) return visitCall(n);
+        else if (node instanceof ProcedureNode) return null; // its calls run it
         
         throw new LineBlockException("Unknown AST node: " + node.getClass().getSimpleName());
     }
 
     private Value visitConstant(ConstantNode n) {
-        if (n.constant.type == TokenType.PI)
-            return new Value(Value.Type.FLOAT, (float) Math.PI);
-        else if (n.constant.type == TokenType.E)
-            return new Value(Value.Type.FLOAT, (float) Math.E);
-        else
-            throw new LineBlockException("Unknown constant: " + n.constant.type, n.constant);
+        return Operations.constant(n.constant);
     }
 
     private Value visitBlock(BlockNode n) {
@@ -90,7 +122,7 @@ public class Interpreter {
         }
 
         deepness--;
-        variables.removeIf(v -> v.deepness > deepness);
+        frame.exit(deepness);
 
         return null;
     }
@@ -147,56 +179,104 @@ public class Interpreter {
         }
 
         deepness--;
-        variables.removeIf(v -> v.deepness >= deepness);
+        frame.exit(deepness - 1); // also the variables of the enclosing block
 
         return null;
     }
 
-    private Value visitLiteral(LiteralNode n) {
-        StringBuilder binary = new StringBuilder();
-
-        for (Token bit : n.bits) {
-            if (bit.type == TokenType.ZERO)
-                binary.append('0');
-            else if (bit.type == TokenType.ONE)
-                binary.append('1');
-            else
-                throw new LineBlockException("Invalid bit in literal: " + bit.type, bit);
+    private Value visitFill(FillNode n) {
+        Filler.run(n, frame, world, deepness);
+        return null;
+    }
+
+    private Value visitArray(ArrayNode n) {
+        switch (n.operator.type) {
+            case ARRAY_NEW -> {
+                Value array = Operations.newArray(n.element, visit(n.index), n.operator);
+                frame.assign(n.array.slot, array, deepness);
+                return array;
+            }
+            case ARRAY_GET -> {
+                Value array = visit(n.array);
+                return Operations.arrayGet(array, visit(n.index), n.operator);
+            }
+            case ARRAY_SET -> {
+                Value array = visit(n.array);
+                Value index = visit(n.index);
+                Operations.arraySet(array, index, visit(n.value), n.operator);
+                return null;
+            }
+            default -> {
+                return Value.ofInt(Operations.arrayLength(visit(n.array), n.operator));
+            }
         }
+    }
 
-        binary.reverse();
-
-        String binString = binary.toString();
-        int bitCount = binString.length();
-
-        long longValue = Long.parseLong(binString, 2);
-
-        switch (n.type.type) {
-            case INT:
-                return new Value(Value.Type.INT, (int) longValue);
-            case FLOAT:
-                if (bitCount != 32)
-                    throw new LineBlockException("FLOAT literal must have exactly 32 bits", n.type);
-                
-                int intBits = (int) longValue;
-                float floatValue = Float.intBitsToFloat(intBits);
-                return new Value(Value.Type.FLOAT, floatValue);
-            case BOOL:
-                return new Value(Value.Type.BOOL, longValue != 0);
-            case STRING:
-                if (bitCount % 8 != 0)
-                    throw new LineBlockException("STRING literal bit length must be multiple of 8", n.type);
-
-                StringBuilder sb = new StringBuilder();
-                for (int i = 0; i < bitCount; i += 8) {
-                    String byteStr = binString.substring(i, i + 8);
-                    int byteVal = Integer.parseInt(byteStr, 2);
-                    sb.append((char) byteVal);
-                }
-                return new Value(Value.Type.STRING, sb.toString());
-            default:
-                throw new LineBlockException("Unknown literal type: " + n.type.type, n.type);
+    private Value visitCache(CacheNode n) {
+        Value value = cache[n.slot];
+        if (value == null) {
+            value = visit(n.expression);
+            cache[n.slot] = value;
         }
+        return value;
+    }
+
+    private Value visitCacheScope(CacheScopeNode n) {
+        if (n.size > cache.length)
+            cache = Arrays.copyOf(cache, Math.max(n.size, cache.length * 2));
+
+        for (int slot : n.slots)
+            cache[slot] = null;
+        return visit(n.node);
+    }
+
+    // the lines of the body run in a frame of their own like top-level lines, with
+    // flags of their own: BREAK and CONTINUE end the body, STOP ends the run
+    private Value visitCall(CallNode n) {
+        Procedure procedure = Procedure.of(n);
+        Value[] arguments = new Value[n.arguments.size()];
+        for (int i = 0; i < arguments.length; i++)
+            arguments[i] = visit(n.arguments.get(i));
+        procedure.arguments(arguments);
+
+        Value result = procedure.remembered(arguments);
+        if (result != null)
+            return result;
+
+        Frame caller = frame;
+        int callerDeepness = deepness;
+        boolean stop = stopRunning, breaks = breakLoop, continues = continueLoop;
+        frame = calls.push(n.call);
+        deepness = 1;
+        stopRunning = breakLoop = continueLoop = false;
+        try {
+            procedure.enter(frame, arguments, deepness);
+            for (AstNode line : procedure.body) {
+                if (continueLoop || breakLoop || stopRunning)
+                    break;
+                visit(line);
+            }
+            if (stopRunning)
+                throw CallStack.STOPPED;
+            if (procedure.result != null)
+                result = visit(procedure.result);
+        } finally {
+            calls.pop();
+            frame = caller;
+            deepness = callerDeepness;
+            stopRunning = stop;
+            breakLoop = breaks;
+            continueLoop = continues;
+        }
+
+        procedure.remember(arguments, result);
+        return result;
+    }
+
+    private Value visitLiteral(LiteralNode n) {
+        if (n.error != null)
+            throw n.error;
+        return n.value;
     }
 
     private Value visitPlaceBlock(PlaceBlockNode n) {
@@ -204,21 +284,42 @@ public class Interpreter {
         Value yValue = visit(n.y);
         Value zValue = visit(n.z);
 
+        placeBlock(world, xValue, yValue, zValue, n.block);
+
+        return null;
+    }
+
+    // the effects of PLACEBLOCK, commands and PRINT, shared with the VirtualMachine
+
+    static void placeBlock(World world, Value xValue, Value yValue, Value zValue, Block block) {
         if (xValue.getType() != Value.Type.INT ||
             yValue.getType() != Value.Type.INT ||
             zValue.getType() != Value.Type.INT) {
             throw new LineBlockException("PLACEBLOCK coordinates must be INT");
         }
 
-        BlockPos pos = new BlockPos(
-            xValue.asInt(),
-            yValue.asInt(),
-            zValue.asInt()
-        );
+        placeBlock(world, xValue.asInt(), yValue.asInt(), zValue.asInt(), block);
+    }
 
-        world.setBlockState(pos, n.block.getDefaultState(), 3);
+    static void placeBlock(World world, int x, int y, int z, Block block) {
+        world.setBlockState(new BlockPos(x, y, z), block.getDefaultState(), 3);
+    }
 
-        return null;
+    static void runCommandBlock(World world, Token token) {
+        BlockPos pos = token.getBlockPos();
+        BlockEntity blockEntity = world.getBlockEntity(pos);
+        if (!(blockEntity instanceof CommandBlockBlockEntity commandBlock))
+            throw new LineBlockException("No command block found at " + pos, token);
+        
+        CommandBlockExecutor executor = commandBlock.getCommandExecutor();
+        executor.execute(world);
+    }
+
+    static void print(World world, Value value) {
+        if (!world.getPlayers().isEmpty()) {
+            var player = world.getPlayers().get(0);
+            player.sendMessage(Text.literal(value.toString()), false);
+        }
     }
 
     private Value visitBinaryOp(BinaryOpNode n) {
@@ -239,215 +340,26 @@ public class Interpreter {
                 default -> throw new LineBlockException("Unknown assign type: " + op, n.operator);
             };
 
-            Value finalValue = castValue(right, expectedType, n.operator);
+            Value finalValue = Operations.cast(right, expectedType, n.operator);
 
-            int index = varNode.index.size();
-            boolean updated = false;
-
-            for (Variable v : variables) {
-                if (v.index == index) {
-                    v.value = finalValue;
-                    updated = true;
-                    break;
-                }
-            }
-
-            if (!updated)
-                variables.add(new Variable(index, finalValue, deepness));
+            frame.assign(varNode.slot, finalValue, deepness);
 
             return finalValue;
         }
 
-        // --- All other binary operations ---
+        if (n.operation != null && n.operation.result != Value.Type.STRING)
+            return typed(n, n.operation);
+
         Value left = visit(n.left);
         Value right = visit(n.right);
-
-        switch (op) {
-            // --- Math ---
-            case PLUS -> {
-                if (left.isNumber() && right.isNumber()) {
-                    if (left.getType() == Value.Type.FLOAT || right.getType() == Value.Type.FLOAT)
-                        return new Value(Value.Type.FLOAT, left.toFloat() + right.toFloat());
-                    else
-                        return new Value(Value.Type.INT, left.asInt() + right.asInt());
-                } else if (left.getType() == Value.Type.STRING || right.getType() == Value.Type.STRING) {
-                    return new Value(Value.Type.STRING, left.toString() + right.toString());
-                }
-                throw new LineBlockException("PLUS expects numbers or strings", n.operator);
-            }
-
-            case MINUS -> {
-                if (left.isNumber() && right.isNumber()) {
-                    if (left.getType() == Value.Type.FLOAT || right.getType() == Value.Type.FLOAT)
-                        return new Value(Value.Type.FLOAT, left.toFloat() - right.toFloat());
-                    else
-                        return new Value(Value.Type.INT, left.asInt() - right.asInt());
-                }
-                throw new LineBlockException("MINUS expects numbers", n.operator);
-            }
-
-            case MUL -> {
-                if (left.isNumber() && right.isNumber()) {
-                    if (left.getType() == Value.Type.FLOAT || right.getType() == Value.Type.FLOAT)
-                        return new Value(Value.Type.FLOAT, left.toFloat() * right.toFloat());
-                    else
-                        return new Value(Value.Type.INT, left.asInt() * right.asInt());
-                } else if (left.getType() == Value.Type.STRING && right.getType() == Value.Type.INT) {
-                    return new Value(Value.Type.STRING, left.asString().repeat(Math.max(0, right.asInt())));
-                } else if (right.getType() == Value.Type.STRING && left.getType() == Value.Type.INT) {
-                    return new Value(Value.Type.STRING, right.asString().repeat(Math.max(0, left.asInt())));
-                }
-                throw new LineBlockException("MUL expects numbers or (string * int)", n.operator);
-            }
-
-            case DIV -> {
-                if (left.isNumber() && right.isNumber()) {
-                    float divisor = right.toFloat();
-                    if (divisor == 0)
-                        throw new LineBlockException("Division by zero", n.operator);
-                    return new Value(Value.Type.FLOAT, left.toFloat() / divisor);
-                }
-                throw new LineBlockException("DIV expects numbers", n.operator);
-            }
-
-            case MOD -> {
-                if (left.isNumber() && right.isNumber()) {
-                    if (left.getType() == Value.Type.FLOAT || right.getType() == Value.Type.FLOAT)
-                        return new Value(Value.Type.FLOAT, left.toFloat() % right.toFloat());
-                    else
-                        return new Value(Value.Type.INT, left.asInt() % right.asInt());
-                }
-                throw new LineBlockException("MOD expects numbers", n.operator);
-            }
-
-            case POW -> {
-                if (left.isNumber() && right.isNumber())
-                    return new Value(Value.Type.FLOAT, (float) Math.pow(left.toFloat(), right.toFloat()));
-                throw new LineBlockException("POW expects numbers", n.operator);
-            }
-
-            // --- Bits ---
-            case BIT_AND -> {
-                if (left.getType() == Value.Type.INT && right.getType() == Value.Type.INT)
-                    return new Value(Value.Type.INT, left.asInt() & right.asInt());
-                throw new LineBlockException("BIT_AND expects INT", n.operator);
-            }
-
-            case BIT_OR -> {
-                if (left.getType() == Value.Type.INT && right.getType() == Value.Type.INT)
-                    return new Value(Value.Type.INT, left.asInt() | right.asInt());
-                throw new LineBlockException("BIT_OR expects INT", n.operator);
-            }
-
-            case BIT_XOR -> {
-                if (left.getType() == Value.Type.INT && right.getType() == Value.Type.INT)
-                    return new Value(Value.Type.INT, left.asInt() ^ right.asInt());
-                throw new LineBlockException("BIT_XOR expects INT", n.operator);
-            }
-
-            case SHL -> {
-                if (left.getType() == Value.Type.INT && right.getType() == Value.Type.INT)
-                    return new Value(Value.Type.INT, left.asInt() << right.asInt());
-                throw new LineBlockException("SHL expects INT", n.operator);
-            }
-
-            case SHR -> {
-                if (left.getType() == Value.Type.INT && right.getType() == Value.Type.INT)
-                    return new Value(Value.Type.INT, left.asInt() >> right.asInt());
-                throw new LineBlockException("SHR expects INT", n.operator);
-            }
-
-            // --- Logic ---
-            case AND -> {
-                if (left.getType() == Value.Type.BOOL && right.getType() == Value.Type.BOOL)
-                    return new Value(Value.Type.BOOL, left.asBool() && right.asBool());
-                throw new LineBlockException("AND expects BOOL", n.operator);
-            }
-
-            case OR -> {
-                if (left.getType() == Value.Type.BOOL && right.getType() == Value.Type.BOOL)
-                    return new Value(Value.Type.BOOL, left.asBool() || right.asBool());
-                throw new LineBlockException("OR expects BOOL", n.operator);
-            }
-
-            case XOR -> {
-                if (left.getType() == Value.Type.BOOL && right.getType() == Value.Type.BOOL)
-                    return new Value(Value.Type.BOOL, left.asBool() ^ right.asBool());
-                throw new LineBlockException("XOR expects BOOL", n.operator);
-            }
-
-            // --- Equation ---
-            case EQ -> {
-                return new Value(Value.Type.BOOL, left.equalsValue(right));
-            }
-            case NE -> {
-                return new Value(Value.Type.BOOL, !left.equalsValue(right));
-            }
-            case GT -> {
-                if (left.isNumber() && right.isNumber())
-                    return new Value(Value.Type.BOOL, left.toFloat() > right.toFloat());
-                throw new LineBlockException("GT expects numbers", n.operator);
-            }
-            case LT -> {
-                if (left.isNumber() && right.isNumber())
-                    return new Value(Value.Type.BOOL, left.toFloat() < right.toFloat());
-                throw new LineBlockException("LT expects numbers", n.operator);
-            }
-            case GE -> {
-                if (left.isNumber() && right.isNumber())
-                    return new Value(Value.Type.BOOL, left.toFloat() >= right.toFloat());
-                throw new LineBlockException("GE expects numbers", n.operator);
-            }
-            case LE -> {
-                if (left.isNumber() && right.isNumber())
-                    return new Value(Value.Type.BOOL, left.toFloat() <= right.toFloat());
-                throw new LineBlockException("LE expects numbers", n.operator);
-            }
-
-            default -> throw new LineBlockException("Unknown binary operator: " + op, n.operator);
-        }
+        if (n.operation != null)
+            return Operations.apply(n.operation, left, right, n.operator);
+        return Specialization.binary(n, left, right);
     }
 
-    private Value castValue(Value v, Value.Type expected, Token op) {
-        if (v.getType() == expected) return v;
-
-        return switch (expected) {
-            case INT -> {
-                if (v.getType() == Value.Type.FLOAT) yield new Value(Value.Type.INT, (int) v.asFloat());
-                if (v.getType() == Value.Type.BOOL) yield new Value(Value.Type.INT, v.asBool() ? 1 : 0);
-                if (v.getType() == Value.Type.STRING)
-                    try { yield new Value(Value.Type.INT, Integer.parseInt(v.asString())); }
-                    catch (NumberFormatException e) { throw new LineBlockException("Cannot convert STRING to INT", op); }
-                throw new LineBlockException("Cannot convert " + v.getType() + " to INT", op);
-            }
-            case FLOAT -> {
-                if (v.getType() == Value.Type.INT) yield new Value(Value.Type.FLOAT, (float) v.asInt());
-                if (v.getType() == Value.Type.BOOL) yield new Value(Value.Type.FLOAT, v.asBool() ? 1f : 0f);
-                if (v.getType() == Value.Type.STRING)
-                    try { yield new Value(Value.Type.FLOAT, Float.parseFloat(v.asString())); }
-                    catch (NumberFormatException e) { throw new LineBlockException("Cannot convert STRING to FLOAT", op); }
-                throw new LineBlockException("Cannot convert " + v.getType() + " to FLOAT", op);
-            }
-            case BOOL -> {
-                if (v.isNumber()) yield new Value(Value.Type.BOOL, v.toFloat() != 0);
-                if (v.getType() == Value.Type.STRING)
-                    yield new Value(Value.Type.BOOL, !v.asString().isEmpty());
-                throw new LineBlockException("Cannot convert " + v.getType() + " to BOOL", op);
-            }
-            case STRING -> new Value(Value.Type.STRING, v.toString());
-        };
-    }
-
-
     private Value visitCommand(CommandNode n) {
         if (n.token.type == TokenType.COMMAND) {
-            BlockPos pos = n.token.pos;
-            BlockEntity blockEntity = world.getBlockEntity(pos);
-            if (!(blockEntity instanceof CommandBlockBlockEntity commandBlock))
-                throw new LineBlockException("No command block found at " + pos, n.token);
-            
-            CommandBlockExecutor executor = commandBlock.getCommandExecutor();
-            executor.execute(world);
+            runCommandBlock(world, n.token);
         } else if (n.token.type == TokenType.STOP) {
             stopRunning = true;
         } else if (n.token.type == TokenType.BREAK) {
@@ -460,107 +372,81 @@ public class Interpreter {
     }
 
     private Value visitUnaryOp(UnaryOpNode n) {
-        Value value = visit(n.operand);
-        TokenType op = n.operator.type;
-
-        switch (op) {
-            case PRINT -> {
-                if (!world.getPlayers().isEmpty()) {
-                    var player = world.getPlayers().get(0);
-                    player.sendMessage(Text.literal(value.toString()), false);
-                }
-                return null;
-            }
+        if (n.operation != null && n.operation != Operation.IDENTITY)
+            return typed(n, n.operation);
 
-            // ------------------ Numbers ------------------
-            case PLUS -> {
-                if (value.isNumber()) return value; // +x = x
-                throw new LineBlockException("PLUS expects a number", n.operator);
-            }
+        Value value = visit(n.operand);
+        if (n.operation != null)
+            return Operations.apply(n.operation, value);
 
-            case MINUS -> {
-                if (value.getType() == Value.Type.INT)
-                    return new Value(Value.Type.INT, -value.asInt());
-                else if (value.getType() == Value.Type.FLOAT)
-                    return new Value(Value.Type.FLOAT, -value.asFloat());
-                throw new LineBlockException("MINUS expects INT or FLOAT", n.operator);
-            }
+        if (n.operator.type == TokenType.PRINT) {
+            print(world, value);
+            return null;
+        }
 
-            // ------------------ Bits ------------------
-            case BIT_NOT -> {
-                if (value.getType() == Value.Type.INT)
-                    return new Value(Value.Type.INT, ~value.asInt());
-                throw new LineBlockException("BIT_NOT expects INT", n.operator);
-            }
+        return Specialization.unary(n, value);
+    }
 
-            // ------------------ Logic ------------------
-            case NOT -> {
-                if (value.getType() == Value.Type.BOOL)
-                    return new Value(Value.Type.BOOL, !value.asBool());
-                throw new LineBlockException("NOT expects BOOL", n.operator);
-            }
+    // --- Typed operators: only the value of the outermost one becomes a Value ---
 
-            // ------------------ Math ------------------
-            case SIN -> {
-                if (value.isNumber())
-                    return new Value(Value.Type.FLOAT, (float) Math.sin(value.toFloat()));
-                throw new LineBlockException("SIN expects INT or FLOAT", n.operator);
-            }
-            case COS -> {
-                if (value.isNumber())
-                    return new Value(Value.Type.FLOAT, (float) Math.cos(value.toFloat()));
-                throw new LineBlockException("COS expects INT or FLOAT", n.operator);
-            }
-            case TAN -> {
-                if (value.isNumber())
-                    return new Value(Value.Type.FLOAT, (float) Math.tan(value.toFloat()));
-                throw new LineBlockException("TAN expects INT or FLOAT", n.operator);
-            }
-            case ASIN -> {
-                if (value.isNumber())
-                    return new Value(Value.Type.FLOAT, (float) Math.asin(value.toFloat()));
-                throw new LineBlockException("ASIN expects INT or FLOAT", n.operator);
-            }
-            case ACOS -> {
-                if (value.isNumber())
-                    return new Value(Value.Type.FLOAT, (float) Math.acos(value.toFloat()));
-                throw new LineBlockException("ACOS expects INT or FLOAT", n.operator);
-            }
-            case ATAN -> {
-                if (value.isNumber())
-                    return new Value(Value.Type.FLOAT, (float) Math.atan(value.toFloat()));
-                throw new LineBlockException("ATAN expects INT or FLOAT", n.operator);
-            }
-            case ABS -> {
-                if (value.getType() == Value.Type.INT)
-                    return new Value(Value.Type.INT, Math.abs(value.asInt()));
-                else if (value.getType() == Value.Type.FLOAT)
-                    return new Value(Value.Type.FLOAT, Math.abs(value.asFloat()));
-                throw new LineBlockException("ABS expects INT or FLOAT", n.operator);
-            }
-            case CEIL -> {
-                if (value.isNumber())
-                    return new Value(Value.Type.FLOAT, (float) Math.ceil(value.toFloat()));
-                throw new LineBlockException("CEIL expects INT or FLOAT", n.operator);
-            }
-            case FLOOR -> {
-                if (value.isNumber())
-                    return new Value(Value.Type.FLOAT, (float) Math.floor(value.toFloat()));
-                throw new LineBlockException("FLOOR expects INT or FLOAT", n.operator);
-            }
+    private Value typed(AstNode n, Operation operation) {
+        return switch (operation.result) {
+            case INT -> Value.ofInt(intOf(n));
+            case FLOAT -> Value.ofFloat(floatOf(n));
+            default -> Value.ofBool(boolOf(n));
+        };
+    }
 
-            default -> throw new LineBlockException("Unknown unary operator: " + op, n.operator);
+    // node's value, node has type INT
+    private int intOf(AstNode node) {
+        if (node instanceof BinaryOpNode n && n.operation != null && n.operation.result == Value.Type.INT) {
+            int left = intOf(n.left);
+            return Operations.applyInt(n.operation, left, intOf(n.right));
+        } else if (node instanceof UnaryOpNode n && n.operation != null) {
+            if (n.operation == Operation.IDENTITY)
+                return intOf(n.operand);
+            return Operations.applyInt(n.operation, intOf(n.operand));
         }
+        return visit(node).asInt();
     }
 
-    private Value visitVariable(VariableNode n) {
-        int index = n.index.size();
+    // node's value as a float, node has type INT or FLOAT
+    private float floatOf(AstNode node) {
+        if (node instanceof BinaryOpNode n && n.operation != null) {
+            if (n.operation.result == Value.Type.INT)
+                return intOf(n);
+            float left = floatOf(n.left);
+            return Operations.applyFloat(n.operation, left, floatOf(n.right), n.operator);
+        } else if (node instanceof UnaryOpNode n && n.operation != null) {
+            if (n.operation == Operation.IDENTITY)
+                return floatOf(n.operand);
+            if (n.operation.result == Value.Type.INT)
+                return intOf(n);
+            return Operations.applyFloat(n.operation, floatOf(n.operand));
+        }
+        return visit(node).toFloat();
+    }
 
-        for (Variable var : variables) {
-            if (var.index == index)
-                return var.value;
+    // node's value, node has type BOOL
+    private boolean boolOf(AstNode node) {
+        if (node instanceof BinaryOpNode n && n.operation != null) {
+            Operation operation = n.operation;
+            if (operation == Operation.AND || operation == Operation.OR || operation == Operation.XOR) {
+                boolean left = boolOf(n.left);
+                return Operations.applyLogic(operation, left, boolOf(n.right));
+            }
+            float left = floatOf(n.left);
+            return Operations.compare(operation, left, floatOf(n.right));
+        } else if (node instanceof UnaryOpNode n && n.operation != null) {
+            return !boolOf(n.operand); // NOT
         }
+        return visit(node).asBool();
+    }
 
-        throw new LineBlockException("Variable with index " + index + " not found");
+    private Value visitVariable(VariableNode n) {
+        Value value = frame.get(n.slot);
+        if (value == null)
+            throw new LineBlockException("Variable with index " + n.index + " not found");
+        return value;
     }
 }
\ No newline at end of file
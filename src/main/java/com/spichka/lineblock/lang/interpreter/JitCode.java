@@ -0,0 +1,26 @@
+package com.spichka.lineblock.lang.interpreter;
+
+import java.util.Map;
+
+import com.spichka.lineblock.lang.parser.ast.AstNode;
+
+// The top-level statements of a typed program the JitCompiler compiled, by their node;
+// the VirtualMachine runs the others as bytecode
+public final class JitCode {
+    private final Map<AstNode, CompiledStatement> statements; // an IdentityHashMap
+    private final int total;
+
+    JitCode(Map<AstNode, CompiledStatement> statements, int total) {
+        this.statements = statements;
+        this.total = total;
+    }
+
+    CompiledStatement get(AstNode statement) {
+        return statements.get(statement);
+    }
+
+    @Override
+    public String toString() {
+        return "JitCode{compiled=" + statements.size() + " of " + total + '}';
+    }
+}
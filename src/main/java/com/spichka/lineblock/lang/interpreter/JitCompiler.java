@@ -0,0 +1,1176 @@
+package com.spichka.lineblock.lang.interpreter;
+
+import static com.spichka.lineblock.lang.interpreter.Bytecode.BREAK;
+import static com.spichka.lineblock.lang.interpreter.Bytecode.CONTINUE;
+import static com.spichka.lineblock.lang.interpreter.Bytecode.NO_FLAG;
+import static com.spichka.lineblock.lang.interpreter.Bytecode.STOP;
+import static org.objectweb.asm.Opcodes.*;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import com.spichka.lineblock.lang.exceptions.LineBlockException;
+import com.spichka.lineblock.lang.lexer.Token;
+import com.spichka.lineblock.lang.lexer.TokenType;
+import com.spichka.lineblock.lang.parser.ast.ArrayNode;
+import com.spichka.lineblock.lang.parser.ast.AstNode;
+import com.spichka.lineblock.lang.parser.ast.BinaryOpNode;
+import com.spichka.lineblock.lang.parser.ast.BlockNode;
+import com.spichka.lineblock.lang.parser.ast.CacheNode;
+import com.spichka.lineblock.lang.parser.ast.CacheScopeNode;
+import com.spichka.lineblock.lang.parser.ast.CallNode;
+import com.spichka.lineblock.lang.parser.ast.CommandNode;
+import com.spichka.lineblock.lang.parser.ast.ConstantNode;
+import com.spichka.lineblock.lang.parser.ast.FillNode;
+import com.spichka.lineblock.lang.parser.ast.ForNode;
+import com.spichka.lineblock.lang.parser.ast.IfNode;
+import com.spichka.lineblock.lang.parser.ast.LiteralNode;
+import com.spichka.lineblock.lang.parser.ast.PlaceBlockNode;
+import com.spichka.lineblock.lang.parser.ast.ProcedureNode;
+import com.spichka.lineblock.lang.parser.ast.UnaryOpNode;
+import com.spichka.lineblock.lang.parser.ast.VariableNode;
+import com.spichka.lineblock.lang.parser.ast.WhileNode;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import net.minecraft.block.Block;
+
+// Compiles the top-level statements of a program that runs often into hidden JVM
+// classes, with the control flow of the BytecodeCompiler. INT, FLOAT and BOOL values
+// of typed expressions stay unboxed on the JVM stack, and so do the variables only
+// one statement uses and the cached values of the Hoister, in JVM locals; a local
+// variable keeps the depth it was created at, so scope exits can drop it. Variables
+// several statements use stay in the Frame. Effects, errors and procedure calls go
+// through JitRuntime.
+//
+// A statement with something that cannot be compiled (a missing node, an assign to a
+// non-variable) is left to the VirtualMachine.
+public final class JitCompiler {
+    private static final String CLASS_NAME = "com/spichka/lineblock/lang/interpreter/JitStatement";
+    private static final String VALUE = Type.getInternalName(Value.class);
+    private static final String VALUE_TYPE = Type.getInternalName(Value.Type.class);
+    private static final String OPERATION = Type.getInternalName(Operation.class);
+    private static final String OPERATIONS = Type.getInternalName(Operations.class);
+    private static final String RUNTIME = Type.getInternalName(JitRuntime.class);
+    private static final String SPECIALIZATION = Type.getInternalName(Specialization.class);
+    private static final String BINARY_NODE = Type.getInternalName(BinaryOpNode.class);
+    private static final String UNARY_NODE = Type.getInternalName(UnaryOpNode.class);
+    private static final String TOKEN = Type.getInternalName(Token.class);
+    private static final String BLOCK = Type.getInternalName(Block.class);
+    private static final String FILL_NODE = Type.getInternalName(FillNode.class);
+    private static final String CALL_NODE = Type.getInternalName(CallNode.class);
+    private static final String VALUE_DESCRIPTOR = "L" + VALUE + ";";
+    private static final String TOKEN_DESCRIPTOR = "L" + TOKEN + ";";
+
+    private static final int TOP_DEPTH = 1; // top-level statements are inside the root block
+    private static final int RUNTIME_LOCAL = 1;
+    private static final int CONSTANTS_LOCAL = 2;
+
+    private static int threshold = 100; // runs before a program is compiled, 0 = never
+
+    // what an expression leaves on the JVM stack; STRING and unknown types are a Value
+    private enum Kind {
+        INT(ILOAD, ISTORE), FLOAT(FLOAD, FSTORE), BOOL(ILOAD, ISTORE), VALUE(ALOAD, ASTORE);
+
+        private final int load;
+        private final int store;
+
+        Kind(int load, int store) {
+            this.load = load;
+            this.store = store;
+        }
+
+        private static Kind of(Value.Type type) {
+            if (type == null)
+                return VALUE;
+            return switch (type) {
+                case INT -> INT;
+                case FLOAT -> FLOAT;
+                case BOOL -> BOOL;
+                case STRING, ARRAY -> VALUE;
+            };
+        }
+    }
+
+    // a variable in JVM locals: its value, and the depth it was created at (0 while it does not exist)
+    private static final class Local {
+        private int value;
+        private int depth;
+        private Kind kind;
+        private int deepestAssign;
+    }
+
+    // a cache slot in JVM locals
+    private static final class CacheLocal {
+        private int filled;
+        private int value = -1; // once a CacheNode uses it
+        private Kind kind;
+    }
+
+    // where a statement continues with a flag set, see BytecodeCompiler
+    private static final class Exit {
+        private final Label label = new Label();
+        private boolean used;
+        private boolean placed;
+    }
+
+    private static final class Unsupported extends RuntimeException {
+        private Unsupported(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private final TypeChecker types;
+    private final IntSet own; // slots no other statement uses
+    private final Int2ObjectOpenHashMap<Local> locals = new Int2ObjectOpenHashMap<>();
+    private final Int2ObjectOpenHashMap<CacheLocal> caches = new Int2ObjectOpenHashMap<>();
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndexes = new IdentityHashMap<>();
+    private boolean assignsFrame;
+    private MethodVisitor mv;
+    private int nextLocal = CONSTANTS_LOCAL + 1;
+
+    private JitCompiler(TypeChecker types, IntSet own) {
+        this.types = types;
+        this.own = own;
+    }
+
+    public static int threshold() {
+        return threshold;
+    }
+
+    public static void setThreshold(int runs) {
+        threshold = runs;
+    }
+
+    // compiles the statements of a typed program, types has declared all of them
+    public static JitCode compile(BlockNode root, TypeChecker types) {
+        List<IntSet> used = new ArrayList<>(root.statements.size());
+        IntSet seen = new IntOpenHashSet();
+        IntSet shared = new IntOpenHashSet(); // also the variables of fills, the Filler uses the Frame
+        for (AstNode statement : root.statements) {
+            IntSet slots = new IntOpenHashSet();
+            collectSlots(statement, slots, shared);
+            used.add(slots);
+            for (int slot : slots) {
+                if (!seen.add(slot))
+                    shared.add(slot);
+            }
+        }
+
+        Map<AstNode, CompiledStatement> compiled = new IdentityHashMap<>();
+        for (int i = 0; i < root.statements.size(); i++) {
+            IntSet own = new IntOpenHashSet();
+            for (int slot : used.get(i)) {
+                if (!shared.contains(slot))
+                    own.add(slot);
+            }
+
+            AstNode statement = root.statements.get(i);
+            try {
+                compiled.put(statement, new JitCompiler(types, own).define(statement));
+            } catch (RuntimeException | LinkageError e) {
+                // Unsupported, or too large for a JVM method; runs as bytecode
+            }
+        }
+
+        return new JitCode(compiled, root.statements.size());
+    }
+
+    private CompiledStatement define(AstNode statement) {
+        scan(statement, TOP_DEPTH);
+
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+            @Override
+            protected String getCommonSuperClass(String type1, String type2) {
+                return "java/lang/Object"; // locals keep their type, so frames only merge equal ones
+            }
+        };
+        writer.visit(V17, ACC_FINAL | ACC_SUPER, CLASS_NAME, null, "java/lang/Object",
+            new String[] { Type.getInternalName(CompiledStatement.class) });
+        writer.visitField(ACC_PRIVATE | ACC_FINAL, "constants", "[Ljava/lang/Object;", null, null).visitEnd();
+
+        MethodVisitor init = writer.visitMethod(ACC_PUBLIC, "<init>", "([Ljava/lang/Object;)V", null, null);
+        init.visitCode();
+        init.visitVarInsn(ALOAD, 0);
+        init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        init.visitVarInsn(ALOAD, 0);
+        init.visitVarInsn(ALOAD, 1);
+        init.visitFieldInsn(PUTFIELD, CLASS_NAME, "constants", "[Ljava/lang/Object;");
+        init.visitInsn(RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        mv = writer.visitMethod(ACC_PUBLIC, "run", "(L" + RUNTIME + ";)I", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, CLASS_NAME, "constants", "[Ljava/lang/Object;");
+        mv.visitVarInsn(ASTORE, CONSTANTS_LOCAL);
+
+        // the locals are only known at the end, they are set there first
+        Label setLocals = new Label();
+        Label body = new Label();
+        mv.visitJumpInsn(GOTO, setLocals);
+        mv.visitLabel(body);
+
+        Exit[] exits = exits();
+        statement(statement, TOP_DEPTH, exits);
+        for (int flag = NO_FLAG; flag <= STOP; flag++) {
+            if (pending(exits[flag])) {
+                place(exits[flag]);
+                push(flag);
+                mv.visitInsn(IRETURN);
+            }
+        }
+
+        mv.visitLabel(setLocals);
+        for (Local local : locals.values()) {
+            push(0);
+            mv.visitVarInsn(ISTORE, local.depth);
+            zero(local.kind);
+            mv.visitVarInsn(local.kind.store, local.value);
+        }
+        for (CacheLocal cache : caches.values()) {
+            push(0);
+            mv.visitVarInsn(ISTORE, cache.filled);
+            if (cache.value >= 0) {
+                zero(cache.kind);
+                mv.visitVarInsn(cache.kind.store, cache.value);
+            }
+        }
+        mv.visitJumpInsn(GOTO, body);
+
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        writer.visitEnd();
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(writer.toByteArray(), true);
+            return (CompiledStatement) lookup.lookupClass().getConstructor(Object[].class).newInstance((Object) constants.toArray());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // finds the assigns: where local variables can be created, and whether the Frame changes
+    private void scan(AstNode node, int depth) {
+        if (node instanceof BinaryOpNode n && isAssign(n.operator.type)) {
+            scanAssign(n.left, depth);
+        } else if (node instanceof ArrayNode n && n.operator.type == TokenType.ARRAY_NEW) {
+            scanAssign(n.array, depth);
+        } else if (node instanceof BlockNode n) {
+            for (AstNode statement : n.statements)
+                scan(statement, depth + 1);
+        } else if (node instanceof IfNode n) {
+            scan(n.thenBranchNode, depth);
+            scan(n.elseBranchNode, depth);
+        } else if (node instanceof WhileNode n) {
+            scan(n.bodyNode, depth);
+        } else if (node instanceof ForNode n) {
+            scan(n.initializerNode, depth + 1);
+            scan(n.incrementNode, depth + 1);
+            scan(n.bodyNode, depth + 1);
+        } else if (node instanceof FillNode) {
+            assignsFrame = true;
+        } else if (node instanceof CacheScopeNode n) {
+            scan(n.node, depth);
+        }
+    }
+
+    private void scanAssign(AstNode variable, int depth) {
+        if (variable instanceof VariableNode v && own.contains(v.slot)) {
+            Local local = local(v.slot);
+            local.deepestAssign = Math.max(local.deepestAssign, depth);
+        } else {
+            assignsFrame = true;
+        }
+    }
+
+    // --- Statements, as in the BytecodeCompiler ---
+
+    private void statement(AstNode node, int depth, Exit[] exits) {
+        if (node instanceof BlockNode n) {
+            block(n, depth, exits);
+        } else if (node instanceof IfNode n) {
+            if (n.thenBranchNode == null)
+                throw new Unsupported("IF without a then branch");
+
+            Label otherwise = new Label();
+            test(n.conditionNode, "If expects BOOL expression as condition", otherwise);
+            statement(n.thenBranchNode, depth, exits);
+
+            mv.visitLabel(otherwise);
+            if (n.elseBranchNode != null)
+                statement(n.elseBranchNode, depth, exits);
+            else
+                jump(exits[NO_FLAG]);
+        } else if (node instanceof WhileNode n) {
+            whileLoop(n, depth, exits);
+        } else if (node instanceof ForNode n) {
+            forLoop(n, depth, exits);
+        } else if (node instanceof CommandNode n) {
+            switch (n.token.type) {
+                case STOP -> jump(exits[STOP]);
+                case BREAK -> jump(exits[BREAK]);
+                case CONTINUE -> jump(exits[CONTINUE]);
+                case COMMAND -> {
+                    mv.visitVarInsn(ALOAD, RUNTIME_LOCAL);
+                    constant(n.token, TOKEN);
+                    mv.visitMethodInsn(INVOKEINTERFACE, RUNTIME, "command", "(" + TOKEN_DESCRIPTOR + ")V", true);
+                    jump(exits[NO_FLAG]);
+                }
+                default -> jump(exits[NO_FLAG]);
+            }
+        } else if (node instanceof PlaceBlockNode n) {
+            placeBlock(n);
+            jump(exits[NO_FLAG]);
+        } else if (node instanceof FillNode n) {
+            mv.visitVarInsn(ALOAD, RUNTIME_LOCAL);
+            constant(n, FILL_NODE);
+            push(depth);
+            mv.visitMethodInsn(INVOKEINTERFACE, RUNTIME, "fill", "(L" + FILL_NODE + ";I)V", true);
+            exitScope(depth - 1); // the locals the FOR would drop
+            jump(exits[NO_FLAG]);
+        } else if (node instanceof BinaryOpNode n && isAssign(n.operator.type)) {
+            assign(n, depth);
+            jump(exits[NO_FLAG]);
+        } else if (node instanceof ArrayNode n && n.operator.type == TokenType.ARRAY_NEW) {
+            store(n.array, depth, () -> newArray(n));
+            jump(exits[NO_FLAG]);
+        } else if (node instanceof ArrayNode n && n.operator.type == TokenType.ARRAY_SET) {
+            arraySet(n);
+            jump(exits[NO_FLAG]);
+        } else if (node instanceof CacheScopeNode n) {
+            clearCache(n);
+            statement(n.node, depth, exits);
+        } else if (node instanceof UnaryOpNode n && n.operator.type == TokenType.PRINT || node instanceof CallNode) {
+            expression(node);
+            mv.visitInsn(POP);
+            jump(exits[NO_FLAG]);
+        } else if (node instanceof ProcedureNode) {
+            jump(exits[NO_FLAG]); // its calls run it
+        } else {
+            throw new Unsupported("statement " + node);
+        }
+    }
+
+    private void block(BlockNode n, int depth, Exit[] exits) {
+        Exit[] left = exits();
+        int last = n.statements.size() - 1;
+
+        for (int i = 0; i <= last; i++) {
+            Exit next = i < last ? new Exit() : left[NO_FLAG];
+            Exit[] statementExits = { next, i < last ? left[NO_FLAG] : left[CONTINUE], left[BREAK], left[STOP] };
+            statement(n.statements.get(i), depth + 1, statementExits);
+
+            if (i < last)
+                place(next);
+        }
+
+        if (last < 0)
+            jump(left[NO_FLAG]);
+
+        for (int flag = NO_FLAG; flag <= STOP; flag++) {
+            if (pending(left[flag])) {
+                place(left[flag]);
+                exitScope(depth);
+                jump(exits[flag]);
+            }
+        }
+    }
+
+    private void continuedBody(AstNode body, int depth, Exit[] exits) {
+        if (body instanceof BlockNode n) {
+            exitScope(depth);
+            jump(exits[n.statements.isEmpty() ? CONTINUE : NO_FLAG]);
+        } else {
+            statement(body, depth, keeping(exits, CONTINUE));
+        }
+    }
+
+    private void whileLoop(WhileNode n, int depth, Exit[] exits) {
+        String message = "WHILE expects BOOL expression as condition";
+        Exit[] condition = exits();
+
+        place(condition[NO_FLAG]);
+        test(n.conditionNode, message, use(exits[NO_FLAG]));
+        statement(n.bodyNode, depth, condition);
+
+        if (pending(condition[CONTINUE])) {
+            place(condition[CONTINUE]);
+            test(n.conditionNode, message, use(exits[CONTINUE]));
+            continuedBody(n.bodyNode, depth, condition);
+        }
+        for (int flag = BREAK; flag <= STOP; flag++) {
+            if (pending(condition[flag])) {
+                int leave = flag == BREAK ? NO_FLAG : STOP;
+                place(condition[flag]);
+                test(n.conditionNode, message, use(exits[leave]));
+                jump(exits[leave]);
+            }
+        }
+    }
+
+    private void forLoop(ForNode n, int depth, Exit[] exits) {
+        String message = "FOR expects BOOL expression as condition";
+        int loopDepth = depth + 1;
+        Exit[] condition = exits();
+        Exit[] increment = exits();
+        Exit[] end = exits();
+
+        statement(n.initializerNode, loopDepth, condition);
+        place(condition[NO_FLAG]);
+        test(n.conditionNode, message, use(end[NO_FLAG]));
+        statement(n.bodyNode, loopDepth, increment);
+        place(increment[NO_FLAG]);
+        statement(n.incrementNode, loopDepth, condition);
+
+        for (boolean more = true; more; ) {
+            more = false;
+            for (int flag = CONTINUE; flag <= STOP; flag++) {
+                if (pending(increment[flag])) {
+                    place(increment[flag]);
+                    statement(n.incrementNode, loopDepth, keeping(condition, flag));
+                    more = true;
+                }
+                if (pending(condition[flag])) {
+                    place(condition[flag]);
+                    if (flag == CONTINUE) {
+                        test(n.conditionNode, message, use(end[CONTINUE]));
+                        continuedBody(n.bodyNode, loopDepth, increment);
+                    } else {
+                        int leave = flag == BREAK ? NO_FLAG : STOP;
+                        test(n.conditionNode, message, use(end[leave]));
+                        jump(end[leave]);
+                    }
+                    more = true;
+                }
+            }
+        }
+
+        for (int flag = NO_FLAG; flag <= STOP; flag++) {
+            if (pending(end[flag])) {
+                place(end[flag]);
+                exitScope(depth - 1);
+                jump(exits[flag]);
+            }
+        }
+    }
+
+    private void test(AstNode condition, String message, Label otherwise) {
+        Kind kind = expression(condition);
+        if (kind != Kind.BOOL) {
+            box(kind);
+            constant(message, "java/lang/String");
+            mv.visitMethodInsn(INVOKESTATIC, RUNTIME, "test", "(" + VALUE_DESCRIPTOR + "Ljava/lang/String;)Z", true);
+        }
+        mv.visitJumpInsn(IFEQ, otherwise);
+    }
+
+    private void placeBlock(PlaceBlockNode n) {
+        boolean ints = typeOf(n.x) == Value.Type.INT && typeOf(n.y) == Value.Type.INT && typeOf(n.z) == Value.Type.INT;
+
+        mv.visitVarInsn(ALOAD, RUNTIME_LOCAL);
+        for (AstNode coordinate : new AstNode[] { n.x, n.y, n.z }) {
+            Kind kind = expression(coordinate);
+            if (ints)
+                convert(kind, Kind.INT);
+            else
+                box(kind);
+        }
+        constant(n.block, BLOCK);
+
+        String coordinates = ints ? "III" : VALUE_DESCRIPTOR + VALUE_DESCRIPTOR + VALUE_DESCRIPTOR;
+        mv.visitMethodInsn(INVOKEINTERFACE, RUNTIME, "place", "(" + coordinates + "L" + BLOCK + ";)V", true);
+    }
+
+    private void assign(BinaryOpNode n, int depth) {
+        if (!(n.left instanceof VariableNode variable))
+            throw new Unsupported("assign to " + n.left);
+
+        store(variable, depth, () -> cast(expression(n.right), assignType(n.operator.type), n.operator));
+    }
+
+    // assigns the value value pushes to variable, it is created at depth if it does not exist
+    private void store(VariableNode variable, int depth, Supplier<Kind> value) {
+        Local local = locals.get(variable.slot);
+        if (local == null) {
+            mv.visitVarInsn(ALOAD, RUNTIME_LOCAL);
+            push(variable.slot);
+        }
+
+        Kind kind = value.get();
+
+        if (local == null) {
+            box(kind);
+            push(depth);
+            mv.visitMethodInsn(INVOKEINTERFACE, RUNTIME, "assign", "(I" + VALUE_DESCRIPTOR + "I)V", true);
+            return;
+        }
+
+        if (local.kind == Kind.VALUE)
+            box(kind);
+        mv.visitVarInsn(local.kind.store, local.value);
+
+        // created at this depth if it does not exist
+        Label exists = new Label();
+        mv.visitVarInsn(ILOAD, local.depth);
+        mv.visitJumpInsn(IFNE, exists);
+        push(depth);
+        mv.visitVarInsn(ISTORE, local.depth);
+        mv.visitLabel(exists);
+    }
+
+    // --- ARRAY blocks: the operands are evaluated, then Operations checks them ---
+
+    private Kind newArray(ArrayNode n) {
+        mv.visitFieldInsn(GETSTATIC, VALUE_TYPE, n.element.name(), "L" + VALUE_TYPE + ";");
+        String length = index(n.index);
+        constant(n.operator, TOKEN);
+        mv.visitMethodInsn(INVOKESTATIC, OPERATIONS, "newArray",
+            "(L" + VALUE_TYPE + ";" + length + TOKEN_DESCRIPTOR + ")" + VALUE_DESCRIPTOR, false);
+        return Kind.VALUE;
+    }
+
+    private Kind arrayGet(ArrayNode n) {
+        Value.Type element = types.elementType(n.array.slot);
+        box(variable(n.array));
+        String index = index(n.index);
+        constant(n.operator, TOKEN);
+
+        String operands = "(" + VALUE_DESCRIPTOR + index + TOKEN_DESCRIPTOR + ")";
+        if (index.equals("I") && element != null && element != Value.Type.STRING) {
+            Kind kind = Kind.of(element);
+            String name = switch (kind) {
+                case INT -> "arrayInt";
+                case FLOAT -> "arrayFloat";
+                default -> "arrayBool";
+            };
+            mv.visitMethodInsn(INVOKESTATIC, OPERATIONS, name, operands + descriptor(kind), false);
+            return kind;
+        }
+
+        mv.visitMethodInsn(INVOKESTATIC, OPERATIONS, "arrayGet", operands + VALUE_DESCRIPTOR, false);
+        Kind kind = Kind.of(element);
+        convert(Kind.VALUE, kind);
+        return kind;
+    }
+
+    private void arraySet(ArrayNode n) {
+        box(variable(n.array));
+        String index = index(n.index);
+
+        // an unboxed value is converted to the elements' type as a boxed one would be
+        Kind kind = expression(n.value);
+        if (!index.equals("I")) {
+            box(kind);
+            kind = Kind.VALUE;
+        }
+
+        constant(n.operator, TOKEN);
+        mv.visitMethodInsn(INVOKESTATIC, OPERATIONS, "arraySet",
+            "(" + VALUE_DESCRIPTOR + index + descriptor(kind) + TOKEN_DESCRIPTOR + ")V", false);
+    }
+
+    // pushes an index or length, an INT unboxed; returns its descriptor
+    private String index(AstNode node) {
+        Kind kind = expression(node);
+        if (kind == Kind.INT)
+            return "I";
+        box(kind);
+        return VALUE_DESCRIPTOR;
+    }
+
+    private static String descriptor(Kind kind) {
+        return switch (kind) {
+            case INT -> "I";
+            case FLOAT -> "F";
+            case BOOL -> "Z";
+            case VALUE -> VALUE_DESCRIPTOR;
+        };
+    }
+
+    // drops the variables of every depth above depth
+    private void exitScope(int depth) {
+        // the Frame only has top-level variables of earlier statements
+        if (depth < TOP_DEPTH || assignsFrame) {
+            mv.visitVarInsn(ALOAD, RUNTIME_LOCAL);
+            push(depth);
+            mv.visitMethodInsn(INVOKEINTERFACE, RUNTIME, "exit", "(I)V", true);
+        }
+
+        for (Local local : locals.values()) {
+            if (local.deepestAssign <= depth)
+                continue;
+
+            Label keep = new Label();
+            mv.visitVarInsn(ILOAD, local.depth);
+            push(depth);
+            mv.visitJumpInsn(IF_ICMPLE, keep);
+            push(0);
+            mv.visitVarInsn(ISTORE, local.depth);
+            mv.visitLabel(keep);
+        }
+    }
+
+    private void clearCache(CacheScopeNode n) {
+        for (int slot : n.slots) {
+            push(0);
+            mv.visitVarInsn(ISTORE, cache(slot).filled);
+        }
+    }
+
+    // --- Expressions ---
+
+    private Kind expression(AstNode node) {
+        if (node instanceof LiteralNode n) {
+            if (n.error != null)
+                return fail(n.error);
+
+            switch (n.value.getType()) {
+                case INT -> push(n.value.asInt());
+                case FLOAT -> push(n.value.asFloat());
+                case BOOL -> push(n.value.asBool() ? 1 : 0);
+                case STRING -> constant(n.value, VALUE);
+            }
+            return Kind.of(n.value.getType());
+        } else if (node instanceof ConstantNode n) {
+            Value value;
+            try {
+                value = Operations.constant(n.constant);
+            } catch (LineBlockException e) {
+                return fail(e);
+            }
+            push(value.asFloat());
+            return Kind.FLOAT;
+        } else if (node instanceof VariableNode n) {
+            return variable(n);
+        } else if (node instanceof UnaryOpNode n) {
+            if (n.operation != null)
+                return unary(n);
+
+            if (n.operator.type == TokenType.PRINT) {
+                mv.visitVarInsn(ALOAD, RUNTIME_LOCAL);
+                box(expression(n.operand));
+                mv.visitMethodInsn(INVOKEINTERFACE, RUNTIME, "print", "(" + VALUE_DESCRIPTOR + ")V", true);
+                mv.visitInsn(ACONST_NULL);
+                return Kind.VALUE;
+            }
+
+            constant(n, UNARY_NODE);
+            box(expression(n.operand));
+            mv.visitMethodInsn(INVOKESTATIC, SPECIALIZATION, "unary", "(L" + UNARY_NODE + ";" + VALUE_DESCRIPTOR + ")" + VALUE_DESCRIPTOR, false);
+            return Kind.VALUE;
+        } else if (node instanceof BinaryOpNode n && !isAssign(n.operator.type)) {
+            if (n.operation != null)
+                return binary(n);
+
+            constant(n, BINARY_NODE);
+            box(expression(n.left));
+            box(expression(n.right));
+            mv.visitMethodInsn(INVOKESTATIC, SPECIALIZATION, "binary",
+                "(L" + BINARY_NODE + ";" + VALUE_DESCRIPTOR + VALUE_DESCRIPTOR + ")" + VALUE_DESCRIPTOR, false);
+            return Kind.VALUE;
+        } else if (node instanceof ArrayNode n && n.operator.type == TokenType.ARRAY_GET) {
+            return arrayGet(n);
+        } else if (node instanceof ArrayNode n && n.operator.type == TokenType.ARRAY_LENGTH) {
+            box(variable(n.array));
+            constant(n.operator, TOKEN);
+            mv.visitMethodInsn(INVOKESTATIC, OPERATIONS, "arrayLength", "(" + VALUE_DESCRIPTOR + TOKEN_DESCRIPTOR + ")I", false);
+            return Kind.INT;
+        } else if (node instanceof CacheNode n) {
+            return cached(n);
+        } else if (node instanceof CacheScopeNode n) {
+            clearCache(n);
+            return expression(n.node);
+        } else if (node instanceof CallNode n) {
+            mv.visitVarInsn(ALOAD, RUNTIME_LOCAL);
+            constant(n, CALL_NODE);
+            push(n.arguments.size());
+            mv.visitTypeInsn(ANEWARRAY, VALUE);
+            for (int i = 0; i < n.arguments.size(); i++) {
+                mv.visitInsn(DUP);
+                push(i);
+                box(expression(n.arguments.get(i)));
+                mv.visitInsn(AASTORE);
+            }
+            mv.visitMethodInsn(INVOKEINTERFACE, RUNTIME, "call", "(L" + CALL_NODE + ";[" + VALUE_DESCRIPTOR + ")" + VALUE_DESCRIPTOR, true);
+            return Kind.VALUE;
+        }
+
+        throw new Unsupported("expression " + node);
+    }
+
+    private Kind variable(VariableNode n) {
+        if (!own.contains(n.slot)) {
+            mv.visitVarInsn(ALOAD, RUNTIME_LOCAL);
+            push(n.slot);
+            push(n.index);
+            mv.visitMethodInsn(INVOKEINTERFACE, RUNTIME, "get", "(II)" + VALUE_DESCRIPTOR, true);
+
+            Kind kind = Kind.of(types.slotType(n.slot));
+            convert(Kind.VALUE, kind);
+            return kind;
+        }
+
+        Local local = local(n.slot);
+        Label exists = new Label();
+        mv.visitVarInsn(ILOAD, local.depth);
+        mv.visitJumpInsn(IFNE, exists);
+        push(n.index);
+        mv.visitMethodInsn(INVOKESTATIC, RUNTIME, "notFound", "(I)L" + Type.getInternalName(LineBlockException.class) + ";", true);
+        mv.visitInsn(ATHROW);
+        mv.visitLabel(exists);
+        mv.visitVarInsn(local.kind.load, local.value);
+        return local.kind;
+    }
+
+    private Kind unary(UnaryOpNode n) {
+        Kind operand = expression(n.operand);
+
+        switch (n.operation) {
+            case IDENTITY -> {
+                return operand;
+            }
+            case INT_NEGATE -> {
+                convert(operand, Kind.INT);
+                mv.visitInsn(INEG);
+                return Kind.INT;
+            }
+            case FLOAT_NEGATE -> {
+                convert(operand, Kind.FLOAT);
+                mv.visitInsn(FNEG);
+                return Kind.FLOAT;
+            }
+            case BIT_NOT -> {
+                convert(operand, Kind.INT);
+                push(-1);
+                mv.visitInsn(IXOR);
+                return Kind.INT;
+            }
+            case NOT -> {
+                convert(operand, Kind.BOOL);
+                push(1);
+                mv.visitInsn(IXOR);
+                return Kind.BOOL;
+            }
+            case SIN, COS, TAN, ASIN, ACOS, ATAN, CEIL, FLOOR -> {
+                convert(operand, Kind.FLOAT);
+                mv.visitInsn(F2D);
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", switch (n.operation) {
+                    case SIN -> "sin";
+                    case COS -> "cos";
+                    case TAN -> "tan";
+                    case ASIN -> "asin";
+                    case ACOS -> "acos";
+                    case ATAN -> "atan";
+                    case CEIL -> "ceil";
+                    default -> "floor";
+                }, "(D)D", false);
+                mv.visitInsn(D2F);
+                return Kind.FLOAT;
+            }
+            case INT_ABS -> {
+                convert(operand, Kind.INT);
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "abs", "(I)I", false);
+                return Kind.INT;
+            }
+            case FLOAT_ABS -> {
+                convert(operand, Kind.FLOAT);
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "abs", "(F)F", false);
+                return Kind.FLOAT;
+            }
+            default -> throw new Unsupported("unary " + n.operation);
+        }
+    }
+
+    private Kind binary(BinaryOpNode n) {
+        Operation operation = n.operation;
+
+        switch (operation) {
+            case INT_PLUS, INT_MINUS, INT_MUL, INT_MOD, BIT_AND, BIT_OR, BIT_XOR, SHL, SHR -> {
+                operands(n, Kind.INT);
+                mv.visitInsn(switch (operation) {
+                    case INT_PLUS -> IADD;
+                    case INT_MINUS -> ISUB;
+                    case INT_MUL -> IMUL;
+                    case INT_MOD -> IREM; // throws ArithmeticException for 0, like %
+                    case BIT_AND -> IAND;
+                    case BIT_OR -> IOR;
+                    case BIT_XOR -> IXOR;
+                    case SHL -> ISHL;
+                    default -> ISHR;
+                });
+                return Kind.INT;
+            }
+            case FLOAT_PLUS, FLOAT_MINUS, FLOAT_MUL, FLOAT_MOD -> {
+                operands(n, Kind.FLOAT);
+                mv.visitInsn(switch (operation) {
+                    case FLOAT_PLUS -> FADD;
+                    case FLOAT_MINUS -> FSUB;
+                    case FLOAT_MUL -> FMUL;
+                    default -> FREM;
+                });
+                return Kind.FLOAT;
+            }
+            case DIV -> {
+                operands(n, Kind.FLOAT);
+                constant(n.operator, TOKEN);
+                mv.visitMethodInsn(INVOKESTATIC, RUNTIME, "divide", "(FF" + TOKEN_DESCRIPTOR + ")F", true);
+                return Kind.FLOAT;
+            }
+            case POW -> {
+                convert(expression(n.left), Kind.FLOAT);
+                mv.visitInsn(F2D);
+                convert(expression(n.right), Kind.FLOAT);
+                mv.visitInsn(F2D);
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "pow", "(DD)D", false);
+                mv.visitInsn(D2F);
+                return Kind.FLOAT;
+            }
+            case POW_ZERO, POW_ONE, SQUARE -> {
+                // the exponent is a literal, it is only evaluated
+                Kind base = expression(n.left);
+                if (operation == Operation.POW_ZERO)
+                    mv.visitInsn(POP);
+                else
+                    convert(base, Kind.FLOAT);
+                expression(n.right);
+                mv.visitInsn(POP);
+
+                if (operation == Operation.POW_ZERO) {
+                    push(1f);
+                } else if (operation == Operation.SQUARE) {
+                    mv.visitInsn(DUP);
+                    mv.visitInsn(FMUL);
+                }
+                return Kind.FLOAT;
+            }
+            case AND, OR, XOR -> {
+                operands(n, Kind.BOOL);
+                mv.visitInsn(operation == Operation.AND ? IAND : operation == Operation.OR ? IOR : IXOR);
+                return Kind.BOOL;
+            }
+            case LT, GT, LE, GE -> {
+                operands(n, Kind.FLOAT);
+                // NaN compares false: FCMPG makes it 1, FCMPL -1
+                mv.visitInsn(operation == Operation.LT || operation == Operation.LE ? FCMPG : FCMPL);
+                Label yes = new Label();
+                Label end = new Label();
+                mv.visitJumpInsn(switch (operation) {
+                    case LT -> IFLT;
+                    case GT -> IFGT;
+                    case LE -> IFLE;
+                    default -> IFGE;
+                }, yes);
+                push(0);
+                mv.visitJumpInsn(GOTO, end);
+                mv.visitLabel(yes);
+                push(1);
+                mv.visitLabel(end);
+                return Kind.BOOL;
+            }
+            default -> {
+                // CONCAT, REPEAT, REPEAT_SWAPPED work on Values
+                mv.visitFieldInsn(GETSTATIC, OPERATION, operation.name(), "L" + OPERATION + ";");
+                box(expression(n.left));
+                box(expression(n.right));
+                constant(n.operator, TOKEN);
+                mv.visitMethodInsn(INVOKESTATIC, OPERATIONS, "apply",
+                    "(L" + OPERATION + ";" + VALUE_DESCRIPTOR + VALUE_DESCRIPTOR + TOKEN_DESCRIPTOR + ")" + VALUE_DESCRIPTOR, false);
+                return Kind.VALUE;
+            }
+        }
+    }
+
+    private void operands(BinaryOpNode n, Kind kind) {
+        convert(expression(n.left), kind);
+        convert(expression(n.right), kind);
+    }
+
+    private Kind cached(CacheNode n) {
+        CacheLocal cache = cache(n.slot);
+        Label filled = new Label();
+        Label end = new Label();
+
+        mv.visitVarInsn(ILOAD, cache.filled);
+        mv.visitJumpInsn(IFNE, filled);
+
+        Kind kind = expression(n.expression);
+        if (cache.value < 0) {
+            cache.kind = kind;
+            cache.value = nextLocal++;
+        } else if (cache.kind != kind) {
+            throw new Unsupported("cache slot of two kinds");
+        }
+        mv.visitInsn(DUP);
+        mv.visitVarInsn(kind.store, cache.value);
+        push(1);
+        mv.visitVarInsn(ISTORE, cache.filled);
+        mv.visitJumpInsn(GOTO, end);
+
+        mv.visitLabel(filled);
+        mv.visitVarInsn(kind.load, cache.value);
+        mv.visitLabel(end);
+        return kind;
+    }
+
+    // the type an expression has, as far as expression() keeps it unboxed
+    private Value.Type typeOf(AstNode node) {
+        if (node instanceof LiteralNode n)
+            return n.error == null ? n.value.getType() : null;
+        if (node instanceof ConstantNode)
+            return Value.Type.FLOAT;
+        if (node instanceof VariableNode n)
+            return types.slotType(n.slot);
+        if (node instanceof CacheNode n)
+            return typeOf(n.expression);
+        if (node instanceof ArrayNode n && n.operator.type == TokenType.ARRAY_GET)
+            return types.elementType(n.array.slot);
+        if (node instanceof ArrayNode n && n.operator.type == TokenType.ARRAY_LENGTH)
+            return Value.Type.INT;
+        if (node instanceof CacheScopeNode n)
+            return typeOf(n.node);
+        if (node instanceof UnaryOpNode n && n.operation != null) {
+            return switch (n.operation) {
+                case IDENTITY -> typeOf(n.operand);
+                case INT_NEGATE, BIT_NOT, INT_ABS -> Value.Type.INT;
+                case NOT -> Value.Type.BOOL;
+                default -> Value.Type.FLOAT;
+            };
+        }
+        if (node instanceof BinaryOpNode n && n.operation != null) {
+            return switch (n.operation) {
+                case INT_PLUS, INT_MINUS, INT_MUL, INT_MOD, BIT_AND, BIT_OR, BIT_XOR, SHL, SHR -> Value.Type.INT;
+                case CONCAT, REPEAT, REPEAT_SWAPPED -> Value.Type.STRING;
+                case AND, OR, XOR, LT, GT, LE, GE -> Value.Type.BOOL;
+                default -> Value.Type.FLOAT;
+            };
+        }
+        return null;
+    }
+
+    // the value converted like Operations.cast for an assign
+    private Kind cast(Kind kind, Value.Type type, Token operator) {
+        Kind target = Kind.of(type);
+        if (kind == target && kind != Kind.VALUE)
+            return kind;
+        if (kind == Kind.INT && target == Kind.FLOAT) {
+            mv.visitInsn(I2F);
+            return target;
+        }
+        if (kind == Kind.FLOAT && target == Kind.INT) {
+            mv.visitInsn(F2I);
+            return target;
+        }
+
+        box(kind);
+        mv.visitFieldInsn(GETSTATIC, VALUE_TYPE, type.name(), "L" + VALUE_TYPE + ";");
+        constant(operator, TOKEN);
+        mv.visitMethodInsn(INVOKESTATIC, OPERATIONS, "cast",
+            "(" + VALUE_DESCRIPTOR + "L" + VALUE_TYPE + ";" + TOKEN_DESCRIPTOR + ")" + VALUE_DESCRIPTOR, false);
+        convert(Kind.VALUE, target);
+        return target;
+    }
+
+    // the operand an Operation expects, the TypeChecker proved its type
+    private void convert(Kind kind, Kind wanted) {
+        if (kind == wanted)
+            return;
+
+        if (kind == Kind.VALUE) {
+            switch (wanted) {
+                case INT -> mv.visitMethodInsn(INVOKEVIRTUAL, VALUE, "asInt", "()I", false);
+                case FLOAT -> mv.visitMethodInsn(INVOKEVIRTUAL, VALUE, "toFloat", "()F", false);
+                case BOOL -> mv.visitMethodInsn(INVOKEVIRTUAL, VALUE, "asBool", "()Z", false);
+                default -> {}
+            }
+        } else if (kind == Kind.INT && wanted == Kind.FLOAT) {
+            mv.visitInsn(I2F);
+        } else if (wanted == Kind.VALUE) {
+            box(kind);
+        } else {
+            throw new Unsupported(kind + " as " + wanted);
+        }
+    }
+
+    private void box(Kind kind) {
+        switch (kind) {
+            case INT -> mv.visitMethodInsn(INVOKESTATIC, VALUE, "ofInt", "(I)" + VALUE_DESCRIPTOR, false);
+            case FLOAT -> mv.visitMethodInsn(INVOKESTATIC, VALUE, "ofFloat", "(F)" + VALUE_DESCRIPTOR, false);
+            case BOOL -> mv.visitMethodInsn(INVOKESTATIC, VALUE, "ofBool", "(Z)" + VALUE_DESCRIPTOR, false);
+            case VALUE -> {}
+        }
+    }
+
+    // throws exception when it runs
+    private Kind fail(RuntimeException exception) {
+        constant(exception, "java/lang/RuntimeException");
+        mv.visitInsn(ATHROW);
+        return Kind.VALUE; // never there
+    }
+
+    // --- Locals, constants and exits ---
+
+    private Local local(int slot) {
+        Local local = locals.get(slot);
+        if (local == null) {
+            local = new Local();
+            local.kind = Kind.of(types.slotType(slot));
+            local.value = nextLocal++;
+            local.depth = nextLocal++;
+            locals.put(slot, local);
+        }
+        return local;
+    }
+
+    private CacheLocal cache(int slot) {
+        CacheLocal cache = caches.get(slot);
+        if (cache == null) {
+            cache = new CacheLocal();
+            cache.filled = nextLocal++;
+            caches.put(slot, cache);
+        }
+        return cache;
+    }
+
+    private void constant(Object value, String type) {
+        Integer index = constantIndexes.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndexes.put(value, index);
+        }
+
+        mv.visitVarInsn(ALOAD, CONSTANTS_LOCAL);
+        push(index);
+        mv.visitInsn(AALOAD);
+        mv.visitTypeInsn(CHECKCAST, type);
+    }
+
+    private void push(int value) {
+        if (value >= -1 && value <= 5)
+            mv.visitInsn(ICONST_0 + value);
+        else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+            mv.visitIntInsn(BIPUSH, value);
+        else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+            mv.visitIntInsn(SIPUSH, value);
+        else
+            mv.visitLdcInsn(value);
+    }
+
+    private void push(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        if (bits == 0)
+            mv.visitInsn(FCONST_0);
+        else if (value == 1f)
+            mv.visitInsn(FCONST_1);
+        else if (value == 2f)
+            mv.visitInsn(FCONST_2);
+        else
+            mv.visitLdcInsn(value);
+    }
+
+    private void zero(Kind kind) {
+        mv.visitInsn(switch (kind) {
+            case INT, BOOL -> ICONST_0;
+            case FLOAT -> FCONST_0;
+            case VALUE -> ACONST_NULL;
+        });
+    }
+
+    private Label use(Exit exit) {
+        exit.used = true;
+        return exit.label;
+    }
+
+    private void jump(Exit exit) {
+        mv.visitJumpInsn(GOTO, use(exit));
+    }
+
+    private void place(Exit exit) {
+        mv.visitLabel(exit.label);
+        exit.placed = true;
+    }
+
+    private static boolean pending(Exit exit) {
+        return exit.used && !exit.placed;
+    }
+
+    private static Exit[] exits() {
+        return new Exit[] { new Exit(), new Exit(), new Exit(), new Exit() };
+    }
+
+    private static Exit[] keeping(Exit[] exits, int flag) {
+        return new Exit[] { exits[flag], exits[CONTINUE], exits[BREAK], exits[STOP] };
+    }
+
+    // filled gets the slots of the variables of fills
+    private static void collectSlots(AstNode node, IntSet slots, IntSet filled) {
+        if (node instanceof VariableNode n) {
+            slots.add(n.slot);
+        } else if (node instanceof BlockNode n) {
+            for (AstNode statement : n.statements)
+                collectSlots(statement, slots, filled);
+        } else if (node instanceof UnaryOpNode n) {
+            collectSlots(n.operand, slots, filled);
+        } else if (node instanceof BinaryOpNode n) {
+            collectSlots(n.left, slots, filled);
+            collectSlots(n.right, slots, filled);
+        } else if (node instanceof PlaceBlockNode n) {
+            collectSlots(n.x, slots, filled);
+            collectSlots(n.y, slots, filled);
+            collectSlots(n.z, slots, filled);
+        } else if (node instanceof IfNode n) {
+            collectSlots(n.conditionNode, slots, filled);
+            collectSlots(n.thenBranchNode, slots, filled);
+            collectSlots(n.elseBranchNode, slots, filled);
+        } else if (node instanceof WhileNode n) {
+            collectSlots(n.conditionNode, slots, filled);
+            collectSlots(n.bodyNode, slots, filled);
+        } else if (node instanceof ForNode n) {
+            collectSlots(n.initializerNode, slots, filled);
+            collectSlots(n.conditionNode, slots, filled);
+            collectSlots(n.incrementNode, slots, filled);
+            collectSlots(n.bodyNode, slots, filled);
+        } else if (node instanceof FillNode n) {
+            collectSlots(n.loop, slots, filled);
+            for (VariableNode variable : n.variables)
+                filled.add(variable.slot);
+        } else if (node instanceof ArrayNode n) {
+            collectSlots(n.array, slots, filled);
+            collectSlots(n.index, slots, filled);
+            collectSlots(n.value, slots, filled);
+        } else if (node instanceof CacheNode n) {
+            collectSlots(n.expression, slots, filled);
+        } else if (node instanceof CacheScopeNode n) {
+            collectSlots(n.node, slots, filled);
+        } else if (node instanceof CallNode n) {
+            for (AstNode argument : n.arguments)
+                collectSlots(argument, slots, filled);
+        } // not the variables of a procedure, they are in the frames of its calls
+    }
+
+    private static boolean isAssign(TokenType op) {
+        return op == TokenType.INT || op == TokenType.FLOAT || op == TokenType.BOOL || op == TokenType.STRING;
+    }
+
+    private static Value.Type assignType(TokenType op) {
+        return switch (op) {
+            case INT -> Value.Type.INT;
+            case FLOAT -> Value.Type.FLOAT;
+            case BOOL -> Value.Type.BOOL;
+            default -> Value.Type.STRING;
+        };
+    }
+}
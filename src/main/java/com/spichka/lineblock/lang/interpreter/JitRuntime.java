@@ -0,0 +1,41 @@
+package com.spichka.lineblock.lang.interpreter;
+
+import com.spichka.lineblock.lang.exceptions.LineBlockException;
+import com.spichka.lineblock.lang.lexer.Token;
+import com.spichka.lineblock.lang.parser.ast.CallNode;
+import com.spichka.lineblock.lang.parser.ast.FillNode;
+
+import net.minecraft.block.Block;
+
+// What code compiled by the JitCompiler calls: the variables that stay in the Frame and
+// the effects on the world, implemented by the VirtualMachine it runs in, and a few
+// helpers that make errors the way the Interpreter does.
+interface JitRuntime {
+    Value get(int slot, int index); // fails if the variable does not exist
+    void assign(int slot, Value value, int depth);
+    void exit(int depth);
+
+    void place(int x, int y, int z, Block block);
+    void place(Value x, Value y, Value z, Block block); // fails if one is not INT
+    void fill(FillNode fill, int depth); // its variables are in the Frame
+    void command(Token token);
+    void print(Value value);
+    Value call(CallNode call, Value[] arguments); // runs the procedure as bytecode
+
+    static LineBlockException notFound(int index) {
+        return new LineBlockException("Variable with index " + index + " not found");
+    }
+
+    static float divide(float left, float right, Token operator) {
+        if (right == 0)
+            throw new LineBlockException("Division by zero", operator);
+        return left / right;
+    }
+
+    // a condition of unknown type
+    static boolean test(Value condition, String message) {
+        if (condition.getType() != Value.Type.BOOL)
+            throw new LineBlockException(message);
+        return condition.asBool();
+    }
+}
@@ -0,0 +1,31 @@
+package com.spichka.lineblock.lang.interpreter;
+
+import static com.spichka.lineblock.lang.interpreter.Value.Type.BOOL;
+import static com.spichka.lineblock.lang.interpreter.Value.Type.FLOAT;
+import static com.spichka.lineblock.lang.interpreter.Value.Type.INT;
+import static com.spichka.lineblock.lang.interpreter.Value.Type.STRING;
+
+// An operator on operand types the TypeChecker proved, Operations.apply() runs it
+// without checking them again. FLOAT_ variants take INT and FLOAT operands.
+public enum Operation {
+    // binary
+    INT_PLUS(INT), INT_MINUS(INT), INT_MUL(INT), INT_MOD(INT),
+    FLOAT_PLUS(FLOAT), FLOAT_MINUS(FLOAT), FLOAT_MUL(FLOAT), FLOAT_MOD(FLOAT),
+    DIV(FLOAT), POW(FLOAT),
+    POW_ZERO(FLOAT), POW_ONE(FLOAT), SQUARE(FLOAT), // POW by a literal 0, 1 or 2, the exponent is not evaluated
+    CONCAT(STRING), REPEAT(STRING), REPEAT_SWAPPED(STRING), // STRING * INT, INT * STRING
+    BIT_AND(INT), BIT_OR(INT), BIT_XOR(INT), SHL(INT), SHR(INT),
+    AND(BOOL), OR(BOOL), XOR(BOOL),
+    LT(BOOL), GT(BOOL), LE(BOOL), GE(BOOL),
+
+    // unary
+    IDENTITY(null), INT_NEGATE(INT), FLOAT_NEGATE(FLOAT), BIT_NOT(INT), NOT(BOOL),
+    SIN(FLOAT), COS(FLOAT), TAN(FLOAT), ASIN(FLOAT), ACOS(FLOAT), ATAN(FLOAT),
+    INT_ABS(INT), FLOAT_ABS(FLOAT), CEIL(FLOAT), FLOOR(FLOAT);
+
+    public final Value.Type result; // null for IDENTITY: the type of its operand
+
+    Operation(Value.Type result) {
+        this.result = result;
+    }
+}
@@ -0,0 +1,576 @@
+package com.spichka.lineblock.lang.interpreter;
+
+import com.spichka.lineblock.lang.exceptions.LineBlockException;
+import com.spichka.lineblock.lang.lexer.Token;
+import com.spichka.lineblock.lang.lexer.TokenType;
+
+// What the operators compute, shared by the Interpreter and the constant folding
+// of the Optimizer so a folded expression gives exactly the value it would at runtime.
+// binary() and unary() check their operands, apply() runs an Operation the
+// TypeChecker picked with binaryFor()/unaryFor() for operands of known types.
+public final class Operations {
+    private static final Value.Type INT = Value.Type.INT;
+    private static final Value.Type FLOAT = Value.Type.FLOAT;
+    private static final Value.Type STRING = Value.Type.STRING;
+    private static final Value.Type BOOL = Value.Type.BOOL;
+    private static final Value.Type ARRAY = Value.Type.ARRAY;
+
+    // elements of one ARRAY at most, so a script cannot take the server's memory
+    private static final int MAX_ARRAY_LENGTH = 1 << 24;
+
+    private Operations() {}
+
+    // PI or E
+    public static Value constant(Token constant) {
+        if (constant.type == TokenType.PI)
+            return Value.ofFloat((float) Math.PI);
+        else if (constant.type == TokenType.E)
+            return Value.ofFloat((float) Math.E);
+        else
+            throw new LineBlockException("Unknown constant: " + constant.type, constant);
+    }
+
+    // every binary operator except the assigns
+    public static Value binary(Token operator, Value left, Value right) {
+        TokenType op = operator.type;
+
+        switch (op) {
+            // --- Math ---
+            case PLUS -> {
+                if (left.isNumber() && right.isNumber()) {
+                    if (left.getType() == Value.Type.FLOAT || right.getType() == Value.Type.FLOAT)
+                        return Value.ofFloat(left.toFloat() + right.toFloat());
+                    else
+                        return Value.ofInt(left.asInt() + right.asInt());
+                } else if (left.getType() == Value.Type.STRING || right.getType() == Value.Type.STRING) {
+                    return Value.concat(left, right);
+                }
+                throw new LineBlockException("PLUS expects numbers or strings", operator);
+            }
+
+            case MINUS -> {
+                if (left.isNumber() && right.isNumber()) {
+                    if (left.getType() == Value.Type.FLOAT || right.getType() == Value.Type.FLOAT)
+                        return Value.ofFloat(left.toFloat() - right.toFloat());
+                    else
+                        return Value.ofInt(left.asInt() - right.asInt());
+                }
+                throw new LineBlockException("MINUS expects numbers", operator);
+            }
+
+            case MUL -> {
+                if (left.isNumber() && right.isNumber()) {
+                    if (left.getType() == Value.Type.FLOAT || right.getType() == Value.Type.FLOAT)
+                        return Value.ofFloat(left.toFloat() * right.toFloat());
+                    else
+                        return Value.ofInt(left.asInt() * right.asInt());
+                } else if (left.getType() == Value.Type.STRING && right.getType() == Value.Type.INT) {
+                    return Value.repeat(left, right.asInt());
+                } else if (right.getType() == Value.Type.STRING && left.getType() == Value.Type.INT) {
+                    return Value.repeat(right, left.asInt());
+                }
+                throw new LineBlockException("MUL expects numbers or (string * int)", operator);
+            }
+
+            case DIV -> {
+                if (left.isNumber() && right.isNumber()) {
+                    float divisor = right.toFloat();
+                    if (divisor == 0)
+                        throw new LineBlockException("Division by zero", operator);
+                    return Value.ofFloat(left.toFloat() / divisor);
+                }
+                throw new LineBlockException("DIV expects numbers", operator);
+            }
+
+            case MOD -> {
+                if (left.isNumber() && right.isNumber()) {
+                    if (left.getType() == Value.Type.FLOAT || right.getType() == Value.Type.FLOAT)
+                        return Value.ofFloat(left.toFloat() % right.toFloat());
+                    else
+                        return Value.ofInt(left.asInt() % right.asInt());
+                }
+                throw new LineBlockException("MOD expects numbers", operator);
+            }
+
+            case POW -> {
+                if (left.isNumber() && right.isNumber())
+                    return Value.ofFloat((float) Math.pow(left.toFloat(), right.toFloat()));
+                throw new LineBlockException("POW expects numbers", operator);
+            }
+
+            // --- Bits ---
+            case BIT_AND -> {
+                if (left.getType() == Value.Type.INT && right.getType() == Value.Type.INT)
+                    return Value.ofInt(left.asInt() & right.asInt());
+                throw new LineBlockException("BIT_AND expects INT", operator);
+            }
+
+            case BIT_OR -> {
+                if (left.getType() == Value.Type.INT && right.getType() == Value.Type.INT)
+                    return Value.ofInt(left.asInt() | right.asInt());
+                throw new LineBlockException("BIT_OR expects INT", operator);
+            }
+
+            case BIT_XOR -> {
+                if (left.getType() == Value.Type.INT && right.getType() == Value.Type.INT)
+                    return Value.ofInt(left.asInt() ^ right.asInt());
+                throw new LineBlockException("BIT_XOR expects INT", operator);
+            }
+
+            case SHL -> {
+                if (left.getType() == Value.Type.INT && right.getType() == Value.Type.INT)
+                    return Value.ofInt(left.asInt() << right.asInt());
+                throw new LineBlockException("SHL expects INT", operator);
+            }
+
+            case SHR -> {
+                if (left.getType() == Value.Type.INT && right.getType() == Value.Type.INT)
+                    return Value.ofInt(left.asInt() >> right.asInt());
+                throw new LineBlockException("SHR expects INT", operator);
+            }
+
+            // --- Logic ---
+            case AND -> {
+                if (left.getType() == Value.Type.BOOL && right.getType() == Value.Type.BOOL)
+                    return Value.ofBool(left.asBool() && right.asBool());
+                throw new LineBlockException("AND expects BOOL", operator);
+            }
+
+            case OR -> {
+                if (left.getType() == Value.Type.BOOL && right.getType() == Value.Type.BOOL)
+                    return Value.ofBool(left.asBool() || right.asBool());
+                throw new LineBlockException("OR expects BOOL", operator);
+            }
+
+            case XOR -> {
+                if (left.getType() == Value.Type.BOOL && right.getType() == Value.Type.BOOL)
+                    return Value.ofBool(left.asBool() ^ right.asBool());
+                throw new LineBlockException("XOR expects BOOL", operator);
+            }
+
+            // --- Equation ---
+            case EQ -> {
+                return Value.ofBool(left.equalsValue(right));
+            }
+            case NE -> {
+                return Value.ofBool(!left.equalsValue(right));
+            }
+            case GT -> {
+                if (left.isNumber() && right.isNumber())
+                    return Value.ofBool(left.toFloat() > right.toFloat());
+                throw new LineBlockException("GT expects numbers", operator);
+            }
+            case LT -> {
+                if (left.isNumber() && right.isNumber())
+                    return Value.ofBool(left.toFloat() < right.toFloat());
+                throw new LineBlockException("LT expects numbers", operator);
+            }
+            case GE -> {
+                if (left.isNumber() && right.isNumber())
+                    return Value.ofBool(left.toFloat() >= right.toFloat());
+                throw new LineBlockException("GE expects numbers", operator);
+            }
+            case LE -> {
+                if (left.isNumber() && right.isNumber())
+                    return Value.ofBool(left.toFloat() <= right.toFloat());
+                throw new LineBlockException("LE expects numbers", operator);
+            }
+
+            default -> throw new LineBlockException("Unknown binary operator: " + op, operator);
+        }
+    }
+
+    // every unary operator except PRINT
+    public static Value unary(Token operator, Value value) {
+        TokenType op = operator.type;
+
+        switch (op) {
+            // ------------------ Numbers ------------------
+            case PLUS -> {
+                if (value.isNumber()) return value; // +x = x
+                throw new LineBlockException("PLUS expects a number", operator);
+            }
+
+            case MINUS -> {
+                if (value.getType() == Value.Type.INT)
+                    return Value.ofInt(-value.asInt());
+                else if (value.getType() == Value.Type.FLOAT)
+                    return Value.ofFloat(-value.asFloat());
+                throw new LineBlockException("MINUS expects INT or FLOAT", operator);
+            }
+
+            // ------------------ Bits ------------------
+            case BIT_NOT -> {
+                if (value.getType() == Value.Type.INT)
+                    return Value.ofInt(~value.asInt());
+                throw new LineBlockException("BIT_NOT expects INT", operator);
+            }
+
+            // ------------------ Logic ------------------
+            case NOT -> {
+                if (value.getType() == Value.Type.BOOL)
+                    return Value.ofBool(!value.asBool());
+                throw new LineBlockException("NOT expects BOOL", operator);
+            }
+
+            // ------------------ Math ------------------
+            case SIN -> {
+                if (value.isNumber())
+                    return Value.ofFloat((float) Math.sin(value.toFloat()));
+                throw new LineBlockException("SIN expects INT or FLOAT", operator);
+            }
+            case COS -> {
+                if (value.isNumber())
+                    return Value.ofFloat((float) Math.cos(value.toFloat()));
+                throw new LineBlockException("COS expects INT or FLOAT", operator);
+            }
+            case TAN -> {
+                if (value.isNumber())
+                    return Value.ofFloat((float) Math.tan(value.toFloat()));
+                throw new LineBlockException("TAN expects INT or FLOAT", operator);
+            }
+            case ASIN -> {
+                if (value.isNumber())
+                    return Value.ofFloat((float) Math.asin(value.toFloat()));
+                throw new LineBlockException("ASIN expects INT or FLOAT", operator);
+            }
+            case ACOS -> {
+                if (value.isNumber())
+                    return Value.ofFloat((float) Math.acos(value.toFloat()));
+                throw new LineBlockException("ACOS expects INT or FLOAT", operator);
+            }
+            case ATAN -> {
+                if (value.isNumber())
+                    return Value.ofFloat((float) Math.atan(value.toFloat()));
+                throw new LineBlockException("ATAN expects INT or FLOAT", operator);
+            }
+            case ABS -> {
+                if (value.getType() == Value.Type.INT)
+                    return Value.ofInt(Math.abs(value.asInt()));
+                else if (value.getType() == Value.Type.FLOAT)
+                    return Value.ofFloat(Math.abs(value.asFloat()));
+                throw new LineBlockException("ABS expects INT or FLOAT", operator);
+            }
+            case CEIL -> {
+                if (value.isNumber())
+                    return Value.ofFloat((float) Math.ceil(value.toFloat()));
+                throw new LineBlockException("CEIL expects INT or FLOAT", operator);
+            }
+            case FLOOR -> {
+                if (value.isNumber())
+                    return Value.ofFloat((float) Math.floor(value.toFloat()));
+                throw new LineBlockException("FLOOR expects INT or FLOAT", operator);
+            }
+
+            default -> throw new LineBlockException("Unknown unary operator: " + op, operator);
+        }
+    }
+
+    // value converted for an assign of the expected type
+    public static Value cast(Value v, Value.Type expected, Token op) {
+        if (v.getType() == expected) return v;
+
+        return switch (expected) {
+            case INT -> {
+                if (v.getType() == Value.Type.FLOAT) yield Value.ofInt((int) v.asFloat());
+                if (v.getType() == Value.Type.BOOL) yield Value.ofInt(v.asBool() ? 1 : 0);
+                if (v.getType() == Value.Type.STRING)
+                    try { yield Value.ofInt(Integer.parseInt(v.asString())); }
+                    catch (NumberFormatException e) { throw new LineBlockException("Cannot convert STRING to INT", op); }
+                throw new LineBlockException("Cannot convert " + v.getType() + " to INT", op);
+            }
+            case FLOAT -> {
+                if (v.getType() == Value.Type.INT) yield Value.ofFloat((float) v.asInt());
+                if (v.getType() == Value.Type.BOOL) yield Value.ofFloat(v.asBool() ? 1f : 0f);
+                if (v.getType() == Value.Type.STRING)
+                    try { yield Value.ofFloat(Float.parseFloat(v.asString())); }
+                    catch (NumberFormatException e) { throw new LineBlockException("Cannot convert STRING to FLOAT", op); }
+                throw new LineBlockException("Cannot convert " + v.getType() + " to FLOAT", op);
+            }
+            case BOOL -> {
+                if (v.isNumber()) yield Value.ofBool(v.toFloat() != 0);
+                if (v.getType() == Value.Type.STRING)
+                    yield Value.ofBool(v.length() != 0);
+                throw new LineBlockException("Cannot convert " + v.getType() + " to BOOL", op);
+            }
+            case STRING -> Value.ofString(v.toString());
+            case ARRAY -> throw new LineBlockException("Cannot convert " + v.getType() + " to ARRAY", op);
+        };
+    }
+
+    // the unchecked operation for these operand types, null if they fail or nothing is saved
+    public static Operation binaryFor(TokenType op, Value.Type left, Value.Type right) {
+        boolean numbers = isNumber(left) && isNumber(right);
+        boolean floats = numbers && (left == FLOAT || right == FLOAT);
+        boolean ints = left == INT && right == INT;
+        boolean bools = left == BOOL && right == BOOL;
+
+        return switch (op) {
+            case PLUS -> numbers ? (floats ? Operation.FLOAT_PLUS : Operation.INT_PLUS)
+                : left == STRING || right == STRING ? Operation.CONCAT : null;
+            case MINUS -> numbers ? (floats ? Operation.FLOAT_MINUS : Operation.INT_MINUS) : null;
+            case MUL -> numbers ? (floats ? Operation.FLOAT_MUL : Operation.INT_MUL)
+                : left == STRING && right == INT ? Operation.REPEAT
+                : left == INT && right == STRING ? Operation.REPEAT_SWAPPED : null;
+            case MOD -> numbers ? (floats ? Operation.FLOAT_MOD : Operation.INT_MOD) : null;
+            case DIV -> numbers ? Operation.DIV : null;
+            case POW -> numbers ? Operation.POW : null;
+
+            case BIT_AND -> ints ? Operation.BIT_AND : null;
+            case BIT_OR -> ints ? Operation.BIT_OR : null;
+            case BIT_XOR -> ints ? Operation.BIT_XOR : null;
+            case SHL -> ints ? Operation.SHL : null;
+            case SHR -> ints ? Operation.SHR : null;
+
+            case AND -> bools ? Operation.AND : null;
+            case OR -> bools ? Operation.OR : null;
+            case XOR -> bools ? Operation.XOR : null;
+
+            case LT -> numbers ? Operation.LT : null;
+            case GT -> numbers ? Operation.GT : null;
+            case LE -> numbers ? Operation.LE : null;
+            case GE -> numbers ? Operation.GE : null;
+
+            default -> null; // EQ and NE never fail
+        };
+    }
+
+    public static Operation unaryFor(TokenType op, Value.Type type) {
+        boolean number = isNumber(type);
+
+        return switch (op) {
+            case PLUS -> number ? Operation.IDENTITY : null;
+            case MINUS -> type == INT ? Operation.INT_NEGATE : type == FLOAT ? Operation.FLOAT_NEGATE : null;
+            case BIT_NOT -> type == INT ? Operation.BIT_NOT : null;
+            case NOT -> type == BOOL ? Operation.NOT : null;
+            case SIN -> number ? Operation.SIN : null;
+            case COS -> number ? Operation.COS : null;
+            case TAN -> number ? Operation.TAN : null;
+            case ASIN -> number ? Operation.ASIN : null;
+            case ACOS -> number ? Operation.ACOS : null;
+            case ATAN -> number ? Operation.ATAN : null;
+            case ABS -> type == INT ? Operation.INT_ABS : type == FLOAT ? Operation.FLOAT_ABS : null;
+            case CEIL -> number ? Operation.CEIL : null;
+            case FLOOR -> number ? Operation.FLOOR : null;
+            default -> null;
+        };
+    }
+
+    // a binary Operation; only DIV can still fail
+    public static Value apply(Operation operation, Value left, Value right, Token operator) {
+        return switch (operation.result) {
+            case INT -> Value.ofInt(applyInt(operation, left.asInt(), right.asInt()));
+            case FLOAT -> Value.ofFloat(applyFloat(operation, left.toFloat(), right.toFloat(), operator));
+            case BOOL -> Value.ofBool(operation == Operation.AND || operation == Operation.OR || operation == Operation.XOR
+                ? applyLogic(operation, left.asBool(), right.asBool())
+                : compare(operation, left.toFloat(), right.toFloat()));
+            case STRING -> switch (operation) {
+                case CONCAT -> Value.concat(left, right);
+                case REPEAT -> Value.repeat(left, right.asInt());
+                case REPEAT_SWAPPED -> Value.repeat(right, left.asInt());
+                default -> throw new LineBlockException("Not a binary operation: " + operation, operator);
+            };
+            case ARRAY -> throw new LineBlockException("Not a binary operation: " + operation, operator);
+        };
+    }
+
+    // a unary Operation, never fails
+    public static Value apply(Operation operation, Value value) {
+        if (operation == Operation.IDENTITY)
+            return value;
+
+        return switch (operation.result) {
+            case INT -> Value.ofInt(applyInt(operation, value.asInt()));
+            case FLOAT -> Value.ofFloat(applyFloat(operation, value.toFloat()));
+            case BOOL -> Value.ofBool(!value.asBool()); // NOT
+            default -> throw new LineBlockException("Not a unary operation: " + operation);
+        };
+    }
+
+    // the binary Operations on the unboxed operands, by the type of their result
+
+    static int applyInt(Operation operation, int left, int right) {
+        return switch (operation) {
+            case INT_PLUS -> left + right;
+            case INT_MINUS -> left - right;
+            case INT_MUL -> left * right;
+            case INT_MOD -> left % right;
+            case BIT_AND -> left & right;
+            case BIT_OR -> left | right;
+            case BIT_XOR -> left ^ right;
+            case SHL -> left << right;
+            case SHR -> left >> right;
+            default -> throw new LineBlockException("Not an INT operation: " + operation);
+        };
+    }
+
+    // INT operands as floats
+    static float applyFloat(Operation operation, float left, float right, Token operator) {
+        return switch (operation) {
+            case FLOAT_PLUS -> left + right;
+            case FLOAT_MINUS -> left - right;
+            case FLOAT_MUL -> left * right;
+            case FLOAT_MOD -> left % right;
+            case DIV -> {
+                if (right == 0)
+                    throw new LineBlockException("Division by zero", operator);
+                yield left / right;
+            }
+            case POW -> (float) Math.pow(left, right);
+            case POW_ZERO -> 1f;
+            case POW_ONE -> left;
+            case SQUARE -> left * left; // rounds the exact product once, like (float) (x * x) in double
+            default -> throw new LineBlockException("Not a FLOAT operation: " + operation, operator);
+        };
+    }
+
+    static boolean applyLogic(Operation operation, boolean left, boolean right) {
+        return switch (operation) {
+            case AND -> left && right;
+            case OR -> left || right;
+            default -> left ^ right; // XOR
+        };
+    }
+
+    // LT, GT, LE or GE, INT operands as floats
+    static boolean compare(Operation operation, float left, float right) {
+        return switch (operation) {
+            case LT -> left < right;
+            case GT -> left > right;
+            case LE -> left <= right;
+            default -> left >= right;
+        };
+    }
+
+    // the unary Operations on the unboxed operand
+
+    static int applyInt(Operation operation, int value) {
+        return switch (operation) {
+            case INT_NEGATE -> -value;
+            case BIT_NOT -> ~value;
+            case INT_ABS -> Math.abs(value);
+            default -> throw new LineBlockException("Not an INT operation: " + operation);
+        };
+    }
+
+    // an INT operand as a float
+    static float applyFloat(Operation operation, float value) {
+        return switch (operation) {
+            case FLOAT_NEGATE -> -value;
+            case SIN -> (float) Math.sin(value);
+            case COS -> (float) Math.cos(value);
+            case TAN -> (float) Math.tan(value);
+            case ASIN -> (float) Math.asin(value);
+            case ACOS -> (float) Math.acos(value);
+            case ATAN -> (float) Math.atan(value);
+            case FLOAT_ABS -> Math.abs(value);
+            case CEIL -> (float) Math.ceil(value);
+            case FLOOR -> (float) Math.floor(value);
+            default -> throw new LineBlockException("Not a FLOAT operation: " + operation);
+        };
+    }
+
+    // --- ARRAY blocks: the operands are evaluated first, then checked ---
+
+    // a new ARRAY of length elements of type element, all 0, 0.0, false or ""
+    public static Value newArray(Value.Type element, Value length, Token operator) {
+        if (length.getType() != INT)
+            throw new LineBlockException("ARRAY length must be INT", operator);
+        return newArray(element, length.asInt(), operator);
+    }
+
+    public static Value newArray(Value.Type element, int length, Token operator) {
+        if (length < 0 || length > MAX_ARRAY_LENGTH)
+            throw new LineBlockException("ARRAY length " + length + " is out of range", operator);
+        return Value.ofArray(new Elements(element, length));
+    }
+
+    public static Value arrayGet(Value array, Value index, Token operator) {
+        return arrayGet(array, intIndex(index, operator), operator);
+    }
+
+    public static Value arrayGet(Value array, int index, Token operator) {
+        Elements elements = elements(array, operator);
+        return elements.get(checkIndex(elements, index, operator));
+    }
+
+    // the element of an ARRAY the TypeChecker knows to have INT, FLOAT or BOOL elements
+    static int arrayInt(Value array, int index, Token operator) {
+        Elements elements = elements(array, operator);
+        return elements.getInt(checkIndex(elements, index, operator));
+    }
+
+    static float arrayFloat(Value array, int index, Token operator) {
+        Elements elements = elements(array, operator);
+        return elements.getFloat(checkIndex(elements, index, operator));
+    }
+
+    static boolean arrayBool(Value array, int index, Token operator) {
+        Elements elements = elements(array, operator);
+        return elements.getBool(checkIndex(elements, index, operator));
+    }
+
+    // value is converted like an assign to the type of the elements
+    public static void arraySet(Value array, Value index, Value value, Token operator) {
+        arraySet(array, intIndex(index, operator), value, operator);
+    }
+
+    public static void arraySet(Value array, int index, Value value, Token operator) {
+        Elements elements = elements(array, operator);
+        int checked = checkIndex(elements, index, operator);
+        elements.set(checked, cast(value, elements.type, operator));
+    }
+
+    static void arraySet(Value array, int index, int value, Token operator) {
+        Elements elements = elements(array, operator);
+        int checked = checkIndex(elements, index, operator);
+        if (elements.type == INT)
+            elements.setInt(checked, value);
+        else
+            elements.set(checked, cast(Value.ofInt(value), elements.type, operator));
+    }
+
+    static void arraySet(Value array, int index, float value, Token operator) {
+        Elements elements = elements(array, operator);
+        int checked = checkIndex(elements, index, operator);
+        if (elements.type == FLOAT)
+            elements.setFloat(checked, value);
+        else
+            elements.set(checked, cast(Value.ofFloat(value), elements.type, operator));
+    }
+
+    static void arraySet(Value array, int index, boolean value, Token operator) {
+        Elements elements = elements(array, operator);
+        int checked = checkIndex(elements, index, operator);
+        if (elements.type == BOOL)
+            elements.setBool(checked, value);
+        else
+            elements.set(checked, cast(Value.ofBool(value), elements.type, operator));
+    }
+
+    public static int arrayLength(Value array, Token operator) {
+        return elements(array, operator).length;
+    }
+
+    private static Elements elements(Value array, Token operator) {
+        if (array.getType() != ARRAY)
+            throw new LineBlockException(operator.type + " expects an ARRAY variable", operator);
+        return array.asArray();
+    }
+
+    private static int intIndex(Value index, Token operator) {
+        if (index.getType() != INT)
+            throw new LineBlockException("ARRAY index must be INT", operator);
+        return index.asInt();
+    }
+
+    private static int checkIndex(Elements elements, int index, Token operator) {
+        if (index < 0 || index >= elements.length)
+            throw new LineBlockException("ARRAY index " + index + " is out of range for length " + elements.length, operator);
+        return index;
+    }
+
+    private static boolean isNumber(Value.Type type) {
+        return type == INT || type == FLOAT;
+    }
+}
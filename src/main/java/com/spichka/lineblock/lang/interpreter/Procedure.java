@@ -0,0 +1,168 @@
+package com.spichka.lineblock.lang.interpreter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.spichka.lineblock.lang.exceptions.LineBlockException;
+import com.spichka.lineblock.lang.parser.ast.AstNode;
+import com.spichka.lineblock.lang.parser.ast.CallNode;
+import com.spichka.lineblock.lang.parser.ast.ProcedureNode;
+import com.spichka.lineblock.lang.parser.ast.VariableNode;
+
+// A DEFINE of a program, made by the TypeChecker: the typed body and result that its
+// CallNodes run, and what the executors compiled them to. The lines of the body run
+// like top-level lines, so the result sees the variables they assign; a BREAK or
+// CONTINUE among them ends the body.
+//
+// A procedure is pure when neither it nor a procedure it calls places blocks, runs
+// command blocks, prints or uses ARRAYs. A call only sees its arguments, so a pure
+// procedure's result depends on nothing else and is remembered by them: the next
+// call with equal arguments returns it without running. The least recently used
+// results go first.
+public final class Procedure {
+    private static final int REMEMBERED = 256;
+
+    final ProcedureNode node; // as declared, to find a second DEFINE of the index
+    final VariableNode[] parameters;
+    final Value.Type[] types;
+    List<AstNode> body; // the typed lines, set once the DEFINE is checked
+    AstNode result; // null if there is none
+
+    boolean effects; // in body and result themselves
+    final List<Procedure> callees = new ArrayList<>();
+    private Boolean pure; // worked out on the first call
+
+    Bytecode[] bytecode; // lines and result compiled for the VirtualMachine
+    Bytecode resultBytecode;
+    ClosureCompiler.Code[] closures; // and for the ClosureInterpreter
+    ClosureCompiler.Code resultClosure;
+
+    private Map<Arguments, Value> results;
+
+    Procedure(ProcedureNode node) {
+        this.node = node;
+        this.parameters = node.parameters;
+        this.types = node.types;
+    }
+
+    static Procedure of(CallNode call) {
+        if (call.procedure == null)
+            throw new LineBlockException("Procedure " + call.index + " is not defined", call.call);
+        return call.procedure;
+    }
+
+    // the values converted to the types of the parameters, like assigns would
+    Value[] arguments(Value[] values) {
+        for (int i = 0; i < values.length; i++)
+            values[i] = Operations.cast(values[i], types[i], parameters[i].token);
+        return values;
+    }
+
+    // assigns the arguments to the parameters, at the depth the lines of the body run at
+    void enter(Frame frame, Value[] arguments, int depth) {
+        for (int i = 0; i < arguments.length; i++)
+            frame.assign(parameters[i].slot, arguments[i], depth);
+    }
+
+    // the result of an earlier call with these arguments, null if there is none
+    Value remembered(Value[] arguments) {
+        if (results == null) {
+            if (!isPure() || result == null)
+                return null;
+            results = new Results();
+        }
+        return results.get(new Arguments(arguments));
+    }
+
+    void remember(Value[] arguments, Value value) {
+        if (results != null && value != null)
+            results.put(new Arguments(arguments), value);
+    }
+
+    // pure unless a procedure it reaches, itself included, has effects or was never checked
+    boolean isPure() {
+        if (pure == null) {
+            Set<Procedure> reached = Collections.newSetFromMap(new IdentityHashMap<>());
+            List<Procedure> work = new ArrayList<>(List.of(this));
+            while (!work.isEmpty()) {
+                Procedure procedure = work.remove(work.size() - 1);
+                if (reached.add(procedure))
+                    work.addAll(procedure.callees);
+            }
+
+            // the callees of reached procedures are reached, so this is their answer too
+            for (Procedure procedure : reached)
+                procedure.pure = !procedure.effects && procedure.body != null;
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (Procedure procedure : reached) {
+                    for (Procedure callee : procedure.callees) {
+                        if (procedure.pure && !callee.pure) {
+                            procedure.pure = false;
+                            changed = true;
+                        }
+                    }
+                }
+            }
+        }
+        return pure;
+    }
+
+    // the arguments of a call, converted: INT, FLOAT, BOOL or STRING by the parameter
+    private static final class Arguments {
+        private final Value[] values;
+        private final int hash;
+
+        private Arguments(Value[] values) {
+            this.values = values;
+            int hash = 1;
+            for (Value value : values)
+                hash = 31 * hash + (value.getType() == Value.Type.STRING ? value.asString().hashCode() : value.asInt());
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Arguments other) || hash != other.hash)
+                return false;
+
+            for (int i = 0; i < values.length; i++) {
+                Value value = values[i];
+                Value otherValue = other.values[i];
+                boolean equal = value.getType() == Value.Type.STRING
+                    ? value.asString().equals(otherValue.asString())
+                    : value.asInt() == otherValue.asInt(); // the raw bits of a FLOAT
+                if (!equal)
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Results extends LinkedHashMap<Arguments, Value> {
+        private Results() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Arguments, Value> eldest) {
+            return size() > REMEMBERED;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Procedure(" + node.index + ')';
+    }
+}
@@ -0,0 +1,27 @@
+package com.spichka.lineblock.lang.interpreter;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.spichka.lineblock.lang.parser.ast.AstNode;
+
+// The top-level statements of a typed program as the VirtualMachine and the
+// ClosureInterpreter run them, compiled on their first run and kept with the program
+// so later runs compile nothing
+public final class ProgramCode {
+    private final Map<AstNode, Bytecode> bytecode = new IdentityHashMap<>();
+    private final Map<AstNode, ClosureCompiler.Code> closures = new IdentityHashMap<>();
+
+    Bytecode bytecode(AstNode statement) {
+        return bytecode.computeIfAbsent(statement, BytecodeCompiler::compile);
+    }
+
+    ClosureCompiler.Code closure(AstNode statement) {
+        return closures.computeIfAbsent(statement, ClosureCompiler::compile);
+    }
+
+    @Override
+    public String toString() {
+        return "ProgramCode{bytecode=" + bytecode.size() + ", closures=" + closures.size() + '}';
+    }
+}
@@ -0,0 +1,90 @@
+package com.spichka.lineblock.lang.interpreter;
+
+import com.spichka.lineblock.lang.parser.ast.ArrayNode;
+import com.spichka.lineblock.lang.parser.ast.AstNode;
+import com.spichka.lineblock.lang.parser.ast.BinaryOpNode;
+import com.spichka.lineblock.lang.parser.ast.BlockNode;
+import com.spichka.lineblock.lang.parser.ast.CacheNode;
+import com.spichka.lineblock.lang.parser.ast.CacheScopeNode;
+import com.spichka.lineblock.lang.parser.ast.CallNode;
+import com.spichka.lineblock.lang.parser.ast.FillNode;
+import com.spichka.lineblock.lang.parser.ast.ForNode;
+import com.spichka.lineblock.lang.parser.ast.IfNode;
+import com.spichka.lineblock.lang.parser.ast.PlaceBlockNode;
+import com.spichka.lineblock.lang.parser.ast.ProcedureNode;
+import com.spichka.lineblock.lang.parser.ast.UnaryOpNode;
+import com.spichka.lineblock.lang.parser.ast.VariableNode;
+import com.spichka.lineblock.lang.parser.ast.WhileNode;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+
+// Gives every variable index of a program a slot of the Interpreter's Frame. Slots are
+// handed out in order and never change, so statements resolved at different times
+// (re-parsed after an edit or streamed one by one) agree on them.
+public final class Resolver {
+    private final Int2IntOpenHashMap slots = new Int2IntOpenHashMap();
+
+    public Resolver() {
+        slots.defaultReturnValue(-1);
+    }
+
+    // sets the slot of every VariableNode in node, returns node
+    public AstNode resolve(AstNode node) {
+        if (node instanceof VariableNode n) {
+            n.slot = slotOf(n.index);
+        } else if (node instanceof BlockNode n) {
+            for (AstNode statement : n.statements)
+                resolve(statement);
+        } else if (node instanceof UnaryOpNode n) {
+            resolve(n.operand);
+        } else if (node instanceof BinaryOpNode n) {
+            resolve(n.left);
+            resolve(n.right);
+        } else if (node instanceof PlaceBlockNode n) {
+            resolve(n.x);
+            resolve(n.y);
+            resolve(n.z);
+        } else if (node instanceof IfNode n) {
+            resolve(n.conditionNode);
+            resolve(n.thenBranchNode);
+            resolve(n.elseBranchNode);
+        } else if (node instanceof WhileNode n) {
+            resolve(n.conditionNode);
+            resolve(n.bodyNode);
+        } else if (node instanceof ForNode n) {
+            resolve(n.initializerNode);
+            resolve(n.conditionNode);
+            resolve(n.incrementNode);
+            resolve(n.bodyNode);
+        } else if (node instanceof FillNode n) {
+            resolve(n.loop); // the variables of the fill are the ones of its loops
+        } else if (node instanceof ArrayNode n) {
+            resolve(n.array);
+            resolve(n.index);
+            resolve(n.value);
+        } else if (node instanceof CacheNode n) {
+            resolve(n.expression);
+        } else if (node instanceof CacheScopeNode n) {
+            resolve(n.node);
+        } else if (node instanceof ProcedureNode n) {
+            for (VariableNode parameter : n.parameters)
+                resolve(parameter);
+            resolve(n.body);
+            resolve(n.result);
+        } else if (node instanceof CallNode n) {
+            for (AstNode argument : n.arguments)
+                resolve(argument);
+        }
+
+        return node;
+    }
+
+    private int slotOf(int index) {
+        int slot = slots.get(index);
+        if (slot < 0) {
+            slot = slots.size();
+            slots.put(index, slot);
+        }
+        return slot;
+    }
+}
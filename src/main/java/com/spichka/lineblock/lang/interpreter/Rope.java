@@ -0,0 +1,99 @@
+package com.spichka.lineblock.lang.interpreter;
+
+import java.util.ArrayDeque;
+
+// The text of a STRING built by PLUS or MUL, kept as the parts it was built from until
+// something reads it. Appending to a rope in a loop is O(1) per append, the whole text
+// is built once by flatten(), in O(length). A part is a String or another Rope.
+final class Rope {
+    // shorter results are built right away, a rope of them would only cost more
+    private static final int MIN_LENGTH = 64;
+
+    private Object left;
+    private Object right; // null for a repetition of left
+    private int count; // repetitions of left
+    private final int length;
+    private String flat; // the text once it was built, the parts are dropped then
+
+    private Rope(Object left, Object right, int count, int length) {
+        this.left = left;
+        this.right = right;
+        this.count = count;
+        this.length = length;
+    }
+
+    // left followed by right
+    static Object concat(Object left, Object right) {
+        int leftLength = length(left);
+        int rightLength = length(right);
+        if (leftLength == 0)
+            return right;
+        if (rightLength == 0)
+            return left;
+
+        int length = checkedLength((long) leftLength + rightLength);
+        if (length < MIN_LENGTH)
+            return flatten(left) + flatten(right);
+        return new Rope(left, right, 0, length);
+    }
+
+    // part count times, nothing for a count below 1
+    static Object repeat(Object part, int count) {
+        int partLength = length(part);
+        if (count <= 0 || partLength == 0)
+            return "";
+        if (count == 1)
+            return part;
+
+        int length = checkedLength((long) partLength * count);
+        if (length < MIN_LENGTH)
+            return flatten(part).repeat(count);
+        return new Rope(part, null, count, length);
+    }
+
+    static int length(Object part) {
+        return part instanceof Rope rope ? rope.length : ((String) part).length();
+    }
+
+    static String flatten(Object part) {
+        return part instanceof Rope rope ? rope.flatten() : (String) part;
+    }
+
+    private String flatten() {
+        if (flat != null)
+            return flat;
+
+        StringBuilder text = new StringBuilder(length);
+        if (right == null) {
+            // a repetition: at most 31 of them can be nested before the length overflows
+            String part = flatten(left);
+            for (int i = 0; i < count; i++)
+                text.append(part);
+        } else {
+            // left-deep chains of appends are as long as the loop that built them,
+            // so the parts are walked with a stack on the heap
+            ArrayDeque<Object> parts = new ArrayDeque<>();
+            parts.push(this);
+            while (!parts.isEmpty()) {
+                Object part = parts.pop();
+                if (part instanceof Rope rope && rope.flat == null && rope.right != null) {
+                    parts.push(rope.right);
+                    parts.push(rope.left);
+                } else {
+                    text.append(flatten(part));
+                }
+            }
+        }
+
+        flat = text.toString();
+        left = right = null;
+        count = 0;
+        return flat;
+    }
+
+    private static int checkedLength(long length) {
+        if (length > Integer.MAX_VALUE)
+            throw new OutOfMemoryError("Required length exceeds implementation limit"); // as String.repeat
+        return (int) length;
+    }
+}
@@ -0,0 +1,73 @@
+package com.spichka.lineblock.lang.interpreter;
+
+import com.spichka.lineblock.lang.parser.ast.BinaryOpNode;
+import com.spichka.lineblock.lang.parser.ast.UnaryOpNode;
+
+// Type feedback for an operator the TypeChecker left untyped. The first run of the node
+// picks the Operation for the operand types it sees, later runs with the same types
+// apply it without the checks of Operations.binary()/unary(). The first time other
+// types appear the node becomes GENERIC for good and always takes the checked path.
+public final class Specialization {
+    private static final Specialization GENERIC = new Specialization(null, null, null);
+
+    private final Operation operation; // null for GENERIC
+    private final Value.Type left;
+    private final Value.Type right; // null for unary operators
+
+    private Specialization(Operation operation, Value.Type left, Value.Type right) {
+        this.operation = operation;
+        this.left = left;
+        this.right = right;
+    }
+
+    static Value binary(BinaryOpNode n, Value left, Value right) {
+        if (left == null || right == null)
+            return Operations.binary(n.operator, left, right); // the value of a PRINT
+
+        Specialization specialization = n.specialization;
+        if (specialization != null) {
+            if (specialization.left == left.getType() && specialization.right == right.getType())
+                return Operations.apply(specialization.operation, left, right, n.operator);
+            n.specialization = GENERIC;
+            return Operations.binary(n.operator, left, right);
+        }
+
+        Operation operation = Operations.binaryFor(n.operator.type, left.getType(), right.getType());
+        if (operation == null) {
+            n.specialization = GENERIC; // fails, or EQ/NE
+            return Operations.binary(n.operator, left, right);
+        }
+
+        n.specialization = new Specialization(operation, left.getType(), right.getType());
+        return Operations.apply(operation, left, right, n.operator);
+    }
+
+    static Value unary(UnaryOpNode n, Value value) {
+        if (value == null)
+            return Operations.unary(n.operator, value);
+
+        Specialization specialization = n.specialization;
+        if (specialization != null) {
+            if (specialization.left == value.getType())
+                return Operations.apply(specialization.operation, value);
+            n.specialization = GENERIC;
+            return Operations.unary(n.operator, value);
+        }
+
+        Operation operation = Operations.unaryFor(n.operator.type, value.getType());
+        if (operation == null) {
+            n.specialization = GENERIC;
+            return Operations.unary(n.operator, value);
+        }
+
+        n.specialization = new Specialization(operation, value.getType(), null);
+        return Operations.apply(operation, value);
+    }
+
+    @Override
+    public String toString() {
+        if (operation == null)
+            return "GENERIC";
+        return operation + "(" + left + (right != null ? ", " + right : "") + ')';
+    }
+}
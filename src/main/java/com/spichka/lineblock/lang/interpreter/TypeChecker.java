@@ -0,0 +1,397 @@
+package com.spichka.lineblock.lang.interpreter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.spichka.lineblock.lang.exceptions.LineBlockException;
+import com.spichka.lineblock.lang.lexer.Token;
+import com.spichka.lineblock.lang.lexer.TokenType;
+import com.spichka.lineblock.lang.parser.ast.ArrayNode;
+import com.spichka.lineblock.lang.parser.ast.AstNode;
+import com.spichka.lineblock.lang.parser.ast.BinaryOpNode;
+import com.spichka.lineblock.lang.parser.ast.BlockNode;
+import com.spichka.lineblock.lang.parser.ast.CacheNode;
+import com.spichka.lineblock.lang.parser.ast.CacheScopeNode;
+import com.spichka.lineblock.lang.parser.ast.CallNode;
+import com.spichka.lineblock.lang.parser.ast.CommandNode;
+import com.spichka.lineblock.lang.parser.ast.ConstantNode;
+import com.spichka.lineblock.lang.parser.ast.FillNode;
+import com.spichka.lineblock.lang.parser.ast.ForNode;
+import com.spichka.lineblock.lang.parser.ast.IfNode;
+import com.spichka.lineblock.lang.parser.ast.LiteralNode;
+import com.spichka.lineblock.lang.parser.ast.PlaceBlockNode;
+import com.spichka.lineblock.lang.parser.ast.ProcedureNode;
+import com.spichka.lineblock.lang.parser.ast.UnaryOpNode;
+import com.spichka.lineblock.lang.parser.ast.VariableNode;
+import com.spichka.lineblock.lang.parser.ast.WhileNode;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+
+// Works out the types of expressions before running, after the Resolver. A variable
+// has a known type when every assign to its slot uses the same INT/FLOAT/STRING/BOOL
+// block, because the assign converts the value to it. A slot only ARRAY_NEW assigns is
+// an ARRAY, and its elements have a known type when all of them use the same one.
+//
+// check() throws the error an operator would throw at runtime when its operand types
+// already make it fail, and gives every other operator on known types an Operation
+// the Interpreter runs without checks (INT multiplications by 2^k become shifts,
+// POW by 0, 1 or 2 skips Math.pow). Anything of unknown type stays checked.
+//
+// A DEFINE becomes a Procedure when it is declared, so calls can come before it;
+// checking it records what its body and result do for Procedure.isPure(). A CALL of
+// one without a result is only allowed as a statement.
+public final class TypeChecker {
+    private static final Value.Type[] TYPES = Value.Type.values();
+
+    private int[] assigned = new int[8]; // per slot, a bit for every type it is assigned as
+    private int[] elements = new int[8]; // per slot, a bit for every element type of its ARRAYs
+    private final Int2ObjectOpenHashMap<Procedure> procedures = new Int2ObjectOpenHashMap<>();
+    private Procedure procedure; // whose DEFINE is being checked, null outside of it
+    private Value.Type type; // of the last checked node, null if not known
+
+    // records the assigns in node; all statements that can run before a checked
+    // one have to be declared first
+    public void declare(AstNode node) {
+        if (node instanceof BinaryOpNode n) {
+            if (isAssign(n.operator.type) && n.left instanceof VariableNode v && v.slot >= 0)
+                declare(v.slot, assignType(n.operator.type), null);
+            declare(n.right);
+        } else if (node instanceof ArrayNode n) {
+            if (n.operator.type == TokenType.ARRAY_NEW && n.array.slot >= 0)
+                declare(n.array.slot, Value.Type.ARRAY, n.element);
+        } else if (node instanceof BlockNode n) {
+            for (AstNode statement : n.statements)
+                declare(statement);
+        } else if (node instanceof IfNode n) {
+            declare(n.thenBranchNode);
+            declare(n.elseBranchNode);
+        } else if (node instanceof WhileNode n) {
+            declare(n.bodyNode);
+        } else if (node instanceof ForNode n) {
+            declare(n.initializerNode);
+            declare(n.incrementNode);
+            declare(n.bodyNode);
+        } else if (node instanceof FillNode n) {
+            declare(n.loop);
+        } else if (node instanceof CacheScopeNode n) {
+            declare(n.node);
+        } else if (node instanceof ProcedureNode n) {
+            procedures.putIfAbsent(n.index, new Procedure(n));
+            for (int i = 0; i < n.parameters.length; i++) {
+                if (n.parameters[i].slot >= 0)
+                    declare(n.parameters[i].slot, n.types[i], null);
+            }
+            declare(n.body);
+        }
+    }
+
+    private void declare(int slot, Value.Type type, Value.Type element) {
+        if (slot >= assigned.length) {
+            int capacity = Math.max(slot + 1, assigned.length * 2);
+            assigned = Arrays.copyOf(assigned, capacity);
+            elements = Arrays.copyOf(elements, capacity);
+        }
+        assigned[slot] |= 1 << type.ordinal();
+        if (element != null)
+            elements[slot] |= 1 << element.ordinal();
+    }
+
+    // the typed copy of statement, statement itself is not changed
+    public AstNode check(AstNode statement) {
+        return checkStatement(statement);
+    }
+
+    // a CALL of a procedure without a result may only stand where its value is not used
+    private AstNode checkStatement(AstNode node) {
+        if (node instanceof CallNode n)
+            return checkCall(n, true);
+        if (node instanceof CacheScopeNode n)
+            return new CacheScopeNode(n.slots, checkStatement(n.node));
+        return checkNode(node);
+    }
+
+    private AstNode checkNode(AstNode node) {
+        if (node instanceof LiteralNode n) {
+            type = n.error == null ? n.value.getType() : null;
+            return n;
+        } else if (node instanceof ConstantNode n) {
+            type = n.constant.type == TokenType.PI || n.constant.type == TokenType.E ? Value.Type.FLOAT : null;
+            return n;
+        } else if (node instanceof VariableNode n) {
+            type = slotType(n.slot);
+            return n;
+        } else if (node instanceof UnaryOpNode n) {
+            return checkUnaryOp(n);
+        } else if (node instanceof BinaryOpNode n) {
+            return checkBinaryOp(n);
+        } else if (node instanceof BlockNode n) {
+            BlockNode block = new BlockNode();
+            for (AstNode statement : n.statements)
+                block.addStatement(checkStatement(statement));
+            type = null;
+            return block;
+        } else if (node instanceof PlaceBlockNode n) {
+            AstNode x = checkExpected(n.x, Value.Type.INT, "PLACEBLOCK coordinates must be INT");
+            AstNode y = checkExpected(n.y, Value.Type.INT, "PLACEBLOCK coordinates must be INT");
+            AstNode z = checkExpected(n.z, Value.Type.INT, "PLACEBLOCK coordinates must be INT");
+            type = null;
+            effect();
+            return new PlaceBlockNode(x, y, z, n.block);
+        } else if (node instanceof IfNode n) {
+            AstNode condition = checkExpected(n.conditionNode, Value.Type.BOOL, "If expects BOOL expression as condition");
+            AstNode thenBranch = checkStatement(n.thenBranchNode);
+            AstNode elseBranch = checkStatement(n.elseBranchNode);
+            type = null;
+            return new IfNode(condition, thenBranch, elseBranch);
+        } else if (node instanceof WhileNode n) {
+            AstNode condition = checkExpected(n.conditionNode, Value.Type.BOOL, "WHILE expects BOOL expression as condition");
+            AstNode body = checkStatement(n.bodyNode);
+            type = null;
+            return new WhileNode(condition, body);
+        } else if (node instanceof ForNode n) {
+            AstNode initializer = checkStatement(n.initializerNode);
+            AstNode condition = checkExpected(n.conditionNode, Value.Type.BOOL, "FOR expects BOOL expression as condition");
+            AstNode increment = checkStatement(n.incrementNode);
+            AstNode body = checkStatement(n.bodyNode);
+            type = null;
+            return new ForNode(initializer, condition, increment, body);
+        } else if (node instanceof ArrayNode n) {
+            return checkArray(n);
+        } else if (node instanceof CacheNode n) {
+            return new CacheNode(n.slot, checkNode(n.expression)); // keeps the type of the expression
+        } else if (node instanceof CacheScopeNode n) {
+            return new CacheScopeNode(n.slots, checkNode(n.node));
+        } else if (node instanceof ProcedureNode n) {
+            return checkProcedure(n);
+        } else if (node instanceof CallNode n) {
+            return checkCall(n, false);
+        } else if (node instanceof FillNode || node instanceof CommandNode n && n.token.type == TokenType.COMMAND) {
+            effect();
+        }
+
+        type = null; // commands, fills (nothing in them can fail) and null
+        return node;
+    }
+
+    private AstNode checkUnaryOp(UnaryOpNode n) {
+        AstNode operand = checkNode(n.operand);
+        Value.Type operandType = type;
+
+        if (n.operator.type == TokenType.PRINT)
+            effect();
+        if (n.operator.type == TokenType.PRINT || operandType == null) {
+            type = null;
+            return new UnaryOpNode(n.operator, operand);
+        }
+
+        // fails with the runtime error if these types always fail
+        type = Operations.unary(n.operator, sample(operandType)).getType();
+        return new UnaryOpNode(n.operator, operand, Operations.unaryFor(n.operator.type, operandType));
+    }
+
+    private AstNode checkBinaryOp(BinaryOpNode n) {
+        TokenType op = n.operator.type;
+
+        if (isAssign(op)) {
+            AstNode right = checkNode(n.right);
+            type = assignType(op);
+            return new BinaryOpNode(n.operator, n.left, right);
+        }
+
+        AstNode left = checkNode(n.left);
+        Value.Type leftType = type;
+        AstNode right = checkNode(n.right);
+        Value.Type rightType = type;
+
+        if (leftType == null || rightType == null) {
+            type = null;
+            return new BinaryOpNode(n.operator, left, right);
+        }
+
+        type = Operations.binary(n.operator, sample(leftType), sample(rightType)).getType();
+        Operation operation = Operations.binaryFor(op, leftType, rightType);
+
+        // cheaper forms with the same result, bit for bit
+        if (operation == Operation.INT_MUL) {
+            int shift = powerOfTwo(right);
+            if (shift >= 0)
+                return new BinaryOpNode(n.operator.withType(TokenType.SHL), left, intLiteral(n.operator, shift), Operation.SHL);
+            shift = powerOfTwo(left);
+            if (shift >= 0) // the literal has nothing to evaluate, the order does not matter
+                return new BinaryOpNode(n.operator.withType(TokenType.SHL), right, intLiteral(n.operator, shift), Operation.SHL);
+        } else if (operation == Operation.POW && right instanceof LiteralNode exponent) {
+            // Math.pow returns exactly 1 for y = 0, x for y = 1 and x * x for y = 2
+            float y = exponent.value.toFloat();
+            if (y == 0)
+                operation = Operation.POW_ZERO;
+            else if (y == 1)
+                operation = Operation.POW_ONE;
+            else if (y == 2)
+                operation = Operation.SQUARE;
+        }
+
+        return new BinaryOpNode(n.operator, left, right, operation);
+    }
+
+    private AstNode checkArray(ArrayNode n) {
+        TokenType op = n.operator.type;
+        effect(); // the elements can change without an assign
+        if (op == TokenType.ARRAY_NEW) {
+            AstNode length = checkOperand(n.index, "ARRAY length must be INT", n);
+            type = Value.Type.ARRAY;
+            return new ArrayNode(n.operator, n.element, n.array, length, null);
+        }
+
+        // the operands are evaluated before the variable is checked
+        AstNode index = op == TokenType.ARRAY_LENGTH ? null : checkOperand(n.index, "ARRAY index must be INT", n);
+        AstNode value = n.value != null ? checkNode(n.value) : null;
+
+        Value.Type arrayType = slotType(n.array.slot);
+        if (arrayType != null && arrayType != Value.Type.ARRAY)
+            throw new LineBlockException(op + " expects an ARRAY variable", n.operator);
+
+        type = switch (op) {
+            case ARRAY_GET -> elementType(n.array.slot);
+            case ARRAY_LENGTH -> Value.Type.INT;
+            default -> null;
+        };
+        return new ArrayNode(n.operator, null, n.array, index, value);
+    }
+
+    private AstNode checkProcedure(ProcedureNode n) {
+        Procedure defined = procedures.get(n.index);
+        if (defined.node != n)
+            throw new LineBlockException("Procedure " + n.index + " is defined more than once", n.define);
+
+        procedure = defined; // DEFINEs are top-level lines, there is none around it
+        AstNode body = checkStatement(n.body);
+        AstNode result = n.result != null ? checkNode(n.result) : null;
+        procedure = null;
+
+        defined.body = body instanceof BlockNode block ? block.statements : List.of(body);
+        defined.result = result;
+        type = null;
+        return new ProcedureNode(n.define, n.index, n.parameters, n.types, body, result);
+    }
+
+    private AstNode checkCall(CallNode n, boolean statement) {
+        List<AstNode> arguments = new ArrayList<>(n.arguments.size());
+        for (AstNode argument : n.arguments)
+            arguments.add(checkNode(argument));
+
+        Procedure called = procedures.get(n.index);
+        if (called == null)
+            throw new LineBlockException("Procedure " + n.index + " is not defined", n.call);
+        if (arguments.size() != called.parameters.length)
+            throw new LineBlockException("Procedure " + n.index + " expects " + called.parameters.length + " arguments", n.call);
+        if (!statement && called.node.result == null)
+            throw new LineBlockException("Procedure " + n.index + " has no result", n.call);
+
+        if (procedure != null)
+            procedure.callees.add(called);
+        type = null; // whatever the result is
+        return new CallNode(n.call, n.index, arguments, called);
+    }
+
+    // what is being checked has an effect, the procedure around it is not pure
+    private void effect() {
+        if (procedure != null)
+            procedure.effects = true;
+    }
+
+    // an INT operand of an ARRAY block
+    private AstNode checkOperand(AstNode node, String message, ArrayNode n) {
+        AstNode checked = checkNode(node);
+        if (type != null && type != Value.Type.INT)
+            throw new LineBlockException(message, n.operator);
+        return checked;
+    }
+
+    // k if node is the INT literal 2^k, otherwise -1
+    private static int powerOfTwo(AstNode node) {
+        if (node instanceof LiteralNode n && n.error == null && n.value.getType() == Value.Type.INT) {
+            int value = n.value.asInt();
+            if (value != 0 && (value & (value - 1)) == 0)
+                return Integer.numberOfTrailingZeros(value); // 2^31 wraps to MIN_VALUE, so does x << 31
+        }
+        return -1;
+    }
+
+    private static LiteralNode intLiteral(Token at, int value) {
+        return new LiteralNode(at.withType(TokenType.INT), Value.ofInt(value));
+    }
+
+    private AstNode checkExpected(AstNode node, Value.Type expected, String message) {
+        AstNode checked = checkNode(node);
+        if (type != null && type != expected)
+            throw new LineBlockException(message, tokenOf(node));
+        return checked;
+    }
+
+    // the block an error about the value of node points at, null if it has none
+    private static Token tokenOf(AstNode node) {
+        if (node instanceof BinaryOpNode n)
+            return n.operator;
+        if (node instanceof UnaryOpNode n)
+            return n.operator;
+        if (node instanceof LiteralNode n)
+            return n.type;
+        if (node instanceof VariableNode n)
+            return n.token;
+        if (node instanceof ConstantNode n)
+            return n.constant;
+        if (node instanceof ArrayNode n)
+            return n.operator;
+        if (node instanceof CallNode n)
+            return n.call;
+        if (node instanceof CacheNode n)
+            return tokenOf(n.expression);
+        if (node instanceof CacheScopeNode n)
+            return tokenOf(n.node);
+        return null;
+    }
+
+    // the type every value of the slot has, null if not known
+    Value.Type slotType(int slot) {
+        if (slot < 0 || slot >= assigned.length)
+            return null;
+
+        int bits = assigned[slot];
+        return Integer.bitCount(bits) == 1 ? TYPES[Integer.numberOfTrailingZeros(bits)] : null;
+    }
+
+    // the type of the elements of the ARRAYs in the slot, null if not known
+    Value.Type elementType(int slot) {
+        if (slotType(slot) != Value.Type.ARRAY)
+            return null;
+
+        int bits = elements[slot];
+        return Integer.bitCount(bits) == 1 ? TYPES[Integer.numberOfTrailingZeros(bits)] : null;
+    }
+
+    // a value of the type that no operator fails on for its value alone
+    // (no zero divisor, a valid repeat count)
+    private static Value sample(Value.Type type) {
+        return switch (type) {
+            case INT -> Value.ofInt(1);
+            case FLOAT -> Value.ofFloat(1f);
+            case STRING -> Value.ofString("");
+            case BOOL -> Value.ofBool(false);
+            case ARRAY -> Operations.newArray(Value.Type.INT, 0, null);
+        };
+    }
+
+    private static boolean isAssign(TokenType op) {
+        return op == TokenType.INT || op == TokenType.FLOAT || op == TokenType.BOOL || op == TokenType.STRING;
+    }
+
+    private static Value.Type assignType(TokenType op) {
+        return switch (op) {
+            case INT -> Value.Type.INT;
+            case FLOAT -> Value.Type.FLOAT;
+            case BOOL -> Value.Type.BOOL;
+            default -> Value.Type.STRING;
+        };
+    }
+}
@@ -1,36 +1,155 @@
 package com.spichka.lineblock.lang.interpreter;
 
+import java.util.BitSet;
+
 import com.spichka.lineblock.lang.exceptions.LineBlockException;
+import com.spichka.lineblock.lang.lexer.Token;
 
+// A value of a run. INT, FLOAT and BOOL keep their bits in an int instead of a boxed
+// object, and the Values of true, false and small INTs exist once, so arithmetic on
+// them allocates at most the one Value of its result. That one is not free: every
+// FLOAT result and every INT outside -128..1023 that is stored, printed or passed on
+// is a new Value, so a loop over them allocates in every iteration. Only the code of
+// the JitCompiler keeps them unboxed, on the JVM stack and in JVM locals.
+//
+// A STRING built by PLUS or MUL keeps a Rope, its text is built the first time it is
+// read. An ARRAY is its Elements, shared by every Value of it.
 public class Value {
-    public enum Type { INT, FLOAT, STRING, BOOL }
+    public enum Type { INT, FLOAT, STRING, BOOL, ARRAY }
+
+    private static final int MIN_CACHED = -128;
+    private static final int MAX_CACHED = 1023;
+    private static final Value[] SMALL_INTS = new Value[MAX_CACHED - MIN_CACHED + 1];
+    private static final Value TRUE = new Value(Type.BOOL, 1, null);
+    private static final Value FALSE = new Value(Type.BOOL, 0, null);
+
+    static {
+        for (int i = 0; i < SMALL_INTS.length; i++)
+            SMALL_INTS[i] = new Value(Type.INT, MIN_CACHED + i, null);
+    }
 
     private final Type type;
-    private final Object value;
+    private final int bits; // the INT, the raw bits of the FLOAT, 1 for true
+    private Object object; // a String, or a Rope until it is read, for STRING; the Elements of an ARRAY
 
-    public Value(Type type, Object value) {
+    private Value(Type type, int bits, Object object) {
         this.type = type;
-        this.value = value;
+        this.bits = bits;
+        this.object = object;
+    }
+
+    public static Value ofInt(int value) {
+        if (value >= MIN_CACHED && value <= MAX_CACHED)
+            return SMALL_INTS[value - MIN_CACHED];
+        return new Value(Type.INT, value, null);
+    }
+
+    public static Value ofFloat(float value) {
+        return new Value(Type.FLOAT, Float.floatToRawIntBits(value), null);
+    }
+
+    public static Value ofBool(boolean value) {
+        return value ? TRUE : FALSE;
+    }
+
+    public static Value ofString(String value) {
+        return new Value(Type.STRING, 0, value);
+    }
+
+    // left followed by right, either may be a number instead of a STRING
+    public static Value concat(Value left, Value right) {
+        return new Value(Type.STRING, 0, Rope.concat(left.text(), right.text()));
+    }
+
+    // a STRING count times
+    public static Value repeat(Value string, int count) {
+        return new Value(Type.STRING, 0, Rope.repeat(string.object, count));
+    }
+
+    static Value ofArray(Elements elements) {
+        return new Value(Type.ARRAY, 0, elements);
+    }
+
+    // value of a literal, bit 0 is its first bit block
+    public static Value decode(Token type, BitSet bits, int bitCount) {
+        long[] words = bits.toLongArray();
+        long longValue = words.length > 0 ? words[0] : 0;
+
+        switch (type.type) {
+            case INT:
+                return ofInt((int) longValue);
+            case FLOAT:
+                if (bitCount != 32)
+                    throw new LineBlockException("FLOAT literal must have exactly 32 bits", type);
+
+                int intBits = (int) longValue;
+                float floatValue = Float.intBitsToFloat(intBits);
+                return ofFloat(floatValue);
+            case BOOL:
+                return ofBool(!bits.isEmpty());
+            case STRING:
+                if (bitCount % 8 != 0)
+                    throw new LineBlockException("STRING literal bit length must be multiple of 8", type);
+
+                // the last 8 bit blocks are the first character
+                StringBuilder sb = new StringBuilder();
+                for (int i = bitCount - 8; i >= 0; i -= 8) {
+                    int byteVal = 0;
+                    for (int j = 0; j < 8; j++) {
+                        if (bits.get(i + j))
+                            byteVal |= 1 << j;
+                    }
+                    sb.append((char) byteVal);
+                }
+                return ofString(sb.toString());
+            default:
+                throw new LineBlockException("Unknown literal type: " + type.type, type);
+        }
     }
 
     public Type getType() {
         return type;
     }
 
+    // boxed, for comparing literals; runs use the typed getters
     public Object getValue() {
-        return value;
+        return switch (type) {
+            case INT -> asInt();
+            case FLOAT -> asFloat();
+            case BOOL -> asBool();
+            case STRING -> asString();
+            case ARRAY -> object;
+        };
     }
 
-    public int asInt() { return (int) value; }
-    public float asFloat() { return (float) value; }
-    public String asString() { return (String) value; }
-    public boolean asBool() { return (boolean) value; }
+    public int asInt() { return bits; }
+    public float asFloat() { return Float.intBitsToFloat(bits); }
+    public boolean asBool() { return bits != 0; }
+
+    public String asString() {
+        if (object instanceof Rope rope)
+            object = Rope.flatten(rope);
+        return (String) object;
+    }
+
+    Elements asArray() {
+        return (Elements) object;
+    }
+
+    // of a STRING, without building its text
+    public int length() {
+        return Rope.length(object);
+    }
+
+    private Object text() {
+        return type == Type.STRING ? object : toString();
+    }
 
     public float toFloat() {
         if (type == Type.FLOAT)
-            return (float) value;
+            return asFloat();
         else if (type == Type.INT)
-            return (float) (int) value;
+            return (float) bits;
         
         throw new LineBlockException("Cannot convert type to float", null);
     }
@@ -42,14 +161,20 @@ public class Value {
     public boolean equalsValue(Value other) {
         if (this.type != other.type) return false;
         return switch (type) {
-            case INT -> ((int) value) == ((int) other.value);
-            case FLOAT -> Math.abs(((float) value) - ((float) other.value)) < 1e-6;
-            case BOOL -> ((boolean) value) == ((boolean) other.value);
-            case STRING -> ((String) value).equals((String) other.value);
+            case INT, BOOL -> bits == other.bits;
+            case FLOAT -> Math.abs(asFloat() - other.asFloat()) < 1e-6;
+            case STRING -> length() == other.length() && asString().equals(other.asString());
+            case ARRAY -> object == other.object; // the same array
         };
     }
 
     public String toString() {
-        return String.valueOf(value);
+        return switch (type) {
+            case INT -> Integer.toString(bits);
+            case FLOAT -> Float.toString(asFloat());
+            case BOOL -> Boolean.toString(asBool());
+            case STRING -> asString();
+            case ARRAY -> object.toString();
+        };
     }
 }
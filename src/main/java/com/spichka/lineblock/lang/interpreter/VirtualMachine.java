@@ -0,0 +1,281 @@
+package com.spichka.lineblock.lang.interpreter;
+
+import static com.spichka.lineblock.lang.interpreter.Bytecode.*;
+
+import java.util.Arrays;
+
+import com.spichka.lineblock.lang.exceptions.LineBlockException;
+import com.spichka.lineblock.lang.lexer.Token;
+import com.spichka.lineblock.lang.parser.ast.AstNode;
+import com.spichka.lineblock.lang.parser.ast.BinaryOpNode;
+import com.spichka.lineblock.lang.parser.ast.CallNode;
+import com.spichka.lineblock.lang.parser.ast.FillNode;
+import com.spichka.lineblock.lang.parser.ast.UnaryOpNode;
+
+import net.minecraft.block.Block;
+import net.minecraft.world.World;
+
+// Runs top-level statements compiled by the BytecodeCompiler in one dispatch loop,
+// with the same results as the Interpreter. Control flow inside a statement is jumps;
+// only the flag a statement ends with is kept, for the next one. Statements of a hot
+// program that the JitCompiler compiled run as JVM code instead, through runtime.
+public final class VirtualMachine implements Executor {
+    private static final Value.Type[] TYPES = Value.Type.values();
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    private final World world;
+    private Frame frame = new Frame(); // the one of the running call while there is one
+    private final CallStack calls = new CallStack();
+    private final JitCode jitCode; // null if the program is not hot
+    private final ProgramCode code;
+    private Value[] cache = new Value[0]; // values of CacheNodes, see Hoister
+    private int flag = NO_FLAG; // left set by the last statement
+    private Value result; // left by RESULT
+
+    private final JitRuntime runtime = new JitRuntime() {
+        @Override
+        public Value get(int slot, int index) {
+            Value value = frame.get(slot);
+            if (value == null)
+                throw JitRuntime.notFound(index);
+            return value;
+        }
+
+        @Override
+        public void assign(int slot, Value value, int depth) {
+            frame.assign(slot, value, depth);
+        }
+
+        @Override
+        public void exit(int depth) {
+            frame.exit(depth);
+        }
+
+        @Override
+        public void place(int x, int y, int z, Block block) {
+            Interpreter.placeBlock(world, x, y, z, block);
+        }
+
+        @Override
+        public void place(Value x, Value y, Value z, Block block) {
+            Interpreter.placeBlock(world, x, y, z, block);
+        }
+
+        @Override
+        public void fill(FillNode fill, int depth) {
+            Filler.run(fill, frame, world, depth);
+        }
+
+        @Override
+        public void command(Token token) {
+            Interpreter.runCommandBlock(world, token);
+        }
+
+        @Override
+        public void print(Value value) {
+            Interpreter.print(world, value);
+        }
+
+        @Override
+        public Value call(CallNode call, Value[] arguments) {
+            return VirtualMachine.this.call(call, arguments);
+        }
+    };
+
+    public VirtualMachine(World world) {
+        this(world, null, new ProgramCode());
+    }
+
+    // code is the bytecode of the program the statements come from
+    public VirtualMachine(World world, JitCode jitCode, ProgramCode code) {
+        this.world = world;
+        this.jitCode = jitCode;
+        this.code = code;
+    }
+
+    @Override
+    public boolean execute(AstNode statement) {
+        if (flag != NO_FLAG) {
+            if (flag == CONTINUE)
+                flag = NO_FLAG;
+            return false;
+        }
+
+        CompiledStatement compiled = jitCode != null ? jitCode.get(statement) : null;
+        try {
+            flag = compiled != null ? compiled.run(runtime) : run(code.bytecode(statement));
+        } catch (CallStack.Stopped e) {
+            flag = STOP;
+        }
+        return true;
+    }
+
+    // as the Interpreter calls: the lines and result run in a frame of their own, a
+    // line ending with a flag ends the body, which only matters if it is STOP
+    private Value call(CallNode n, Value[] arguments) {
+        Procedure procedure = Procedure.of(n);
+        procedure.arguments(arguments);
+
+        Value value = procedure.remembered(arguments);
+        if (value != null)
+            return value;
+
+        if (procedure.bytecode == null) {
+            procedure.bytecode = new Bytecode[procedure.body.size()];
+            for (int i = 0; i < procedure.bytecode.length; i++)
+                procedure.bytecode[i] = BytecodeCompiler.compile(procedure.body.get(i));
+            if (procedure.result != null)
+                procedure.resultBytecode = BytecodeCompiler.compileResult(procedure.result);
+        }
+
+        Frame caller = frame;
+        frame = calls.push(n.call);
+        try {
+            procedure.enter(frame, arguments, 1);
+            for (Bytecode line : procedure.bytecode) {
+                int ended = run(line);
+                if (ended == STOP)
+                    throw CallStack.STOPPED;
+                if (ended != NO_FLAG)
+                    break;
+            }
+            if (procedure.resultBytecode != null) {
+                run(procedure.resultBytecode);
+                value = result;
+            }
+        } finally {
+            calls.pop();
+            frame = caller;
+        }
+
+        procedure.remember(arguments, value);
+        return value;
+    }
+
+    private int run(Bytecode bytecode) {
+        int[] code = bytecode.code;
+        Object[] pool = bytecode.pool;
+        Value[] r = bytecode.registers();
+        int pc = 0;
+
+        while (true) {
+            switch (code[pc]) {
+                case LOAD -> {
+                    Value value = frame.get(code[pc + 2]);
+                    if (value == null)
+                        throw JitRuntime.notFound(code[pc + 3]);
+                    r[code[pc + 1]] = value;
+                    pc += 4;
+                }
+                case STORE -> {
+                    Value value = Operations.cast(r[code[pc + 2]], TYPES[code[pc + 4]], (Token) pool[code[pc + 5]]);
+                    frame.assign(code[pc + 1], value, code[pc + 3]);
+                    pc += 6;
+                }
+                case BINARY -> {
+                    r[code[pc + 1]] = Specialization.binary((BinaryOpNode) pool[code[pc + 4]], r[code[pc + 2]], r[code[pc + 3]]);
+                    pc += 5;
+                }
+                case APPLY_BINARY -> {
+                    r[code[pc + 1]] = Operations.apply(OPERATIONS[code[pc + 4]], r[code[pc + 2]], r[code[pc + 3]], (Token) pool[code[pc + 5]]);
+                    pc += 6;
+                }
+                case UNARY -> {
+                    r[code[pc + 1]] = Specialization.unary((UnaryOpNode) pool[code[pc + 3]], r[code[pc + 2]]);
+                    pc += 4;
+                }
+                case APPLY_UNARY -> {
+                    r[code[pc + 1]] = Operations.apply(OPERATIONS[code[pc + 3]], r[code[pc + 2]]);
+                    pc += 4;
+                }
+                case PRINT -> {
+                    Interpreter.print(world, r[code[pc + 2]]);
+                    r[code[pc + 1]] = null;
+                    pc += 3;
+                }
+                case PLACE -> {
+                    Interpreter.placeBlock(world, r[code[pc + 1]], r[code[pc + 2]], r[code[pc + 3]], (Block) pool[code[pc + 4]]);
+                    pc += 5;
+                }
+                case COMMAND -> {
+                    Interpreter.runCommandBlock(world, (Token) pool[code[pc + 1]]);
+                    pc += 2;
+                }
+                case TEST -> {
+                    Value value = r[code[pc + 1]];
+                    if (value.getType() != Value.Type.BOOL)
+                        throw new LineBlockException((String) pool[code[pc + 2]]);
+                    pc = value.asBool() ? pc + 4 : code[pc + 3];
+                }
+                case JUMP -> pc = code[pc + 1];
+                case EXIT -> {
+                    frame.exit(code[pc + 1]);
+                    pc += 2;
+                }
+                case CACHE_CLEAR -> {
+                    int size = code[pc + 2];
+                    if (size > cache.length)
+                        cache = Arrays.copyOf(cache, Math.max(size, cache.length * 2));
+
+                    for (int slot : (int[]) pool[code[pc + 1]])
+                        cache[slot] = null;
+                    pc += 3;
+                }
+                case CACHE_GET -> {
+                    Value value = cache[code[pc + 2]];
+                    if (value != null) {
+                        r[code[pc + 1]] = value;
+                        pc = code[pc + 3];
+                    } else {
+                        pc += 4;
+                    }
+                }
+                case CACHE_PUT -> {
+                    cache[code[pc + 1]] = r[code[pc + 2]];
+                    pc += 3;
+                }
+                case MOVE -> {
+                    r[code[pc + 1]] = r[code[pc + 2]];
+                    pc += 3;
+                }
+                case FILL -> {
+                    Filler.run((FillNode) pool[code[pc + 1]], frame, world, code[pc + 2]);
+                    pc += 3;
+                }
+                case ARRAY_NEW -> {
+                    Value array = Operations.newArray(TYPES[code[pc + 4]], r[code[pc + 2]], (Token) pool[code[pc + 5]]);
+                    frame.assign(code[pc + 1], array, code[pc + 3]);
+                    pc += 6;
+                }
+                case ARRAY_GET -> {
+                    r[code[pc + 1]] = Operations.arrayGet(r[code[pc + 2]], r[code[pc + 3]], (Token) pool[code[pc + 4]]);
+                    pc += 5;
+                }
+                case ARRAY_SET -> {
+                    Operations.arraySet(r[code[pc + 1]], r[code[pc + 2]], r[code[pc + 3]], (Token) pool[code[pc + 4]]);
+                    pc += 5;
+                }
+                case ARRAY_LENGTH -> {
+                    r[code[pc + 1]] = Value.ofInt(Operations.arrayLength(r[code[pc + 2]], (Token) pool[code[pc + 3]]));
+                    pc += 4;
+                }
+                case CALL -> {
+                    Value[] arguments = new Value[code[pc + 3]];
+                    for (int i = 0; i < arguments.length; i++)
+                        arguments[i] = r[code[pc + 4 + i]];
+                    r[code[pc + 1]] = call((CallNode) pool[code[pc + 2]], arguments);
+                    pc += 4 + arguments.length;
+                }
+                case RESULT -> {
+                    result = r[code[pc + 1]];
+                    return NO_FLAG;
+                }
+                case FAIL -> throw (RuntimeException) pool[code[pc + 1]];
+                case RETURN -> {
+                    return code[pc + 1];
+                }
+                default -> throw new IllegalStateException("Unknown opcode " + code[pc] + " at " + pc);
+            }
+        }
+    }
+}
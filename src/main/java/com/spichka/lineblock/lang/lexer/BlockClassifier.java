@@ -0,0 +1,87 @@
+package com.spichka.lineblock.lang.lexer;
+
+import java.util.Map;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.state.property.Properties;
+import net.minecraft.util.math.Direction;
+
+// Maps raw block-state ids to lexer codes through a dense table, so classifying
+// a block is one array read instead of a getBlock() + BLOCK_TO_TYPE lookup.
+//
+// codes: NONE, a token type (ordinal + 1), an observer (OBSERVER + facing id)
+// or UNKNOWN for blocks a snapshot did not capture
+public final class BlockClassifier {
+    public static final int NONE = 0;
+    public static final int UNKNOWN = -1;
+
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final Direction[] DIRECTIONS = Direction.values();
+    private static final int OBSERVER = TYPES.length + 1;
+
+    private static volatile byte[] table = new byte[0];
+
+    private BlockClassifier() {}
+
+    public static int classify(BlockState state) {
+        return classify(Block.getRawIdFromState(state));
+    }
+
+    public static int classify(int rawId) {
+        byte[] codes = table;
+        if (codes.length != Block.STATE_IDS.size())
+            codes = rebuild();
+
+        return rawId >= 0 && rawId < codes.length ? codes[rawId] : NONE;
+    }
+
+    public static boolean isToken(int code) {
+        return code > NONE && code < OBSERVER;
+    }
+
+    public static boolean isObserver(int code) {
+        return code >= OBSERVER;
+    }
+
+    public static TokenType tokenType(int code) {
+        return TYPES[code - 1];
+    }
+
+    public static Direction observerFacing(int code) {
+        return DIRECTIONS[code - OBSERVER];
+    }
+
+    // true for every block the lexer cares about, used to skip whole palettes
+    public static boolean isLineBlock(BlockState state) {
+        return classify(state) != NONE;
+    }
+
+    // the state id list grows while blocks are registered, so the table is
+    // (re)built lazily whenever its size no longer matches
+    private static synchronized byte[] rebuild() {
+        byte[] codes = table;
+        if (codes.length == Block.STATE_IDS.size())
+            return codes;
+
+        codes = new byte[Block.STATE_IDS.size()];
+
+        for (Map.Entry<Block, TokenType> entry : TokenType.BLOCK_TO_TYPE.entrySet()) {
+            for (BlockState state : entry.getKey().getStateManager().getStates())
+                put(codes, state, entry.getValue().ordinal() + 1);
+        }
+
+        for (BlockState state : Blocks.OBSERVER.getStateManager().getStates())
+            put(codes, state, OBSERVER + state.get(Properties.FACING).ordinal());
+
+        table = codes;
+        return codes;
+    }
+
+    private static void put(byte[] codes, BlockState state, int code) {
+        int rawId = Block.getRawIdFromState(state);
+        if (rawId >= 0 && rawId < codes.length)
+            codes[rawId] = (byte) code;
+    }
+}
@@ -0,0 +1,44 @@
+package com.spichka.lineblock.lang.lexer;
+
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.WorldChunk;
+
+// Where the lexer reads blocks from: the live world or a ChunkSnapshot
+public interface BlockSource {
+    // BlockClassifier code of the block at the packed position
+    int classify(long pos);
+
+    // the same code without noting the read anywhere, for reads the Lexer may never
+    // make (see LineSegments); must be safe to call from several threads
+    default int peek(long pos) {
+        return classify(pos);
+    }
+
+    // blocks in unloaded chunks read as UNKNOWN instead of loading the chunk
+    static BlockSource of(World world) {
+        BlockPos.Mutable mutable = new BlockPos.Mutable();
+
+        return new BlockSource() {
+            private long chunkPos = Long.MAX_VALUE;
+            private WorldChunk chunk;
+
+            @Override
+            public int classify(long pos) {
+                int chunkX = ChunkSectionPos.getSectionCoord(BlockPos.unpackLongX(pos));
+                int chunkZ = ChunkSectionPos.getSectionCoord(BlockPos.unpackLongZ(pos));
+
+                if (ChunkPos.toLong(chunkX, chunkZ) != chunkPos) {
+                    chunkPos = ChunkPos.toLong(chunkX, chunkZ);
+                    chunk = world.getChunkManager().getWorldChunk(chunkX, chunkZ);
+                }
+
+                if (chunk == null)
+                    return BlockClassifier.UNKNOWN;
+                return BlockClassifier.classify(chunk.getBlockState(mutable.set(pos)));
+            }
+        };
+    }
+}
@@ -0,0 +1,137 @@
+package com.spichka.lineblock.lang.lexer;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.block.BlockState;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.PalettedContainer;
+import net.minecraft.world.chunk.WorldChunk;
+
+// Immutable copy of the chunk sections inside a box. Reading it never touches the
+// live World, so a lexer over a snapshot can run on any thread.
+public final class ChunkSnapshot implements BlockSource {
+    private final int minX, minY, minZ; // section coords
+    private final int sizeX, sizeY, sizeZ;
+    private final int bottomY, topY; // world height limits (block coords, top exclusive)
+    private final PalettedContainer<BlockState>[] sections;
+    private final boolean[] missing; // chunk columns that were not loaded
+    private final boolean[] missingRead; // ... and were read anyway, set from any thread
+
+    @SuppressWarnings("unchecked")
+    private ChunkSnapshot(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, int bottomY, int topY) {
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+        this.sizeX = Math.max(0, maxX - minX + 1);
+        this.sizeY = Math.max(0, maxY - minY + 1);
+        this.sizeZ = Math.max(0, maxZ - minZ + 1);
+        this.bottomY = bottomY;
+        this.topY = topY;
+        this.sections = new PalettedContainer[sizeX * sizeY * sizeZ];
+        this.missing = new boolean[sizeX * sizeZ];
+        this.missingRead = new boolean[sizeX * sizeZ];
+    }
+
+    // must be called on the server thread, copies every section between min and max;
+    // unloaded chunks are not loaded, reading them gives UNKNOWN (see getMissingChunks)
+    public static ChunkSnapshot capture(World world, BlockPos min, BlockPos max) {
+        int bottomSection = world.getBottomSectionCoord();
+        int topSection = world.getTopSectionCoord() - 1;
+
+        ChunkSnapshot snapshot = new ChunkSnapshot(
+            ChunkSectionPos.getSectionCoord(min.getX()),
+            Math.max(bottomSection, ChunkSectionPos.getSectionCoord(min.getY())),
+            ChunkSectionPos.getSectionCoord(min.getZ()),
+            ChunkSectionPos.getSectionCoord(max.getX()),
+            Math.min(topSection, ChunkSectionPos.getSectionCoord(max.getY())),
+            ChunkSectionPos.getSectionCoord(max.getZ()),
+            world.getBottomY(),
+            world.getBottomY() + world.getHeight()
+        );
+
+        for (int x = 0; x < snapshot.sizeX; x++) {
+            for (int z = 0; z < snapshot.sizeZ; z++) {
+                WorldChunk chunk = world.getChunkManager().getWorldChunk(snapshot.minX + x, snapshot.minZ + z);
+                if (chunk == null) {
+                    snapshot.missing[x * snapshot.sizeZ + z] = true;
+                    continue;
+                }
+
+                for (int y = 0; y < snapshot.sizeY; y++) {
+                    ChunkSection section = chunk.getSection(world.sectionCoordToIndex(snapshot.minY + y));
+
+                    // sections without a single LineBlock block read as air
+                    if (section.isEmpty() || !section.hasAny(BlockClassifier::isLineBlock))
+                        continue;
+
+                    snapshot.sections[snapshot.index(x, y, z)] = section.getBlockStateContainer().copy();
+                }
+            }
+        }
+
+        return snapshot;
+    }
+
+    @Override
+    public int classify(long pos) {
+        return read(pos, true);
+    }
+
+    // an unloaded chunk read this way does not count as missing
+    @Override
+    public int peek(long pos) {
+        return read(pos, false);
+    }
+
+    private int read(long pos, boolean counted) {
+        int y = BlockPos.unpackLongY(pos);
+        if (y < bottomY || y >= topY)
+            return BlockClassifier.NONE;
+
+        int x = BlockPos.unpackLongX(pos);
+        int z = BlockPos.unpackLongZ(pos);
+
+        int sectionX = ChunkSectionPos.getSectionCoord(x) - minX;
+        int sectionY = ChunkSectionPos.getSectionCoord(y) - minY;
+        int sectionZ = ChunkSectionPos.getSectionCoord(z) - minZ;
+
+        if (sectionX < 0 || sectionX >= sizeX || sectionY < 0 || sectionY >= sizeY || sectionZ < 0 || sectionZ >= sizeZ)
+            return BlockClassifier.UNKNOWN;
+
+        if (missing[sectionX * sizeZ + sectionZ]) {
+            if (counted)
+                missingRead[sectionX * sizeZ + sectionZ] = true;
+            return BlockClassifier.UNKNOWN;
+        }
+
+        PalettedContainer<BlockState> section = sections[index(sectionX, sectionY, sectionZ)];
+        if (section == null)
+            return BlockClassifier.NONE;
+
+        return BlockClassifier.classify(section.get(
+            ChunkSectionPos.getLocalCoord(x),
+            ChunkSectionPos.getLocalCoord(y),
+            ChunkSectionPos.getLocalCoord(z)
+        ));
+    }
+
+    // packed ChunkPos of every unloaded chunk a lexer tried to read
+    public LongSet getMissingChunks() {
+        LongSet chunks = new LongOpenHashSet();
+        for (int x = 0; x < sizeX; x++) {
+            for (int z = 0; z < sizeZ; z++) {
+                if (missingRead[x * sizeZ + z])
+                    chunks.add(ChunkPos.toLong(minX + x, minZ + z));
+            }
+        }
+        return chunks;
+    }
+
+    private int index(int x, int y, int z) {
+        return (x * sizeZ + z) * sizeY + y;
+    }
+}
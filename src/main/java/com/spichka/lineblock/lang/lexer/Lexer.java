@@ -1,81 +1,287 @@
 package com.spichka.lineblock.lang.lexer;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumSet;
 import java.util.List;
 
-import net.minecraft.state.property.Properties;
-import net.minecraft.block.BlockState;
-import net.minecraft.block.Blocks;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.Direction;
 import net.minecraft.world.World;
 
+// Walks the block line iteratively: side branches are pushed on a worklist
+// instead of recursing into a new Lexer, and every block is tokenized at most once.
 public class Lexer {
-    private final World world;
-    private BlockPos currentPos;
-    private Direction direction;
+    // tokens that can sprout side branches
+    static final EnumSet<TokenType> BRANCHING = EnumSet.of(
+        TokenType.PRINT, TokenType.PLACEBLOCK,
+        TokenType.INT, TokenType.FLOAT, TokenType.STRING, TokenType.BOOL, TokenType.USE_VAR,
+        TokenType.IF, TokenType.WHILE, TokenType.FOR,
+        TokenType.ARRAY_GET, TokenType.ARRAY_SET, TokenType.ARRAY_LENGTH,
+        TokenType.DEFINE, TokenType.CALL
+    );
+    private static final Direction[] DIRECTIONS = Direction.values();
+    static final int NO_PROBE = DIRECTIONS.length;
+
+    private final BlockSource source;
+    private final LineSegments segments; // lines read ahead on other threads, or null
+    private final Deque<Line> lines = new ArrayDeque<>();
+    private final LongOpenHashSet visited = new LongOpenHashSet(); // BlockPos.asLong() of tokens and observers
+
+    private BlockPos unknownPos; // first block the source could not read (snapshot too small)
+
+    // only when recording a SourceMap
+    private final SourceMap map;
+    private final SourceMap.Piece relexStart; // first re-lexed piece, null when lexing everything
+    private final List<SourceMap.Piece> pieces = new ArrayList<>();
+    private final Line root;
+    private int tokenCount;
+    private int maxTouched = -1; // highest old piece whose block was visited again
+    private SourceMap.Piece resync;
+
+    // last token produced by nextToken()
+    private TokenType tokenType;
+    private long tokenPos;
 
     public Lexer(World world, BlockPos startPos, Direction direction) {
-        this.world = world;
-        this.currentPos = startPos;
-        this.direction = direction;
-    }
-
-    public List<Token> tokenize() {
-        List<Token> tokens = new ArrayList<>();
-
-        Token token;
-        while ((token = nextToken()) != null) {
-            tokens.add(token);
-
-            if (
-                token.type == TokenType.PRINT ||
-                token.type == TokenType.PLACEBLOCK ||
-
-                token.type == TokenType.INT ||
-                token.type == TokenType.FLOAT ||
-                token.type == TokenType.STRING ||
-                token.type == TokenType.BOOL ||
-                token.type == TokenType.USE_VAR ||
-
-                token.type == TokenType.IF ||
-                token.type == TokenType.WHILE ||
-                token.type == TokenType.FOR
-            ) {
-                for (Direction dir : Direction.values()) {
-                    if (dir == direction || dir == direction.getOpposite())
-                        continue;
-
-                    BlockPos neighborPos = token.pos.offset(dir);
-                    BlockState state = world.getBlockState(neighborPos);
-                    TokenType neighborTokenType = TokenType.fromBlock(state.getBlock());
-
-                    if (neighborTokenType != null || state.getBlock() == Blocks.OBSERVER) {
-                        Lexer lexer = new Lexer(world, neighborPos, dir);
-                        tokens.addAll(lexer.tokenize());
-                    }
+        this(BlockSource.of(world), startPos, direction);
+    }
+
+    // with a ChunkSnapshot as source the lexer never touches the live world
+    public Lexer(BlockSource source, BlockPos startPos, Direction direction) {
+        this(source, startPos, direction, null);
+    }
+
+    // also records into map what every piece of the program read
+    public Lexer(BlockSource source, BlockPos startPos, Direction direction, SourceMap map) {
+        this(source, startPos, direction, map, null);
+    }
+
+    // takes the blocks from segments walked from the same start (or reads them if null),
+    // the tokens, map and unknown position come out as if the lexer had read source itself
+    public Lexer(BlockSource source, BlockPos startPos, Direction direction, SourceMap map, LineSegments segments) {
+        this.source = source;
+        this.segments = segments;
+        this.map = map;
+        this.relexStart = null;
+        this.root = new Line(startPos.asLong(), direction, map == null ? 0 : map.newLine(), null);
+        this.lines.push(root);
+    }
+
+    // re-lexes from the state start began in, blocks of pieces before start count as visited
+    Lexer(BlockSource source, SourceMap map, SourceMap.Piece start) {
+        this.source = source;
+        this.segments = null;
+        this.map = map;
+        this.relexStart = start;
+        this.tokenCount = start.from;
+        this.root = new Line(start.pos, start.direction, start.line, start.parent);
+        this.root.branchPos = start.branchPos;
+        this.root.branchDir = start.branchDir;
+        this.lines.push(root);
+    }
+
+    public TokenBuffer tokenize() {
+        TokenBuffer tokens = new TokenBuffer();
+
+        while (nextToken())
+            tokens.add(tokenType, tokenPos);
+
+        if (map != null && relexStart == null)
+            map.addAll(pieces);
+        return tokens;
+    }
+
+    // null if every block was readable, otherwise a snapshot has to cover this position
+    public BlockPos getUnknownPos() {
+        return unknownPos;
+    }
+
+    List<SourceMap.Piece> getPieces() {
+        return pieces;
+    }
+
+    SourceMap.Piece getResync() {
+        return resync;
+    }
+
+    int getMaxTouched() {
+        return maxTouched;
+    }
+
+    LongOpenHashSet getVisited() {
+        return visited;
+    }
+
+    TokenType getTokenType() {
+        return tokenType;
+    }
+
+    long getTokenPos() {
+        return tokenPos;
+    }
+
+    // tokens come out depth first: a branch is finished before its parent line goes on
+    boolean nextToken() {
+        while (!lines.isEmpty()) {
+            Line line = lines.peek();
+
+            if (map != null && line.needsPiece()) {
+                openPiece(line);
+                if (resync != null)
+                    return false; // the rest is the old token stream
+            }
+
+            if (line.branchDir < NO_PROBE) {
+                Direction dir = DIRECTIONS[line.branchDir++];
+                if (dir == line.direction || dir == line.direction.getOpposite())
+                    continue;
+
+                long neighborPos = BlockPos.offset(line.branchPos, dir);
+                if (isVisited(neighborPos)) {
+                    if (map != null)
+                        line.piece.blocked.add(neighborPos);
+                    continue;
                 }
+
+                int code = classify(line, neighborPos);
+                if (BlockClassifier.isToken(code) || BlockClassifier.isObserver(code))
+                    lines.push(new Line(neighborPos, dir, map == null ? 0 : map.newLine(), line.piece));
+                continue;
             }
+
+            if (line.next())
+                return true;
+
+            lines.pop();
+            if (!lines.isEmpty())
+                lines.peek().resumed = true;
         }
 
-        return tokens;
+        return false;
+    }
+
+    private void openPiece(Line line) {
+        SourceMap.Piece piece = new SourceMap.Piece(
+            line.id, line.parent, tokenCount, line.pos, line.direction, line.branchPos, line.branchDir
+        );
+        line.piece = piece;
+        line.resumed = false;
+
+        if (relexStart != null && line == root) {
+            resync = map.findResync(relexStart, piece, visited, maxTouched);
+            if (resync != null)
+                return;
+        }
+
+        pieces.add(piece);
+    }
+
+    private boolean isVisited(long pos) {
+        return visited.contains(pos) || (relexStart != null && map.ownedBefore(pos, relexStart));
+    }
+
+    private boolean visit(Line line, long pos) {
+        if (isVisited(pos)) {
+            if (map != null)
+                line.piece.blocked.add(pos);
+            return false;
+        }
+
+        visited.add(pos);
+        if (map != null) {
+            line.piece.visits.add(pos);
+            if (relexStart != null)
+                maxTouched = Math.max(maxTouched, map.ownerIndex(pos));
+        }
+        return true;
+    }
+
+    private int classify(Line line, long pos) {
+        if (map != null)
+            line.piece.reads.add(pos);
+
+        int code = line.read(pos);
+        if (code == BlockClassifier.UNKNOWN && unknownPos == null)
+            unknownPos = BlockPos.fromLong(pos);
+        return code;
     }
 
-    private Token nextToken() {
-        BlockState state = world.getBlockState(currentPos);
-        TokenType type = TokenType.fromBlock(state.getBlock());
+    // one straight run of blocks, turned by observers
+    private class Line {
+        private long pos;
+        private Direction direction;
+
+        private long branchPos; // last branching token, its neighbours are probed next
+        private int branchDir = NO_PROBE;
+
+        private final int id;
+        private final SourceMap.Piece parent;
+        private SourceMap.Piece piece;
+        private boolean resumed; // a side branch just ended
 
-        if (type == null) {
-            if (state.isOf(Blocks.OBSERVER)) {
-                direction = state.get(Properties.FACING);
-                currentPos = currentPos.offset(direction);
-                return nextToken();
+        private LineSegments.Segment segment; // this line read ahead, null past its end
+        private int cursor; // next read of segment
+
+        private Line(long pos, Direction direction, int id, SourceMap.Piece parent) {
+            this.pos = pos;
+            this.direction = direction;
+            this.id = id;
+            this.parent = parent;
+            this.segment = segments == null ? null : segments.get(pos, direction);
+        }
+
+        // the segment read the same blocks in the same order, only the probes of
+        // visited blocks are skipped; an unloaded chunk is read again to count it
+        private int read(long pos) {
+            if (segment != null) {
+                int index = segment.find(pos, cursor);
+                if (index >= 0) {
+                    cursor = index + 1;
+                    int code = segment.code(index);
+                    return code == BlockClassifier.UNKNOWN ? source.classify(pos) : code;
+                }
+                segment = null;
             }
-            return null;
+            return source.classify(pos);
+        }
+
+        // a new piece begins at the line start, after a side branch and after all probes
+        private boolean needsPiece() {
+            return piece == null || resumed || (piece.branched && branchDir == NO_PROBE);
         }
 
-        Token token = new Token(currentPos, type);
-        currentPos = currentPos.offset(direction);
-        return token;
+        private boolean next() {
+            while (true) {
+                int code = classify(this, pos);
+
+                if (!BlockClassifier.isToken(code) && !BlockClassifier.isObserver(code))
+                    return false;
+                if (!visit(this, pos))
+                    return false; // already lexed, also ends observer loops
+
+                if (BlockClassifier.isObserver(code)) {
+                    direction = BlockClassifier.observerFacing(code);
+                    pos = BlockPos.offset(pos, direction);
+                    continue;
+                }
+
+                tokenType = BlockClassifier.tokenType(code);
+                tokenPos = pos;
+
+                if (BRANCHING.contains(tokenType)) {
+                    branchPos = pos;
+                    branchDir = 0;
+                    if (piece != null)
+                        piece.branched = true;
+                }
+
+                pos = BlockPos.offset(pos, direction);
+                tokenCount++;
+                return true;
+            }
+        }
     }
-}
\ No newline at end of file
+}
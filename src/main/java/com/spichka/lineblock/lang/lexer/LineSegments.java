@@ -0,0 +1,167 @@
+package com.spichka.lineblock.lang.lexer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+
+// Lexes every line of a program at once, one fork/join task per line and each side
+// branch forked as a task of its own. A task does not know what other lines visit,
+// so it walks its line as if nothing was visited yet and records every block it reads
+// (tokens, observers, the probes of branching tokens) in the order the Lexer reads
+// them. The Lexer then merges the lines depth first and decides what is visited;
+// every block it asks for is already read, so the merge is the visited set and a
+// walk over arrays, and the tokens come out in the order of a sequential lex.
+//
+// The source must be safe to read from several threads, like a ChunkSnapshot.
+public final class LineSegments {
+    private static final Direction[] DIRECTIONS = Direction.values();
+    private static final int MAX_READS = 1 << 22; // over all lines, the Lexer reads the rest itself
+    private static final int BATCH = 256;
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(
+        Runtime.getRuntime().availableProcessors(),
+        pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("LineBlock Lexer " + thread.getPoolIndex());
+            return thread;
+        },
+        null, false
+    );
+
+    private final BlockSource source;
+    private final List<ConcurrentHashMap<Long, Segment>> lines = new ArrayList<>(); // by direction, then start
+    private final AtomicInteger reads = new AtomicInteger();
+
+    private LineSegments(BlockSource source) {
+        this.source = source;
+        for (int i = 0; i < DIRECTIONS.length; i++)
+            lines.add(new ConcurrentHashMap<>());
+    }
+
+    // false on a single core, where reading ahead only adds the merge to the work
+    public static boolean pays() {
+        return POOL.getParallelism() > 1;
+    }
+
+    // every line reachable from startPos, read on the lexer pool
+    public static LineSegments walk(BlockSource source, BlockPos startPos, Direction direction) {
+        LineSegments segments = new LineSegments(source);
+        Segment root = segments.claim(startPos.asLong(), direction);
+        POOL.invoke(segments.new LineTask(root, startPos.asLong(), direction));
+        return segments;
+    }
+
+    // the line that starts at pos going in direction, null if no task walked it
+    Segment get(long pos, Direction direction) {
+        return lines.get(direction.ordinal()).get(pos);
+    }
+
+    // null if another task walks the line already
+    private Segment claim(long pos, Direction direction) {
+        Segment segment = new Segment();
+        return lines.get(direction.ordinal()).putIfAbsent(pos, segment) == null ? segment : null;
+    }
+
+    // the blocks one line read, in reading order
+    static final class Segment {
+        private final LongArrayList positions = new LongArrayList();
+        private final IntArrayList codes = new IntArrayList();
+
+        // index of the first read of pos at or after from, -1 if there is none
+        int find(long pos, int from) {
+            for (int i = from; i < positions.size(); i++) {
+                if (positions.getLong(i) == pos)
+                    return i;
+            }
+            return -1;
+        }
+
+        int code(int index) {
+            return codes.getInt(index);
+        }
+    }
+
+    // walks one line the way Lexer.Line does, with an empty visited set
+    private class LineTask extends RecursiveAction {
+        private final Segment segment;
+        private long pos;
+        private Direction direction;
+        private int count; // reads, added to the shared count in batches
+        private boolean spent;
+
+        private LineTask(Segment segment, long pos, Direction direction) {
+            this.segment = segment;
+            this.pos = pos;
+            this.direction = direction;
+        }
+
+        @Override
+        protected void compute() {
+            List<LineTask> branches = new ArrayList<>();
+            LongOpenHashSet seen = new LongOpenHashSet(); // an observer loop ends where it began
+            spent = reads.get() > MAX_READS;
+
+            while (true) {
+                int code = read(pos);
+                if (!BlockClassifier.isToken(code) && !BlockClassifier.isObserver(code))
+                    break;
+                if (!seen.add(pos))
+                    break;
+
+                if (BlockClassifier.isObserver(code)) {
+                    direction = BlockClassifier.observerFacing(code);
+                    pos = BlockPos.offset(pos, direction);
+                    continue;
+                }
+
+                if (Lexer.BRANCHING.contains(BlockClassifier.tokenType(code))) {
+                    for (Direction dir : DIRECTIONS) {
+                        if (dir == direction || dir == direction.getOpposite())
+                            continue;
+
+                        long neighborPos = BlockPos.offset(pos, dir);
+                        int neighbor = read(neighborPos);
+                        if (!BlockClassifier.isToken(neighbor) && !BlockClassifier.isObserver(neighbor))
+                            continue;
+
+                        Segment branch = claim(neighborPos, dir);
+                        if (branch != null) {
+                            LineTask task = new LineTask(branch, neighborPos, dir);
+                            task.fork();
+                            branches.add(task);
+                        }
+                    }
+                }
+
+                pos = BlockPos.offset(pos, direction);
+            }
+            reads.addAndGet(count % BATCH);
+
+            for (LineTask branch : branches)
+                branch.join();
+        }
+
+        // the block code, NONE once the budget is spent so the line ends here
+        private int read(long pos) {
+            if (spent || (++count % BATCH == 0 && reads.addAndGet(BATCH) > MAX_READS)) {
+                spent = true;
+                return BlockClassifier.NONE;
+            }
+
+            int code = source.peek(pos);
+            segment.positions.add(pos);
+            segment.codes.add(code);
+            return code;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.spichka.lineblock.lang.lexer;
+
+import net.minecraft.util.math.BlockPos;
+
+// A token of a tree that programs share, see AstInterner: pos is relative to the start
+// of the program, so copies of a program in different places have equal tokens. The
+// program's start turns it back into a world position, see LineBlockException.locate().
+public final class SharedToken extends Token {
+    public SharedToken(long pos, TokenType type) {
+        super(pos, type);
+    }
+
+    @Override
+    public Token withType(TokenType type) {
+        return new SharedToken(pos, type);
+    }
+
+    @Override
+    public String toString() {
+        BlockPos offset = getBlockPos();
+        return "Token{offset=(" + offset.getX() + ", " + offset.getY() + ", " + offset.getZ() + "), type=" + type + '}';
+    }
+}
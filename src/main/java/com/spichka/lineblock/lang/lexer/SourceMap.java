@@ -0,0 +1,292 @@
+package com.spichka.lineblock.lang.lexer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.Direction;
+
+// Remembers which blocks every part of a lexed program depends on, so a block change
+// only re-lexes the parts that read it and splices the result into the old tokens.
+//
+// The program is cut into pieces: a piece is a stretch of one line that starts where
+// the line starts, where it resumes after a side branch or after the probes of a
+// branching token. Pieces are numbered in lexing order and a piece is only lexed
+// between its own start and the start of the next one, so everything a piece saw
+// as visited belongs to pieces with a lower index.
+public final class SourceMap {
+    private final List<Piece> pieces = new ArrayList<>();
+    private final Long2ObjectOpenHashMap<List<Piece>> readers = new Long2ObjectOpenHashMap<>(); // classified blocks
+    private final Long2ObjectOpenHashMap<List<Piece>> blockers = new Long2ObjectOpenHashMap<>(); // skipped because visited
+    private final Long2ObjectOpenHashMap<Piece> owners = new Long2ObjectOpenHashMap<>(); // visited blocks
+    private final Long2ObjectOpenHashMap<List<Piece>> starts = new Long2ObjectOpenHashMap<>(); // where pieces begin
+    private final List<Piece> dirty = new ArrayList<>();
+
+    // bounds of every block read so far, changes outside of them are ignored right away
+    private int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+    private int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+
+    private int lineCount;
+
+    // token range [from, oldTo) was replaced by [from, newTo)
+    public record Splice(int from, int oldTo, int newTo) {}
+
+    // marks every piece that read the block, true if the program depends on it
+    public boolean markChanged(long pos) {
+        int x = BlockPos.unpackLongX(pos);
+        int y = BlockPos.unpackLongY(pos);
+        int z = BlockPos.unpackLongZ(pos);
+        if (x < minX || x > maxX || y < minY || y > maxY || z < minZ || z > maxZ)
+            return false;
+
+        List<Piece> list = readers.get(pos);
+        if (list == null)
+            return false;
+
+        for (Piece piece : list) {
+            if (!piece.dirty) {
+                piece.dirty = true;
+                dirty.add(piece);
+            }
+        }
+        return true;
+    }
+
+    // packed ChunkPos of every block a piece read
+    public LongSet readChunks() {
+        LongSet chunks = new LongOpenHashSet();
+        for (LongIterator it = readers.keySet().iterator(); it.hasNext(); ) {
+            long pos = it.nextLong();
+            chunks.add(ChunkPos.toLong(BlockPos.unpackLongX(pos) >> 4, BlockPos.unpackLongZ(pos) >> 4));
+        }
+        return chunks;
+    }
+
+    public boolean isDirty() {
+        return firstDirty() != null;
+    }
+
+    // re-lexes from the first dirty piece until its line lands on an old piece again,
+    // null if the new tokens would change pieces that are not re-lexed (lex it all again)
+    public Splice relexNext(BlockSource source, TokenBuffer tokens) {
+        Piece start = firstDirty();
+        if (start == null)
+            return null;
+
+        Lexer lexer = new Lexer(source, this, start);
+        TokenBuffer replacement = lexer.tokenize();
+        if (lexer.getUnknownPos() != null)
+            return null;
+
+        int end; // first old piece after the re-lexed part
+        Piece resync = lexer.getResync();
+        if (resync != null) {
+            end = resync.index;
+        } else {
+            end = lineEnd(start);
+            if (lexer.getMaxTouched() >= end || !freedUnblocked(start.index, end, lexer.getVisited()))
+                return null;
+        }
+
+        int from = start.from;
+        int oldTo = end < pieces.size() ? pieces.get(end).from : tokens.size();
+        tokens.splice(from, oldTo, replacement);
+        replace(start.index, end, lexer.getPieces(), replacement.size() - (oldTo - from));
+
+        return new Splice(from, oldTo, from + replacement.size());
+    }
+
+    int newLine() {
+        return lineCount++;
+    }
+
+    void addAll(List<Piece> added) {
+        for (Piece piece : added) {
+            piece.index = pieces.size();
+            pieces.add(piece);
+            index(piece);
+        }
+    }
+
+    // visited before the re-lexed part began
+    boolean ownedBefore(long pos, Piece start) {
+        Piece owner = owners.get(pos);
+        return owner != null && owner.index < start.index;
+    }
+
+    int ownerIndex(long pos) {
+        Piece owner = owners.get(pos);
+        return owner == null ? -1 : owner.index;
+    }
+
+    // an old piece of the same line the re-lex can stop at: the lexer is in the same
+    // state there and no later piece notices the blocks it visits differently
+    Piece findResync(Piece start, Piece opened, LongSet visited, int maxTouched) {
+        List<Piece> list = starts.get(opened.pos);
+        if (list == null)
+            return null;
+
+        for (Piece old : list) {
+            if (old.index > start.index && old.line == start.line && old.sameState(opened)
+                    && maxTouched < old.index && freedUnblocked(start.index, old.index, visited))
+                return old;
+        }
+        return null;
+    }
+
+    private Piece firstDirty() {
+        Piece first = null;
+        dirty.removeIf(piece -> piece.removed || !piece.dirty);
+
+        for (Piece piece : dirty) {
+            if (first == null || piece.index < first.index)
+                first = piece;
+        }
+        return first;
+    }
+
+    // first piece that is neither on the line of start nor branched off it
+    private int lineEnd(Piece start) {
+        int i = start.index + 1;
+        while (i < pieces.size()) {
+            Piece piece = pieces.get(i);
+            if (piece.line != start.line && (piece.parent == null || piece.parent.index < start.index))
+                break;
+            i++;
+        }
+        return i;
+    }
+
+    // blocks visited by pieces [from, to) and not by the re-lex must not have stopped a later piece
+    private boolean freedUnblocked(int from, int to, LongSet visited) {
+        for (int i = from; i < to; i++) {
+            LongArrayList visits = pieces.get(i).visits;
+
+            for (int j = 0; j < visits.size(); j++) {
+                long pos = visits.getLong(j);
+                if (visited.contains(pos))
+                    continue;
+
+                List<Piece> list = blockers.get(pos);
+                if (list == null)
+                    continue;
+                for (Piece blocked : list) {
+                    if (blocked.index >= to)
+                        return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void replace(int from, int to, List<Piece> added, int delta) {
+        for (int i = from; i < to; i++)
+            unindex(pieces.get(i));
+
+        pieces.subList(from, to).clear();
+        pieces.addAll(from, added);
+
+        for (int i = from; i < pieces.size(); i++) {
+            Piece piece = pieces.get(i);
+            piece.index = i;
+            if (i >= from + added.size())
+                piece.from += delta;
+        }
+
+        for (Piece piece : added)
+            index(piece);
+    }
+
+    private void index(Piece piece) {
+        for (int i = 0; i < piece.reads.size(); i++) {
+            long pos = piece.reads.getLong(i);
+            readers.computeIfAbsent(pos, p -> new ArrayList<>(2)).add(piece);
+
+            int x = BlockPos.unpackLongX(pos);
+            int y = BlockPos.unpackLongY(pos);
+            int z = BlockPos.unpackLongZ(pos);
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            minZ = Math.min(minZ, z);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            maxZ = Math.max(maxZ, z);
+        }
+
+        for (int i = 0; i < piece.blocked.size(); i++)
+            blockers.computeIfAbsent(piece.blocked.getLong(i), p -> new ArrayList<>(2)).add(piece);
+        for (int i = 0; i < piece.visits.size(); i++)
+            owners.put(piece.visits.getLong(i), piece);
+
+        starts.computeIfAbsent(piece.pos, p -> new ArrayList<>(2)).add(piece);
+    }
+
+    private void unindex(Piece piece) {
+        for (int i = 0; i < piece.reads.size(); i++)
+            remove(readers, piece.reads.getLong(i), piece);
+        for (int i = 0; i < piece.blocked.size(); i++)
+            remove(blockers, piece.blocked.getLong(i), piece);
+        for (int i = 0; i < piece.visits.size(); i++)
+            owners.remove(piece.visits.getLong(i), piece);
+
+        remove(starts, piece.pos, piece);
+        piece.removed = true;
+    }
+
+    private static void remove(Long2ObjectOpenHashMap<List<Piece>> map, long pos, Piece piece) {
+        List<Piece> list = map.get(pos);
+        if (list == null)
+            return;
+
+        list.remove(piece);
+        if (list.isEmpty())
+            map.remove(pos);
+    }
+
+    @Override
+    public String toString() {
+        return "SourceMap{pieces=" + pieces.size() + ", dirty=" + dirty.size() + '}';
+    }
+
+    // one stretch of a line, with the lexer state it started in
+    static final class Piece {
+        int index;
+        int from; // first token of the piece
+        final int line;
+        final Piece parent; // piece whose branch probe found the line, null for the main line
+
+        final long pos;
+        final Direction direction;
+        final long branchPos;
+        final int branchDir;
+
+        boolean branched; // ended with a branching token
+        boolean dirty;
+        boolean removed;
+
+        final LongArrayList reads = new LongArrayList(4);
+        final LongArrayList visits = new LongArrayList(4);
+        final LongArrayList blocked = new LongArrayList(0);
+
+        Piece(int line, Piece parent, int from, long pos, Direction direction, long branchPos, int branchDir) {
+            this.line = line;
+            this.parent = parent;
+            this.from = from;
+            this.pos = pos;
+            this.direction = direction;
+            this.branchPos = branchPos;
+            this.branchDir = branchDir;
+        }
+
+        boolean sameState(Piece other) {
+            return pos == other.pos && direction == other.direction && branchDir == other.branchDir
+                && (branchDir == Lexer.NO_PROBE || branchPos == other.branchPos);
+        }
+    }
+}
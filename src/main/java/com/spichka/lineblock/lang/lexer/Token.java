@@ -5,14 +5,23 @@ import net.minecraft.util.math.BlockPos;
 import net.minecraft.world.World;
 
 public class Token {
-    public BlockPos pos;
+    public long pos; // BlockPos.asLong()
     public TokenType type;
 
-    public Token(BlockPos pos, TokenType type) {
+    public Token(long pos, TokenType type) {
         this.pos = pos;
         this.type = type;
     }
 
+    public BlockPos getBlockPos() {
+        return BlockPos.fromLong(pos);
+    }
+
+    // a token at the same place, for a node that replaces this token's node
+    public Token withType(TokenType type) {
+        return new Token(pos, type);
+    }
+
     // factory method
     public static Token fromWorld(World world, BlockPos pos) {
         Block block = world.getBlockState(pos).getBlock();
@@ -21,13 +30,13 @@ public class Token {
         if (type == null)
             return null;
 
-        return new Token(pos, type);
+        return new Token(pos.asLong(), type);
     }
 
     @Override
     public String toString() {
         return "Token{" +
-                "pos=" + pos +
+                "pos=" + getBlockPos() +
                 ", type=" + type +
                 '}';
     }
@@ -0,0 +1,79 @@
+package com.spichka.lineblock.lang.lexer;
+
+import java.util.Arrays;
+
+// Token stream as parallel arrays: a token is its type ordinal and its packed
+// BlockPos, Token objects are only created for the AST and error messages
+public final class TokenBuffer implements TokenSource {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private byte[] types;
+    private long[] positions;
+    private int size;
+
+    public TokenBuffer() {
+        this(64);
+    }
+
+    public TokenBuffer(int capacity) {
+        this.types = new byte[Math.max(capacity, 1)];
+        this.positions = new long[Math.max(capacity, 1)];
+    }
+
+    public void add(TokenType type, long pos) {
+        if (size == types.length) {
+            types = Arrays.copyOf(types, size * 2);
+            positions = Arrays.copyOf(positions, size * 2);
+        }
+
+        types[size] = (byte) type.ordinal();
+        positions[size] = pos;
+        size++;
+    }
+
+    // replaces the tokens in [from, to) with all tokens of replacement
+    public void splice(int from, int to, TokenBuffer replacement) {
+        int newSize = size - (to - from) + replacement.size;
+
+        if (newSize > types.length) {
+            int capacity = Math.max(newSize, types.length * 2);
+            types = Arrays.copyOf(types, capacity);
+            positions = Arrays.copyOf(positions, capacity);
+        }
+
+        System.arraycopy(types, to, types, from + replacement.size, size - to);
+        System.arraycopy(positions, to, positions, from + replacement.size, size - to);
+        System.arraycopy(replacement.types, 0, types, from, replacement.size);
+        System.arraycopy(replacement.positions, 0, positions, from, replacement.size);
+        size = newSize;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean has(int index) {
+        return index < size;
+    }
+
+    @Override
+    public TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    @Override
+    public long pos(int index) {
+        return positions[index];
+    }
+
+    @Override
+    public Token token(int index) {
+        return new Token(positions[index], type(index));
+    }
+
+    @Override
+    public String toString() {
+        return "TokenBuffer{size=" + size + '}';
+    }
+}
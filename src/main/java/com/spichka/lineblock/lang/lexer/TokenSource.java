@@ -0,0 +1,16 @@
+package com.spichka.lineblock.lang.lexer;
+
+// Tokens by index for the parser: a finished TokenBuffer or a TokenStream that lexes on demand
+public interface TokenSource {
+    // false past the last token
+    boolean has(int index);
+
+    TokenType type(int index);
+
+    long pos(int index);
+
+    Token token(int index);
+
+    // tokens before index will not be read again
+    default void release(int index) {}
+}
@@ -0,0 +1,66 @@
+package com.spichka.lineblock.lang.lexer;
+
+import com.spichka.lineblock.lang.exceptions.LineBlockException;
+
+import net.minecraft.util.math.BlockPos;
+
+// Pulls tokens out of the lexer only when the parser asks for them. Released tokens
+// are dropped, so only the statement being parsed is held in memory.
+public final class TokenStream implements TokenSource {
+    private static final TokenBuffer EMPTY = new TokenBuffer(0);
+
+    private final Lexer lexer;
+    private final TokenBuffer window = new TokenBuffer();
+    private int base; // index of the first token in window
+    private boolean finished;
+
+    public TokenStream(Lexer lexer) {
+        this.lexer = lexer;
+    }
+
+    @Override
+    public boolean has(int index) {
+        while (index - base >= window.size()) {
+            if (finished || !lexer.nextToken()) {
+                finished = true;
+                checkLoaded();
+                return false;
+            }
+            checkLoaded();
+            window.add(lexer.getTokenType(), lexer.getTokenPos());
+        }
+        return true;
+    }
+
+    // a streamed program is read while it runs, there is no time to wait for chunks
+    private void checkLoaded() {
+        BlockPos unknown = lexer.getUnknownPos();
+        if (unknown != null)
+            throw new LineBlockException("Script reaches into an unloaded chunk at " + unknown.toShortString());
+    }
+
+    @Override
+    public TokenType type(int index) {
+        return window.type(index - base);
+    }
+
+    @Override
+    public long pos(int index) {
+        return window.pos(index - base);
+    }
+
+    @Override
+    public Token token(int index) {
+        return window.token(index - base);
+    }
+
+    @Override
+    public void release(int index) {
+        int count = Math.min(index - base, window.size());
+        if (count <= 0)
+            return;
+
+        window.splice(0, count, EMPTY);
+        base += count;
+    }
+}
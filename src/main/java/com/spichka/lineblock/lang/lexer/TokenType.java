@@ -10,6 +10,8 @@ public enum TokenType {
     PLUS, MINUS, MUL, DIV, MOD, POW, RPAR, LPAR, // math
     BIT_AND, BIT_OR, BIT_XOR, BIT_NOT, SHL, SHR, // bit
     ZERO, ONE, // 0 1
+    HEX_0, HEX_1, HEX_2, HEX_3, HEX_4, HEX_5, HEX_6, HEX_7, // 4 bits at once
+    HEX_8, HEX_9, HEX_A, HEX_B, HEX_C, HEX_D, HEX_E, HEX_F,
     AND, OR, NOT, XOR, // logic
     EQ, NE, GT, LT, GE, LE, // equation
     SIN, COS, TAN, ASIN, ACOS, ATAN, ABS, CEIL, FLOOR, // math func
@@ -17,7 +19,9 @@ public enum TokenType {
     COMMAND, STOP, PRINT, PLACEBLOCK, // other
     IF, WHILE, FOR, BREAK, CONTINUE, BLOCK_END, // constructions
     FIRST_ARGUMENT, SECOND_ARGUMENT, THRID_ARGUMENT, FOURTH_ARGUMENT, // argument
-    INT, FLOAT, STRING, BOOL, VAR_INDEX, USE_VAR; // variables
+    INT, FLOAT, STRING, BOOL, VAR_INDEX, USE_VAR, // variables
+    ARRAY_NEW, ARRAY_GET, ARRAY_SET, ARRAY_LENGTH, // arrays
+    DEFINE, CALL; // procedures
 
     public static final Map<Block, TokenType> BLOCK_TO_TYPE = new LinkedHashMap<>();
 
@@ -44,6 +48,24 @@ public enum TokenType {
         BLOCK_TO_TYPE.put(Blocks.WHITE_WOOL, ZERO);
         BLOCK_TO_TYPE.put(Blocks.BLACK_WOOL, ONE);
 
+        // 4 bits, concrete in dye colour order
+        BLOCK_TO_TYPE.put(Blocks.WHITE_CONCRETE, HEX_0);
+        BLOCK_TO_TYPE.put(Blocks.ORANGE_CONCRETE, HEX_1);
+        BLOCK_TO_TYPE.put(Blocks.MAGENTA_CONCRETE, HEX_2);
+        BLOCK_TO_TYPE.put(Blocks.LIGHT_BLUE_CONCRETE, HEX_3);
+        BLOCK_TO_TYPE.put(Blocks.YELLOW_CONCRETE, HEX_4);
+        BLOCK_TO_TYPE.put(Blocks.LIME_CONCRETE, HEX_5);
+        BLOCK_TO_TYPE.put(Blocks.PINK_CONCRETE, HEX_6);
+        BLOCK_TO_TYPE.put(Blocks.GRAY_CONCRETE, HEX_7);
+        BLOCK_TO_TYPE.put(Blocks.LIGHT_GRAY_CONCRETE, HEX_8);
+        BLOCK_TO_TYPE.put(Blocks.CYAN_CONCRETE, HEX_9);
+        BLOCK_TO_TYPE.put(Blocks.PURPLE_CONCRETE, HEX_A);
+        BLOCK_TO_TYPE.put(Blocks.BLUE_CONCRETE, HEX_B);
+        BLOCK_TO_TYPE.put(Blocks.BROWN_CONCRETE, HEX_C);
+        BLOCK_TO_TYPE.put(Blocks.GREEN_CONCRETE, HEX_D);
+        BLOCK_TO_TYPE.put(Blocks.RED_CONCRETE, HEX_E);
+        BLOCK_TO_TYPE.put(Blocks.BLACK_CONCRETE, HEX_F);
+
         // logic
         BLOCK_TO_TYPE.put(Blocks.NETHER_GOLD_ORE, AND);
         BLOCK_TO_TYPE.put(Blocks.NETHER_QUARTZ_ORE, OR);
@@ -100,9 +122,28 @@ public enum TokenType {
         BLOCK_TO_TYPE.put(Blocks.EMERALD_BLOCK, BOOL);
         BLOCK_TO_TYPE.put(Blocks.CHISELED_STONE_BRICKS, USE_VAR);
         BLOCK_TO_TYPE.put(Blocks.SMOOTH_STONE, VAR_INDEX);
+
+        // arrays
+        BLOCK_TO_TYPE.put(Blocks.QUARTZ_BLOCK, ARRAY_NEW);
+        BLOCK_TO_TYPE.put(Blocks.QUARTZ_PILLAR, ARRAY_GET);
+        BLOCK_TO_TYPE.put(Blocks.CHISELED_QUARTZ_BLOCK, ARRAY_SET);
+        BLOCK_TO_TYPE.put(Blocks.QUARTZ_BRICKS, ARRAY_LENGTH);
+
+        // procedures
+        BLOCK_TO_TYPE.put(Blocks.PURPUR_BLOCK, DEFINE);
+        BLOCK_TO_TYPE.put(Blocks.PURPUR_PILLAR, CALL);
     }
     
     public static TokenType fromBlock(Block block) {
         return BLOCK_TO_TYPE.getOrDefault(block, null);
     }
+
+    public boolean isHexDigit() {
+        return ordinal() >= HEX_0.ordinal() && ordinal() <= HEX_F.ordinal();
+    }
+
+    // value of a HEX_ digit
+    public int hexValue() {
+        return ordinal() - HEX_0.ordinal();
+    }
 }
@@ -0,0 +1,307 @@
+package com.spichka.lineblock.lang.optimizer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.spichka.lineblock.lang.lexer.TokenType;
+import com.spichka.lineblock.lang.parser.ast.ArrayNode;
+import com.spichka.lineblock.lang.parser.ast.AstNode;
+import com.spichka.lineblock.lang.parser.ast.BinaryOpNode;
+import com.spichka.lineblock.lang.parser.ast.BlockNode;
+import com.spichka.lineblock.lang.parser.ast.CacheNode;
+import com.spichka.lineblock.lang.parser.ast.CacheScopeNode;
+import com.spichka.lineblock.lang.parser.ast.CallNode;
+import com.spichka.lineblock.lang.parser.ast.ConstantNode;
+import com.spichka.lineblock.lang.parser.ast.FillNode;
+import com.spichka.lineblock.lang.parser.ast.ForNode;
+import com.spichka.lineblock.lang.parser.ast.IfNode;
+import com.spichka.lineblock.lang.parser.ast.LiteralNode;
+import com.spichka.lineblock.lang.parser.ast.PlaceBlockNode;
+import com.spichka.lineblock.lang.parser.ast.UnaryOpNode;
+import com.spichka.lineblock.lang.parser.ast.VariableNode;
+import com.spichka.lineblock.lang.parser.ast.WhileNode;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+
+// Loop-invariant code motion and common subexpressions, for one top-level statement.
+//
+// Expressions have no side effects, so an expression that reads no variable assigned
+// in a loop has the same value in every iteration, and an expression that appears
+// twice in one statement (PLACEBLOCK coordinates, an assign, a condition) has the
+// same value both times. Such an expression becomes a CacheNode: the first evaluation
+// stores its value and later ones reuse it until the CacheScopeNode around the loop
+// (or the statement) starts again. Nothing is evaluated earlier than before, so an
+// expression that fails still fails at the same place.
+//
+// A variable keeps existing during a loop unless the loop assigns it, scope exits
+// inside of it only drop variables the loop created. ARRAY_SET changes what
+// ARRAY_GET and ARRAY_LENGTH read without an assign, and a CALL can place blocks or
+// print, so expressions with those are never cached; procedures are left as they are.
+// An ARRAY can also be read whole (PRINT, PLUS with a STRING), and only through its
+// own variable, so a loop with an ARRAY_SET assigns that variable.
+final class Hoister {
+    private int nextSlot; // slots of different top-level statements never live at the same time
+    private final List<Loop> loops = new ArrayList<>(); // outermost first
+    private final Map<AstNode, String> keys = new IdentityHashMap<>();
+
+    // a loop and the cache slots of its invariant expressions
+    private static final class Loop {
+        private final IntSet assigned = new IntOpenHashSet(); // variable indexes
+        private final Map<String, Integer> slots = new HashMap<>();
+        private final IntArrayList cleared = new IntArrayList();
+    }
+
+    // a statement's expressions and the cache slots of the ones that repeat in it
+    private static final class Scope {
+        private final Map<String, Integer> counts = new HashMap<>();
+        private final Map<String, Integer> slots = new HashMap<>();
+        private final IntArrayList cleared = new IntArrayList();
+    }
+
+    private Hoister() {}
+
+    static AstNode hoist(AstNode statement) {
+        return new Hoister().statement(statement);
+    }
+
+    private AstNode statement(AstNode node) {
+        if (node instanceof BlockNode n) {
+            BlockNode block = new BlockNode();
+            for (AstNode statement : n.statements)
+                block.addStatement(statement(statement));
+            return block;
+        } else if (node instanceof IfNode n) {
+            return new IfNode(condition(n.conditionNode), statement(n.thenBranchNode), statement(n.elseBranchNode));
+        } else if (node instanceof WhileNode n) {
+            Loop loop = enter(n);
+            AstNode hoisted = new WhileNode(condition(n.conditionNode), statement(n.bodyNode));
+            return exit(loop, hoisted);
+        } else if (node instanceof ForNode n) {
+            // the initializer is evaluated after the loop's slots are emptied, so it belongs to it
+            Loop loop = enter(n);
+            AstNode hoisted = new ForNode(statement(n.initializerNode), condition(n.conditionNode),
+                statement(n.incrementNode), statement(n.bodyNode));
+            return exit(loop, hoisted);
+        } else if (node instanceof PlaceBlockNode n) {
+            Scope scope = scope(n.x, n.y, n.z);
+            return wrap(scope.cleared, new PlaceBlockNode(expression(n.x, scope), expression(n.y, scope), expression(n.z, scope), n.block));
+        } else if (node instanceof UnaryOpNode n && n.operator.type == TokenType.PRINT) {
+            Scope scope = scope(n.operand);
+            return wrap(scope.cleared, new UnaryOpNode(n.operator, expression(n.operand, scope)));
+        } else if (node instanceof BinaryOpNode n && isAssign(n.operator.type)) {
+            Scope scope = scope(n.right);
+            return wrap(scope.cleared, new BinaryOpNode(n.operator, n.left, expression(n.right, scope)));
+        }
+
+        return node; // commands and null
+    }
+
+    private AstNode condition(AstNode node) {
+        if (node == null)
+            return null;
+
+        Scope scope = scope(node);
+        return wrap(scope.cleared, expression(node, scope));
+    }
+
+    private Loop enter(AstNode loopNode) {
+        Loop loop = new Loop();
+        collectAssigned(loopNode, loop.assigned);
+        loops.add(loop);
+        return loop;
+    }
+
+    private AstNode exit(Loop loop, AstNode hoisted) {
+        loops.remove(loops.size() - 1);
+        return wrap(loop.cleared, hoisted);
+    }
+
+    private Scope scope(AstNode... expressions) {
+        Scope scope = new Scope();
+        for (AstNode expression : expressions)
+            count(expression, scope.counts);
+        return scope;
+    }
+
+    private AstNode expression(AstNode node, Scope scope) {
+        if (!isCandidate(node))
+            return node;
+
+        AstNode rewritten;
+        if (node instanceof UnaryOpNode n)
+            rewritten = new UnaryOpNode(n.operator, expression(n.operand, scope));
+        else {
+            BinaryOpNode n = (BinaryOpNode) node;
+            rewritten = new BinaryOpNode(n.operator, expression(n.left, scope), expression(n.right, scope));
+        }
+
+        String key = key(node);
+        Loop loop = outermostInvariant(node);
+        if (loop != null)
+            return new CacheNode(slot(key, loop.slots, loop.cleared), rewritten);
+        if (scope.counts.getOrDefault(key, 0) > 1)
+            return new CacheNode(slot(key, scope.slots, scope.cleared), rewritten);
+
+        return rewritten;
+    }
+
+    private int slot(String key, Map<String, Integer> slots, IntArrayList cleared) {
+        Integer slot = slots.get(key);
+        if (slot == null) {
+            slot = nextSlot++;
+            slots.put(key, slot);
+            cleared.add((int) slot);
+        }
+        return slot;
+    }
+
+    // the outermost loop that assigns none of the variables node reads; inner loops
+    // assign a subset of what their outer loops assign
+    private Loop outermostInvariant(AstNode node) {
+        if (loops.isEmpty())
+            return null;
+
+        IntSet reads = new IntOpenHashSet();
+        collectReads(node, reads);
+
+        for (Loop loop : loops) {
+            boolean invariant = true;
+            for (int index : reads) {
+                if (loop.assigned.contains(index)) {
+                    invariant = false;
+                    break;
+                }
+            }
+            if (invariant)
+                return loop;
+        }
+        return null;
+    }
+
+    private void count(AstNode node, Map<String, Integer> counts) {
+        if (!isCandidate(node))
+            return;
+
+        counts.merge(key(node), 1, Integer::sum);
+        if (node instanceof UnaryOpNode n) {
+            count(n.operand, counts);
+        } else if (node instanceof BinaryOpNode n) {
+            count(n.left, counts);
+            count(n.right, counts);
+        }
+    }
+
+    // an operator that reads a variable; without one it was folded or always fails
+    private static boolean isCandidate(AstNode node) {
+        if (node instanceof UnaryOpNode n)
+            return n.operator.type != TokenType.PRINT && readsVariable(n.operand) && decodes(n) && !callsOrReadsArray(n);
+        if (node instanceof BinaryOpNode n)
+            return !isAssign(n.operator.type) && (readsVariable(n.left) || readsVariable(n.right)) && decodes(n) && !callsOrReadsArray(n);
+        return false;
+    }
+
+    private static boolean callsOrReadsArray(AstNode node) {
+        if (node instanceof ArrayNode || node instanceof CallNode)
+            return true;
+        if (node instanceof UnaryOpNode n)
+            return callsOrReadsArray(n.operand);
+        if (node instanceof BinaryOpNode n)
+            return callsOrReadsArray(n.left) || callsOrReadsArray(n.right);
+        return false;
+    }
+
+    private static boolean readsVariable(AstNode node) {
+        if (node instanceof VariableNode)
+            return true;
+        if (node instanceof UnaryOpNode n)
+            return readsVariable(n.operand);
+        if (node instanceof BinaryOpNode n)
+            return readsVariable(n.left) || readsVariable(n.right);
+        return false;
+    }
+
+    // no literal in it that fails, those are never worth a slot
+    private static boolean decodes(AstNode node) {
+        if (node instanceof LiteralNode n)
+            return n.error == null;
+        if (node instanceof UnaryOpNode n)
+            return decodes(n.operand);
+        if (node instanceof BinaryOpNode n)
+            return decodes(n.left) && decodes(n.right);
+        return true;
+    }
+
+    // equal keys mean equal values for the same variables
+    private String key(AstNode node) {
+        String key = keys.get(node);
+        if (key != null)
+            return key;
+
+        if (node instanceof LiteralNode n) {
+            key = switch (n.value.getType()) {
+                case FLOAT -> "F" + Float.floatToRawIntBits(n.value.asFloat());
+                case STRING -> "S" + n.value.asString().length() + ':' + n.value.asString();
+                default -> n.value.getType().name().charAt(0) + n.value.toString();
+            };
+        } else if (node instanceof ConstantNode n) {
+            key = "C" + n.constant.type;
+        } else if (node instanceof VariableNode n) {
+            key = "V" + n.index;
+        } else if (node instanceof UnaryOpNode n) {
+            key = n.operator.type + "(" + key(n.operand) + ")";
+        } else if (node instanceof BinaryOpNode n) {
+            key = n.operator.type + "(" + key(n.left) + "," + key(n.right) + ")";
+        } else {
+            key = "#" + System.identityHashCode(node);
+        }
+
+        keys.put(node, key);
+        return key;
+    }
+
+    private static void collectReads(AstNode node, IntSet reads) {
+        if (node instanceof VariableNode n) {
+            reads.add(n.index);
+        } else if (node instanceof UnaryOpNode n) {
+            collectReads(n.operand, reads);
+        } else if (node instanceof BinaryOpNode n) {
+            collectReads(n.left, reads);
+            collectReads(n.right, reads);
+        }
+    }
+
+    private static void collectAssigned(AstNode node, IntSet assigned) {
+        if (node instanceof BinaryOpNode n && isAssign(n.operator.type) && n.left instanceof VariableNode v) {
+            assigned.add(v.index);
+        } else if (node instanceof ArrayNode n && (n.operator.type == TokenType.ARRAY_NEW || n.operator.type == TokenType.ARRAY_SET)) {
+            assigned.add(n.array.index);
+        } else if (node instanceof BlockNode n) {
+            for (AstNode statement : n.statements)
+                collectAssigned(statement, assigned);
+        } else if (node instanceof IfNode n) {
+            collectAssigned(n.thenBranchNode, assigned);
+            collectAssigned(n.elseBranchNode, assigned);
+        } else if (node instanceof WhileNode n) {
+            collectAssigned(n.bodyNode, assigned);
+        } else if (node instanceof ForNode n) {
+            collectAssigned(n.initializerNode, assigned);
+            collectAssigned(n.incrementNode, assigned);
+            collectAssigned(n.bodyNode, assigned);
+        } else if (node instanceof FillNode n) {
+            collectAssigned(n.loop, assigned);
+        }
+    }
+
+    private static AstNode wrap(IntArrayList slots, AstNode node) {
+        return slots.isEmpty() ? node : new CacheScopeNode(slots.toIntArray(), node);
+    }
+
+    private static boolean isAssign(TokenType op) {
+        return op == TokenType.INT || op == TokenType.FLOAT || op == TokenType.BOOL || op == TokenType.STRING;
+    }
+}
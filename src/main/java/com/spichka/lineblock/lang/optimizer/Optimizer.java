@@ -0,0 +1,211 @@
+package com.spichka.lineblock.lang.optimizer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.spichka.lineblock.lang.interpreter.Operations;
+import com.spichka.lineblock.lang.interpreter.Value;
+import com.spichka.lineblock.lang.lexer.Token;
+import com.spichka.lineblock.lang.lexer.TokenType;
+import com.spichka.lineblock.lang.parser.ast.ArrayNode;
+import com.spichka.lineblock.lang.parser.ast.AstNode;
+import com.spichka.lineblock.lang.parser.ast.BinaryOpNode;
+import com.spichka.lineblock.lang.parser.ast.BlockNode;
+import com.spichka.lineblock.lang.parser.ast.CallNode;
+import com.spichka.lineblock.lang.parser.ast.CommandNode;
+import com.spichka.lineblock.lang.parser.ast.ConstantNode;
+import com.spichka.lineblock.lang.parser.ast.ForNode;
+import com.spichka.lineblock.lang.parser.ast.IfNode;
+import com.spichka.lineblock.lang.parser.ast.LiteralNode;
+import com.spichka.lineblock.lang.parser.ast.PlaceBlockNode;
+import com.spichka.lineblock.lang.parser.ast.ProcedureNode;
+import com.spichka.lineblock.lang.parser.ast.UnaryOpNode;
+import com.spichka.lineblock.lang.parser.ast.WhileNode;
+
+// Runs between the Parser and the Interpreter: folds operators on literals and PI/E
+// into literals, replaces IFs with a constant condition by the branch that runs and
+// drops statements no run can reach after a STOP, BREAK or CONTINUE. RegionFill then
+// turns FOR nests that only place blocks into fills, and the Hoister caches
+// loop-invariant and repeated expressions.
+//
+// Nothing that could behave differently is touched: an operator that fails (division
+// by zero, wrong types) stays in the tree and fails at runtime as before, and the
+// flag checks the Interpreter does before every statement of a block are kept.
+public final class Optimizer {
+    // longest STRING that is built while folding, longer ones are left for runtime
+    private static final int MAX_FOLDED_STRING = 4096;
+
+    // what a statement always leaves behind for the statements after it
+    private enum Exit { NONE, CONTINUE, STOP } // STOP is also BREAK: neither is reset by a block
+
+    private Optimizer() {}
+
+    // returns the optimized top-level statement, node itself is not changed
+    public static AstNode optimize(AstNode node) {
+        return Hoister.hoist(RegionFill.fills(fold(node)));
+    }
+
+    private static AstNode fold(AstNode node) {
+        if (node instanceof BlockNode n) return optimizeBlock(n);
+        else if (node instanceof UnaryOpNode n) return optimizeUnaryOp(n);
+        else if (node instanceof BinaryOpNode n) return optimizeBinaryOp(n);
+        else if (node instanceof ConstantNode n && (n.constant.type == TokenType.PI || n.constant.type == TokenType.E))
+            return literal(n.constant, Operations.constant(n.constant));
+        else if (node instanceof PlaceBlockNode n) return new PlaceBlockNode(fold(n.x), fold(n.y), fold(n.z), n.block);
+        else if (node instanceof IfNode n) return optimizeIf(n);
+        else if (node instanceof WhileNode n) return new WhileNode(fold(n.conditionNode), fold(n.bodyNode));
+        else if (node instanceof ForNode n) return new ForNode(fold(n.initializerNode), fold(n.conditionNode), fold(n.incrementNode), fold(n.bodyNode));
+        else if (node instanceof ArrayNode n) return new ArrayNode(n.operator, n.element, n.array, fold(n.index), fold(n.value));
+        else if (node instanceof ProcedureNode n) return new ProcedureNode(n.define, n.index, n.parameters, n.types, fold(n.body), fold(n.result));
+        else if (node instanceof CallNode n) return optimizeCall(n);
+
+        return node; // literals, variables, commands and null
+    }
+
+    private static AstNode optimizeCall(CallNode n) {
+        List<AstNode> arguments = new ArrayList<>(n.arguments.size());
+        for (AstNode argument : n.arguments)
+            arguments.add(fold(argument));
+        return new CallNode(n.call, n.index, arguments);
+    }
+
+    private static BlockNode optimizeBlock(BlockNode n) {
+        BlockNode block = new BlockNode();
+        int last = n.statements.size() - 1;
+
+        for (int i = 0; i <= last; i++) {
+            AstNode statement = fold(n.statements.get(i));
+
+            // an empty block does nothing, but the last statement is where a leftover
+            // CONTINUE is reset, so that one stays
+            if (i < last && statement instanceof BlockNode b && b.statements.isEmpty())
+                continue;
+
+            block.addStatement(statement);
+
+            Exit exit = exit(statement);
+            if (exit == Exit.STOP)
+                break;
+            if (exit == Exit.CONTINUE) {
+                if (i < last)
+                    block.addStatement(new BlockNode()); // never runs, resets the CONTINUE
+                break;
+            }
+        }
+
+        return block;
+    }
+
+    private static AstNode optimizeIf(IfNode n) {
+        AstNode condition = fold(n.conditionNode);
+        AstNode thenBranch = fold(n.thenBranchNode);
+        AstNode elseBranch = fold(n.elseBranchNode);
+
+        // a condition that is not BOOL fails at runtime, a missing then branch too
+        Value value = constantValue(condition);
+        if (value != null && value.getType() == Value.Type.BOOL) {
+            if (value.asBool() && thenBranch != null)
+                return thenBranch;
+            if (!value.asBool())
+                return elseBranch != null ? elseBranch : new BlockNode();
+        }
+
+        return new IfNode(condition, thenBranch, elseBranch);
+    }
+
+    private static AstNode optimizeUnaryOp(UnaryOpNode n) {
+        AstNode operand = fold(n.operand);
+
+        Value value = constantValue(operand);
+        if (value != null && n.operator.type != TokenType.PRINT) {
+            try {
+                return literal(n.operator, Operations.unary(n.operator, value));
+            } catch (RuntimeException e) {
+                // fails again when it runs (ArithmeticException for INT MOD 0)
+            }
+        }
+
+        return new UnaryOpNode(n.operator, operand);
+    }
+
+    private static AstNode optimizeBinaryOp(BinaryOpNode n) {
+        TokenType op = n.operator.type;
+
+        // assigns keep their variable
+        if (op == TokenType.INT || op == TokenType.FLOAT || op == TokenType.BOOL || op == TokenType.STRING)
+            return new BinaryOpNode(n.operator, n.left, fold(n.right));
+
+        AstNode left = fold(n.left);
+        AstNode right = fold(n.right);
+
+        Value leftValue = constantValue(left);
+        Value rightValue = constantValue(right);
+        if (leftValue != null && rightValue != null && !tooLong(op, leftValue, rightValue)) {
+            try {
+                return literal(n.operator, Operations.binary(n.operator, leftValue, rightValue));
+            } catch (RuntimeException e) {
+                // fails again when it runs (ArithmeticException for INT MOD 0)
+            }
+        }
+
+        return new BinaryOpNode(n.operator, left, right);
+    }
+
+    // value of a literal that can be evaluated without failing, otherwise null
+    private static Value constantValue(AstNode node) {
+        if (node instanceof LiteralNode n && n.error == null)
+            return n.value;
+        return null;
+    }
+
+    // string repetition could build huge strings for code that never runs
+    private static boolean tooLong(TokenType op, Value left, Value right) {
+        long length;
+        if (op == TokenType.MUL && left.getType() == Value.Type.STRING && right.getType() == Value.Type.INT)
+            length = (long) left.length() * right.asInt();
+        else if (op == TokenType.MUL && right.getType() == Value.Type.STRING && left.getType() == Value.Type.INT)
+            length = (long) right.length() * left.asInt();
+        else if (op == TokenType.PLUS && (left.getType() == Value.Type.STRING || right.getType() == Value.Type.STRING))
+            length = (long) left.toString().length() + right.toString().length();
+        else
+            return false;
+
+        return length > MAX_FOLDED_STRING;
+    }
+
+    private static Exit exit(AstNode node) {
+        if (node instanceof CommandNode n) {
+            return switch (n.token.type) {
+                case STOP, BREAK -> Exit.STOP;
+                case CONTINUE -> Exit.CONTINUE;
+                default -> Exit.NONE;
+            };
+        }
+
+        // a folded IF branch; a CONTINUE before its end is reset inside of it
+        if (node instanceof BlockNode n && !n.statements.isEmpty()) {
+            int last = n.statements.size() - 1;
+            for (int i = 0; i <= last; i++) {
+                Exit exit = exit(n.statements.get(i));
+                if (exit == Exit.STOP)
+                    return Exit.STOP;
+                if (exit == Exit.CONTINUE)
+                    return i == last ? Exit.CONTINUE : Exit.NONE;
+            }
+        }
+
+        return Exit.NONE;
+    }
+
+    // the literal that replaces a folded expression, at the position of its operator
+    private static LiteralNode literal(Token at, Value value) {
+        TokenType type = switch (value.getType()) {
+            case INT -> TokenType.INT;
+            case FLOAT -> TokenType.FLOAT;
+            case STRING -> TokenType.STRING;
+            case BOOL -> TokenType.BOOL;
+            case ARRAY -> throw new IllegalStateException("No operator on literals makes an ARRAY");
+        };
+        return new LiteralNode(at.withType(type), value);
+    }
+}
@@ -0,0 +1,298 @@
+package com.spichka.lineblock.lang.optimizer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.spichka.lineblock.lang.interpreter.Filler;
+import com.spichka.lineblock.lang.interpreter.Value;
+import com.spichka.lineblock.lang.lexer.TokenType;
+import com.spichka.lineblock.lang.parser.ast.AstNode;
+import com.spichka.lineblock.lang.parser.ast.BinaryOpNode;
+import com.spichka.lineblock.lang.parser.ast.BlockNode;
+import com.spichka.lineblock.lang.parser.ast.FillNode;
+import com.spichka.lineblock.lang.parser.ast.ForNode;
+import com.spichka.lineblock.lang.parser.ast.IfNode;
+import com.spichka.lineblock.lang.parser.ast.LiteralNode;
+import com.spichka.lineblock.lang.parser.ast.PlaceBlockNode;
+import com.spichka.lineblock.lang.parser.ast.ProcedureNode;
+import com.spichka.lineblock.lang.parser.ast.UnaryOpNode;
+import com.spichka.lineblock.lang.parser.ast.VariableNode;
+import com.spichka.lineblock.lang.parser.ast.WhileNode;
+
+// Replaces FOR nests that only place blocks by a FillNode. Every level is
+//     FOR (INT v = literal; v <, >, <= or >= literal; INT v = v + literal, literal + v or v - literal)
+// with a variable of its own, the next level alone in a block as its body, and one
+// PLACEBLOCK, alone or in a block, as the body of the innermost. Its coordinates may
+// only use INT literals and the nest's variables with + and -, and * or << by a
+// constant. Nothing in such a nest can fail or set a flag, and every value in it is
+// an int known from the variables, so running the FillNode places the same blocks
+// in the same order and leaves the variables as the loops would.
+public final class RegionFill {
+    // iterations of one level that box() follows at most
+    private static final int MAX_COUNTED = 1 << 16;
+    private static final long FAR = 1L << 40;
+
+    private RegionFill() {}
+
+    // node with every fill nest in it replaced, node itself is not changed
+    static AstNode fills(AstNode node) {
+        if (node instanceof BlockNode n) {
+            BlockNode block = new BlockNode();
+            for (AstNode statement : n.statements)
+                block.addStatement(fills(statement));
+            return block;
+        } else if (node instanceof IfNode n) {
+            return new IfNode(n.conditionNode, fills(n.thenBranchNode), fills(n.elseBranchNode));
+        } else if (node instanceof WhileNode n) {
+            return new WhileNode(n.conditionNode, fills(n.bodyNode));
+        } else if (node instanceof ForNode n) {
+            FillNode fill = detect(n);
+            if (fill != null)
+                return fill;
+            return new ForNode(n.initializerNode, n.conditionNode, n.incrementNode, fills(n.bodyNode));
+        } else if (node instanceof ProcedureNode n) {
+            return new ProcedureNode(n.define, n.index, n.parameters, n.types, fills(n.body), n.result);
+        }
+
+        return node;
+    }
+
+    // the FillNode that places what loop places, null if loop is not a fill nest
+    public static FillNode detect(ForNode loop) {
+        List<VariableNode> variables = new ArrayList<>();
+        List<int[]> counters = new ArrayList<>(); // start, step
+        List<TokenType> comparisons = new ArrayList<>();
+        List<Float> bounds = new ArrayList<>();
+
+        ForNode level = loop;
+        PlaceBlockNode place;
+        while (true) {
+            if (!(level.initializerNode instanceof BinaryOpNode init && init.operator.type == TokenType.INT
+                    && init.left instanceof VariableNode variable && intLiteral(init.right) != null))
+                return null;
+            for (VariableNode other : variables) {
+                if (other.index == variable.index)
+                    return null;
+            }
+
+            Integer step = step(level.incrementNode, variable.index);
+            if (step == null || !condition(level.conditionNode, variable.index, comparisons, bounds))
+                return null;
+
+            variables.add(variable);
+            counters.add(new int[] { intLiteral(init.right), step });
+
+            AstNode body = level.bodyNode;
+            if (body instanceof BlockNode b && b.statements.size() == 1)
+                body = b.statements.get(0);
+
+            if (body instanceof ForNode inner && level.bodyNode instanceof BlockNode) {
+                level = inner;
+            } else if (body instanceof PlaceBlockNode p) {
+                place = p;
+                break;
+            } else {
+                return null;
+            }
+        }
+
+        int[] x = affine(place.x, variables);
+        int[] y = affine(place.y, variables);
+        int[] z = affine(place.z, variables);
+        if (x == null || y == null || z == null)
+            return null;
+
+        int levels = variables.size();
+        int[] starts = new int[levels];
+        int[] steps = new int[levels];
+        float[] limits = new float[levels];
+        for (int i = 0; i < levels; i++) {
+            starts[i] = counters.get(i)[0];
+            steps[i] = counters.get(i)[1];
+            limits[i] = bounds.get(i);
+        }
+
+        return new FillNode(loop, variables.toArray(new VariableNode[0]), starts, steps,
+            comparisons.toArray(new TokenType[0]), limits, x, y, z, place.block);
+    }
+
+    // {minX, minY, minZ, maxX, maxY, maxZ} around the blocks n places; null if it places
+    // none, or a level runs too long to follow
+    public static int[] box(FillNode n) {
+        int levels = n.variables.length;
+        long[] min = new long[levels];
+        long[] max = new long[levels];
+        for (int i = 0; i < levels; i++) {
+            int value = n.starts[i];
+            int count = 0;
+            min[i] = max[i] = value;
+            for (; Filler.holds(n.comparisons[i], value, n.bounds[i]); value += n.steps[i]) {
+                if (++count > MAX_COUNTED)
+                    return null;
+                min[i] = Math.min(min[i], value);
+                max[i] = Math.max(max[i], value);
+            }
+            if (count == 0)
+                return null;
+        }
+
+        int[] box = new int[6];
+        int[][] coordinates = { n.x, n.y, n.z };
+        for (int c = 0; c < 3; c++) {
+            int[] coefficients = coordinates[c];
+            long low = coefficients[0];
+            long high = coefficients[0];
+            for (int i = 0; i < levels; i++) {
+                long a = coefficients[i + 1] * min[i]; // below 2^62
+                long b = coefficients[i + 1] * max[i];
+                low += Math.min(a, b);
+                high += Math.max(a, b);
+                if (Math.abs(low) > FAR || Math.abs(high) > FAR)
+                    return null; // keeps the sums from overflowing
+            }
+
+            if (low < Integer.MIN_VALUE || high > Integer.MAX_VALUE)
+                return null; // wraps around, could be anywhere
+            box[c] = (int) low;
+            box[c + 3] = (int) high;
+        }
+        return box;
+    }
+
+    // v op number or number op v; adds the comparison as v op bound
+    private static boolean condition(AstNode node, int index, List<TokenType> comparisons, List<Float> bounds) {
+        if (!(node instanceof BinaryOpNode n))
+            return false;
+
+        TokenType op = n.operator.type;
+        if (op != TokenType.LT && op != TokenType.GT && op != TokenType.LE && op != TokenType.GE)
+            return false;
+
+        Float bound;
+        if (isVariable(n.left, index) && (bound = number(n.right)) != null) {
+            comparisons.add(op);
+        } else if (isVariable(n.right, index) && (bound = number(n.left)) != null) {
+            comparisons.add(switch (op) {
+                case LT -> TokenType.GT;
+                case GT -> TokenType.LT;
+                case LE -> TokenType.GE;
+                default -> TokenType.LE;
+            });
+        } else {
+            return false;
+        }
+        bounds.add(bound);
+        return true;
+    }
+
+    // the step of INT v = v + step, step + v or v - (-step), null for anything else
+    private static Integer step(AstNode node, int index) {
+        if (!(node instanceof BinaryOpNode n && n.operator.type == TokenType.INT && isVariable(n.left, index)
+                && n.right instanceof BinaryOpNode sum))
+            return null;
+
+        if (sum.operator.type == TokenType.PLUS) {
+            if (isVariable(sum.left, index))
+                return intLiteral(sum.right);
+            if (isVariable(sum.right, index))
+                return intLiteral(sum.left);
+        } else if (sum.operator.type == TokenType.MINUS && isVariable(sum.left, index)) {
+            Integer subtracted = intLiteral(sum.right);
+            return subtracted != null ? -subtracted : null; // wraps like v - subtracted
+        }
+        return null;
+    }
+
+    // coefficients of node over the variables, constant first; null if node is not
+    // linear in them or uses anything else
+    private static int[] affine(AstNode node, List<VariableNode> variables) {
+        int[] result = new int[variables.size() + 1];
+
+        if (node instanceof LiteralNode) {
+            Integer value = intLiteral(node);
+            if (value == null)
+                return null;
+            result[0] = value;
+            return result;
+        } else if (node instanceof VariableNode n) {
+            for (int i = 0; i < variables.size(); i++) {
+                if (variables.get(i).index == n.index) {
+                    result[i + 1] = 1;
+                    return result;
+                }
+            }
+            return null;
+        } else if (node instanceof UnaryOpNode n) {
+            int[] operand = affine(n.operand, variables);
+            if (operand == null)
+                return null;
+            if (n.operator.type == TokenType.PLUS)
+                return operand;
+            if (n.operator.type == TokenType.MINUS)
+                return scale(operand, -1);
+            return null;
+        } else if (node instanceof BinaryOpNode n) {
+            int[] left = affine(n.left, variables);
+            int[] right = affine(n.right, variables);
+            if (left == null || right == null)
+                return null;
+
+            switch (n.operator.type) {
+                case PLUS, MINUS -> {
+                    int sign = n.operator.type == TokenType.PLUS ? 1 : -1;
+                    for (int i = 0; i < result.length; i++)
+                        result[i] = left[i] + sign * right[i];
+                    return result;
+                }
+                case MUL -> {
+                    if (isConstant(right))
+                        return scale(left, right[0]);
+                    if (isConstant(left))
+                        return scale(right, left[0]);
+                    return null;
+                }
+                case SHL -> {
+                    // x << c is x * 2^(c & 31) in int arithmetic
+                    return isConstant(right) ? scale(left, 1 << right[0]) : null;
+                }
+                default -> {
+                    return null;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static int[] scale(int[] coefficients, int factor) {
+        int[] result = new int[coefficients.length];
+        for (int i = 0; i < result.length; i++)
+            result[i] = coefficients[i] * factor;
+        return result;
+    }
+
+    private static boolean isConstant(int[] coefficients) {
+        for (int i = 1; i < coefficients.length; i++) {
+            if (coefficients[i] != 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isVariable(AstNode node, int index) {
+        return node instanceof VariableNode n && n.index == index;
+    }
+
+    private static Integer intLiteral(AstNode node) {
+        if (node instanceof LiteralNode n && n.error == null && n.value.getType() == Value.Type.INT)
+            return n.value.asInt();
+        return null;
+    }
+
+    private static Float number(AstNode node) {
+        if (node instanceof LiteralNode n && n.error == null
+                && (n.value.getType() == Value.Type.INT || n.value.getType() == Value.Type.FLOAT))
+            return n.value.toFloat();
+        return null;
+    }
+}
@@ -1,194 +1,343 @@
 package com.spichka.lineblock.lang.parser;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 import com.spichka.lineblock.lang.exceptions.LineBlockException;
+import com.spichka.lineblock.lang.interpreter.Value;
 import com.spichka.lineblock.lang.lexer.Token;
+import com.spichka.lineblock.lang.lexer.TokenSource;
 import com.spichka.lineblock.lang.lexer.TokenType;
+import com.spichka.lineblock.lang.parser.ast.ArrayNode;
 import com.spichka.lineblock.lang.parser.ast.AstNode;
 import com.spichka.lineblock.lang.parser.ast.BinaryOpNode;
 import com.spichka.lineblock.lang.parser.ast.BlockNode;
+import com.spichka.lineblock.lang.parser.ast.CallNode;
 import com.spichka.lineblock.lang.parser.ast.CommandNode;
 import com.spichka.lineblock.lang.parser.ast.ConstantNode;
 import com.spichka.lineblock.lang.parser.ast.ForNode;
 import com.spichka.lineblock.lang.parser.ast.IfNode;
 import com.spichka.lineblock.lang.parser.ast.LiteralNode;
 import com.spichka.lineblock.lang.parser.ast.PlaceBlockNode;
+import com.spichka.lineblock.lang.parser.ast.ProcedureNode;
 import com.spichka.lineblock.lang.parser.ast.UnaryOpNode;
 import com.spichka.lineblock.lang.parser.ast.VariableNode;
 import com.spichka.lineblock.lang.parser.ast.WhileNode;
 
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import net.minecraft.util.math.BlockPos;
-import net.minecraft.util.math.Vec3i;
 import net.minecraft.world.World;
 
 public class Parser {
-    private final List<Token> tokens;
+    private static final int ARGUMENTS_2 = TokenClass.FIRST_ARGUMENT | TokenClass.SECOND_ARGUMENT;
+    private static final int ARGUMENTS_3 = ARGUMENTS_2 | TokenClass.THRID_ARGUMENT;
+    private static final int ARGUMENTS_4 = ARGUMENTS_3 | TokenClass.FOURTH_ARGUMENT;
+    private static final int[] ARGUMENTS = {
+        TokenClass.FIRST_ARGUMENT, TokenClass.SECOND_ARGUMENT, TokenClass.THRID_ARGUMENT, TokenClass.FOURTH_ARGUMENT
+    };
+
+    // binding power of binary operators, 0 for everything else; prefix operators
+    // (parseFactor) bind tighter than all of them
+    private static final byte[] PRECEDENCE = new byte[TokenType.values().length];
+
+    static {
+        for (TokenType type : List.of(
+            TokenType.PLUS, TokenType.MINUS,
+            TokenType.AND, TokenType.OR, TokenType.XOR,
+            TokenType.LT, TokenType.GT, TokenType.LE, TokenType.GE, TokenType.EQ, TokenType.NE
+        ))
+            PRECEDENCE[type.ordinal()] = 1;
+
+        for (TokenType type : List.of(
+            TokenType.MUL, TokenType.DIV, TokenType.MOD, TokenType.POW,
+            TokenType.BIT_AND, TokenType.BIT_OR, TokenType.BIT_XOR, TokenType.SHL, TokenType.SHR
+        ))
+            PRECEDENCE[type.ordinal()] = 2;
+    }
+
+    private final TokenSource tokens;
     private final World world;
-    private Token currentToken;
+    private int current; // index of the last matched token
     private int position;
+    private LongArrayList worldReads; // blocks looked up in the world, if recorded
 
-    public Parser(World world, List<Token> tokens) {
+    public Parser(World world, TokenSource tokens) {
         this.tokens = tokens;
         this.world = world;
+        this.current = -1;
         this.position = 0;
     }
 
     public BlockNode parse() {
         BlockNode root = new BlockNode();
 
-        while (position < tokens.size()) {
-            AstNode codeLineNode = parseLine();
+        while (tokens.has(position)) {
+            AstNode codeLineNode = parseTopLevel();
             root.addStatement(codeLineNode);
         }
 
         return root;
     }
 
-    private Token match(List<TokenType> types) {
-        if (position < tokens.size()) {
-            Token currentToken = tokens.get(position);
+    // statement-at-a-time mode: the next top-level statement, null after the last one
+    public AstNode parseNext() {
+        tokens.release(current); // the last matched token is kept for error messages
+        if (!tokens.has(position))
+            return null;
 
-            if (types.contains(currentToken.type)) {
-                position++;
-                this.currentToken = currentToken;
-                return currentToken;
-            }
+        return parseTopLevel();
+    }
+
+    // parses the single top-level statement at position, getPosition() is its end afterwards
+    public AstNode parseStatement(int position) {
+        this.position = position;
+        this.current = position - 1;
+        return parseTopLevel();
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public void recordWorldReads(LongArrayList worldReads) {
+        this.worldReads = worldReads;
+    }
+
+    private boolean match(int classes) {
+        if (tokens.has(position) && TokenClass.is(tokens.type(position), classes)) {
+            current = position++;
+            return true;
         }
-        return null;
+        return false;
+    }
+
+    private void require(int classes) {
+        if (!match(classes))
+            throw new LineBlockException("One of " + TokenClass.describe(classes) + " required", currentToken());
     }
 
-    private Token require(List<TokenType> types) {
-        Token token = match(types);
-        if (token == null)
-            throw new LineBlockException("One of " + types + " required", currentToken);
-        return token;
+    // Token objects only exist for AST nodes and errors
+    private Token currentToken() {
+        return current < 0 ? null : tokens.token(current);
+    }
+
+    // procedures are only defined by top-level lines
+    private AstNode parseTopLevel() {
+        if (match(TokenClass.DEFINE))
+            return parseDefine();
+        return parseLine();
     }
 
     private AstNode parseLine() {
-        if (match(List.of(
-            TokenType.INT, TokenType.STRING,
-            TokenType.FLOAT, TokenType.BOOL
-        )) != null) {
+        if (match(TokenClass.VALUE)) {
            return parseVariable();
-        } else if (match(List.of(TokenType.COMMAND, TokenType.STOP, TokenType.BREAK, TokenType.CONTINUE)) != null) {
-            return new CommandNode(currentToken);
-        } else if (match(List.of(TokenType.PRINT)) != null) {
-            Token operator = currentToken;
+        } else if (match(TokenClass.COMMAND)) {
+            return new CommandNode(currentToken());
+        } else if (match(TokenClass.PRINT)) {
+            Token operator = currentToken();
             return new UnaryOpNode(operator, parseExpression());
-        } else if (match(List.of(TokenType.PLACEBLOCK)) != null) {
+        } else if (match(TokenClass.PLACEBLOCK)) {
             return parsePlaceBlock();
-        } else if (match(List.of(TokenType.IF)) != null) {
+        } else if (match(TokenClass.IF)) {
             return parseIf();
-        } else if (match(List.of(TokenType.WHILE)) != null) {
+        } else if (match(TokenClass.WHILE)) {
             return parseWhile();
-        } else if (match(List.of(TokenType.FOR)) != null) {
+        } else if (match(TokenClass.FOR)) {
             return parseFor();
+        } else if (match(TokenClass.ARRAY_NEW)) {
+            return parseArrayNew();
+        } else if (match(TokenClass.ARRAY_SET)) {
+            Token set = currentToken();
+            VariableNode array = new VariableNode(set, countTokens(TokenClass.VAR_INDEX));
+            AstNode index = parseFactor();
+            return new ArrayNode(set, null, array, index, parseExpression());
+        } else if (match(TokenClass.DEFINE)) {
+            throw new LineBlockException("DEFINE must be a top-level line", currentToken());
+        } else if (match(TokenClass.CALL)) {
+            return parseCall();
         }
 
-        throw new LineBlockException("Wrong block", currentToken);
+        throw new LineBlockException("Wrong block", currentToken());
     }
 
     private AstNode parseVariable() {
-        Token assign = currentToken;
+        Token assign = currentToken();
 
         VariableNode variableNode;
         AstNode expressionNode;
-        if (match(List.of(TokenType.VAR_INDEX)) != null) {
+        if (match(TokenClass.VAR_INDEX)) {
             // first variable index, then expression
-            List<Token> varIndexTokens = new ArrayList<Token>();
-            varIndexTokens.add(currentToken);
-            varIndexTokens.addAll(collectTokens(List.of(TokenType.VAR_INDEX)));
-            variableNode = new VariableNode(varIndexTokens);
+            variableNode = new VariableNode(assign, 1 + countTokens(TokenClass.VAR_INDEX));
             expressionNode = parseExpression();
         } else {
             // first expression, then variable index
             expressionNode = parseExpression();
-            variableNode = new VariableNode(collectTokens(List.of(TokenType.VAR_INDEX)));
+            variableNode = new VariableNode(assign, countTokens(TokenClass.VAR_INDEX));
         }
 
         BinaryOpNode binaryOpNode = new BinaryOpNode(assign, variableNode, expressionNode);
         return binaryOpNode;
     }
 
-    private AstNode parseTerm() {
+    // the element type block, then the variable index and the length as in an assign
+    private AstNode parseArrayNew() {
+        Token create = currentToken();
+        require(TokenClass.VALUE);
+        Value.Type element = valueType(tokens.type(current));
+
+        VariableNode array;
+        AstNode length;
+        if (match(TokenClass.VAR_INDEX)) {
+            array = new VariableNode(create, 1 + countTokens(TokenClass.VAR_INDEX));
+            length = parseExpression();
+        } else {
+            length = parseExpression();
+            array = new VariableNode(create, countTokens(TokenClass.VAR_INDEX));
+        }
+
+        return new ArrayNode(create, element, array, length, null);
+    }
+
+    // the procedure index, FIRST_ARGUMENT with a type block and a variable index for
+    // each parameter, SECOND_ARGUMENT with the body up to BLOCK_END, then maybe
+    // THRID_ARGUMENT with the result
+    private AstNode parseDefine() {
+        Token define = currentToken();
+        int index = countTokens(TokenClass.VAR_INDEX);
+
+        require(TokenClass.FIRST_ARGUMENT);
+        List<VariableNode> parameters = new ArrayList<>();
+        List<Value.Type> types = new ArrayList<>();
+        while (match(TokenClass.VALUE)) {
+            Token type = currentToken();
+            if (parameters.size() == ARGUMENTS.length)
+                throw new LineBlockException("DEFINE takes at most " + ARGUMENTS.length + " parameters", type);
+
+            types.add(valueType(type.type));
+            parameters.add(new VariableNode(type, countTokens(TokenClass.VAR_INDEX)));
+        }
+
+        require(TokenClass.SECOND_ARGUMENT);
+        AstNode body = parseBlock();
+        AstNode result = match(TokenClass.THRID_ARGUMENT) ? parseExpression() : null;
+
+        return new ProcedureNode(define, index, parameters.toArray(VariableNode[]::new),
+            types.toArray(Value.Type[]::new), body, result);
+    }
+
+    // the procedure index, then the arguments after FIRST_ARGUMENT, SECOND_ARGUMENT
+    // and so on in order, closed by BLOCK_END if there are any
+    private AstNode parseCall() {
+        Token call = currentToken();
+        int index = countTokens(TokenClass.VAR_INDEX);
+
+        List<AstNode> arguments = new ArrayList<>();
+        while (arguments.size() < ARGUMENTS.length && match(ARGUMENTS[arguments.size()]))
+            arguments.add(parseExpression());
+        if (!arguments.isEmpty())
+            require(TokenClass.BLOCK_END);
+
+        return new CallNode(call, index, arguments);
+    }
+
+    private static Value.Type valueType(TokenType type) {
+        return switch (type) {
+            case INT -> Value.Type.INT;
+            case FLOAT -> Value.Type.FLOAT;
+            case BOOL -> Value.Type.BOOL;
+            default -> Value.Type.STRING;
+        };
+    }
+
+    private AstNode parseExpression() {
+        return parseExpression(1);
+    }
+
+    // precedence climbing: binary operators of at least minPrecedence, left associative
+    private AstNode parseExpression(int minPrecedence) {
         AstNode node = parseFactor();
 
-        while (match(List.of(
-            TokenType.MUL, TokenType.DIV, TokenType.MOD, TokenType.POW,
-            TokenType.BIT_AND, TokenType.BIT_OR, TokenType.BIT_XOR, TokenType.SHL, TokenType.SHR
-        )) != null) {
-            Token token = currentToken;
-            node = new BinaryOpNode(token, node, parseFactor());
+        while (tokens.has(position)) {
+            int precedence = PRECEDENCE[tokens.type(position).ordinal()];
+            if (precedence == 0 || precedence < minPrecedence)
+                break;
+
+            current = position++;
+            Token token = currentToken();
+            node = new BinaryOpNode(token, node, parseExpression(precedence + 1));
         }
 
         return node;
     }
 
     private AstNode parseFactor() {
-        if (match(List.of(
-            TokenType.PLUS, TokenType.MINUS,
-            TokenType.NOT, TokenType.BIT_NOT,
-            TokenType.SIN, TokenType.COS, TokenType.TAN,
-            TokenType.ASIN, TokenType.ACOS, TokenType.ATAN,
-            TokenType.ABS, TokenType.CEIL, TokenType.FLOOR
-        )) != null) {
-            Token operator = currentToken;
+        if (match(TokenClass.UNARY)) {
+            Token operator = currentToken();
             return new UnaryOpNode(operator, parseFactor());
 
-        } else if (match(List.of(TokenType.LPAR)) != null) {
+        } else if (match(TokenClass.LPAR)) {
             AstNode node = parseExpression();
-            require(List.of(TokenType.RPAR));
+            require(TokenClass.RPAR);
             return node;
 
-        } else if (match(List.of(
-            TokenType.INT, TokenType.FLOAT,
-            TokenType.STRING, TokenType.BOOL
-        )) != null) {
-            Token type = currentToken;
-            LiteralNode literal = new LiteralNode(type, collectTokens(List.of(TokenType.ZERO, TokenType.ONE)));
+        } else if (match(TokenClass.VALUE)) {
+            Token type = currentToken();
+            BitSet bits = new BitSet();
+            int bitCount = 0;
+
+            while (match(TokenClass.BIT)) {
+                TokenType bit = tokens.type(current);
+
+                if (bit.isHexDigit()) {
+                    // lowest bit first, like four wool blocks
+                    int value = bit.hexValue();
+                    for (int i = 0; i < 4; i++) {
+                        if ((value >> i & 1) != 0)
+                            bits.set(bitCount);
+                        bitCount++;
+                    }
+                } else {
+                    if (bit == TokenType.ONE)
+                        bits.set(bitCount);
+                    bitCount++;
+                }
+            }
 
-            if (literal.bits.size() == 0)
+            if (bitCount == 0)
                 throw new LineBlockException("No bits for literal", type);
 
-            return literal;
+            return new LiteralNode(type, bits, bitCount);
 
-        } else if (match(List.of(TokenType.USE_VAR)) != null) {
-            return new VariableNode(collectTokens(List.of(TokenType.VAR_INDEX)));
+        } else if (match(TokenClass.USE_VAR)) {
+            Token useVar = currentToken();
+            return new VariableNode(useVar, countTokens(TokenClass.VAR_INDEX));
 
-        } else if (match(List.of(TokenType.PI, TokenType.E)) != null) {
-            return new ConstantNode(currentToken);
-        }
-        throw new LineBlockException("Expected another value", currentToken);
-    }
+        } else if (match(TokenClass.CONSTANT)) {
+            return new ConstantNode(currentToken());
 
-    private AstNode parseExpression() {
-        AstNode node = parseTerm();
+        } else if (match(TokenClass.ARRAY_GET)) {
+            Token get = currentToken();
+            VariableNode array = new VariableNode(get, countTokens(TokenClass.VAR_INDEX));
+            return new ArrayNode(get, null, array, parseFactor(), null);
 
-        while (match(List.of(
-            TokenType.PLUS, TokenType.MINUS,
-            TokenType.AND, TokenType.OR, TokenType.XOR,
-            TokenType.LT, TokenType.GT, TokenType.LE, TokenType.GE, TokenType.EQ, TokenType.NE
-        )) != null) {
-            Token token = currentToken;
-            node = new BinaryOpNode(token, node, parseTerm());
-        }
+        } else if (match(TokenClass.ARRAY_LENGTH)) {
+            Token length = currentToken();
+            return new ArrayNode(length, null, new VariableNode(length, countTokens(TokenClass.VAR_INDEX)), null, null);
 
-        return node;
+        } else if (match(TokenClass.CALL)) {
+            return parseCall();
+        }
+        throw new LineBlockException("Expected another value", currentToken());
     }
 
-    private List<Token> collectTokens(List<TokenType> validTypes) {
-        List<Token> collected = new ArrayList<>();
+    private int countTokens(int classes) {
+        int count = 0;
 
-        while (position < tokens.size()) {
-            if (match(validTypes) != null)
-                collected.add(currentToken);
-            else
-                break;
-        }
+        while (match(classes))
+            count++;
 
-        return collected;
+        return count;
     }
 
     private AstNode parsePlaceBlock() {
@@ -196,41 +345,46 @@ public class Parser {
         AstNode placeY = null;
         AstNode placeZ = null;
 
-        BlockPos placeBlockPos = currentToken.pos;
+        Token placeBlockToken = currentToken();
+        BlockPos placeBlockPos = placeBlockToken.getBlockPos();
         BlockPos fourthArgumentPos = null;
 
         for (int i = 0; i < 4; i++) {
-            if (match(List.of(
-                TokenType.FIRST_ARGUMENT, TokenType.SECOND_ARGUMENT,
-                TokenType.THRID_ARGUMENT, TokenType.FOURTH_ARGUMENT
-            )) != null) {
-                Token argToken = currentToken;
+            if (match(ARGUMENTS_4)) {
+                Token argToken = currentToken();
 
                 switch (argToken.type) {
                     case FIRST_ARGUMENT -> placeX = parseExpression();
                     case SECOND_ARGUMENT -> placeY = parseExpression();
                     case THRID_ARGUMENT -> placeZ = parseExpression();
-                    case FOURTH_ARGUMENT -> fourthArgumentPos = argToken.pos;
+                    case FOURTH_ARGUMENT -> fourthArgumentPos = argToken.getBlockPos();
                     default -> {}
                 }
-            } else {
+            } else if (tokens.has(position)) {
                 position++; // if fourth argument and tokenized block
                 i--;
+            } else {
+                throw new LineBlockException("PLACEBLOCK expects 4 arguments", placeBlockToken);
             }
         }
 
+        if (placeX == null || placeY == null || placeZ == null || fourthArgumentPos == null)
+            throw new LineBlockException("PLACEBLOCK expects 4 arguments", placeBlockToken);
+
         int x = fourthArgumentPos.getX() + (fourthArgumentPos.getX() - placeBlockPos.getX());
         int y = fourthArgumentPos.getY() + (fourthArgumentPos.getY() - placeBlockPos.getY());
         int z = fourthArgumentPos.getZ() + (fourthArgumentPos.getZ() - placeBlockPos.getZ());
 
-        BlockPos pos = new BlockPos(new Vec3i(x, y, z));
+        BlockPos pos = new BlockPos(x, y, z);
+        if (worldReads != null)
+            worldReads.add(pos.asLong());
         return new PlaceBlockNode(placeX, placeY, placeZ, world.getBlockState(pos).getBlock());
     }
 
     private AstNode parseBlock() {
         BlockNode root = new BlockNode();
 
-        while (match(List.of(TokenType.BLOCK_END)) == null) {
+        while (!match(TokenClass.BLOCK_END)) {
             AstNode codeLineNode = parseLine();
             root.addStatement(codeLineNode);
         }
@@ -244,11 +398,8 @@ public class Parser {
         AstNode elseBranchNode = null;
 
         for (int i = 0; i < 3; i++) {
-            if (match(List.of(
-                TokenType.FIRST_ARGUMENT, TokenType.SECOND_ARGUMENT,
-                TokenType.THRID_ARGUMENT
-            )) != null) {
-                Token argToken = currentToken;
+            if (match(ARGUMENTS_3)) {
+                Token argToken = currentToken();
 
                 switch (argToken.type) {
                     case FIRST_ARGUMENT -> conditionNode = parseExpression();
@@ -265,16 +416,14 @@ public class Parser {
     }
 
     private AstNode parseWhile() {
-        Token whileToken = currentToken;
+        Token whileToken = currentToken();
 
         AstNode conditionNode = null;
         AstNode bodyNode = null;
 
         for (int i = 0; i < 2; i++) {
-            if (match(List.of(
-                TokenType.FIRST_ARGUMENT, TokenType.SECOND_ARGUMENT
-            )) != null) {
-                Token argToken = currentToken;
+            if (match(ARGUMENTS_2)) {
+                Token argToken = currentToken();
 
                 switch (argToken.type) {
                     case FIRST_ARGUMENT -> conditionNode = parseExpression();
@@ -290,7 +439,7 @@ public class Parser {
     }
 
     private AstNode parseFor() {
-        Token forToken = currentToken;
+        Token forToken = currentToken();
 
         AstNode initNode = null;
         AstNode conditionNode = null;
@@ -298,20 +447,17 @@ public class Parser {
         AstNode bodyNode = null;
 
         for (int i = 0; i < 4; i++) {
-            if (match(List.of(
-                TokenType.FIRST_ARGUMENT, TokenType.SECOND_ARGUMENT,
-                TokenType.THRID_ARGUMENT, TokenType.FOURTH_ARGUMENT
-            )) != null) {
-                Token argToken = currentToken;
+            if (match(ARGUMENTS_4)) {
+                Token argToken = currentToken();
 
                 switch (argToken.type) {
                     case FIRST_ARGUMENT -> {
-                        require(List.of(TokenType.INT, TokenType.FLOAT, TokenType.STRING, TokenType.BOOL));
+                        require(TokenClass.VALUE);
                         initNode = parseVariable();
                     }
                     case SECOND_ARGUMENT -> conditionNode = parseExpression();
                     case THRID_ARGUMENT -> {
-                        require(List.of(TokenType.INT, TokenType.FLOAT, TokenType.STRING, TokenType.BOOL));
+                        require(TokenClass.VALUE);
                         // i = i + 1, because no i++
                         incrementNode = parseVariable();
                     }
@@ -0,0 +1,99 @@
+package com.spichka.lineblock.lang.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.spichka.lineblock.lang.lexer.TokenType;
+
+// Token classes as bit flags, looked up per TokenType ordinal, so the parser can test
+// a token against a whole set of types with one array read and an AND
+public final class TokenClass {
+    public static final int VALUE = 1; // INT FLOAT STRING BOOL
+    public static final int COMMAND = 1 << 1; // COMMAND STOP BREAK CONTINUE
+    public static final int PRINT = 1 << 2;
+    public static final int PLACEBLOCK = 1 << 3;
+    public static final int IF = 1 << 4;
+    public static final int WHILE = 1 << 5;
+    public static final int FOR = 1 << 6;
+    public static final int UNARY = 1 << 7; // prefix operators and math functions
+    public static final int LPAR = 1 << 8;
+    public static final int RPAR = 1 << 9;
+    public static final int BIT = 1 << 10; // wool and concrete literal bits
+    public static final int USE_VAR = 1 << 11;
+    public static final int VAR_INDEX = 1 << 12;
+    public static final int CONSTANT = 1 << 13; // PI E
+    public static final int FIRST_ARGUMENT = 1 << 14;
+    public static final int SECOND_ARGUMENT = 1 << 15;
+    public static final int THRID_ARGUMENT = 1 << 16;
+    public static final int FOURTH_ARGUMENT = 1 << 17;
+    public static final int BLOCK_END = 1 << 18;
+    public static final int ARRAY_NEW = 1 << 19;
+    public static final int ARRAY_GET = 1 << 20;
+    public static final int ARRAY_SET = 1 << 21;
+    public static final int ARRAY_LENGTH = 1 << 22;
+    public static final int DEFINE = 1 << 23;
+    public static final int CALL = 1 << 24;
+
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final int[] CLASSES = new int[TYPES.length];
+
+    static {
+        put(VALUE, TokenType.INT, TokenType.FLOAT, TokenType.STRING, TokenType.BOOL);
+        put(COMMAND, TokenType.COMMAND, TokenType.STOP, TokenType.BREAK, TokenType.CONTINUE);
+        put(PRINT, TokenType.PRINT);
+        put(PLACEBLOCK, TokenType.PLACEBLOCK);
+        put(IF, TokenType.IF);
+        put(WHILE, TokenType.WHILE);
+        put(FOR, TokenType.FOR);
+        put(UNARY,
+            TokenType.PLUS, TokenType.MINUS,
+            TokenType.NOT, TokenType.BIT_NOT,
+            TokenType.SIN, TokenType.COS, TokenType.TAN,
+            TokenType.ASIN, TokenType.ACOS, TokenType.ATAN,
+            TokenType.ABS, TokenType.CEIL, TokenType.FLOOR
+        );
+        put(LPAR, TokenType.LPAR);
+        put(RPAR, TokenType.RPAR);
+        put(USE_VAR, TokenType.USE_VAR);
+        put(VAR_INDEX, TokenType.VAR_INDEX);
+        put(CONSTANT, TokenType.PI, TokenType.E);
+        put(FIRST_ARGUMENT, TokenType.FIRST_ARGUMENT);
+        put(SECOND_ARGUMENT, TokenType.SECOND_ARGUMENT);
+        put(THRID_ARGUMENT, TokenType.THRID_ARGUMENT);
+        put(FOURTH_ARGUMENT, TokenType.FOURTH_ARGUMENT);
+        put(BLOCK_END, TokenType.BLOCK_END);
+        put(ARRAY_NEW, TokenType.ARRAY_NEW);
+        put(ARRAY_GET, TokenType.ARRAY_GET);
+        put(ARRAY_SET, TokenType.ARRAY_SET);
+        put(ARRAY_LENGTH, TokenType.ARRAY_LENGTH);
+        put(DEFINE, TokenType.DEFINE);
+        put(CALL, TokenType.CALL);
+
+        put(BIT, TokenType.ZERO, TokenType.ONE);
+        for (TokenType type : TYPES) {
+            if (type.isHexDigit())
+                put(BIT, type);
+        }
+    }
+
+    private TokenClass() {}
+
+    public static boolean is(TokenType type, int classes) {
+        return (CLASSES[type.ordinal()] & classes) != 0;
+    }
+
+    // the token types of classes, for error messages
+    public static List<TokenType> describe(int classes) {
+        List<TokenType> types = new ArrayList<>();
+        for (TokenType type : TYPES) {
+            if (is(type, classes))
+                types.add(type);
+        }
+        return types;
+    }
+
+    private static void put(int flag, TokenType... types) {
+        for (TokenType type : types)
+            CLASSES[type.ordinal()] |= flag;
+    }
+}
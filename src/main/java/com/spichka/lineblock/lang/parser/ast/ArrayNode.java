@@ -0,0 +1,31 @@
+package com.spichka.lineblock.lang.parser.ast;
+
+import com.spichka.lineblock.lang.interpreter.Value;
+import com.spichka.lineblock.lang.lexer.Token;
+
+// One of the ARRAY blocks, the operator says which:
+//     ARRAY_NEW     array = a new ARRAY of index elements of type element
+//     ARRAY_GET     element index of array
+//     ARRAY_SET     element index of array = value
+//     ARRAY_LENGTH  the number of elements of array
+// Fields a block does not have are null.
+public class ArrayNode extends AstNode {
+    public final Token operator;
+    public final Value.Type element; // ARRAY_NEW only
+    public final VariableNode array;
+    public final AstNode index; // the length for ARRAY_NEW
+    public final AstNode value;
+
+    public ArrayNode(Token operator, Value.Type element, VariableNode array, AstNode index, AstNode value) {
+        this.operator = operator;
+        this.element = element;
+        this.array = array;
+        this.index = index;
+        this.value = value;
+    }
+
+    @Override
+    public String toString() {
+        return "Array(" + operator + ", " + array + ", " + index + ", " + value + ')';
+    }
+}
@@ -1,16 +1,25 @@
 package com.spichka.lineblock.lang.parser.ast;
 
+import com.spichka.lineblock.lang.interpreter.Operation;
+import com.spichka.lineblock.lang.interpreter.Specialization;
 import com.spichka.lineblock.lang.lexer.Token;
 
 public class BinaryOpNode extends AstNode {
     public final Token operator;
     public final AstNode left;
     public final AstNode right;
+    public final Operation operation; // set by the TypeChecker when the operand types are known
+    public Specialization specialization; // what runs saw while operation is null, see Specialization
 
     public BinaryOpNode(Token operator, AstNode left, AstNode right) {
+        this(operator, left, right, null);
+    }
+
+    public BinaryOpNode(Token operator, AstNode left, AstNode right, Operation operation) {
         this.operator = operator;
         this.left = left;
         this.right = right;
+        this.operation = operation;
     }
 
     @Override
@@ -0,0 +1,18 @@
+package com.spichka.lineblock.lang.parser.ast;
+
+// an expression whose value is kept in a cache slot the first time it is evaluated,
+// until the CacheScopeNode that owns the slot starts again (see Hoister)
+public class CacheNode extends AstNode {
+    public final int slot;
+    public final AstNode expression;
+
+    public CacheNode(int slot, AstNode expression) {
+        this.slot = slot;
+        this.expression = expression;
+    }
+
+    @Override
+    public String toString() {
+        return "Cache(" + slot + ", " + expression + ")";
+    }
+}
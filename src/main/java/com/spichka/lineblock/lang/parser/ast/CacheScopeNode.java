@@ -0,0 +1,26 @@
+package com.spichka.lineblock.lang.parser.ast;
+
+import java.util.Arrays;
+
+// empties its cache slots, then runs node: a loop whose invariant expressions are
+// cached, or a statement whose repeated expressions are
+public class CacheScopeNode extends AstNode {
+    public final int[] slots;
+    public final int size; // highest slot + 1
+    public final AstNode node;
+
+    public CacheScopeNode(int[] slots, AstNode node) {
+        this.slots = slots;
+        this.node = node;
+
+        int size = 0;
+        for (int slot : slots)
+            size = Math.max(size, slot + 1);
+        this.size = size;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheScope(" + Arrays.toString(slots) + ", " + node + ")";
+    }
+}
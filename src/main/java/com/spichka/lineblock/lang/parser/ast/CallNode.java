@@ -0,0 +1,31 @@
+package com.spichka.lineblock.lang.parser.ast;
+
+import java.util.List;
+
+import com.spichka.lineblock.lang.interpreter.Procedure;
+import com.spichka.lineblock.lang.lexer.Token;
+
+// CALL: runs procedure index with the values of arguments, its value is the
+// procedure's result. procedure is set by the TypeChecker.
+public class CallNode extends AstNode {
+    public final Token call;
+    public final int index;
+    public final List<AstNode> arguments;
+    public final Procedure procedure;
+
+    public CallNode(Token call, int index, List<AstNode> arguments, Procedure procedure) {
+        this.call = call;
+        this.index = index;
+        this.arguments = arguments;
+        this.procedure = procedure;
+    }
+
+    public CallNode(Token call, int index, List<AstNode> arguments) {
+        this(call, index, arguments, null);
+    }
+
+    @Override
+    public String toString() {
+        return "Call(" + index + ", " + arguments + ')';
+    }
+}
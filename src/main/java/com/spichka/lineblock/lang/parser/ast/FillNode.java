@@ -0,0 +1,47 @@
+package com.spichka.lineblock.lang.parser.ast;
+
+import java.util.Arrays;
+
+import com.spichka.lineblock.lang.lexer.TokenType;
+
+import net.minecraft.block.Block;
+
+// A nest of FOR loops whose only work is one PLACEBLOCK at coordinates linear in the
+// loop variables, found by the Optimizer (see RegionFill). loop is the nest as it was
+// parsed, for everything that looks at the variables it assigns.
+//
+// Level i (outermost first) counts variables[i] from starts[i] by steps[i] while
+// comparisons[i] (LT, GT, LE or GE) against bounds[i] holds. A coordinate is
+// coordinate[0] + the sum of coordinate[i + 1] * variable i, in int arithmetic.
+public class FillNode extends AstNode {
+    public final ForNode loop;
+    public final VariableNode[] variables;
+    public final int[] starts;
+    public final int[] steps;
+    public final TokenType[] comparisons;
+    public final float[] bounds;
+    public final int[] x;
+    public final int[] y;
+    public final int[] z;
+    public final Block block;
+
+    public FillNode(ForNode loop, VariableNode[] variables, int[] starts, int[] steps, TokenType[] comparisons, float[] bounds,
+            int[] x, int[] y, int[] z, Block block) {
+        this.loop = loop;
+        this.variables = variables;
+        this.starts = starts;
+        this.steps = steps;
+        this.comparisons = comparisons;
+        this.bounds = bounds;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.block = block;
+    }
+
+    @Override
+    public String toString() {
+        return "Fill(" + variables.length + " loops, " + Arrays.toString(x) + ", " + Arrays.toString(y) + ", "
+            + Arrays.toString(z) + ", " + block + ")";
+    }
+}
@@ -1,20 +1,45 @@
 package com.spichka.lineblock.lang.parser.ast;
 
-import java.util.List;
+import java.util.BitSet;
 
+import com.spichka.lineblock.lang.exceptions.LineBlockException;
+import com.spichka.lineblock.lang.interpreter.Value;
 import com.spichka.lineblock.lang.lexer.Token;
 
 public class LiteralNode extends AstNode {
     public Token type; // str, int, float or bool
-    public List<Token> bits;
+    public int bitCount;
 
-    public LiteralNode(Token type, List<Token> bits) {
+    // decoded once while parsing; a literal that cannot be decoded keeps its error,
+    // which is thrown when (and only if) the literal is evaluated
+    public final Value value;
+    public final LineBlockException error;
+
+    public LiteralNode(Token type, BitSet bits, int bitCount) {
+        this.type = type;
+        this.bitCount = bitCount;
+
+        Value decoded = null;
+        LineBlockException failure = null;
+        try {
+            decoded = Value.decode(type, bits, bitCount);
+        } catch (LineBlockException e) {
+            failure = e;
+        }
+        this.value = decoded;
+        this.error = failure;
+    }
+
+    // a value known before running, e.g. a folded expression; type has the value's type
+    public LiteralNode(Token type, Value value) {
         this.type = type;
-        this.bits = bits;
+        this.bitCount = 0;
+        this.value = value;
+        this.error = null;
     }
 
     @Override
     public String toString() {
-        return "Literal(" + type + ", " + bits.size() + ")";
+        return "Literal(" + type + ", " + bitCount + ")";
     }
 }
@@ -0,0 +1,32 @@
+package com.spichka.lineblock.lang.parser.ast;
+
+import java.util.Arrays;
+
+import com.spichka.lineblock.lang.interpreter.Value;
+import com.spichka.lineblock.lang.lexer.Token;
+
+// DEFINE: procedure index with parameters converted to types, like assigns, and
+// the lines of body run like top-level lines in a frame of its own; result is
+// evaluated there after them, null if the procedure has none. Running it does nothing, CallNodes run the procedure.
+public class ProcedureNode extends AstNode {
+    public final Token define;
+    public final int index;
+    public final VariableNode[] parameters;
+    public final Value.Type[] types;
+    public final AstNode body;
+    public final AstNode result;
+
+    public ProcedureNode(Token define, int index, VariableNode[] parameters, Value.Type[] types, AstNode body, AstNode result) {
+        this.define = define;
+        this.index = index;
+        this.parameters = parameters;
+        this.types = types;
+        this.body = body;
+        this.result = result;
+    }
+
+    @Override
+    public String toString() {
+        return "Procedure(" + index + ", " + Arrays.toString(parameters) + ", " + body + ", " + result + ')';
+    }
+}
@@ -1,14 +1,23 @@
 package com.spichka.lineblock.lang.parser.ast;
 
+import com.spichka.lineblock.lang.interpreter.Operation;
+import com.spichka.lineblock.lang.interpreter.Specialization;
 import com.spichka.lineblock.lang.lexer.Token;
 
 public class UnaryOpNode extends AstNode {
     public final Token operator;
     public final AstNode operand;
+    public final Operation operation; // set by the TypeChecker when the operand types are known
+    public Specialization specialization; // what runs saw while operation is null, see Specialization
 
     public UnaryOpNode(Token operator, AstNode operand) {
+        this(operator, operand, null);
+    }
+
+    public UnaryOpNode(Token operator, AstNode operand, Operation operation) {
         this.operator = operator;
         this.operand = operand;
+        this.operation = operation;
     }
 
     @Override
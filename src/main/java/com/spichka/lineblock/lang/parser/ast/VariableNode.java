@@ -1,19 +1,20 @@
 package com.spichka.lineblock.lang.parser.ast;
 
-import java.util.List;
-
 import com.spichka.lineblock.lang.lexer.Token;
 
 // contains the index of the variable (indexes are just shorter than names)
 public class VariableNode extends AstNode {
-    public final List<Token> index;
+    public final Token token; // USE_VAR or the assigning type block
+    public final int index; // number of VAR_INDEX blocks
+    public int slot = -1; // in the Interpreter's Frame, set by the Resolver
 
-    public VariableNode(List<Token> index) {
+    public VariableNode(Token token, int index) {
+        this.token = token;
         this.index = index;
     }
 
     @Override
     public String toString() {
-        return "VariableNode(" + index.size() + ')';
+        return "VariableNode(" + index + ')';
     }
 }
@@ -0,0 +1,246 @@
+package com.spichka.lineblock.lang.program;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import com.spichka.lineblock.lang.lexer.SharedToken;
+import com.spichka.lineblock.lang.lexer.Token;
+import com.spichka.lineblock.lang.lexer.TokenType;
+import com.spichka.lineblock.lang.optimizer.RegionFill;
+import com.spichka.lineblock.lang.parser.ast.ArrayNode;
+import com.spichka.lineblock.lang.parser.ast.AstNode;
+import com.spichka.lineblock.lang.parser.ast.BinaryOpNode;
+import com.spichka.lineblock.lang.parser.ast.BlockNode;
+import com.spichka.lineblock.lang.parser.ast.CacheNode;
+import com.spichka.lineblock.lang.parser.ast.CacheScopeNode;
+import com.spichka.lineblock.lang.parser.ast.CallNode;
+import com.spichka.lineblock.lang.parser.ast.CommandNode;
+import com.spichka.lineblock.lang.parser.ast.ConstantNode;
+import com.spichka.lineblock.lang.parser.ast.FillNode;
+import com.spichka.lineblock.lang.parser.ast.ForNode;
+import com.spichka.lineblock.lang.parser.ast.IfNode;
+import com.spichka.lineblock.lang.parser.ast.LiteralNode;
+import com.spichka.lineblock.lang.parser.ast.PlaceBlockNode;
+import com.spichka.lineblock.lang.parser.ast.ProcedureNode;
+import com.spichka.lineblock.lang.parser.ast.UnaryOpNode;
+import com.spichka.lineblock.lang.parser.ast.VariableNode;
+import com.spichka.lineblock.lang.parser.ast.WhileNode;
+
+import net.minecraft.util.math.BlockPos;
+
+// Hash-consing of the resolved and typed trees of all programs: structurally equal
+// subtrees are built once and shared, so many copies of one program cost about as
+// much heap as one. Token positions are made relative to the program start first
+// (see SharedToken), the start is all a program keeps to place them again.
+//
+// Left as they are: COMMAND tokens, the command block they run is in the world, and
+// literals that failed to decode, their error already has its position. Shapes no
+// program uses any more are dropped with their nodes. Server thread only.
+public final class AstInterner {
+    private static final Map<Key, Entry> SHAPES = new HashMap<>();
+    private static final ReferenceQueue<AstNode> COLLECTED = new ReferenceQueue<>();
+
+    private AstInterner() {}
+
+    // the shared tree equal to node, node's tokens are at world positions or shared already
+    public static AstNode intern(AstNode node, BlockPos start) {
+        purge();
+        return new Pass(start).node(node);
+    }
+
+    public static int size() {
+        purge();
+        return SHAPES.size();
+    }
+
+    public static void clear() {
+        SHAPES.clear();
+        while (COLLECTED.poll() != null);
+    }
+
+    private static void purge() {
+        Entry entry;
+        while ((entry = (Entry) COLLECTED.poll()) != null) {
+            if (SHAPES.get(entry.key) == entry)
+                SHAPES.remove(entry.key);
+        }
+    }
+
+    // one intern() call: the start that tokens are made relative to
+    private record Pass(BlockPos start) {
+        private AstNode node(AstNode node) {
+            if (node == null)
+                return null;
+
+            if (node instanceof LiteralNode n) {
+                if (n.error != null)
+                    return n;
+
+                Token type = token(n.type);
+                return shared(new Key(LiteralNode.class, type.type, type.pos, n.bitCount, n.value.getType(), n.value.getValue()), () -> {
+                    LiteralNode literal = new LiteralNode(type, n.value);
+                    literal.bitCount = n.bitCount;
+                    return literal;
+                });
+            } else if (node instanceof VariableNode n) {
+                Token token = token(n.token);
+                return shared(new Key(VariableNode.class, token.type, token.pos, n.index, n.slot), () -> {
+                    VariableNode variable = new VariableNode(token, n.index);
+                    variable.slot = n.slot;
+                    return variable;
+                });
+            } else if (node instanceof ConstantNode n) {
+                Token constant = token(n.constant);
+                return shared(new Key(ConstantNode.class, constant.type, constant.pos), () -> new ConstantNode(constant));
+            } else if (node instanceof CommandNode n) {
+                Token token = n.token.type == TokenType.COMMAND ? n.token : token(n.token);
+                return shared(new Key(CommandNode.class, token.type, token.pos, token instanceof SharedToken), () -> new CommandNode(token));
+            } else if (node instanceof UnaryOpNode n) {
+                Token operator = token(n.operator);
+                AstNode operand = node(n.operand);
+                return shared(new Key(UnaryOpNode.class, operator.type, operator.pos, n.operation, operand),
+                    () -> new UnaryOpNode(operator, operand, n.operation));
+            } else if (node instanceof BinaryOpNode n) {
+                Token operator = token(n.operator);
+                AstNode left = node(n.left);
+                AstNode right = node(n.right);
+                return shared(new Key(BinaryOpNode.class, operator.type, operator.pos, n.operation, left, right),
+                    () -> new BinaryOpNode(operator, left, right, n.operation));
+            } else if (node instanceof PlaceBlockNode n) {
+                AstNode x = node(n.x);
+                AstNode y = node(n.y);
+                AstNode z = node(n.z);
+                return shared(new Key(PlaceBlockNode.class, x, y, z, n.block), () -> new PlaceBlockNode(x, y, z, n.block));
+            } else if (node instanceof BlockNode n) {
+                List<Object> parts = new ArrayList<>(n.statements.size() + 1);
+                parts.add(BlockNode.class);
+                for (AstNode statement : n.statements)
+                    parts.add(node(statement));
+
+                return shared(new Key(parts.toArray()), () -> {
+                    BlockNode block = new BlockNode();
+                    for (int i = 1; i < parts.size(); i++)
+                        block.addStatement((AstNode) parts.get(i));
+                    return block;
+                });
+            } else if (node instanceof IfNode n) {
+                AstNode condition = node(n.conditionNode);
+                AstNode thenBranch = node(n.thenBranchNode);
+                AstNode elseBranch = node(n.elseBranchNode);
+                return shared(new Key(IfNode.class, condition, thenBranch, elseBranch), () -> new IfNode(condition, thenBranch, elseBranch));
+            } else if (node instanceof WhileNode n) {
+                AstNode condition = node(n.conditionNode);
+                AstNode body = node(n.bodyNode);
+                return shared(new Key(WhileNode.class, condition, body), () -> new WhileNode(condition, body));
+            } else if (node instanceof ForNode n) {
+                AstNode initializer = node(n.initializerNode);
+                AstNode condition = node(n.conditionNode);
+                AstNode increment = node(n.incrementNode);
+                AstNode body = node(n.bodyNode);
+                return shared(new Key(ForNode.class, initializer, condition, increment, body),
+                    () -> new ForNode(initializer, condition, increment, body));
+            } else if (node instanceof FillNode n) {
+                // found again in the shared loops, so its variables are theirs
+                ForNode loop = (ForNode) node(n.loop);
+                return shared(new Key(FillNode.class, loop), () -> RegionFill.detect(loop));
+            } else if (node instanceof ArrayNode n) {
+                Token operator = token(n.operator);
+                VariableNode array = (VariableNode) node(n.array);
+                AstNode index = node(n.index);
+                AstNode value = node(n.value);
+                return shared(new Key(ArrayNode.class, operator.type, operator.pos, n.element, array, index, value),
+                    () -> new ArrayNode(operator, n.element, array, index, value));
+            } else if (node instanceof ProcedureNode n) {
+                Token define = token(n.define);
+                VariableNode[] parameters = new VariableNode[n.parameters.length];
+                for (int i = 0; i < parameters.length; i++)
+                    parameters[i] = (VariableNode) node(n.parameters[i]);
+                AstNode body = node(n.body);
+                AstNode result = node(n.result);
+
+                List<Object> parts = new ArrayList<>(List.of(ProcedureNode.class, define.type, define.pos, n.index, Arrays.toString(n.types)));
+                parts.add(body);
+                parts.add(result);
+                parts.addAll(List.of(parameters));
+                return shared(new Key(parts.toArray()), () -> new ProcedureNode(define, n.index, parameters, n.types, body, result));
+            } else if (node instanceof CallNode n) {
+                // the procedure of a typed call is its program's own
+                Token call = token(n.call);
+                List<Object> parts = new ArrayList<>(n.arguments.size() + 5);
+                parts.addAll(List.of(CallNode.class, call.type, call.pos, n.index));
+                parts.add(n.procedure);
+                for (AstNode argument : n.arguments)
+                    parts.add(node(argument));
+
+                return shared(new Key(parts.toArray()), () -> {
+                    List<AstNode> arguments = new ArrayList<>(parts.size() - 5);
+                    for (int i = 5; i < parts.size(); i++)
+                        arguments.add((AstNode) parts.get(i));
+                    return new CallNode(call, n.index, arguments, n.procedure);
+                });
+            } else if (node instanceof CacheNode n) {
+                AstNode expression = node(n.expression);
+                return shared(new Key(CacheNode.class, n.slot, expression), () -> new CacheNode(n.slot, expression));
+            } else if (node instanceof CacheScopeNode n) {
+                AstNode inner = node(n.node);
+                return shared(new Key(CacheScopeNode.class, Arrays.toString(n.slots), inner), () -> new CacheScopeNode(n.slots, inner));
+            }
+
+            return node; // not known here, not shared
+        }
+
+        private Token token(Token token) {
+            if (token == null || token instanceof SharedToken)
+                return token;
+
+            BlockPos pos = token.getBlockPos().add(-start.getX(), -start.getY(), -start.getZ());
+            return new SharedToken(pos.asLong(), token.type);
+        }
+    }
+
+    private static AstNode shared(Key key, Supplier<AstNode> build) {
+        Entry entry = SHAPES.get(key);
+        AstNode node = entry != null ? entry.get() : null;
+        if (node == null) {
+            node = build.get();
+            SHAPES.put(key, new Entry(key, node));
+        }
+        return node;
+    }
+
+    // a node's own fields, its children by identity: they are shared already
+    private static final class Key {
+        private final Object[] parts;
+        private final int hash;
+
+        private Key(Object... parts) {
+            this.parts = parts;
+            this.hash = Arrays.hashCode(parts);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key other && hash == other.hash && Arrays.equals(parts, other.parts);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry extends WeakReference<AstNode> {
+        private final Key key;
+
+        private Entry(Key key, AstNode node) {
+            super(node, COLLECTED);
+            this.key = key;
+        }
+    }
+}
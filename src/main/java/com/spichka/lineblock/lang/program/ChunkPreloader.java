@@ -0,0 +1,123 @@
+package com.spichka.lineblock.lang.program;
+
+import java.util.Comparator;
+
+import com.spichka.lineblock.lang.interpreter.Value;
+import com.spichka.lineblock.lang.optimizer.RegionFill;
+import com.spichka.lineblock.lang.parser.ast.AstNode;
+import com.spichka.lineblock.lang.parser.ast.BlockNode;
+import com.spichka.lineblock.lang.parser.ast.CacheScopeNode;
+import com.spichka.lineblock.lang.parser.ast.FillNode;
+import com.spichka.lineblock.lang.parser.ast.ForNode;
+import com.spichka.lineblock.lang.parser.ast.IfNode;
+import com.spichka.lineblock.lang.parser.ast.LiteralNode;
+import com.spichka.lineblock.lang.parser.ast.PlaceBlockNode;
+import com.spichka.lineblock.lang.parser.ast.ProcedureNode;
+import com.spichka.lineblock.lang.parser.ast.WhileNode;
+
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.server.world.ChunkTicketType;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
+
+// Loads the chunks of one run in the background with chunk tickets instead of
+// letting getBlockState/setBlockState load them synchronously on the server thread.
+// The tickets are held until release().
+public final class ChunkPreloader {
+    private static final ChunkTicketType<ChunkPos> TICKET = ChunkTicketType.create("lineblock", Comparator.comparingLong(ChunkPos::toLong));
+    private static final int MAX_FILL_CHUNKS = 256; // preloaded for one fill
+
+    private final ServerWorld world;
+    private final LongOpenHashSet ticketed = new LongOpenHashSet();
+
+    public ChunkPreloader(ServerWorld world) {
+        this.world = world;
+    }
+
+    public void request(LongSet chunks) {
+        LongIterator it = chunks.iterator();
+        while (it.hasNext()) {
+            long chunk = it.nextLong();
+            if (ticketed.add(chunk))
+                world.getChunkManager().addTicket(TICKET, new ChunkPos(chunk), 0, new ChunkPos(chunk));
+        }
+    }
+
+    // first chunk that is still loading, or null
+    public ChunkPos firstMissing(LongSet chunks) {
+        LongIterator it = chunks.iterator();
+        while (it.hasNext()) {
+            long chunk = it.nextLong();
+            if (!world.getChunkManager().isChunkLoaded(ChunkPos.getPackedX(chunk), ChunkPos.getPackedZ(chunk)))
+                return new ChunkPos(chunk);
+        }
+        return null;
+    }
+
+    public void release() {
+        LongIterator it = ticketed.iterator();
+        while (it.hasNext()) {
+            long chunk = it.nextLong();
+            world.getChunkManager().removeTicket(TICKET, new ChunkPos(chunk), 0, new ChunkPos(chunk));
+        }
+        ticketed.clear();
+    }
+
+    // chunks of every PLACEBLOCK in node whose X and Z are known before running, and of fills
+    public static LongSet placeTargets(AstNode node) {
+        LongSet chunks = new LongOpenHashSet();
+        collectPlaceTargets(node, chunks);
+        return chunks;
+    }
+
+    private static void collectPlaceTargets(AstNode node, LongSet chunks) {
+        if (node instanceof BlockNode n) {
+            for (AstNode statement : n.statements)
+                collectPlaceTargets(statement, chunks);
+        } else if (node instanceof IfNode n) {
+            collectPlaceTargets(n.thenBranchNode, chunks);
+            collectPlaceTargets(n.elseBranchNode, chunks);
+        } else if (node instanceof WhileNode n) {
+            collectPlaceTargets(n.bodyNode, chunks);
+        } else if (node instanceof ForNode n) {
+            collectPlaceTargets(n.bodyNode, chunks);
+        } else if (node instanceof CacheScopeNode n) {
+            collectPlaceTargets(n.node, chunks);
+        } else if (node instanceof ProcedureNode n) {
+            collectPlaceTargets(n.body, chunks);
+        } else if (node instanceof FillNode n) {
+            // every chunk of the box, unless it covers a large part of the world
+            int[] box = RegionFill.box(n);
+            if (box == null)
+                return;
+
+            int minX = ChunkSectionPos.getSectionCoord(box[0]);
+            int minZ = ChunkSectionPos.getSectionCoord(box[2]);
+            int maxX = ChunkSectionPos.getSectionCoord(box[3]);
+            int maxZ = ChunkSectionPos.getSectionCoord(box[5]);
+            if ((long) (maxX - minX + 1) * (maxZ - minZ + 1) > MAX_FILL_CHUNKS)
+                return;
+
+            for (int x = minX; x <= maxX; x++) {
+                for (int z = minZ; z <= maxZ; z++)
+                    chunks.add(ChunkPos.toLong(x, z));
+            }
+        } else if (node instanceof PlaceBlockNode n) {
+            Integer x = constantInt(n.x);
+            Integer z = constantInt(n.z);
+            if (x != null && z != null)
+                chunks.add(ChunkPos.toLong(ChunkSectionPos.getSectionCoord(x), ChunkSectionPos.getSectionCoord(z)));
+        }
+    }
+
+    // X or Z of a PLACEBLOCK, null if it is not known before running; constant
+    // arithmetic is already folded into a literal by the Optimizer
+    private static Integer constantInt(AstNode node) {
+        if (node instanceof LiteralNode n && n.error == null && n.value.getType() == Value.Type.INT)
+            return n.value.asInt();
+        return null;
+    }
+}
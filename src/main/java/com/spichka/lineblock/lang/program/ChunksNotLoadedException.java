@@ -0,0 +1,18 @@
+package com.spichka.lineblock.lang.program;
+
+import it.unimi.dsi.fastutil.longs.LongSet;
+
+// The program reaches into unloaded chunks; load them (see ChunkPreloader) and try again
+public class ChunksNotLoadedException extends RuntimeException {
+    private final LongSet chunks;
+
+    public ChunksNotLoadedException(LongSet chunks) {
+        super("Chunks not loaded: " + chunks.size());
+        this.chunks = chunks;
+    }
+
+    // packed ChunkPos values
+    public LongSet getChunks() {
+        return chunks;
+    }
+}
@@ -0,0 +1,336 @@
+package com.spichka.lineblock.lang.program;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.spichka.lineblock.lang.exceptions.LineBlockException;
+import com.spichka.lineblock.lang.interpreter.JitCode;
+import com.spichka.lineblock.lang.interpreter.JitCompiler;
+import com.spichka.lineblock.lang.interpreter.ProgramCode;
+import com.spichka.lineblock.lang.interpreter.Resolver;
+import com.spichka.lineblock.lang.interpreter.TypeChecker;
+import com.spichka.lineblock.lang.lexer.BlockSource;
+import com.spichka.lineblock.lang.lexer.ChunkSnapshot;
+import com.spichka.lineblock.lang.lexer.Lexer;
+import com.spichka.lineblock.lang.lexer.LineSegments;
+import com.spichka.lineblock.lang.lexer.SourceMap;
+import com.spichka.lineblock.lang.lexer.TokenBuffer;
+import com.spichka.lineblock.lang.optimizer.Optimizer;
+import com.spichka.lineblock.lang.parser.Parser;
+import com.spichka.lineblock.lang.parser.ast.AstNode;
+import com.spichka.lineblock.lang.parser.ast.BlockNode;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.Direction;
+import net.minecraft.world.World;
+
+// A lexed and parsed program that is kept in sync with its blocks: block changes only
+// mark what read them, getRoot() then re-lexes the dirty pieces and re-parses (and
+// optimizes) the top-level statements whose tokens changed. The whole program is
+// type checked again after a change, variable types depend on all statements.
+// The statements of a typed version are compiled for the executors once, see
+// ProgramCode, and when it runs often also to JVM bytecode, see JitCompiler.
+// Statements and typed trees are shared with equal copies of the program elsewhere,
+// see AstInterner; errors in them are located through start.
+public final class Program {
+    private static final int SNAPSHOT_MARGIN = 16;
+
+    private final World world;
+    private final BlockPos start;
+    private final BlockSource blocks; // read instead of the world if set, for tests
+
+    private TokenBuffer tokens; // null until lexed, or after a failed update
+    private SourceMap sourceMap;
+    private final Resolver resolver = new Resolver(); // variable slots of all statements
+
+    private final List<Statement> statements = new ArrayList<>();
+    private final Long2ObjectOpenHashMap<List<Statement>> worldReads = new Long2ObjectOpenHashMap<>(); // PLACEBLOCK block lookups
+    private boolean dirtyStatements;
+    private BlockNode typedRoot; // null after every re-parse
+    private TypeChecker types; // of typedRoot
+    private int runs; // of typedRoot
+    private JitCode jitCode; // once typedRoot is hot
+    private ProgramCode code; // of typedRoot
+
+    public Program(World world, BlockPos start) {
+        this(world, start, null);
+    }
+
+    // a program in blocks, world is only asked which block a PLACEBLOCK places
+    Program(World world, BlockPos start, BlockSource blocks) {
+        this.world = world;
+        this.start = start;
+        this.blocks = blocks;
+    }
+
+    public void onBlockChanged(long pos) {
+        if (tokens == null)
+            return;
+
+        sourceMap.markChanged(pos);
+
+        List<Statement> list = worldReads.get(pos);
+        if (list != null) {
+            for (Statement statement : list)
+                statement.dirty = true;
+            dirtyStatements = true;
+        }
+    }
+
+    // brings tokens and AST up to date with the world, must run on the server thread;
+    // throws ChunksNotLoadedException instead of loading chunks the program runs through
+    public BlockNode getRoot() {
+        try {
+            if (tokens == null)
+                build();
+            else
+                update();
+        } catch (RuntimeException e) {
+            tokens = null; // lexed from scratch next time
+            throw e;
+        }
+
+        if (typedRoot == null) {
+            ProgramCache.reindex(this); // it may read other blocks now
+            try {
+                typedRoot = typeCheck();
+            } catch (LineBlockException e) {
+                throw e.locate(start);
+            }
+        }
+        return typedRoot;
+    }
+
+    // counts a run of the current root, and its compiled code once it ran often enough
+    public JitCode hotCode() {
+        int threshold = JitCompiler.threshold();
+        if (jitCode == null && threshold > 0 && ++runs >= threshold)
+            jitCode = JitCompiler.compile(typedRoot, types);
+        return jitCode;
+    }
+
+    // the compiled statements of the current root
+    public ProgramCode code() {
+        return code;
+    }
+
+    public TokenBuffer getTokens() {
+        return tokens;
+    }
+
+    World getWorld() {
+        return world;
+    }
+
+    // packed ChunkPos of every block the current version read
+    LongSet readChunks() {
+        LongSet chunks = sourceMap.readChunks();
+        for (LongIterator it = worldReads.keySet().iterator(); it.hasNext(); ) {
+            long pos = it.nextLong();
+            chunks.add(ChunkPos.toLong(BlockPos.unpackLongX(pos) >> 4, BlockPos.unpackLongZ(pos) >> 4));
+        }
+        return chunks;
+    }
+
+    private void build() {
+        lex();
+
+        statements.clear();
+        worldReads.clear();
+        dirtyStatements = false;
+        reparse(0, 0, 0);
+    }
+
+    private void update() {
+        BlockSource source = blocks != null ? blocks : BlockSource.of(world);
+
+        while (sourceMap.isDirty()) {
+            SourceMap.Splice splice = sourceMap.relexNext(source, tokens);
+            if (splice == null) {
+                build();
+                return;
+            }
+
+            reparse(statementBefore(splice.from()), splice.oldTo(), splice.newTo() - splice.oldTo());
+        }
+
+        if (dirtyStatements) {
+            dirtyStatements = false;
+
+            for (int i = 0; i < statements.size(); i++) {
+                Statement statement = statements.get(i);
+                if (statement.dirty)
+                    reparse(i, statement.to, 0);
+            }
+        }
+    }
+
+    // type errors are reported before anything runs; the typed nodes are copies, so a
+    // run that is still going keeps the types of the version it started with
+    private BlockNode typeCheck() {
+        types = new TypeChecker();
+        for (Statement statement : statements)
+            types.declare(statement.node);
+
+        BlockNode root = new BlockNode();
+        for (Statement statement : statements)
+            root.addStatement(AstInterner.intern(types.check(statement.node), start));
+
+        runs = 0;
+        jitCode = null;
+        code = new ProgramCode();
+        return root;
+    }
+
+    // lexes from a chunk snapshot, growing it until the whole program fits; with more
+    // than one core the lines of the snapshot are read on the lexer pool first
+    private void lex() {
+        if (blocks != null) {
+            SourceMap map = new SourceMap();
+            tokens = new Lexer(blocks, start, Direction.EAST, map).tokenize();
+            sourceMap = map;
+            return;
+        }
+
+        int margin = SNAPSHOT_MARGIN;
+        BlockPos min = start.add(-margin, -margin, -margin);
+        BlockPos max = start.add(margin, margin, margin);
+
+        while (true) {
+            SourceMap map = new SourceMap();
+            ChunkSnapshot snapshot = ChunkSnapshot.capture(world, min, max);
+            LineSegments segments = LineSegments.pays() ? LineSegments.walk(snapshot, start, Direction.EAST) : null;
+            Lexer lexer = new Lexer(snapshot, start, Direction.EAST, map, segments);
+            TokenBuffer lexed = lexer.tokenize();
+
+            BlockPos unknown = lexer.getUnknownPos();
+            if (unknown == null) {
+                tokens = lexed;
+                sourceMap = map;
+                return;
+            }
+
+            LongSet missing = snapshot.getMissingChunks();
+            if (!missing.isEmpty())
+                throw new ChunksNotLoadedException(missing);
+
+            margin *= 2;
+            min = new BlockPos(
+                Math.min(min.getX(), unknown.getX() - margin),
+                Math.min(min.getY(), unknown.getY() - margin),
+                Math.min(min.getZ(), unknown.getZ() - margin)
+            );
+            max = new BlockPos(
+                Math.max(max.getX(), unknown.getX() + margin),
+                Math.max(max.getY(), unknown.getY() + margin),
+                Math.max(max.getZ(), unknown.getZ() + margin)
+            );
+        }
+    }
+
+    // the statement before the changed tokens can swallow them (a longer expression),
+    // so parsing restarts at the last statement that begins before them
+    private int statementBefore(int tokenIndex) {
+        int low = 0;
+        int high = statements.size() - 1;
+        int found = 0;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (statements.get(mid).from < tokenIndex) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    // re-parses from statement first until the parser lands on the start of an old
+    // statement at or after oldEnd, those and all later ones are shifted by delta
+    private void reparse(int first, int oldEnd, int delta) {
+        typedRoot = null;
+        int position = first < statements.size() ? statements.get(first).from : 0;
+
+        int next = first;
+        while (next < statements.size() && statements.get(next).from < oldEnd)
+            next++;
+
+        List<Statement> parsed = new ArrayList<>();
+        Parser parser = new Parser(world, tokens);
+
+        while (true) {
+            if (position >= tokens.size()) {
+                next = statements.size();
+                break;
+            }
+
+            while (next < statements.size() && statements.get(next).from + delta < position)
+                next++;
+            if (next < statements.size() && statements.get(next).from + delta == position)
+                break;
+
+            Statement statement = new Statement(position);
+            parser.recordWorldReads(statement.reads);
+            statement.node = AstInterner.intern(resolver.resolve(Optimizer.optimize(parser.parseStatement(position))), start);
+            statement.to = parser.getPosition();
+            parsed.add(statement);
+
+            position = statement.to;
+        }
+
+        for (int i = first; i < next; i++)
+            unindex(statements.get(i));
+
+        statements.subList(first, next).clear();
+        statements.addAll(first, parsed);
+
+        for (int i = first + parsed.size(); i < statements.size(); i++) {
+            Statement statement = statements.get(i);
+            statement.from += delta;
+            statement.to += delta;
+        }
+
+        for (Statement statement : parsed) {
+            for (int i = 0; i < statement.reads.size(); i++)
+                worldReads.computeIfAbsent(statement.reads.getLong(i), pos -> new ArrayList<>(1)).add(statement);
+        }
+    }
+
+    private void unindex(Statement statement) {
+        for (int i = 0; i < statement.reads.size(); i++) {
+            long pos = statement.reads.getLong(i);
+            List<Statement> list = worldReads.get(pos);
+            if (list == null)
+                continue;
+
+            list.remove(statement);
+            if (list.isEmpty())
+                worldReads.remove(pos);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Program{start=" + start + ", statements=" + statements.size() + ", " + sourceMap + '}';
+    }
+
+    // a top-level statement and its token range [from, to)
+    private static final class Statement {
+        private int from;
+        private int to;
+        private AstNode node;
+        private boolean dirty;
+        private final LongArrayList reads = new LongArrayList(0);
+
+        private Statement(int from) {
+            this.from = from;
+        }
+    }
+}
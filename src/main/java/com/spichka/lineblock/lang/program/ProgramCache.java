@@ -0,0 +1,115 @@
+package com.spichka.lineblock.lang.program;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.spichka.lineblock.lang.lexer.BlockSource;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSets;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.World;
+
+// Programs by world and start block, so /run after an edit only redoes the edited part.
+// Least recently run programs are dropped first. A block change is only passed to the
+// programs that read a block in its chunk.
+public final class ProgramCache {
+    private static final int CAPACITY = 64;
+
+    private static final Map<Key, Program> PROGRAMS = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Program> eldest) {
+            if (size() <= CAPACITY)
+                return false;
+
+            unindex(eldest.getValue());
+            return true;
+        }
+    };
+    private static final Map<Program, LongSet> CHUNKS = new IdentityHashMap<>(); // of every cached program
+    private static final Map<World, Long2ObjectOpenHashMap<List<Program>>> READERS = new HashMap<>(); // by chunk
+
+    private ProgramCache() {}
+
+    public static Program get(World world, BlockPos start) {
+        return get(world, start, null);
+    }
+
+    // a program in blocks instead of the world, for tests
+    static Program get(World world, BlockPos start, BlockSource blocks) {
+        return PROGRAMS.computeIfAbsent(new Key(world, start.asLong()), key -> {
+            Program program = new Program(world, start.toImmutable(), blocks);
+            CHUNKS.put(program, LongSets.EMPTY_SET); // nothing read before it is lexed
+            return program;
+        });
+    }
+
+    // called for every block state change, see WorldMixin
+    public static void onBlockChanged(World world, BlockPos pos) {
+        if (world.isClient || PROGRAMS.isEmpty())
+            return;
+
+        Long2ObjectOpenHashMap<List<Program>> readers = READERS.get(world);
+        if (readers == null)
+            return;
+
+        List<Program> programs = readers.get(ChunkPos.toLong(pos.getX() >> 4, pos.getZ() >> 4));
+        if (programs == null)
+            return;
+
+        long packed = pos.asLong();
+        for (Program program : programs)
+            program.onBlockChanged(packed);
+    }
+
+    public static void clear() {
+        PROGRAMS.clear();
+        CHUNKS.clear();
+        READERS.clear();
+        AstInterner.clear();
+    }
+
+    // the program was lexed or parsed again, see Program.getRoot()
+    static void reindex(Program program) {
+        LongSet old = CHUNKS.get(program);
+        if (old == null)
+            return; // not cached, or dropped since
+
+        unindex(program);
+        LongSet chunks = program.readChunks();
+        CHUNKS.put(program, chunks);
+
+        Long2ObjectOpenHashMap<List<Program>> readers = READERS.computeIfAbsent(program.getWorld(), world -> new Long2ObjectOpenHashMap<>());
+        for (LongIterator it = chunks.iterator(); it.hasNext(); )
+            readers.computeIfAbsent(it.nextLong(), chunk -> new ArrayList<>(1)).add(program);
+    }
+
+    private static void unindex(Program program) {
+        LongSet chunks = CHUNKS.remove(program);
+        Long2ObjectOpenHashMap<List<Program>> readers = READERS.get(program.getWorld());
+        if (chunks == null || readers == null)
+            return;
+
+        for (LongIterator it = chunks.iterator(); it.hasNext(); ) {
+            long chunk = it.nextLong();
+            List<Program> list = readers.get(chunk);
+            if (list == null)
+                continue;
+
+            list.remove(program);
+            if (list.isEmpty())
+                readers.remove(chunk);
+        }
+        if (readers.isEmpty())
+            READERS.remove(program.getWorld());
+    }
+
+    private record Key(World world, long start) {}
+}
@@ -0,0 +1,158 @@
+package com.spichka.lineblock.lang.program;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.spichka.lineblock.lang.lexer.BlockClassifier;
+import com.spichka.lineblock.lang.lexer.BlockSource;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerChunkEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.minecraft.block.BlockState;
+import net.minecraft.util.math.BlockBox;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.util.math.Direction;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.WorldChunk;
+
+// Observers in loaded chunks, per world. A program starts at an observer that points
+// at a token and has no other LineBlock block around it, so the index only has to
+// know where observers are: sections whose palette has no observer are skipped.
+// Kept up to date by chunk load/unload events and WorldMixin.
+public final class ProgramIndex {
+    private static final Map<World, ProgramIndex> INDEXES = new IdentityHashMap<>();
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    private final Long2ObjectOpenHashMap<LongOpenHashSet> observers = new Long2ObjectOpenHashMap<>(); // loaded chunk -> packed positions
+
+    public static void register() {
+        ServerChunkEvents.CHUNK_LOAD.register((world, chunk) -> of(world).scanChunk(chunk));
+        ServerChunkEvents.CHUNK_UNLOAD.register((world, chunk) -> of(world).observers.remove(chunk.getPos().toLong()));
+        ServerLifecycleEvents.SERVER_STOPPED.register(server -> INDEXES.clear());
+    }
+
+    public static ProgramIndex of(World world) {
+        return INDEXES.computeIfAbsent(world, w -> new ProgramIndex());
+    }
+
+    // called for every block state change, see WorldMixin
+    public static void onBlockChanged(World world, BlockPos pos, BlockState state) {
+        if (world.isClient)
+            return;
+
+        ProgramIndex index = INDEXES.get(world);
+        if (index == null)
+            return;
+
+        LongOpenHashSet set = index.observers.get(ChunkPos.toLong(
+            ChunkSectionPos.getSectionCoord(pos.getX()), ChunkSectionPos.getSectionCoord(pos.getZ())
+        ));
+        if (set == null)
+            return; // chunk is not loaded (yet)
+
+        if (BlockClassifier.isObserver(BlockClassifier.classify(state)))
+            set.add(pos.asLong());
+        else
+            set.remove(pos.asLong());
+    }
+
+    // re-reads the observers of a loaded chunk
+    public void scanChunk(WorldChunk chunk) {
+        LongOpenHashSet set = new LongOpenHashSet(0);
+        ChunkSection[] sections = chunk.getSectionArray();
+
+        for (int i = 0; i < sections.length; i++) {
+            ChunkSection section = sections[i];
+            if (section.isEmpty() || !section.hasAny(state -> BlockClassifier.isObserver(BlockClassifier.classify(state))))
+                continue;
+
+            int baseX = chunk.getPos().getStartX();
+            int baseY = ChunkSectionPos.getBlockCoord(chunk.getBottomSectionCoord() + i);
+            int baseZ = chunk.getPos().getStartZ();
+
+            for (int y = 0; y < 16; y++) {
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        if (BlockClassifier.isObserver(BlockClassifier.classify(section.getBlockState(x, y, z))))
+                            set.add(BlockPos.asLong(baseX + x, baseY + y, baseZ + z));
+                    }
+                }
+            }
+        }
+
+        observers.put(chunk.getPos().toLong(), set);
+    }
+
+    // re-reads every loaded chunk, or the loaded chunks of box
+    public void scan(World world, BlockBox box) {
+        LongArrayList chunks = new LongArrayList();
+
+        if (box == null) {
+            chunks.addAll(observers.keySet());
+        } else {
+            for (int x = ChunkSectionPos.getSectionCoord(box.getMinX()); x <= ChunkSectionPos.getSectionCoord(box.getMaxX()); x++) {
+                for (int z = ChunkSectionPos.getSectionCoord(box.getMinZ()); z <= ChunkSectionPos.getSectionCoord(box.getMaxZ()); z++)
+                    chunks.add(ChunkPos.toLong(x, z));
+            }
+        }
+
+        for (int i = 0; i < chunks.size(); i++) {
+            long chunk = chunks.getLong(i);
+            WorldChunk worldChunk = world.getChunkManager().getWorldChunk(ChunkPos.getPackedX(chunk), ChunkPos.getPackedZ(chunk));
+            if (worldChunk != null)
+                scanChunk(worldChunk);
+        }
+    }
+
+    // program starts in box (everywhere if null), sorted by position
+    public List<BlockPos> findStarts(World world, BlockBox box) {
+        BlockSource source = BlockSource.of(world);
+        List<BlockPos> starts = new ArrayList<>();
+
+        for (Long2ObjectMap.Entry<LongOpenHashSet> entry : observers.long2ObjectEntrySet()) {
+            for (LongIterator it = entry.getValue().iterator(); it.hasNext(); ) {
+                long packed = it.nextLong();
+                BlockPos pos = BlockPos.fromLong(packed);
+                if ((box == null || box.contains(pos)) && isStart(source, packed))
+                    starts.add(pos);
+            }
+        }
+
+        starts.sort(Comparator.comparingInt(BlockPos::getX).thenComparingInt(BlockPos::getZ).thenComparingInt(BlockPos::getY));
+        return starts;
+    }
+
+    public int chunkCount() {
+        return observers.size();
+    }
+
+    private static boolean isStart(BlockSource source, long pos) {
+        int code = source.classify(pos);
+        if (!BlockClassifier.isObserver(code))
+            return false;
+
+        Direction facing = BlockClassifier.observerFacing(code);
+        for (Direction dir : DIRECTIONS) {
+            int neighbor = source.classify(BlockPos.offset(pos, dir));
+
+            if (dir == facing) {
+                if (!BlockClassifier.isToken(neighbor))
+                    return false;
+            } else if (BlockClassifier.isToken(neighbor) || BlockClassifier.isObserver(neighbor)) {
+                return false; // part of a line, not its start
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,24 @@
+package com.spichka.lineblock.mixin;
+
+import com.spichka.lineblock.lang.program.ProgramCache;
+import com.spichka.lineblock.lang.program.ProgramIndex;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+
+@Mixin(World.class)
+public abstract class WorldMixin {
+    @Inject(method = "setBlockState(Lnet/minecraft/util/math/BlockPos;Lnet/minecraft/block/BlockState;II)Z", at = @At("RETURN"))
+    private void lineblock$markPrograms(BlockPos pos, BlockState state, int flags, int maxUpdateDepth, CallbackInfoReturnable<Boolean> cir) {
+        if (cir.getReturnValue()) {
+            ProgramCache.onBlockChanged((World) (Object) this, pos);
+            ProgramIndex.onBlockChanged((World) (Object) this, pos, state);
+        }
+    }
+}
@@ -0,0 +1,453 @@
+package com.spichka.lineblock.lang.interpreter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.spichka.lineblock.lang.exceptions.LineBlockException;
+import com.spichka.lineblock.lang.lexer.TokenType;
+import com.spichka.lineblock.lang.optimizer.Optimizer;
+import com.spichka.lineblock.lang.parser.ast.AstNode;
+import com.spichka.lineblock.lang.parser.ast.BlockNode;
+
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+
+// Runs random programs on every backend, and the bytecode one also jitted, and
+// compares how they end, the variables they leave and what they print and place.
+// Each program runs twice on the same ProgramCode, the second time with the code it
+// cached. The TREE run they are compared to shares the Optimizer, the TypeChecker and
+// the Operations with the others, so programs with known output pin what all of them do.
+class BackendsTest {
+    private static final int PROGRAMS = 3000;
+    private static final int NUMBERS = 5; // the INT and FLOAT variables
+    private static final int ARRAY = NUMBERS; // an INT array
+    private static final int TEXT = ARRAY + 1; // a STRING
+    private static final int FLAG = TEXT + 1; // a BOOL
+    private static final int COUNTER = FLAG + 1; // plus the depth: the variable of a FOR or WHILE loop
+    private static final int DEPTH = 2;
+    private static final int FILL = COUNTER + DEPTH + 1; // plus the level: the variables of a fill nest
+    private static final int LEVELS = 2;
+    private static final int VARIABLES = FILL + LEVELS;
+
+    private static final TokenType[] MATH = { TokenType.MINUS, TokenType.SIN, TokenType.COS, TokenType.TAN, TokenType.ASIN,
+        TokenType.ACOS, TokenType.ATAN, TokenType.ABS, TokenType.CEIL, TokenType.FLOOR };
+    private static final String[] TEXTS = { "", "a", "bc", "1", "2.5" };
+
+    private Random random;
+    private Programs p;
+    private int length; // of the array
+    private boolean inProcedure; // which does not see the array, TEXT and FLAG
+
+    @BeforeAll
+    static void bootstrap() {
+        SharedConstants.createGameVersion();
+        Bootstrap.initialize();
+    }
+
+    @Test
+    void backendsGiveTheSameResults() {
+        for (int seed = 0; seed < PROGRAMS; seed++) {
+            random = new Random(seed);
+            p = new Programs();
+            List<AstNode> program = program();
+
+            Resolver resolver = new Resolver();
+            List<AstNode> resolved = new ArrayList<>();
+            for (AstNode statement : program)
+                resolved.add(resolver.resolve(Optimizer.optimize(statement)));
+
+            TypeChecker types = new TypeChecker();
+            for (AstNode statement : resolved)
+                types.declare(statement);
+            BlockNode root = new BlockNode();
+            try {
+                for (AstNode statement : resolved)
+                    root.addStatement(types.check(statement));
+            } catch (LineBlockException e) {
+                continue; // the same for every backend
+            }
+
+            ProgramCode code = new ProgramCode();
+            JitCode jitCode = JitCompiler.compile(root, types);
+            String expected = run(root, Backend.TREE, null, new ProgramCode());
+            for (int i = 0; i < 2; i++) {
+                assertEquals(expected, run(root, Backend.BYTECODE, null, code), "bytecode, seed " + seed);
+                assertEquals(expected, run(root, Backend.BYTECODE, jitCode, code), "jit, seed " + seed);
+                assertEquals(expected, run(root, Backend.CLOSURES, null, code), "closures, seed " + seed);
+            }
+        }
+    }
+
+    // a CONTINUE that ends a body is still set when the next one starts, which skips
+    // it; one left set after the last line of a top-level loop ends the run
+    @Test
+    void trailingContinueSkipsTheNextBody() {
+        Programs p = new Programs();
+        p.add(p.loop(p.assign(TokenType.INT, 1, p.literal(0)), p.binary(TokenType.LT, p.variable(1), p.literal(5)),
+                p.assign(TokenType.INT, 1, p.binary(TokenType.PLUS, p.variable(1), p.literal(1))),
+                p.block(p.print(p.variable(1)), p.command(TokenType.CONTINUE))),
+            p.print(p.literal("after")));
+        assertEverywhere(List.of("print 0", "print 2", "print 4", "stop"), p);
+    }
+
+    // the loop ends when its condition is evaluated again, after the increment of a FOR
+    @Test
+    void breakEndsTheLoopAfterTheCondition() {
+        Programs p = checked();
+        p.add(p.loop(p.assign(TokenType.INT, 1, p.literal(0)), p.call(1, p.variable(1)),
+                p.assign(TokenType.INT, 1, p.binary(TokenType.PLUS, p.variable(1), p.literal(1))),
+                p.block(p.print(p.variable(1)), p.when(p.binary(TokenType.EQ, p.variable(1), p.literal(1)),
+                    p.block(p.command(TokenType.BREAK)), null), p.print(p.literal("body")))),
+            p.print(p.literal("after")));
+        assertEverywhere(List.of("print check 0", "print 0", "print body", "print check 1", "print 1",
+            "print check 2", "print after"), p);
+    }
+
+    @Test
+    void stopEndsTheRunAfterTheCondition() {
+        Programs p = checked();
+        p.add(p.assign(TokenType.INT, 1, p.literal(0)),
+            p.loop(p.call(1, p.variable(1)), p.block(p.assign(TokenType.INT, 1, p.binary(TokenType.PLUS, p.variable(1), p.literal(1))),
+                p.command(TokenType.STOP), p.print(p.literal("body")))),
+            p.print(p.literal("after")));
+        assertEverywhere(List.of("print check 0", "print check 1", "stop"), p);
+    }
+
+    // DEFINE 1 that prints "check" and its argument and gives whether it is below 3
+    private static Programs checked() {
+        Programs p = new Programs();
+        p.add(p.procedure(1, p.block(p.print(p.binary(TokenType.PLUS, p.literal("check "), p.variable(0)))),
+            p.binary(TokenType.LT, p.variable(0), p.literal(3))));
+        return p;
+    }
+
+    private static void assertEverywhere(List<String> expected, Programs p) {
+        for (Backend backend : Backend.values()) {
+            assertEquals(expected, p.run(backend, false), backend.name());
+            assertEquals(expected, p.run(backend, true), backend.name() + " jitted");
+        }
+    }
+
+    // how the run ended, the variables it left and what it printed and placed
+    private static String run(BlockNode root, Backend backend, JitCode jitCode, ProgramCode code) {
+        List<String> log = new ArrayList<>();
+        Executor executor = backend.create(TestWorld.create(log), jitCode, code);
+        String end = "ok";
+        try {
+            for (AstNode statement : root.statements) {
+                if (!executor.execute(statement)) {
+                    end = "ended";
+                    break;
+                }
+            }
+        } catch (LineBlockException e) {
+            end = e.getMessage();
+        } catch (RuntimeException e) {
+            end = e.getClass().getSimpleName(); // the messages of NullPointerExceptions differ
+        }
+
+        StringBuilder result = new StringBuilder(end);
+        Frame frame = frame(executor);
+        for (int slot = 0; slot < VARIABLES; slot++) { // slots go by first use, COUNTER is never used
+            Value value = frame.get(slot);
+            result.append(", ").append(value == null ? "-" : value.getType() + " " + value);
+        }
+        return result.append(", ").append(log).toString();
+    }
+
+    private static Frame frame(Executor executor) {
+        try {
+            Field field = executor.getClass().getDeclaredField("frame");
+            field.setAccessible(true);
+            return (Frame) field.get(executor);
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private List<AstNode> program() {
+        List<AstNode> program = new ArrayList<>();
+        for (int v = 0; v < NUMBERS; v++)
+            program.add(p.assign(random.nextInt(5) == 0 ? TokenType.FLOAT : TokenType.INT, v, number()));
+        length = 1 + random.nextInt(4);
+        program.add(p.newArray(ARRAY, Value.Type.INT, p.literal(length)));
+        program.add(p.assign(TokenType.STRING, TEXT, p.literal(TEXTS[random.nextInt(TEXTS.length)])));
+        program.add(p.assign(TokenType.BOOL, FLAG, p.literal(random.nextBoolean())));
+        for (int d = 1; d <= DEPTH; d++)
+            program.add(p.assign(TokenType.INT, COUNTER + d, p.literal(0)));
+
+        int procedures = random.nextInt(3);
+        inProcedure = true;
+        for (int i = 1; i <= procedures; i++)
+            program.add(procedure(i));
+        inProcedure = false;
+
+        int lines = 2 + random.nextInt(5);
+        for (int i = 0; i < lines; i++)
+            program.add(statement(DEPTH, procedures));
+
+        // a line that never runs but names every variable: the JitCompiler keeps the
+        // variables only one statement uses in JVM locals instead of the Frame
+        AstNode all = p.length(ARRAY);
+        for (int v = 0; v < NUMBERS; v++)
+            all = p.binary(TokenType.PLUS, all, p.variable(v));
+        for (int d = 2; d <= DEPTH; d++)
+            all = p.binary(TokenType.PLUS, all, p.variable(COUNTER + d));
+        for (int l = 0; l < LEVELS; l++)
+            all = p.binary(TokenType.PLUS, all, p.variable(FILL + l));
+        BlockNode never = p.block(p.assign(TokenType.INT, COUNTER + 1, all),
+            p.assign(TokenType.STRING, TEXT, p.variable(TEXT)), p.assign(TokenType.BOOL, FLAG, p.variable(FLAG)));
+        program.add(p.when(p.binary(TokenType.LT, p.variable(COUNTER + 1), p.literal(0)), never, null));
+        return program;
+    }
+
+    // DEFINE i with the parameter INT 0 and variables of its own, calls only earlier procedures
+    private AstNode procedure(int i) {
+        BlockNode body = new BlockNode();
+        for (int v = 1; v < NUMBERS; v++)
+            body.addStatement(p.assign(TokenType.INT, v, number()));
+        for (int d = 1; d <= DEPTH; d++)
+            body.addStatement(p.assign(TokenType.INT, COUNTER + d, p.literal(0)));
+        body.addStatement(statement(DEPTH, i - 1));
+        return p.procedure(i, body, expression(2, i - 1));
+    }
+
+    private AstNode statement(int depth, int procedures) {
+        switch (random.nextInt(depth <= 0 ? 8 : 14)) {
+            case 0:
+            case 1:
+                return p.assign(random.nextInt(6) == 0 ? TokenType.FLOAT : TokenType.INT, random.nextInt(NUMBERS), expression(2, procedures));
+            case 2: {
+                int q = random.nextInt(20);
+                if (q == 0)
+                    return p.command(TokenType.STOP);
+                if (q < 3)
+                    return p.command(q == 1 ? TokenType.BREAK : TokenType.CONTINUE);
+                return p.assign(TokenType.INT, random.nextInt(NUMBERS), expression(1, procedures));
+            }
+            case 3:
+                if (inProcedure)
+                    return p.assign(TokenType.INT, random.nextInt(NUMBERS), expression(1, procedures));
+                return p.set(ARRAY, index(), expression(1, procedures));
+            case 4:
+                return p.print(printed(procedures));
+            case 5:
+                return place(procedures);
+            case 6:
+                if (inProcedure)
+                    return p.assign(TokenType.INT, random.nextInt(NUMBERS), expression(1, procedures));
+                return random.nextBoolean() ? p.assign(TokenType.STRING, TEXT, text(2, procedures))
+                    : p.assign(TokenType.BOOL, FLAG, condition(1, procedures));
+            case 7:
+                return p.assign(TokenType.INT, random.nextInt(NUMBERS), expression(3, procedures));
+            case 8:
+                return p.when(condition(1, procedures), block(depth, procedures), random.nextBoolean() ? block(depth, procedures) : null);
+            case 9: {
+                int counter = COUNTER + depth;
+                AstNode initializer = p.assign(TokenType.INT, counter, p.literal(0));
+                AstNode condition = p.binary(TokenType.LT, p.variable(counter), p.literal(random.nextInt(5)));
+                AstNode increment = p.assign(TokenType.INT, counter, p.binary(TokenType.PLUS, p.variable(counter), p.literal(1)));
+                return outOfRoot(depth, procedures, p.loop(initializer, condition, increment, block(depth, procedures)));
+            }
+            case 10: {
+                // counts first, a CONTINUE or BREAK skips the rest of the body; never reset
+                int counter = COUNTER + depth;
+                BlockNode body = block(depth, procedures);
+                body.statements.add(0, p.assign(TokenType.INT, counter, p.binary(TokenType.PLUS, p.variable(counter), p.literal(1))));
+                return p.loop(p.binary(TokenType.LT, p.variable(counter), p.literal(random.nextInt(5))), body);
+            }
+            case 11:
+                return outOfRoot(depth, procedures, fill(1 + random.nextInt(LEVELS)));
+            case 12:
+                if (procedures > 0)
+                    return p.call(1 + random.nextInt(procedures), expression(1, procedures));
+                return place(procedures);
+            default:
+                return p.print(expression(3, procedures));
+        }
+    }
+
+    // leaving a FOR also drops the variables of the block it is in, so a top-level
+    // one mostly goes in an IF
+    private AstNode outOfRoot(int depth, int procedures, AstNode loop) {
+        if (depth == DEPTH && random.nextInt(4) != 0)
+            return p.when(condition(1, procedures), p.block(loop), null);
+        return loop;
+    }
+
+    private BlockNode block(int depth, int procedures) {
+        BlockNode block = new BlockNode();
+        int statements = 1 + random.nextInt(3);
+        for (int i = 0; i < statements; i++)
+            block.addStatement(statement(depth - 1, procedures));
+        return block;
+    }
+
+    // a FOR nest the RegionFill turns into a FillNode:
+    // FOR (INT v = a; v < b; INT v = v + s) ... PLACEBLOCK at sums of the variables
+    private AstNode fill(int levels) {
+        AstNode[] coordinates = new AstNode[3];
+        for (int c = 0; c < 3; c++) {
+            AstNode coordinate = p.literal(random.nextInt(9) - 4);
+            for (int l = 0; l < levels; l++) {
+                switch (random.nextInt(4)) {
+                    case 0 -> coordinate = p.binary(TokenType.PLUS, coordinate, p.variable(FILL + l));
+                    case 1 -> coordinate = p.binary(TokenType.MINUS, coordinate, p.variable(FILL + l));
+                    case 2 -> coordinate = p.binary(TokenType.PLUS, coordinate,
+                        p.binary(TokenType.MUL, p.variable(FILL + l), p.literal(1 + random.nextInt(3))));
+                    default -> {}
+                }
+            }
+            coordinates[c] = coordinate;
+        }
+        AstNode node = p.place(coordinates[0], coordinates[1], coordinates[2]);
+
+        for (int l = levels - 1; l >= 0; l--) {
+            int variable = FILL + l;
+            int start = random.nextInt(7) - 3;
+            int step = 1 + random.nextInt(2);
+            boolean up = random.nextBoolean();
+            TokenType comparison = up ? (random.nextBoolean() ? TokenType.LT : TokenType.LE) : (random.nextBoolean() ? TokenType.GT : TokenType.GE);
+            AstNode bound = p.literal(start + (up ? 1 : -1) * random.nextInt(5));
+            AstNode increment = up ? (random.nextBoolean() ? p.binary(TokenType.PLUS, p.variable(variable), p.literal(step))
+                    : p.binary(TokenType.PLUS, p.literal(step), p.variable(variable)))
+                : p.binary(TokenType.MINUS, p.variable(variable), p.literal(step));
+            node = p.loop(p.assign(TokenType.INT, variable, p.literal(start)), p.binary(comparison, p.variable(variable), bound),
+                p.assign(TokenType.INT, variable, increment), p.block(node));
+        }
+        return node;
+    }
+
+    // PLACEBLOCK, now and then at the same expression three times: one evaluation is cached
+    private AstNode place(int procedures) {
+        if (random.nextInt(3) != 0)
+            return p.place(coordinate(2, procedures), coordinate(2, procedures), coordinate(2, procedures));
+
+        long seed = random.nextLong();
+        AstNode[] coordinates = new AstNode[3];
+        Random saved = random;
+        for (int c = 0; c < 3; c++) {
+            random = new Random(seed);
+            coordinates[c] = coordinate(3, procedures);
+        }
+        random = saved;
+        return p.place(coordinates[0], coordinates[1], coordinates[2]);
+    }
+
+    // mostly an INT, the number variables can be FLOATs
+    private AstNode coordinate(int depth, int procedures) {
+        switch (random.nextInt(depth <= 0 ? 3 : 6)) {
+            case 0:
+                return p.literal(random.nextInt(13) - 4);
+            case 1:
+                return inProcedure ? p.variable(random.nextInt(NUMBERS)) : p.get(ARRAY, index());
+            case 2:
+                return random.nextInt(8) == 0 ? expression(1, procedures) : p.variable(COUNTER + 1 + random.nextInt(DEPTH));
+            default: {
+                TokenType[] operators = { TokenType.PLUS, TokenType.MINUS, TokenType.MUL };
+                return p.binary(operators[random.nextInt(operators.length)], coordinate(depth - 1, procedures), coordinate(depth - 1, procedures));
+            }
+        }
+    }
+
+    private AstNode printed(int procedures) {
+        switch (random.nextInt(inProcedure ? 2 : 4)) {
+            case 0:
+                return expression(2, procedures);
+            case 1:
+                return condition(1, procedures);
+            case 2:
+                return text(2, procedures);
+            default:
+                return p.variable(ARRAY);
+        }
+    }
+
+    private AstNode condition(int depth, int procedures) {
+        switch (random.nextInt(depth <= 0 ? 6 : 9)) {
+            case 0:
+                return inProcedure ? p.literal(random.nextBoolean()) : p.variable(FLAG);
+            case 1:
+                return p.literal(random.nextBoolean());
+            case 6:
+                return p.unary(TokenType.NOT, condition(depth - 1, procedures));
+            case 7: {
+                TokenType[] logic = { TokenType.AND, TokenType.OR, TokenType.XOR };
+                return p.binary(logic[random.nextInt(logic.length)], condition(depth - 1, procedures), condition(depth - 1, procedures));
+            }
+            case 8:
+                if (inProcedure)
+                    return comparison(procedures);
+                return p.binary(random.nextBoolean() ? TokenType.EQ : TokenType.NE, text(1, procedures), text(1, procedures));
+            default:
+                return comparison(procedures);
+        }
+    }
+
+    private AstNode comparison(int procedures) {
+        TokenType[] comparisons = { TokenType.LT, TokenType.GT, TokenType.LE, TokenType.GE, TokenType.EQ, TokenType.NE };
+        return p.binary(comparisons[random.nextInt(comparisons.length)], expression(1, procedures), expression(1, procedures));
+    }
+
+    // a STRING, short enough that loops cannot grow it much
+    private AstNode text(int depth, int procedures) {
+        switch (random.nextInt(depth <= 0 ? 2 : 4)) {
+            case 0:
+                return p.literal(TEXTS[random.nextInt(TEXTS.length)]);
+            case 1:
+                return inProcedure ? p.literal(TEXTS[random.nextInt(TEXTS.length)]) : p.variable(TEXT);
+            case 2:
+                return random.nextBoolean() ? p.binary(TokenType.PLUS, text(depth - 1, procedures), expression(1, procedures))
+                    : p.binary(TokenType.PLUS, expression(1, procedures), text(depth - 1, procedures));
+            default:
+                return p.binary(TokenType.MUL, p.literal(TEXTS[random.nextInt(TEXTS.length)]), p.literal(random.nextInt(4)));
+        }
+    }
+
+    private AstNode expression(int depth, int procedures) {
+        switch (random.nextInt(depth <= 0 ? 3 : 11)) {
+            case 0:
+                return number();
+            case 1:
+            case 2:
+                return p.variable(random.nextInt(NUMBERS));
+            case 3:
+                return p.binary(TokenType.PLUS, expression(depth - 1, procedures), expression(depth - 1, procedures));
+            case 4:
+                return p.binary(TokenType.MINUS, expression(depth - 1, procedures), expression(depth - 1, procedures));
+            case 5:
+                return p.binary(random.nextBoolean() ? TokenType.MUL : TokenType.MOD, expression(depth - 1, procedures), expression(depth - 1, procedures));
+            case 6:
+                return p.binary(random.nextBoolean() ? TokenType.DIV : TokenType.POW, expression(depth - 1, procedures), expression(depth - 1, procedures));
+            case 7:
+                return p.unary(MATH[random.nextInt(MATH.length)], expression(depth - 1, procedures));
+            case 8:
+                if (inProcedure)
+                    return number();
+                return p.get(ARRAY, index());
+            case 9:
+                // mixes types: a STRING that an assign converts, or a BOOL it cannot
+                if (random.nextInt(4) != 0)
+                    return number();
+                return random.nextBoolean() && !inProcedure ? text(1, procedures) : condition(0, procedures);
+            default:
+                return procedures > 0 ? p.call(1 + random.nextInt(procedures), expression(depth - 1, procedures)) : number();
+        }
+    }
+
+    // out of range now and then
+    private AstNode index() {
+        return p.literal(random.nextInt(10) == 0 ? length : random.nextInt(length));
+    }
+
+    private AstNode number() {
+        return random.nextInt(4) == 0 ? p.literal(random.nextInt(9) / 4f) : p.literal(random.nextInt(13) - 4);
+    }
+}
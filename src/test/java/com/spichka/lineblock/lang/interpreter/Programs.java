@@ -0,0 +1,175 @@
+package com.spichka.lineblock.lang.interpreter;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import com.spichka.lineblock.lang.exceptions.LineBlockException;
+import com.spichka.lineblock.lang.lexer.Token;
+import com.spichka.lineblock.lang.lexer.TokenType;
+import com.spichka.lineblock.lang.optimizer.Optimizer;
+import com.spichka.lineblock.lang.parser.ast.ArrayNode;
+import com.spichka.lineblock.lang.parser.ast.AstNode;
+import com.spichka.lineblock.lang.parser.ast.BinaryOpNode;
+import com.spichka.lineblock.lang.parser.ast.BlockNode;
+import com.spichka.lineblock.lang.parser.ast.CallNode;
+import com.spichka.lineblock.lang.parser.ast.CommandNode;
+import com.spichka.lineblock.lang.parser.ast.ForNode;
+import com.spichka.lineblock.lang.parser.ast.IfNode;
+import com.spichka.lineblock.lang.parser.ast.LiteralNode;
+import com.spichka.lineblock.lang.parser.ast.PlaceBlockNode;
+import com.spichka.lineblock.lang.parser.ast.ProcedureNode;
+import com.spichka.lineblock.lang.parser.ast.UnaryOpNode;
+import com.spichka.lineblock.lang.parser.ast.VariableNode;
+import com.spichka.lineblock.lang.parser.ast.WhileNode;
+
+import net.minecraft.block.Blocks;
+
+// Builds a program the way the Parser does, one top-level statement at a time, and
+// runs it the way a LineBlock run does. Variables are numbered like VAR_INDEX counts.
+public final class Programs {
+    private final List<AstNode> statements = new ArrayList<>();
+    private long pos;
+
+    public Programs add(AstNode... added) {
+        statements.addAll(List.of(added));
+        return this;
+    }
+
+    // what the run printed and placed, then "error <message>" or "stop" if it ended early
+    public List<String> run(Backend backend, boolean jit) {
+        List<String> log = new ArrayList<>();
+
+        Resolver resolver = new Resolver();
+        List<AstNode> resolved = new ArrayList<>();
+        for (AstNode statement : statements)
+            resolved.add(resolver.resolve(Optimizer.optimize(statement)));
+
+        TypeChecker types = new TypeChecker();
+        BlockNode root = new BlockNode();
+        try {
+            for (AstNode statement : resolved)
+                types.declare(statement);
+            for (AstNode statement : resolved)
+                root.addStatement(types.check(statement));
+
+            JitCode jitCode = jit ? JitCompiler.compile(root, types) : null;
+            Executor executor = backend.create(TestWorld.create(log), jitCode, new ProgramCode());
+            for (AstNode statement : root.statements) {
+                if (!executor.execute(statement)) {
+                    log.add("stop");
+                    break;
+                }
+            }
+        } catch (LineBlockException e) {
+            log.add("error " + e.getMessage());
+        }
+        return log;
+    }
+
+    public AstNode assign(TokenType type, int variable, AstNode value) {
+        return binary(type, new VariableNode(token(TokenType.USE_VAR), variable), value);
+    }
+
+    public AstNode binary(TokenType operator, AstNode left, AstNode right) {
+        return new BinaryOpNode(token(operator), left, right);
+    }
+
+    public AstNode unary(TokenType operator, AstNode operand) {
+        return new UnaryOpNode(token(operator), operand);
+    }
+
+    public AstNode print(AstNode value) {
+        return unary(TokenType.PRINT, value);
+    }
+
+    public AstNode place(AstNode x, AstNode y, AstNode z) {
+        return new PlaceBlockNode(x, y, z, Blocks.STONE);
+    }
+
+    public AstNode command(TokenType type) {
+        return new CommandNode(token(type));
+    }
+
+    public BlockNode block(AstNode... body) {
+        BlockNode block = new BlockNode();
+        for (AstNode statement : body)
+            block.addStatement(statement);
+        return block;
+    }
+
+    public AstNode when(AstNode condition, AstNode then, AstNode otherwise) {
+        return new IfNode(condition, then, otherwise);
+    }
+
+    public AstNode loop(AstNode condition, AstNode body) {
+        return new WhileNode(condition, body);
+    }
+
+    public AstNode loop(AstNode initializer, AstNode condition, AstNode increment, AstNode body) {
+        return new ForNode(initializer, condition, increment, body);
+    }
+
+    // DEFINE index with the parameter INT 0
+    public AstNode procedure(int index, BlockNode body, AstNode result) {
+        VariableNode[] parameters = { new VariableNode(token(TokenType.INT), 0) };
+        return new ProcedureNode(token(TokenType.DEFINE), index, parameters, new Value.Type[] { Value.Type.INT }, body, result);
+    }
+
+    public AstNode call(int index, AstNode argument) {
+        return new CallNode(token(TokenType.CALL), index, new ArrayList<>(List.of(argument)));
+    }
+
+    public AstNode newArray(int variable, Value.Type element, AstNode length) {
+        return new ArrayNode(token(TokenType.ARRAY_NEW), element, variable(variable), length, null);
+    }
+
+    public AstNode set(int variable, AstNode index, AstNode value) {
+        return new ArrayNode(token(TokenType.ARRAY_SET), null, variable(variable), index, value);
+    }
+
+    public AstNode get(int variable, AstNode index) {
+        return new ArrayNode(token(TokenType.ARRAY_GET), null, variable(variable), index, null);
+    }
+
+    public AstNode length(int variable) {
+        return new ArrayNode(token(TokenType.ARRAY_LENGTH), null, variable(variable), null, null);
+    }
+
+    public VariableNode variable(int index) {
+        return new VariableNode(token(TokenType.USE_VAR), index);
+    }
+
+    public LiteralNode literal(int value) {
+        return literal(TokenType.INT, value & 0xFFFFFFFFL, 32);
+    }
+
+    public LiteralNode literal(float value) {
+        return literal(TokenType.FLOAT, Float.floatToIntBits(value) & 0xFFFFFFFFL, 32);
+    }
+
+    public LiteralNode literal(boolean value) {
+        return literal(TokenType.BOOL, value ? 1 : 0, 1);
+    }
+
+    // the last 8 bit blocks are the first character
+    public LiteralNode literal(String value) {
+        BitSet bits = new BitSet();
+        for (int i = 0; i < value.length(); i++) {
+            int offset = (value.length() - 1 - i) * 8;
+            for (int j = 0; j < 8; j++) {
+                if ((value.charAt(i) >> j & 1) != 0)
+                    bits.set(offset + j);
+            }
+        }
+        return new LiteralNode(token(TokenType.STRING), bits, value.length() * 8);
+    }
+
+    private LiteralNode literal(TokenType type, long bits, int bitCount) {
+        return new LiteralNode(token(type), BitSet.valueOf(new long[] { bits }), bitCount);
+    }
+
+    private Token token(TokenType type) {
+        return new Token(pos++, type);
+    }
+}
@@ -0,0 +1,39 @@
+package com.spichka.lineblock.lang.interpreter;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.util.List;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.entity.player.PlayerEntity;
+import net.minecraft.text.Text;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+
+// A world with one player that logs what a run does to it: "print <text>" and
+// "place <x> <y> <z> <block>". Every block in it reads as stone.
+public final class TestWorld {
+    private TestWorld() {}
+
+    public static World create(List<String> log) {
+        World world = mock(World.class);
+        PlayerEntity player = mock(PlayerEntity.class);
+        doReturn(List.of(player)).when(world).getPlayers();
+        doReturn(Blocks.STONE.getDefaultState()).when(world).getBlockState(any());
+
+        doAnswer(call -> log.add("print " + call.<Text>getArgument(0).getString()))
+            .when(player).sendMessage(any(), anyBoolean());
+        doAnswer(call -> {
+            BlockPos pos = call.getArgument(0);
+            BlockState state = call.getArgument(1);
+            return log.add("place " + pos.getX() + " " + pos.getY() + " " + pos.getZ() + " " + state.getBlock());
+        }).when(world).setBlockState(any(), any(), anyInt());
+        return world;
+    }
+}
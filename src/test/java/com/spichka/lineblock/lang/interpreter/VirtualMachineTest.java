@@ -0,0 +1,100 @@
+package com.spichka.lineblock.lang.interpreter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.spichka.lineblock.lang.lexer.TokenType;
+import com.spichka.lineblock.lang.parser.ast.AstNode;
+
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+
+// The flags and scope exits the BytecodeCompiler turns into jumps, against the
+// output the Interpreter gives, compiled and jitted.
+class VirtualMachineTest {
+    private static final int A = 1;
+    private static final int I = 2;
+    private static final int J = 3;
+
+    @BeforeAll
+    static void bootstrap() {
+        SharedConstants.createGameVersion();
+        Bootstrap.initialize();
+    }
+
+    // leaving a FOR drops the variables of the block it is in, at top level all of them
+    @Test
+    void forDropsTheVariablesOfItsBlock() {
+        Programs p = new Programs();
+        p.add(p.assign(TokenType.INT, A, p.literal(1)),
+            p.when(p.literal(true), p.block(p.assign(TokenType.INT, J, p.literal(2)), count(p, I, 1, p.block()),
+                p.print(p.variable(A)), p.print(p.variable(J))), null));
+        assertRuns(List.of("print 1", "error Error: Variable with index 3 not found"), p);
+
+        p = new Programs();
+        p.add(p.assign(TokenType.INT, A, p.literal(1)), count(p, I, 1, p.block()), p.print(p.variable(A)));
+        assertRuns(List.of("error Error: Variable with index 1 not found"), p);
+    }
+
+    // a FOR in the body of another only drops the variables of that body
+    @Test
+    void innerForKeepsTheOuterVariable() {
+        Programs p = new Programs();
+        p.add(p.when(p.literal(true), p.block(count(p, I, 2, p.block(count(p, J, 2, p.block(p.print(p.variable(J)))),
+            p.print(p.variable(I))))), null));
+        assertRuns(List.of("print 0", "print 1", "print 0", "print 0", "print 1", "print 1"), p);
+    }
+
+    // CONTINUE in an IF skips the rest of the body, BREAK only leaves the inner loop
+    @Test
+    void flagsLeaveTheirOwnLoop() {
+        Programs p = new Programs();
+        p.add(p.when(p.literal(true), p.block(count(p, I, 3, p.block(
+            p.when(p.binary(TokenType.EQ, p.variable(I), p.literal(1)), p.block(p.command(TokenType.CONTINUE)), null),
+            count(p, J, 3, p.block(p.when(p.binary(TokenType.EQ, p.variable(J), p.literal(1)), p.block(p.command(TokenType.BREAK)), null),
+                p.print(p.binary(TokenType.PLUS, p.binary(TokenType.MUL, p.variable(I), p.literal(10)), p.variable(J))))),
+            p.print(p.literal("next"))))), null));
+        assertRuns(List.of("print 0", "print next", "print 20", "print next"), p);
+    }
+
+    // a CONTINUE in the last statement of a body is still set when the next body starts
+    @Test
+    void continueInTheLastIfSkipsTheNextBody() {
+        Programs p = new Programs();
+        p.add(p.when(p.literal(true), p.block(count(p, I, 4, p.block(p.print(p.variable(I)),
+            p.when(p.binary(TokenType.EQ, p.variable(I), p.literal(1)), p.block(p.command(TokenType.CONTINUE)), null))),
+            p.print(p.literal("after"))), null));
+        assertRuns(List.of("print 0", "print 1", "print 3", "print after"), p);
+    }
+
+    // BREAK and CONTINUE in a procedure end its body, STOP ends the run from the call
+    @Test
+    void proceduresHaveFlagsOfTheirOwn() {
+        Programs p = new Programs();
+        p.add(p.procedure(1, p.block(p.print(p.literal("in")), p.command(TokenType.BREAK), p.print(p.literal("not"))), p.variable(0)),
+            p.procedure(2, p.block(p.when(p.binary(TokenType.GT, p.variable(0), p.literal(1)), p.block(p.command(TokenType.STOP)), null)),
+                p.variable(0)),
+            p.assign(TokenType.INT, A, p.literal(0)),
+            p.loop(p.binary(TokenType.LT, p.variable(A), p.literal(3)), p.block(
+                p.assign(TokenType.INT, A, p.binary(TokenType.PLUS, p.call(1, p.variable(A)), p.literal(1))),
+                p.print(p.call(2, p.variable(A))))),
+            p.print(p.literal("after")));
+        assertRuns(List.of("print in", "print 1", "print in", "stop"), p);
+    }
+
+    // FOR (INT variable = 0; variable < count; INT variable = variable + 1) body
+    private static AstNode count(Programs p, int variable, int count, AstNode body) {
+        return p.loop(p.assign(TokenType.INT, variable, p.literal(0)), p.binary(TokenType.LT, p.variable(variable), p.literal(count)),
+            p.assign(TokenType.INT, variable, p.binary(TokenType.PLUS, p.variable(variable), p.literal(1))), body);
+    }
+
+    private static void assertRuns(List<String> expected, Programs p) {
+        assertEquals(expected, p.run(Backend.TREE, false), "interpreter");
+        assertEquals(expected, p.run(Backend.BYTECODE, false), "bytecode");
+        assertEquals(expected, p.run(Backend.BYTECODE, true), "jit");
+    }
+}
@@ -0,0 +1,54 @@
+package com.spichka.lineblock.lang.lexer;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+
+// Times the Lexer reading a wide program itself and merging the lines LineSegments
+// read on the lexer pool, and prints the median times. Not part of the tests, run it with
+//     ./gradlew benchmark
+@Tag("benchmark")
+class LexerBenchmark {
+    private static final int WIDTH = 2_000; // INTs on the main line, each with a side branch
+    private static final int LENGTH = 500; // tokens of a side branch
+    private static final int WARMUP = 5;
+    private static final int ROUNDS = 15;
+
+    @Test
+    void lex() {
+        TestBlocks blocks = new TestBlocks();
+        for (int x = 0; x < WIDTH; x++) {
+            blocks.set(BlockPos.asLong(x, 0, 0), TokenType.INT);
+            for (int z = 1; z <= LENGTH; z++)
+                blocks.set(BlockPos.asLong(x, 0, z), z % 2 == 0 ? TokenType.ONE : TokenType.ZERO);
+        }
+
+        Supplier<TokenBuffer> sequential = () -> new Lexer(blocks, BlockPos.ORIGIN, Direction.EAST, new SourceMap()).tokenize();
+        Supplier<TokenBuffer> parallel = () -> new Lexer(blocks, BlockPos.ORIGIN, Direction.EAST, new SourceMap(),
+            LineSegments.walk(blocks, BlockPos.ORIGIN, Direction.EAST)).tokenize();
+        System.out.println(sequential.get().size() + " tokens, " + Runtime.getRuntime().availableProcessors() + " cores");
+
+        for (int i = 0; i < WARMUP; i++) {
+            sequential.get();
+            parallel.get();
+        }
+        measure("sequential", sequential);
+        measure("segments", parallel);
+    }
+
+    private static void measure(String name, Supplier<TokenBuffer> lex) {
+        long[] times = new long[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            lex.get();
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        System.out.printf("%-10s %6.1f ms median%n", name, times[ROUNDS / 2] / 1e6);
+    }
+}
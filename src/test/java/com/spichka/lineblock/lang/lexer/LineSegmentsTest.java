@@ -0,0 +1,106 @@
+package com.spichka.lineblock.lang.lexer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+
+// A Lexer merging lines read ahead by LineSegments has to produce what it produces
+// reading the blocks itself: tokens, unknown position, unloaded reads and pieces.
+class LineSegmentsTest {
+    private static final BlockPos START = new BlockPos(0, 4, 4);
+    private static final int SIZE = 9; // the blocks of a layout, outside of them is UNKNOWN
+    private static final TokenType[] TYPES = { TokenType.ONE, TokenType.ZERO, TokenType.PLUS, TokenType.INT,
+        TokenType.PRINT, TokenType.IF, TokenType.FOR, TokenType.USE_VAR };
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    @Test
+    void mergesLikeASequentialLexer() {
+        for (int seed = 0; seed < 2000; seed++) {
+            Random random = new Random(seed);
+            TestBlocks blocks = new TestBlocks();
+            int density = 20 + random.nextInt(50);
+            for (int x = 0; x < SIZE; x++) {
+                for (int y = 0; y < SIZE; y++) {
+                    for (int z = 0; z < SIZE; z++) {
+                        long pos = BlockPos.asLong(x, y, z);
+                        if (random.nextInt(100) >= density)
+                            continue;
+                        if (random.nextInt(10) == 0)
+                            blocks.observer(pos, DIRECTIONS[random.nextInt(DIRECTIONS.length)]);
+                        else
+                            blocks.set(pos, TYPES[random.nextInt(TYPES.length)]);
+                    }
+                }
+            }
+
+            Bounded sequential = new Bounded(blocks);
+            SourceMap sequentialMap = new SourceMap();
+            Lexer lexer = new Lexer(sequential, START, Direction.EAST, sequentialMap);
+            String expected = tokens(lexer.tokenize()) + " unknown " + lexer.getUnknownPos() + " " + sequential.counted
+                + " " + pieces(lexer);
+
+            Bounded parallel = new Bounded(blocks);
+            LineSegments segments = LineSegments.walk(parallel, START, Direction.EAST);
+            lexer = new Lexer(parallel, START, Direction.EAST, new SourceMap(), segments);
+            String actual = tokens(lexer.tokenize()) + " unknown " + lexer.getUnknownPos() + " " + parallel.counted
+                + " " + pieces(lexer);
+
+            assertEquals(expected, actual, "seed " + seed);
+            assertEquals(0, parallel.known, "blocks the merge read itself, seed " + seed);
+        }
+    }
+
+    private static String tokens(TokenBuffer tokens) {
+        List<String> list = new ArrayList<>(tokens.size());
+        for (int i = 0; i < tokens.size(); i++)
+            list.add(tokens.type(i) + "@" + BlockPos.fromLong(tokens.pos(i)));
+        return list.toString();
+    }
+
+    private static String pieces(Lexer lexer) {
+        List<String> pieces = new ArrayList<>();
+        for (SourceMap.Piece piece : lexer.getPieces()) {
+            pieces.add(piece.from + " " + BlockPos.fromLong(piece.pos) + " " + piece.direction + " reads " + piece.reads
+                + " visits " + piece.visits + " blocked " + piece.blocked);
+        }
+        return pieces.toString();
+    }
+
+    // UNKNOWN outside of the layout, like a snapshot around unloaded chunks
+    private static final class Bounded implements BlockSource {
+        private final TestBlocks blocks;
+        private final List<BlockPos> counted = new ArrayList<>(); // UNKNOWN reads through classify
+        private int known; // other reads through classify
+
+        private Bounded(TestBlocks blocks) {
+            this.blocks = blocks;
+        }
+
+        @Override
+        public int classify(long pos) {
+            int code = peek(pos);
+            if (code == BlockClassifier.UNKNOWN)
+                counted.add(BlockPos.fromLong(pos));
+            else
+                known++;
+            return code;
+        }
+
+        @Override
+        public int peek(long pos) {
+            int x = BlockPos.unpackLongX(pos);
+            int y = BlockPos.unpackLongY(pos);
+            int z = BlockPos.unpackLongZ(pos);
+            if (x < 0 || y < 0 || z < 0 || x >= SIZE || y >= SIZE || z >= SIZE)
+                return BlockClassifier.UNKNOWN;
+            return blocks.classify(pos);
+        }
+    }
+}
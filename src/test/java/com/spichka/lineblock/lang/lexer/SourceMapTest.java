@@ -0,0 +1,144 @@
+package com.spichka.lineblock.lang.lexer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+
+// A program re-lexed piece by piece after block changes has to come out as the tokens
+// of a fresh Lexer over the changed blocks.
+class SourceMapTest {
+    private static final BlockPos START = new BlockPos(0, 1, 2);
+    private static final int SIZE_X = 12, SIZE_Y = 4, SIZE_Z = 6;
+    private static final TokenType[] TYPES = { TokenType.ONE, TokenType.ZERO, TokenType.PLUS, TokenType.INT,
+        TokenType.PRINT, TokenType.IF, TokenType.BLOCK_END, TokenType.USE_VAR };
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    @Test
+    void editInALongLineIsSpliced() {
+        TestBlocks blocks = new TestBlocks();
+        for (int x = 0; x < 30; x++)
+            blocks.set(at(x), x % 3 == 0 ? TokenType.INT : TokenType.ONE); // a piece after every INT
+
+        SourceMap map = new SourceMap();
+        TokenBuffer tokens = new Lexer(blocks, START, Direction.EAST, map).tokenize();
+
+        blocks.set(at(14), TokenType.ZERO);
+        assertTrue(map.markChanged(at(14)));
+
+        SourceMap.Splice splice = map.relexNext(blocks, tokens);
+        assertNotNull(splice);
+        assertEquals(new SourceMap.Splice(13, 16, 16), splice); // the piece after the INT at 12, up to the next one with it
+        assertFalse(map.isDirty());
+        assertEquals(fresh(blocks), list(tokens));
+    }
+
+    @Test
+    void blockNobodyReadIsIgnored() {
+        TestBlocks blocks = new TestBlocks();
+        for (int x = 0; x < 5; x++)
+            blocks.set(at(x), TokenType.ONE);
+
+        SourceMap map = new SourceMap();
+        new Lexer(blocks, START, Direction.EAST, map).tokenize();
+
+        assertFalse(map.markChanged(at(10)));
+        assertFalse(map.markChanged(BlockPos.asLong(2, 5, 2))); // above a token, nothing branches there
+        assertFalse(map.isDirty());
+    }
+
+    @Test
+    void relexedLikeAFreshLexer() {
+        int spliced = 0;
+        int relexed = 0;
+
+        for (int seed = 0; seed < 500; seed++) {
+            Random random = new Random(seed);
+            TestBlocks blocks = layout(random);
+
+            SourceMap map = new SourceMap();
+            TokenBuffer tokens = new Lexer(blocks, START, Direction.EAST, map).tokenize();
+
+            for (int round = 0; round < 30; round++) {
+                for (int edits = 1 + random.nextInt(3); edits > 0; edits--) {
+                    long pos = BlockPos.asLong(random.nextInt(SIZE_X + 2) - 1, random.nextInt(SIZE_Y + 2) - 1,
+                        random.nextInt(SIZE_Z + 2) - 1);
+                    change(random, blocks, pos);
+                    map.markChanged(pos);
+                }
+
+                while (map.isDirty()) {
+                    List<String> before = list(tokens);
+                    SourceMap.Splice splice = map.relexNext(blocks, tokens);
+
+                    if (splice == null) {
+                        map = new SourceMap();
+                        tokens = new Lexer(blocks, START, Direction.EAST, map).tokenize();
+                        relexed++;
+                        continue;
+                    }
+
+                    // only [from, oldTo) was replaced
+                    List<String> after = list(tokens);
+                    String where = "seed " + seed + ", round " + round + ", " + splice;
+                    assertEquals(before.subList(0, splice.from()), after.subList(0, splice.from()), where);
+                    assertEquals(before.subList(splice.oldTo(), before.size()), after.subList(splice.newTo(), after.size()), where);
+                    spliced++;
+                }
+
+                assertEquals(fresh(blocks), list(tokens), "seed " + seed + ", round " + round);
+            }
+        }
+
+        assertTrue(spliced > relexed, spliced + " spliced, " + relexed + " lexed again");
+    }
+
+    // a main line east from START with blocks around it that branch off or cross it
+    private static TestBlocks layout(Random random) {
+        TestBlocks blocks = new TestBlocks();
+        for (int x = 0; x < SIZE_X; x++) {
+            for (int y = 0; y < SIZE_Y; y++) {
+                for (int z = 0; z < SIZE_Z; z++) {
+                    boolean main = y == START.getY() && z == START.getZ();
+                    if (random.nextInt(100) < (main ? 90 : 30))
+                        change(random, blocks, BlockPos.asLong(x, y, z));
+                }
+            }
+        }
+        return blocks;
+    }
+
+    private static void change(Random random, TestBlocks blocks, long pos) {
+        int kind = random.nextInt(20);
+        if (kind < 4)
+            blocks.clear(pos);
+        else if (kind < 6)
+            blocks.observer(pos, DIRECTIONS[random.nextInt(DIRECTIONS.length)]);
+        else
+            blocks.set(pos, TYPES[random.nextInt(TYPES.length)]);
+    }
+
+    private static long at(int x) {
+        return BlockPos.asLong(x, START.getY(), START.getZ());
+    }
+
+    private static List<String> fresh(BlockSource blocks) {
+        return list(new Lexer(blocks, START, Direction.EAST).tokenize());
+    }
+
+    private static List<String> list(TokenBuffer tokens) {
+        List<String> list = new ArrayList<>(tokens.size());
+        for (int i = 0; i < tokens.size(); i++)
+            list.add(tokens.type(i) + "@" + BlockPos.fromLong(tokens.pos(i)));
+        return list;
+    }
+}
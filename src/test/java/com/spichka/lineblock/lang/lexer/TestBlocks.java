@@ -0,0 +1,37 @@
+package com.spichka.lineblock.lang.lexer;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import net.minecraft.util.math.Direction;
+
+// Blocks for the lexer without a world: every position not set is NONE.
+public final class TestBlocks implements BlockSource {
+    private static final int OBSERVER = TokenType.values().length + 1; // see BlockClassifier
+
+    private final Long2IntOpenHashMap codes = new Long2IntOpenHashMap();
+
+    public TestBlocks set(long pos, TokenType type) {
+        codes.put(pos, type.ordinal() + 1);
+        return this;
+    }
+
+    public TestBlocks observer(long pos, Direction facing) {
+        codes.put(pos, OBSERVER + facing.ordinal());
+        return this;
+    }
+
+    public TestBlocks clear(long pos) {
+        codes.remove(pos);
+        return this;
+    }
+
+    public TestBlocks copy() {
+        TestBlocks copy = new TestBlocks();
+        copy.codes.putAll(codes);
+        return copy;
+    }
+
+    @Override
+    public int classify(long pos) {
+        return codes.get(pos); // NONE is the default value
+    }
+}
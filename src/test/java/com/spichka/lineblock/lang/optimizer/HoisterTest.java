@@ -0,0 +1,45 @@
+package com.spichka.lineblock.lang.optimizer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.spichka.lineblock.lang.interpreter.Backend;
+import com.spichka.lineblock.lang.interpreter.Programs;
+import com.spichka.lineblock.lang.interpreter.Value;
+import com.spichka.lineblock.lang.lexer.TokenType;
+
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+
+class HoisterTest {
+    private static final int ARRAY = 0;
+    private static final int I = 1;
+
+    @BeforeAll
+    static void bootstrap() {
+        SharedConstants.createGameVersion();
+        Bootstrap.initialize();
+    }
+
+    // ARRAY_SET changes the text of its ARRAY, so (arr + "") is not invariant in the loop
+    @Test
+    void arraySetInLoopIsNotCached() {
+        Programs p = new Programs();
+        p.add(p.newArray(ARRAY, Value.Type.INT, p.literal(3)),
+            p.assign(TokenType.INT, I, p.literal(0)),
+            p.loop(p.binary(TokenType.LT, p.variable(I), p.literal(3)), p.block(
+                p.print(p.binary(TokenType.PLUS, p.variable(ARRAY), p.literal(""))),
+                p.set(ARRAY, p.variable(I), p.binary(TokenType.PLUS, p.variable(I), p.literal(1))),
+                p.assign(TokenType.INT, I, p.binary(TokenType.PLUS, p.variable(I), p.literal(1))))));
+
+        List<String> expected = List.of("print [0, 0, 0]", "print [1, 0, 0]", "print [1, 2, 0]");
+        for (Backend backend : Backend.values()) {
+            assertEquals(expected, p.run(backend, false), backend.name());
+            assertEquals(expected, p.run(backend, true), backend.name() + " jitted");
+        }
+    }
+}
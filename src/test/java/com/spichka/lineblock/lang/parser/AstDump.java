@@ -0,0 +1,58 @@
+package com.spichka.lineblock.lang.parser;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.spichka.lineblock.lang.exceptions.LineBlockException;
+import com.spichka.lineblock.lang.interpreter.Value;
+import com.spichka.lineblock.lang.lexer.Token;
+import com.spichka.lineblock.lang.parser.ast.AstNode;
+
+// Trees as text to compare them: two trees are the same if every field is.
+public final class AstDump {
+    private AstDump() {}
+
+    // every field of every node
+    public static String of(Object value) {
+        if (value == null)
+            return "null";
+        if (value instanceof Token token)
+            return token.type + "@" + token.getBlockPos();
+        if (value instanceof Value v)
+            return v.getType() + " " + v;
+        if (value instanceof LineBlockException e)
+            return e.getMessage();
+        if (value instanceof List<?> list) {
+            List<String> items = new ArrayList<>();
+            for (Object item : list)
+                items.add(of(item));
+            return items.toString();
+        }
+        if (value.getClass().isArray()) {
+            List<String> items = new ArrayList<>();
+            for (int i = 0; i < Array.getLength(value); i++)
+                items.add(of(Array.get(value, i)));
+            return items.toString();
+        }
+        if (!(value instanceof AstNode))
+            return String.valueOf(value);
+
+        StringBuilder text = new StringBuilder(value.getClass().getSimpleName()).append('(');
+        for (Class<?> type = value.getClass(); type != Object.class; type = type.getSuperclass()) {
+            for (Field field : type.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()))
+                    continue;
+                try {
+                    field.setAccessible(true);
+                    text.append(field.getName()).append('=').append(of(field.get(value))).append(' ');
+                } catch (IllegalAccessException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        }
+        return text.append(')').toString();
+    }
+}
@@ -0,0 +1,358 @@
+package com.spichka.lineblock.lang.parser;
+
+import java.util.BitSet;
+import java.util.List;
+
+import com.spichka.lineblock.lang.exceptions.LineBlockException;
+import com.spichka.lineblock.lang.lexer.Token;
+import com.spichka.lineblock.lang.lexer.TokenSource;
+import com.spichka.lineblock.lang.lexer.TokenType;
+import com.spichka.lineblock.lang.parser.ast.AstNode;
+import com.spichka.lineblock.lang.parser.ast.BinaryOpNode;
+import com.spichka.lineblock.lang.parser.ast.BlockNode;
+import com.spichka.lineblock.lang.parser.ast.CommandNode;
+import com.spichka.lineblock.lang.parser.ast.ConstantNode;
+import com.spichka.lineblock.lang.parser.ast.ForNode;
+import com.spichka.lineblock.lang.parser.ast.IfNode;
+import com.spichka.lineblock.lang.parser.ast.LiteralNode;
+import com.spichka.lineblock.lang.parser.ast.PlaceBlockNode;
+import com.spichka.lineblock.lang.parser.ast.UnaryOpNode;
+import com.spichka.lineblock.lang.parser.ast.VariableNode;
+import com.spichka.lineblock.lang.parser.ast.WhileNode;
+
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+
+// The Parser before TokenClass and precedence climbing: every match builds a List
+// of token types and searches it. Kept to check that the Parser still builds the same
+// trees and throws the same errors, and to measure it against (see ParserBenchmark).
+final class ListParser {
+    // literal bits: one per wool block, four per concrete block
+    private static final List<TokenType> BITS = List.of(
+        TokenType.ZERO, TokenType.ONE,
+        TokenType.HEX_0, TokenType.HEX_1, TokenType.HEX_2, TokenType.HEX_3,
+        TokenType.HEX_4, TokenType.HEX_5, TokenType.HEX_6, TokenType.HEX_7,
+        TokenType.HEX_8, TokenType.HEX_9, TokenType.HEX_A, TokenType.HEX_B,
+        TokenType.HEX_C, TokenType.HEX_D, TokenType.HEX_E, TokenType.HEX_F
+    );
+
+    private final TokenSource tokens;
+    private final World world;
+    private int current; // index of the last matched token
+    private int position;
+
+    ListParser(World world, TokenSource tokens) {
+        this.tokens = tokens;
+        this.world = world;
+        this.current = -1;
+        this.position = 0;
+    }
+
+    BlockNode parse() {
+        BlockNode root = new BlockNode();
+
+        while (tokens.has(position)) {
+            AstNode codeLineNode = parseLine();
+            root.addStatement(codeLineNode);
+        }
+
+        return root;
+    }
+
+    private boolean match(List<TokenType> types) {
+        if (tokens.has(position) && types.contains(tokens.type(position))) {
+            current = position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void require(List<TokenType> types) {
+        if (!match(types))
+            throw new LineBlockException("One of " + types + " required", currentToken());
+    }
+
+    // Token objects only exist for AST nodes and errors
+    private Token currentToken() {
+        return current < 0 ? null : tokens.token(current);
+    }
+
+    private AstNode parseLine() {
+        if (match(List.of(
+            TokenType.INT, TokenType.STRING,
+            TokenType.FLOAT, TokenType.BOOL
+        ))) {
+           return parseVariable();
+        } else if (match(List.of(TokenType.COMMAND, TokenType.STOP, TokenType.BREAK, TokenType.CONTINUE))) {
+            return new CommandNode(currentToken());
+        } else if (match(List.of(TokenType.PRINT))) {
+            Token operator = currentToken();
+            return new UnaryOpNode(operator, parseExpression());
+        } else if (match(List.of(TokenType.PLACEBLOCK))) {
+            return parsePlaceBlock();
+        } else if (match(List.of(TokenType.IF))) {
+            return parseIf();
+        } else if (match(List.of(TokenType.WHILE))) {
+            return parseWhile();
+        } else if (match(List.of(TokenType.FOR))) {
+            return parseFor();
+        }
+
+        throw new LineBlockException("Wrong block", currentToken());
+    }
+
+    private AstNode parseVariable() {
+        Token assign = currentToken();
+
+        VariableNode variableNode;
+        AstNode expressionNode;
+        if (match(List.of(TokenType.VAR_INDEX))) {
+            // first variable index, then expression
+            variableNode = new VariableNode(assign, 1 + countTokens(List.of(TokenType.VAR_INDEX)));
+            expressionNode = parseExpression();
+        } else {
+            // first expression, then variable index
+            expressionNode = parseExpression();
+            variableNode = new VariableNode(assign, countTokens(List.of(TokenType.VAR_INDEX)));
+        }
+
+        BinaryOpNode binaryOpNode = new BinaryOpNode(assign, variableNode, expressionNode);
+        return binaryOpNode;
+    }
+
+    private AstNode parseTerm() {
+        AstNode node = parseFactor();
+
+        while (match(List.of(
+            TokenType.MUL, TokenType.DIV, TokenType.MOD, TokenType.POW,
+            TokenType.BIT_AND, TokenType.BIT_OR, TokenType.BIT_XOR, TokenType.SHL, TokenType.SHR
+        ))) {
+            Token token = currentToken();
+            node = new BinaryOpNode(token, node, parseFactor());
+        }
+
+        return node;
+    }
+
+    private AstNode parseFactor() {
+        if (match(List.of(
+            TokenType.PLUS, TokenType.MINUS,
+            TokenType.NOT, TokenType.BIT_NOT,
+            TokenType.SIN, TokenType.COS, TokenType.TAN,
+            TokenType.ASIN, TokenType.ACOS, TokenType.ATAN,
+            TokenType.ABS, TokenType.CEIL, TokenType.FLOOR
+        ))) {
+            Token operator = currentToken();
+            return new UnaryOpNode(operator, parseFactor());
+
+        } else if (match(List.of(TokenType.LPAR))) {
+            AstNode node = parseExpression();
+            require(List.of(TokenType.RPAR));
+            return node;
+
+        } else if (match(List.of(
+            TokenType.INT, TokenType.FLOAT,
+            TokenType.STRING, TokenType.BOOL
+        ))) {
+            Token type = currentToken();
+            BitSet bits = new BitSet();
+            int bitCount = 0;
+
+            while (match(BITS)) {
+                TokenType bit = tokens.type(current);
+
+                if (bit.isHexDigit()) {
+                    // lowest bit first, like four wool blocks
+                    int value = bit.hexValue();
+                    for (int i = 0; i < 4; i++) {
+                        if ((value >> i & 1) != 0)
+                            bits.set(bitCount);
+                        bitCount++;
+                    }
+                } else {
+                    if (bit == TokenType.ONE)
+                        bits.set(bitCount);
+                    bitCount++;
+                }
+            }
+
+            if (bitCount == 0)
+                throw new LineBlockException("No bits for literal", type);
+
+            return new LiteralNode(type, bits, bitCount);
+
+        } else if (match(List.of(TokenType.USE_VAR))) {
+            Token useVar = currentToken();
+            return new VariableNode(useVar, countTokens(List.of(TokenType.VAR_INDEX)));
+
+        } else if (match(List.of(TokenType.PI, TokenType.E))) {
+            return new ConstantNode(currentToken());
+        }
+        throw new LineBlockException("Expected another value", currentToken());
+    }
+
+    private AstNode parseExpression() {
+        AstNode node = parseTerm();
+
+        while (match(List.of(
+            TokenType.PLUS, TokenType.MINUS,
+            TokenType.AND, TokenType.OR, TokenType.XOR,
+            TokenType.LT, TokenType.GT, TokenType.LE, TokenType.GE, TokenType.EQ, TokenType.NE
+        ))) {
+            Token token = currentToken();
+            node = new BinaryOpNode(token, node, parseTerm());
+        }
+
+        return node;
+    }
+
+    private int countTokens(List<TokenType> validTypes) {
+        int count = 0;
+
+        while (match(validTypes))
+            count++;
+
+        return count;
+    }
+
+    private AstNode parsePlaceBlock() {
+        AstNode placeX = null;
+        AstNode placeY = null;
+        AstNode placeZ = null;
+
+        Token placeBlockToken = currentToken();
+        BlockPos placeBlockPos = placeBlockToken.getBlockPos();
+        BlockPos fourthArgumentPos = null;
+
+        for (int i = 0; i < 4; i++) {
+            if (match(List.of(
+                TokenType.FIRST_ARGUMENT, TokenType.SECOND_ARGUMENT,
+                TokenType.THRID_ARGUMENT, TokenType.FOURTH_ARGUMENT
+            ))) {
+                Token argToken = currentToken();
+
+                switch (argToken.type) {
+                    case FIRST_ARGUMENT -> placeX = parseExpression();
+                    case SECOND_ARGUMENT -> placeY = parseExpression();
+                    case THRID_ARGUMENT -> placeZ = parseExpression();
+                    case FOURTH_ARGUMENT -> fourthArgumentPos = argToken.getBlockPos();
+                    default -> {}
+                }
+            } else if (tokens.has(position)) {
+                position++; // if fourth argument and tokenized block
+                i--;
+            } else {
+                throw new LineBlockException("PLACEBLOCK expects 4 arguments", placeBlockToken);
+            }
+        }
+
+        if (placeX == null || placeY == null || placeZ == null || fourthArgumentPos == null)
+            throw new LineBlockException("PLACEBLOCK expects 4 arguments", placeBlockToken);
+
+        int x = fourthArgumentPos.getX() + (fourthArgumentPos.getX() - placeBlockPos.getX());
+        int y = fourthArgumentPos.getY() + (fourthArgumentPos.getY() - placeBlockPos.getY());
+        int z = fourthArgumentPos.getZ() + (fourthArgumentPos.getZ() - placeBlockPos.getZ());
+
+        BlockPos pos = new BlockPos(x, y, z);
+        return new PlaceBlockNode(placeX, placeY, placeZ, world.getBlockState(pos).getBlock());
+    }
+
+    private AstNode parseBlock() {
+        BlockNode root = new BlockNode();
+
+        while (!match(List.of(TokenType.BLOCK_END))) {
+            AstNode codeLineNode = parseLine();
+            root.addStatement(codeLineNode);
+        }
+
+        return root;
+    }
+
+    private AstNode parseIf() {
+        AstNode conditionNode = null;
+        AstNode thenBranchNode = null;
+        AstNode elseBranchNode = null;
+
+        for (int i = 0; i < 3; i++) {
+            if (match(List.of(
+                TokenType.FIRST_ARGUMENT, TokenType.SECOND_ARGUMENT,
+                TokenType.THRID_ARGUMENT
+            ))) {
+                Token argToken = currentToken();
+
+                switch (argToken.type) {
+                    case FIRST_ARGUMENT -> conditionNode = parseExpression();
+                    case SECOND_ARGUMENT -> thenBranchNode = parseBlock();
+                    case THRID_ARGUMENT -> elseBranchNode = parseBlock();
+                    default -> {}
+                }
+            } else {
+                break; // if no else, then break
+            }
+        }
+
+        return new IfNode(conditionNode, thenBranchNode, elseBranchNode);
+    }
+
+    private AstNode parseWhile() {
+        Token whileToken = currentToken();
+
+        AstNode conditionNode = null;
+        AstNode bodyNode = null;
+
+        for (int i = 0; i < 2; i++) {
+            if (match(List.of(
+                TokenType.FIRST_ARGUMENT, TokenType.SECOND_ARGUMENT
+            ))) {
+                Token argToken = currentToken();
+
+                switch (argToken.type) {
+                    case FIRST_ARGUMENT -> conditionNode = parseExpression();
+                    case SECOND_ARGUMENT -> bodyNode = parseBlock();
+                    default -> {}
+                }
+            } else {
+                throw new LineBlockException("WHILE expects 2 arguments", whileToken);
+            }
+        }
+
+        return new WhileNode(conditionNode, bodyNode);
+    }
+
+    private AstNode parseFor() {
+        Token forToken = currentToken();
+
+        AstNode initNode = null;
+        AstNode conditionNode = null;
+        AstNode incrementNode = null;
+        AstNode bodyNode = null;
+
+        for (int i = 0; i < 4; i++) {
+            if (match(List.of(
+                TokenType.FIRST_ARGUMENT, TokenType.SECOND_ARGUMENT,
+                TokenType.THRID_ARGUMENT, TokenType.FOURTH_ARGUMENT
+            ))) {
+                Token argToken = currentToken();
+
+                switch (argToken.type) {
+                    case FIRST_ARGUMENT -> {
+                        require(List.of(TokenType.INT, TokenType.FLOAT, TokenType.STRING, TokenType.BOOL));
+                        initNode = parseVariable();
+                    }
+                    case SECOND_ARGUMENT -> conditionNode = parseExpression();
+                    case THRID_ARGUMENT -> {
+                        require(List.of(TokenType.INT, TokenType.FLOAT, TokenType.STRING, TokenType.BOOL));
+                        // i = i + 1, because no i++
+                        incrementNode = parseVariable();
+                    }
+                    case FOURTH_ARGUMENT -> bodyNode = parseBlock();
+                    default -> {}
+                }
+            } else {
+                throw new LineBlockException("FOR expects 4 arguments", forToken);
+            }
+        }
+
+        return new ForNode(initNode, conditionNode, incrementNode, bodyNode);
+    }
+}
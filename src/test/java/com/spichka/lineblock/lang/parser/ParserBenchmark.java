@@ -0,0 +1,59 @@
+package com.spichka.lineblock.lang.parser;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import com.spichka.lineblock.lang.interpreter.TestWorld;
+import com.spichka.lineblock.lang.lexer.TokenBuffer;
+
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+import net.minecraft.world.World;
+
+// Times the Parser and the ListParser on one large generated program and prints the
+// median time and the bytes allocated per parse. Not part of the tests, run it with
+//     ./gradlew benchmark
+@Tag("benchmark")
+class ParserBenchmark {
+    private static final int STATEMENTS = 50_000;
+    private static final int WARMUP = 5;
+    private static final int ROUNDS = 15;
+
+    @Test
+    void parse() {
+        SharedConstants.createGameVersion();
+        Bootstrap.initialize();
+
+        World world = TestWorld.create(new ArrayList<>());
+        TokenBuffer tokens = TokenStreams.program(new Random(1), STATEMENTS, 0);
+        System.out.println(tokens.size() + " tokens");
+
+        for (int i = 0; i < WARMUP; i++) {
+            new ListParser(world, tokens).parse();
+            new Parser(world, tokens).parse();
+        }
+        measure("ListParser", () -> new ListParser(world, tokens).parse());
+        measure("Parser", () -> new Parser(world, tokens).parse());
+    }
+
+    private static void measure(String name, Runnable parse) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] times = new long[ROUNDS];
+        long allocated = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long bytes = threads.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            parse.run();
+            times[i] = System.nanoTime() - start;
+            allocated += threads.getCurrentThreadAllocatedBytes() - bytes;
+        }
+        Arrays.sort(times);
+        System.out.printf("%-10s %6.1f ms median, %6.1f MB allocated per parse%n", name, times[ROUNDS / 2] / 1e6,
+            allocated / (double) ROUNDS / (1 << 20));
+    }
+}
@@ -0,0 +1,52 @@
+package com.spichka.lineblock.lang.parser;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.spichka.lineblock.lang.exceptions.LineBlockException;
+import com.spichka.lineblock.lang.interpreter.TestWorld;
+import com.spichka.lineblock.lang.lexer.TokenBuffer;
+
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+import net.minecraft.world.World;
+
+// The Parser against the ListParser it replaced, on random token streams: the same
+// tree, field by field, or the same error.
+class ParserTest {
+    private static final int STREAMS = 20000;
+
+    @BeforeAll
+    static void bootstrap() {
+        SharedConstants.createGameVersion();
+        Bootstrap.initialize();
+    }
+
+    @Test
+    void parsesLikeTheListParser() {
+        World world = TestWorld.create(new ArrayList<>());
+        for (int seed = 0; seed < STREAMS; seed++) {
+            Random random = new Random(seed);
+            TokenBuffer tokens = TokenStreams.program(random, 1 + random.nextInt(4), seed % 4 == 0 ? 0 : 3);
+
+            String expected;
+            try {
+                expected = AstDump.of(new ListParser(world, tokens).parse());
+            } catch (LineBlockException e) {
+                expected = e.getMessage();
+            }
+            String actual;
+            try {
+                actual = AstDump.of(new Parser(world, tokens).parse());
+            } catch (LineBlockException e) {
+                actual = e.getMessage();
+            }
+            assertEquals(expected, actual, "seed " + seed + ", " + tokens);
+        }
+    }
+}
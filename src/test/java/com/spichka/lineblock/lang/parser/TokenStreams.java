@@ -0,0 +1,174 @@
+package com.spichka.lineblock.lang.parser;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import com.spichka.lineblock.lang.lexer.TokenBuffer;
+import com.spichka.lineblock.lang.lexer.TokenType;
+
+import net.minecraft.util.math.BlockPos;
+
+// Random token streams the ListParser knows every token of: programs that follow the
+// grammar, then maybe a few tokens deleted, inserted or replaced. Token i lies at x = i.
+public final class TokenStreams {
+    // no ARRAYs and procedures, they came after the ListParser
+    private static final TokenType[] KNOWN = EnumSet.complementOf(EnumSet.of(TokenType.ARRAY_NEW, TokenType.ARRAY_GET,
+        TokenType.ARRAY_SET, TokenType.ARRAY_LENGTH, TokenType.DEFINE, TokenType.CALL)).toArray(TokenType[]::new);
+    private static final TokenType[] VALUES = { TokenType.INT, TokenType.FLOAT, TokenType.STRING, TokenType.BOOL };
+    private static final TokenType[] COMMANDS = { TokenType.COMMAND, TokenType.STOP, TokenType.BREAK, TokenType.CONTINUE };
+    private static final TokenType[] BINARY = { TokenType.PLUS, TokenType.MINUS, TokenType.MUL, TokenType.DIV, TokenType.MOD,
+        TokenType.POW, TokenType.BIT_AND, TokenType.BIT_OR, TokenType.BIT_XOR, TokenType.SHL, TokenType.SHR, TokenType.AND,
+        TokenType.OR, TokenType.XOR, TokenType.EQ, TokenType.NE, TokenType.GT, TokenType.LT, TokenType.GE, TokenType.LE };
+    private static final TokenType[] UNARY = { TokenType.PLUS, TokenType.MINUS, TokenType.NOT, TokenType.BIT_NOT, TokenType.SIN,
+        TokenType.COS, TokenType.TAN, TokenType.ASIN, TokenType.ACOS, TokenType.ATAN, TokenType.ABS, TokenType.CEIL, TokenType.FLOOR };
+    private static final TokenType[] BITS = { TokenType.ZERO, TokenType.ONE, TokenType.HEX_0, TokenType.HEX_5, TokenType.HEX_A,
+        TokenType.HEX_F };
+
+    private final Random random;
+    private final List<TokenType> types = new ArrayList<>();
+
+    private TokenStreams(Random random) {
+        this.random = random;
+    }
+
+    // a program of about statements top-level lines, with up to edits random edits
+    public static TokenBuffer program(Random random, int statements, int edits) {
+        TokenStreams streams = new TokenStreams(random);
+        for (int i = 0; i < statements; i++)
+            streams.statement(2);
+        for (int i = random.nextInt(edits + 1); i > 0; i--)
+            streams.edit();
+
+        TokenBuffer tokens = new TokenBuffer(streams.types.size());
+        for (int i = 0; i < streams.types.size(); i++)
+            tokens.add(streams.types.get(i), BlockPos.asLong(i, 0, 0));
+        return tokens;
+    }
+
+    private void edit() {
+        int at = random.nextInt(types.size() + 1);
+        TokenType type = KNOWN[random.nextInt(KNOWN.length)];
+        switch (random.nextInt(3)) {
+            case 0 -> types.add(at, type);
+            case 1 -> {
+                if (at < types.size())
+                    types.remove(at);
+            }
+            default -> {
+                if (at < types.size())
+                    types.set(at, type);
+            }
+        }
+    }
+
+    private void statement(int depth) {
+        switch (random.nextInt(depth <= 0 ? 4 : 7)) {
+            case 0 -> assign();
+            case 1 -> add(COMMANDS);
+            case 2 -> {
+                types.add(TokenType.PRINT);
+                expression(2);
+            }
+            case 3 -> {
+                types.add(TokenType.PLACEBLOCK);
+                types.add(TokenType.FIRST_ARGUMENT);
+                expression(1);
+                types.add(TokenType.SECOND_ARGUMENT);
+                expression(1);
+                types.add(TokenType.THRID_ARGUMENT);
+                expression(1);
+                types.add(TokenType.FOURTH_ARGUMENT);
+            }
+            case 4 -> {
+                types.add(TokenType.IF);
+                types.add(TokenType.FIRST_ARGUMENT);
+                expression(2);
+                types.add(TokenType.SECOND_ARGUMENT);
+                block(depth);
+                if (random.nextBoolean()) {
+                    types.add(TokenType.THRID_ARGUMENT);
+                    block(depth);
+                }
+            }
+            case 5 -> {
+                types.add(TokenType.WHILE);
+                types.add(TokenType.FIRST_ARGUMENT);
+                expression(2);
+                types.add(TokenType.SECOND_ARGUMENT);
+                block(depth);
+            }
+            default -> {
+                types.add(TokenType.FOR);
+                types.add(TokenType.FIRST_ARGUMENT);
+                assign();
+                types.add(TokenType.SECOND_ARGUMENT);
+                expression(2);
+                types.add(TokenType.THRID_ARGUMENT);
+                assign();
+                types.add(TokenType.FOURTH_ARGUMENT);
+                block(depth);
+            }
+        }
+    }
+
+    private void block(int depth) {
+        for (int i = random.nextInt(4); i > 0; i--)
+            statement(depth - 1);
+        types.add(TokenType.BLOCK_END);
+    }
+
+    // the variable index first or last
+    private void assign() {
+        add(VALUES);
+        if (random.nextBoolean()) {
+            index(1);
+            expression(2);
+        } else {
+            expression(2);
+            index(0);
+        }
+    }
+
+    private void expression(int depth) {
+        factor(depth);
+        for (int i = random.nextInt(depth <= 0 ? 1 : 4); i > 0; i--) {
+            add(BINARY);
+            factor(depth - 1);
+        }
+    }
+
+    private void factor(int depth) {
+        switch (random.nextInt(depth <= 0 ? 3 : 6)) {
+            case 0 -> {
+                add(VALUES);
+                for (int i = 1 + random.nextInt(8); i > 0; i--)
+                    add(BITS);
+            }
+            case 1 -> {
+                types.add(TokenType.USE_VAR);
+                index(0);
+            }
+            case 2 -> types.add(random.nextBoolean() ? TokenType.PI : TokenType.E);
+            case 3, 4 -> {
+                add(UNARY);
+                factor(depth - 1);
+            }
+            default -> {
+                types.add(TokenType.LPAR);
+                expression(depth - 1);
+                types.add(TokenType.RPAR);
+            }
+        }
+    }
+
+    private void index(int least) {
+        for (int i = least + random.nextInt(3); i > 0; i--)
+            types.add(TokenType.VAR_INDEX);
+    }
+
+    private void add(TokenType[] choices) {
+        types.add(choices[random.nextInt(choices.length)]);
+    }
+}
@@ -0,0 +1,189 @@
+package com.spichka.lineblock.lang.program;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.spichka.lineblock.lang.exceptions.LineBlockException;
+import com.spichka.lineblock.lang.interpreter.TestWorld;
+import com.spichka.lineblock.lang.lexer.TestBlocks;
+import com.spichka.lineblock.lang.lexer.TokenBuffer;
+import com.spichka.lineblock.lang.lexer.TokenType;
+import com.spichka.lineblock.lang.parser.AstDump;
+import com.spichka.lineblock.lang.parser.TokenStreams;
+
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+
+// A program brought up to date after block changes (re-lexed pieces, re-parsed
+// statements) has to be the program built from scratch over the changed blocks.
+class ProgramTest {
+    private static final BlockPos START = BlockPos.ORIGIN;
+    private static final TokenType[][] KINDS = { // an edit mostly keeps the kind of token, so the program still parses
+        { TokenType.ZERO, TokenType.ONE, TokenType.HEX_3, TokenType.HEX_9, TokenType.HEX_F },
+        { TokenType.PLUS, TokenType.MINUS, TokenType.MUL, TokenType.MOD, TokenType.BIT_XOR, TokenType.SHL, TokenType.LT, TokenType.EQ },
+        { TokenType.INT, TokenType.FLOAT, TokenType.BOOL },
+        { TokenType.AND, TokenType.OR, TokenType.XOR },
+        { TokenType.IF, TokenType.WHILE },
+        { TokenType.COMMAND, TokenType.STOP, TokenType.BREAK, TokenType.CONTINUE }
+    };
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final Pattern SLOT = Pattern.compile("index=(-?\\d+) slot=(-?\\d+)");
+
+    @BeforeAll
+    static void bootstrap() {
+        SharedConstants.createGameVersion();
+        Bootstrap.initialize();
+    }
+
+    @Test
+    void updatedLikeABuiltProgram() {
+        World world = TestWorld.create(new ArrayList<>());
+        int updated = 0;
+
+        for (int seed = 0; seed < 300; seed++) {
+            Random random = new Random(seed);
+            TestBlocks blocks = new TestBlocks();
+            TokenBuffer laid = TokenStreams.program(random, 3 + random.nextInt(6), 0);
+            for (int i = 0; i < laid.size(); i++)
+                blocks.set(laid.pos(i), laid.type(i));
+
+            Program program = new Program(world, START, blocks);
+            String root = root(program);
+
+            for (int round = 0; round < 20; round++) {
+                for (int edits = 1 + random.nextInt(2); edits > 0; edits--) {
+                    long pos = edit(random, blocks, laid.size());
+                    program.onBlockChanged(pos);
+                }
+
+                boolean incremental = program.getTokens() != null;
+                root = root(program);
+                Program built = new Program(world, START, blocks);
+                String where = "seed " + seed + ", round " + round;
+
+                assertEquals(withoutSlots(root(built)), withoutSlots(root), where);
+                assertSlotsOfTheirOwn(root, where);
+                assertEquals(String.valueOf(built.getTokens()), String.valueOf(program.getTokens()), where);
+                if (incremental && program.getTokens() != null)
+                    updated++;
+            }
+        }
+
+        assertTrue(updated > 1000, updated + " updates without a new build");
+    }
+
+    @Test
+    void cacheReachesProgramsInChunksTheyGrewInto() {
+        World world = TestWorld.create(new ArrayList<>());
+        ProgramCache.clear();
+
+        TestBlocks blocks = new TestBlocks();
+        blocks.set(at(0), TokenType.PRINT);
+        blocks.set(at(1), TokenType.INT);
+        for (int x = 2; x < 16; x++)
+            blocks.set(at(x), TokenType.ZERO);
+
+        Program program = ProgramCache.get(world, START, blocks);
+        root(program);
+
+        // the program ends at x = 16 in the next chunk, it grows from there into a third one
+        for (int x = 16; x < 40; x++) {
+            blocks.set(at(x), TokenType.ONE);
+            ProgramCache.onBlockChanged(world, BlockPos.fromLong(at(x)));
+        }
+        assertEquals(fresh(world, blocks), root(program), "grown");
+
+        blocks.set(at(35), TokenType.PLUS);
+        ProgramCache.onBlockChanged(world, BlockPos.fromLong(at(35)));
+        assertEquals(fresh(world, blocks), root(program), "changed in the third chunk");
+
+        blocks.set(at(60), TokenType.PLUS); // read by nothing
+        ProgramCache.onBlockChanged(world, BlockPos.fromLong(at(60)));
+        assertEquals(fresh(world, blocks), root(program), "changed after the end");
+
+        ProgramCache.clear();
+    }
+
+    // a block of the line or next to it, a side branch if it is next to a branching token
+    private static long edit(Random random, TestBlocks blocks, int length) {
+        int kind = random.nextInt(20);
+        if (kind < 2) {
+            long pos = BlockPos.asLong(random.nextInt(length), random.nextBoolean() ? 1 : -1, 0);
+            blocks.set(pos, TYPES[random.nextInt(TYPES.length)]);
+            return pos;
+        }
+
+        long pos = at(random.nextInt(length + 2));
+        if (kind < 3) {
+            blocks.clear(pos);
+            return pos;
+        }
+        if (kind < 4) {
+            blocks.set(pos, TYPES[random.nextInt(TYPES.length)]);
+            return pos;
+        }
+
+        for (int tries = 0; tries < 20; tries++, pos = at(random.nextInt(length))) {
+            TokenType[] same = kindOf(blocks, pos);
+            if (same != null) {
+                blocks.set(pos, same[random.nextInt(same.length)]);
+                break;
+            }
+        }
+        return pos;
+    }
+
+    private static TokenType[] kindOf(TestBlocks blocks, long pos) {
+        int code = blocks.classify(pos);
+        for (TokenType[] kind : KINDS) {
+            for (TokenType type : kind) {
+                if (code == type.ordinal() + 1)
+                    return kind;
+            }
+        }
+        return null;
+    }
+
+    private static String fresh(World world, TestBlocks blocks) {
+        return root(new Program(world, START, blocks));
+    }
+
+    private static String root(Program program) {
+        try {
+            return AstDump.of(program.getRoot());
+        } catch (LineBlockException e) {
+            return e.getMessage();
+        }
+    }
+
+    // slots are handed out in the order variables were first parsed, which differs
+    // between an updated and a built program
+    private static String withoutSlots(String root) {
+        return SLOT.matcher(root).replaceAll("index=$1");
+    }
+
+    private static void assertSlotsOfTheirOwn(String root, String where) {
+        Map<String, String> slots = new HashMap<>();
+        Map<String, String> indices = new HashMap<>();
+        for (Matcher matcher = SLOT.matcher(root); matcher.find(); ) {
+            assertEquals(slots.computeIfAbsent(matcher.group(1), index -> matcher.group(2)), matcher.group(2), where);
+            assertEquals(indices.computeIfAbsent(matcher.group(2), slot -> matcher.group(1)), matcher.group(1), where);
+        }
+    }
+
+    private static long at(int x) {
+        return BlockPos.asLong(x, START.getY(), START.getZ());
+    }
+}